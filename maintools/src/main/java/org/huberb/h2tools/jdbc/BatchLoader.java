@@ -0,0 +1,294 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.huberb.h2tools.jdbc.Supports.FunctionThrowingSQLException;
+
+/**
+ * Batch concurrent key lookups into a single query.
+ * <p>
+ * Keys passed to {@link #load(java.lang.Object)} within windowMillis, or up to
+ * maxBatchSize keys, are looked up by a single query. The query selects the
+ * keys either by an IN list, eg.
+ * {@code SELECT ID, NAME FROM PERSON WHERE ID IN (?)}, the single {@code ?} is
+ * expanded to one parameter per key, or by an array parameter, eg.
+ * {@code SELECT ID, NAME FROM PERSON WHERE ID = ANY(?)}, if an array type name
+ * is set. Unlike {@code ARRAY_CONTAINS(?, ID)}, {@code = ANY(?)} is looked up
+ * by the index of the key column.
+ * <p>
+ * The results are memoized, thus a key is queried at most once per instance.
+ * Use an instance per request, and close it at the end of the request. The
+ * instances share a scheduled executor, waiting for more keys, and running
+ * the queries, eg.
+ * <pre>
+ * final ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+ * try (final BatchLoader&lt;Long, String&gt; batchLoader = new BatchLoader&lt;&gt;(connectionFactory, executor,
+ *         "SELECT ID, NAME FROM PERSON WHERE ID IN (?)",
+ *         (rs) -&gt; rs.getLong("ID"),
+ *         (rs) -&gt; rs.getString("NAME"))) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author berni3
+ * @param <K> the key type, it must be equal to the keys extracted from the
+ * result set
+ * @param <V> the value type
+ */
+public class BatchLoader<K, V> implements AutoCloseable {
+
+    final IConnectionFactory connectionFactory;
+    final String sql;
+    final FunctionThrowingSQLException<ResultSet, K> keyExtractor;
+    final FunctionThrowingSQLException<ResultSet, V> valueMapper;
+    final Map<K, CompletableFuture<V>> memoized;
+    final ScheduledExecutorService scheduledExecutorService;
+    final Object lock = new Object();
+    int maxBatchSize = 100;
+    long windowMillis = 2L;
+    String arrayTypeName = null;
+    Map<K, CompletableFuture<V>> batch;
+    ScheduledFuture<?> scheduledDispatch;
+
+    /**
+     * Create a loader.
+     *
+     * @param connectionFactory
+     * @param scheduledExecutorService executor shared by the loaders, not
+     * shut down by a loader
+     * @param sql the query selecting the keys
+     * @param keyExtractor extract the key of the current row
+     * @param valueMapper map the current row to a value
+     */
+    public BatchLoader(IConnectionFactory connectionFactory, ScheduledExecutorService scheduledExecutorService,
+            String sql,
+            FunctionThrowingSQLException<ResultSet, K> keyExtractor,
+            FunctionThrowingSQLException<ResultSet, V> valueMapper) {
+        this.connectionFactory = connectionFactory;
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.sql = sql;
+        this.keyExtractor = keyExtractor;
+        this.valueMapper = valueMapper;
+        this.memoized = new ConcurrentHashMap<>();
+        this.batch = new LinkedHashMap<>();
+    }
+
+    /**
+     * @param maxBatchSize maximum number of keys per query
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @param windowMillis time to wait for more keys after the first key of a
+     * batch
+     */
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * @param arrayTypeName if set bind all keys as single array parameter of
+     * this sql type, eg. {@code BIGINT}
+     */
+    public void setArrayTypeName(String arrayTypeName) {
+        this.arrayTypeName = arrayTypeName;
+    }
+
+    /**
+     * Load the value of a key.
+     *
+     * @param key
+     * @return future of the value, or of {@code null} if there is no row for
+     * the key
+     */
+    public CompletableFuture<V> load(K key) {
+        final CompletableFuture<V> created = new CompletableFuture<>();
+        final CompletableFuture<V> future = this.memoized.computeIfAbsent(key, (k) -> created);
+        if (future == created) {
+            enqueue(key, created);
+        }
+        return future;
+    }
+
+    /**
+     * Load the values of some keys.
+     *
+     * @param keys
+     * @return future of the values of the keys having a row
+     */
+    public CompletableFuture<Map<K, V>> loadMany(Collection<K> keys) {
+        final Map<K, CompletableFuture<V>> futures = new LinkedHashMap<>();
+        for (K key : keys) {
+            futures.put(key, load(key));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply((v) -> {
+                    final Map<K, V> m = new LinkedHashMap<>();
+                    futures.forEach((key, future) -> {
+                        final V value = future.join();
+                        if (value != null) {
+                            m.put(key, value);
+                        }
+                    });
+                    return m;
+                });
+    }
+
+    /**
+     * Forget all memoized values.
+     */
+    public void clear() {
+        this.memoized.clear();
+    }
+
+    void enqueue(K key, CompletableFuture<V> future) {
+        synchronized (this.lock) {
+            final CompletableFuture<V> pending = this.batch.putIfAbsent(key, future);
+            if (pending != null) {
+                // key is already pending since clear()
+                pending.whenComplete((v, ex) -> {
+                    if (ex != null) {
+                        future.completeExceptionally(ex);
+                    } else {
+                        future.complete(v);
+                    }
+                });
+            } else if (this.batch.size() >= this.maxBatchSize) {
+                dispatch();
+            } else if (this.batch.size() == 1) {
+                this.scheduledDispatch = this.scheduledExecutorService.schedule(this::dispatchScheduled,
+                        this.windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    void dispatchScheduled() {
+        synchronized (this.lock) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Hand the current batch to a query thread.
+     * <p>
+     * Invoked holding the lock.
+     */
+    void dispatch() {
+        if (this.scheduledDispatch != null) {
+            this.scheduledDispatch.cancel(false);
+            this.scheduledDispatch = null;
+        }
+        if (this.batch.isEmpty()) {
+            return;
+        }
+        final Map<K, CompletableFuture<V>> futures = this.batch;
+        this.batch = new LinkedHashMap<>();
+        this.scheduledExecutorService.execute(() -> query(futures));
+    }
+
+    void query(Map<K, CompletableFuture<V>> futures) {
+        final List<K> keys = new ArrayList<>(futures.keySet());
+        final Map<K, V> values = new HashMap<>();
+        try (final Connection connection = this.connectionFactory.createConnection();
+                final PreparedStatement preparedStatement = prepareStatement(connection, keys)) {
+            try (final ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    values.put(this.keyExtractor.apply(rs), this.valueMapper.apply(rs));
+                }
+            }
+        } catch (SQLException | RuntimeException ex) {
+            futures.forEach((key, future) -> {
+                // forget the failed keys, thus a later load queries them again
+                this.memoized.remove(key, future);
+                future.completeExceptionally(ex);
+            });
+            return;
+        }
+        futures.forEach((key, future) -> future.complete(values.get(key)));
+    }
+
+    PreparedStatement prepareStatement(Connection connection, List<K> keys) throws SQLException {
+        final PreparedStatement preparedStatement;
+        if (this.arrayTypeName != null) {
+            preparedStatement = connection.prepareStatement(this.sql);
+            final Array array = connection.createArrayOf(this.arrayTypeName, keys.toArray());
+            preparedStatement.setArray(1, array);
+        } else {
+            preparedStatement = connection.prepareStatement(expandInList(this.sql, keys.size()));
+            for (int i = 0; i < keys.size(); i++) {
+                preparedStatement.setObject(i + 1, keys.get(i));
+            }
+        }
+        return preparedStatement;
+    }
+
+    /**
+     * Expand the single parameter of sql to count parameters.
+     *
+     * @param sql sql having a single {@code ?}, eg.
+     * {@code SELECT * FROM T WHERE ID IN (?)}
+     * @param count
+     * @return sql having count comma separated parameters
+     */
+    static String expandInList(String sql, int count) {
+        final int index = sql.indexOf('?');
+        if (index < 0 || sql.indexOf('?', index + 1) >= 0) {
+            throw new IllegalArgumentException("sql must have a single parameter: " + sql);
+        }
+        return sql.substring(0, index)
+                + String.join(", ", Collections.nCopies(count, "?"))
+                + sql.substring(index + 1);
+    }
+
+    /**
+     * Query the pending keys, and wait for the queries.
+     */
+    @Override
+    public void close() {
+        synchronized (this.lock) {
+            dispatch();
+        }
+        final CompletableFuture<Void> all = CompletableFuture.allOf(this.memoized.values().toArray(new CompletableFuture<?>[0]));
+        try {
+            all.get(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            // passed to the futures of the keys
+        }
+    }
+}
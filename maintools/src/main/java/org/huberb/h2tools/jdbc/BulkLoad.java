@@ -0,0 +1,428 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load data into tables without maintaining their secondary indexes and
+ * foreign key constraints.
+ * <p>
+ * The definitions of the secondary indexes, and of the foreign key constraints
+ * of the tables are captured from {@code INFORMATION_SCHEMA}, and dropped. The
+ * primary key, the unique, and the check constraints are kept, thus a load
+ * inserting duplicates, or invalid values fails, instead of committing them.
+ * After loading, the definitions are rebuilt, even if the load fails.
+ * <p>
+ * Before rebuilding a foreign key, the rows violating it are found by an
+ * anti-join. As the foreign key was enforced before the load, these rows are
+ * loaded rows: they are deleted, the foreign key is rebuilt checking all rows,
+ * and the violation is reported by an {@link SQLException}.
+ * <p>
+ * H2 locks a table exclusively while creating an index, thus the definitions
+ * of a table are rebuilt one after the other, whereas the tables are rebuilt
+ * in parallel, each by its own connection.
+ * <p>
+ * Optionally the transaction log is disabled for the duration of the load by
+ * {@code SET LOG 0}, see {@link #setDisableLog(boolean)}.
+ *
+ * @author berni3
+ */
+public class BulkLoad {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkLoad.class);
+
+    static final Pattern INDEX_CLAUSE = Pattern.compile(" INDEX \"[^\"]*\"\\.\"[^\"]*\"");
+    static final String NOCHECK = " NOCHECK";
+
+    /**
+     * A captured index or constraint definition.
+     */
+    public static class Definition {
+
+        final String table;
+        final String name;
+        final String type;
+        final String createSql;
+        final String dropSql;
+        final String violationCondition;
+
+        Definition(String table, String name, String type, String createSql, String dropSql, String violationCondition) {
+            this.table = table;
+            this.name = name;
+            this.type = type;
+            this.createSql = createSql;
+            this.dropSql = dropSql;
+            this.violationCondition = violationCondition;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @return INDEX, or the constraint type REFERENTIAL
+         */
+        public String type() {
+            return type;
+        }
+
+        public String createSql() {
+            return createSql;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s: %s", type, name, createSql);
+        }
+    }
+
+    final IConnectionFactory connectionFactory;
+    final List<String> tables;
+    int parallel = 4;
+    boolean disableLog = false;
+
+    /**
+     * @param connectionFactory creates the connections altering the tables
+     * @param tables names of the tables, optionally qualified by a schema
+     */
+    public BulkLoad(IConnectionFactory connectionFactory, String... tables) {
+        this.connectionFactory = connectionFactory;
+        this.tables = List.of(tables);
+    }
+
+    /**
+     * @param parallel maximum number of tables rebuilt in parallel
+     */
+    public void setParallel(int parallel) {
+        this.parallel = Math.max(1, parallel);
+    }
+
+    /**
+     * Disable the transaction log for the duration of the load.
+     * <p>
+     * {@code SET LOG 0} is a database setting, not a session setting: it
+     * affects all sessions of the database, and a crash while loading may
+     * corrupt the database. It requires admin rights. Disabled by default.
+     *
+     * @param disableLog {@code true} to {@code SET LOG 0} while loading
+     */
+    public void setDisableLog(boolean disableLog) {
+        this.disableLog = disableLog;
+    }
+
+    //---
+    /**
+     * Drop the definitions, load, and rebuild the definitions.
+     *
+     * @param <T> result type of load
+     * @param load loads the data, and commits
+     * @return the result of load
+     * @throws Exception the exception of load, or an {@link SQLException} if
+     * rebuilding fails
+     */
+    public <T> T execute(Callable<T> load) throws Exception {
+        final List<Definition> definitions;
+        final String log;
+        try (final Connection connection = this.connectionFactory.createConnection()) {
+            definitions = capture(connection);
+            log = this.disableLog ? readSetting(connection, "LOG") : null;
+        }
+        logger.info("Bulk load dropping {}", definitions);
+        final List<Definition> dropped = new ArrayList<>();
+        Exception failure = null;
+        T result = null;
+        try {
+            try (final Connection connection = this.connectionFactory.createConnection();
+                    final Statement statement = connection.createStatement()) {
+                for (Definition definition : definitions) {
+                    statement.execute(definition.dropSql);
+                    dropped.add(definition);
+                }
+                if (log != null) {
+                    setLog(statement, "0");
+                }
+            }
+            result = load.call();
+        } catch (Exception ex) {
+            failure = ex;
+        } finally {
+            try {
+                if (log != null) {
+                    try (final Connection connection = this.connectionFactory.createConnection();
+                            final Statement statement = connection.createStatement()) {
+                        setLog(statement, log);
+                    }
+                }
+                rebuild(dropped);
+            } catch (SQLException sqlex) {
+                if (failure != null) {
+                    failure.addSuppressed(sqlex);
+                } else {
+                    failure = sqlex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+
+    static void setLog(Statement statement, String log) {
+        try {
+            statement.execute("SET LOG " + log);
+        } catch (SQLException sqlex) {
+            logger.warn("Cannot SET LOG {}: {}", log, sqlex.getMessage());
+        }
+    }
+
+    static String readSetting(Connection connection, String name) throws SQLException {
+        try (final PreparedStatement ps = connection.prepareStatement("SELECT VALUE FROM INFORMATION_SCHEMA.SETTINGS WHERE NAME = ?")) {
+            ps.setString(1, name);
+            try (final ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Capture the definitions of all tables, in the order of dropping them:
+     * the foreign keys first, and the indexes last. Unique, and check
+     * constraints, and unique indexes are not captured, thus they reject
+     * invalid rows while loading.
+     */
+    List<Definition> capture(Connection connection) throws SQLException {
+        final List<Definition> definitions = new ArrayList<>();
+        for (String table : this.tables) {
+            final String[] schemaAndTable = resolve(connection, table);
+            final String qualifiedTable = quote(schemaAndTable[0]) + "." + quote(schemaAndTable[1]);
+            final String constraintsSql = "SELECT C.CONSTRAINT_NAME, C.CONSTRAINT_TYPE, C.SQL "
+                    + "FROM INFORMATION_SCHEMA.CONSTRAINTS C "
+                    + "WHERE C.TABLE_SCHEMA = ? AND C.TABLE_NAME = ? AND C.CONSTRAINT_TYPE = 'REFERENTIAL' "
+                    + "ORDER BY C.CONSTRAINT_NAME";
+            try (final PreparedStatement ps = connection.prepareStatement(constraintsSql)) {
+                ps.setString(1, schemaAndTable[0]);
+                ps.setString(2, schemaAndTable[1]);
+                try (final ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        final String name = rs.getString(1);
+                        // let H2 create the index of the constraint
+                        String createSql = INDEX_CLAUSE.matcher(rs.getString(3)).replaceAll("");
+                        if (createSql.endsWith(NOCHECK)) {
+                            createSql = createSql.substring(0, createSql.length() - NOCHECK.length());
+                        }
+                        definitions.add(new Definition(qualifiedTable, name, rs.getString(2), createSql,
+                                String.format("ALTER TABLE %s DROP CONSTRAINT %s.%s", qualifiedTable, quote(schemaAndTable[0]), quote(name)),
+                                violationCondition(connection, schemaAndTable[0], name)));
+                    }
+                }
+            }
+            final String indexesSql = "SELECT DISTINCT INDEX_NAME, SQL FROM INFORMATION_SCHEMA.INDEXES "
+                    + "WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND PRIMARY_KEY = FALSE AND NON_UNIQUE = TRUE AND CONSTRAINT_NAME IS NULL "
+                    + "ORDER BY INDEX_NAME";
+            try (final PreparedStatement ps = connection.prepareStatement(indexesSql)) {
+                ps.setString(1, schemaAndTable[0]);
+                ps.setString(2, schemaAndTable[1]);
+                try (final ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        final String name = rs.getString(1);
+                        definitions.add(new Definition(qualifiedTable, name, "INDEX", rs.getString(2),
+                                String.format("DROP INDEX %s.%s", quote(schemaAndTable[0]), quote(name)), null));
+                    }
+                }
+            }
+        }
+        return definitions;
+    }
+
+    /**
+     * Create the condition of the rows of a table, aliased {@code L},
+     * violating a foreign key: all foreign key columns are not null, and no
+     * referenced row exists.
+     */
+    static String violationCondition(Connection connection, String schema, String foreignKey) throws SQLException {
+        final String sql = "SELECT PKTABLE_SCHEMA, PKTABLE_NAME, PKCOLUMN_NAME, FKCOLUMN_NAME FROM INFORMATION_SCHEMA.CROSS_REFERENCES "
+                + "WHERE FKTABLE_SCHEMA = ? AND FK_NAME = ? ORDER BY ORDINAL_POSITION";
+        final List<String> notNull = new ArrayList<>();
+        final List<String> joined = new ArrayList<>();
+        String referencedTable = null;
+        try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, schema);
+            ps.setString(2, foreignKey);
+            try (final ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    referencedTable = quote(rs.getString(1)) + "." + quote(rs.getString(2));
+                    notNull.add(String.format("L.%s IS NOT NULL", quote(rs.getString(4))));
+                    joined.add(String.format("R.%s = L.%s", quote(rs.getString(3)), quote(rs.getString(4))));
+                }
+            }
+        }
+        if (referencedTable == null) {
+            throw new SQLException("No columns of foreign key " + foreignKey);
+        }
+        return String.format("%s AND NOT EXISTS (SELECT 1 FROM %s R WHERE %s)",
+                String.join(" AND ", notNull), referencedTable, String.join(" AND ", joined));
+    }
+
+    /**
+     * Rebuild the dropped definitions in reverse order of dropping, tables in
+     * parallel.
+     */
+    void rebuild(List<Definition> dropped) throws SQLException {
+        final Map<String, List<Definition>> definitionsByTable = new LinkedHashMap<>();
+        for (Definition definition : dropped) {
+            definitionsByTable.computeIfAbsent(definition.table, (k) -> new ArrayList<>()).add(definition);
+        }
+        if (definitionsByTable.isEmpty()) {
+            return;
+        }
+        final ExecutorService executorService = Executors.newFixedThreadPool(Math.min(this.parallel, definitionsByTable.size()), (r) -> {
+            final Thread t = new Thread(r, "BulkLoad");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            final List<Future<List<String>>> futures = new ArrayList<>();
+            for (List<Definition> definitions : definitionsByTable.values()) {
+                Collections.reverse(definitions);
+                futures.add(executorService.submit(() -> rebuildTable(definitions)));
+            }
+            final List<String> failures = new ArrayList<>();
+            for (Future<List<String>> future : futures) {
+                failures.addAll(get(future));
+            }
+            if (!failures.isEmpty()) {
+                throw new SQLException("Bulk load rebuild failed: " + String.join("; ", failures));
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * Rebuild the definitions of a table, the indexes first, thus they support
+     * validating the foreign keys.
+     * <p>
+     * The rows violating a foreign key are deleted, before the foreign key is
+     * rebuilt checking all rows.
+     *
+     * @return descriptions of the definitions failing to rebuild, or violated
+     */
+    List<String> rebuildTable(List<Definition> definitions) throws SQLException {
+        final List<String> failures = new ArrayList<>();
+        try (final Connection connection = this.connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            connection.setAutoCommit(false);
+            for (Definition definition : definitions) {
+                logger.info("Bulk load rebuilding {}", definition);
+                try {
+                    if (definition.violationCondition != null) {
+                        final int deleted = statement.executeUpdate(String.format("DELETE FROM %s L WHERE %s",
+                                definition.table, definition.violationCondition));
+                        if (deleted > 0) {
+                            final String failure = String.format("%s %s: violated by %d loaded rows, deleted",
+                                    definition.type, definition.name, deleted);
+                            logger.warn("Bulk load rebuild {}", failure);
+                            failures.add(failure);
+                        }
+                    }
+                    statement.execute(definition.createSql);
+                    connection.commit();
+                } catch (SQLException sqlex) {
+                    connection.rollback();
+                    final String failure = String.format("%s %s: %s", definition.type, definition.name, sqlex.getMessage());
+                    logger.warn("Bulk load rebuild {}", failure);
+                    failures.add(failure);
+                }
+            }
+        }
+        return failures;
+    }
+
+    static List<String> get(Future<List<String>> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("rebuild", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            }
+            throw new SQLException("rebuild", ex.getCause());
+        }
+    }
+
+    /**
+     * @return schema, and table name as stored in
+     * {@code INFORMATION_SCHEMA}
+     */
+    static String[] resolve(Connection connection, String table) throws SQLException {
+        final List<String> parts = new ArrayList<>();
+        final StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        for (int i = 0; i < table.length(); i++) {
+            final char c = table.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < table.length() && table.charAt(i + 1) == '"') {
+                    sb.append(c);
+                    i += 1;
+                } else {
+                    quoted = !quoted;
+                    wasQuoted = true;
+                }
+            } else if (c == '.' && !quoted) {
+                parts.add(wasQuoted ? sb.toString() : sb.toString().trim().toUpperCase());
+                sb.setLength(0);
+                wasQuoted = false;
+            } else {
+                sb.append(c);
+            }
+        }
+        parts.add(wasQuoted ? sb.toString() : sb.toString().trim().toUpperCase());
+        if (parts.size() == 1) {
+            try (final Statement statement = connection.createStatement();
+                    final ResultSet rs = statement.executeQuery("SELECT SCHEMA()")) {
+                rs.next();
+                parts.add(0, rs.getString(1));
+            }
+        }
+        return new String[]{parts.get(parts.size() - 2), parts.get(parts.size() - 1)};
+    }
+
+    static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import org.huberb.h2tools.jdbc.KeyRanges.KeyRange;
+import org.huberb.h2tools.jdbc.Supports.Holder;
+import org.huberb.h2tools.jdbc.Supports.ConsumerThrowingSQLException;
+
+/**
+ * Execute a large UPDATE, or DELETE statement in chunks of key ranges.
+ * <p>
+ * Each chunk runs in its own short transaction, thus locks are held only
+ * briefly, and the undo log stays small. The statement is restricted to a
+ * chunk by appending a range predicate on the key column to its WHERE clause.
+ * <p>
+ * The chunks are created one at a time. A chunk starts at the smallest
+ * existing key following the previous chunk, thus gaps of sparse keys are
+ * skipped instead of executing empty chunks.
+ * <p>
+ * Example: {@code DELETE FROM EVENT_ENTITY WHERE CREATED < ?} is executed as
+ * {@code DELETE FROM EVENT_ENTITY WHERE (CREATED < ?) AND ID >= ? AND ID < ?}
+ * for each chunk.
+ *
+ * @author berni3
+ */
+public class ChunkedUpdate {
+
+    /**
+     * Top-level clauses not allowed after the WHERE clause of a chunked sql.
+     */
+    private static final List<String> TRAILING_KEYWORDS = Arrays.asList("ORDER", "LIMIT", "OFFSET", "FETCH");
+
+    /**
+     * Progress information, passed after each committed chunk.
+     */
+    public static class Progress {
+
+        final KeyRange keyRange;
+        final int updateCount;
+        final long totalUpdateCount;
+        final long chunksDone;
+        final long maxKey;
+
+        Progress(KeyRange keyRange, int updateCount, long totalUpdateCount, long chunksDone, long maxKey) {
+            this.keyRange = keyRange;
+            this.updateCount = updateCount;
+            this.totalUpdateCount = totalUpdateCount;
+            this.chunksDone = chunksDone;
+            this.maxKey = maxKey;
+        }
+
+        /**
+         * @return the committed key range
+         */
+        public KeyRange keyRange() {
+            return keyRange;
+        }
+
+        public int updateCount() {
+            return updateCount;
+        }
+
+        public long totalUpdateCount() {
+            return totalUpdateCount;
+        }
+
+        public long chunksDone() {
+            return chunksDone;
+        }
+
+        /**
+         * @return the maximum key, queried before the first chunk
+         */
+        public long maxKey() {
+            return maxKey;
+        }
+
+        /**
+         * @return the key to pass for resuming after this chunk
+         */
+        public long resumeKey() {
+            return keyRange.high();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("chunk %d %s of max key %d updateCount %d, totalUpdateCount %d",
+                    chunksDone, keyRange, maxKey, updateCount, totalUpdateCount);
+        }
+    }
+
+    final IConnectionFactory connectionFactory;
+    final String table;
+    final String keyColumn;
+    final String sql;
+    final List<Object> params;
+    final long chunkSize;
+    long pauseMillis = 0L;
+    long maxRowsPerSecond = 0L;
+    ConsumerThrowingSQLException<Progress> progressConsumer = (progress) -> {
+    };
+
+    /**
+     * Create a chunked update.
+     *
+     * @param connectionFactory
+     * @param table the table updated by sql
+     * @param keyColumn the numeric primary key column of the table
+     * @param sql the UPDATE, or DELETE statement
+     * @param params optional parameters of sql, if no parameters pass
+     * {@link JdbcSql#EMPTY_PARAMS}.
+     * @param chunkSize number of keys per chunk
+     */
+    public ChunkedUpdate(IConnectionFactory connectionFactory,
+            String table, String keyColumn,
+            String sql, List<Object> params,
+            long chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.connectionFactory = connectionFactory;
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.sql = sql;
+        this.params = params != null ? params : Collections.emptyList();
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param pauseMillis pause between two chunks
+     */
+    public void setPauseMillis(long pauseMillis) {
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * @param maxRowsPerSecond limit the rate of updated rows, 0 for no limit
+     */
+    public void setMaxRowsPerSecond(long maxRowsPerSecond) {
+        this.maxRowsPerSecond = maxRowsPerSecond;
+    }
+
+    /**
+     * @param progressConsumer invoked after each committed chunk
+     */
+    public void setProgressConsumer(ConsumerThrowingSQLException<Progress> progressConsumer) {
+        this.progressConsumer = progressConsumer;
+    }
+
+    /**
+     * Execute all chunks.
+     *
+     * @return total count of updates
+     * @throws SQLException
+     */
+    public long execute() throws SQLException {
+        return execute(Optional.empty());
+    }
+
+    /**
+     * Execute all chunks, starting at a resume key.
+     *
+     * @param resumeKeyOptional the key of {@link Progress#resumeKey()} of the
+     * last committed chunk of a previous run
+     * @return total count of updates
+     * @throws SQLException
+     */
+    public long execute(Optional<Long> resumeKeyOptional) throws SQLException {
+        final String chunkSql = createChunkSql(this.sql, this.keyColumn);
+        long totalUpdateCount = 0L;
+        try (final Connection connection = this.connectionFactory.createConnection()) {
+            final Optional<KeyRange> keyRangeOptional;
+            try (final JdbcSql jdbcSql = JdbcSql.newInstance(this.connectionFactory)) {
+                keyRangeOptional = KeyRanges.queryKeyRange(jdbcSql, this.table, this.keyColumn);
+            }
+            if (keyRangeOptional.isEmpty()) {
+                return 0L;
+            }
+            final KeyRange fullKeyRange = keyRangeOptional.get();
+            final long low = resumeKeyOptional.map((k) -> Math.max(k, fullKeyRange.low())).orElse(fullKeyRange.low());
+            if (low >= fullKeyRange.high()) {
+                return 0L;
+            }
+            final long high = fullKeyRange.high();
+
+            final long startMillis = System.currentTimeMillis();
+            long chunksDone = 0L;
+            Optional<Long> chunkLowOptional = Optional.of(low);
+            while (chunkLowOptional.isPresent()) {
+                final long chunkLow = chunkLowOptional.get();
+                final KeyRange keyRange = new KeyRange(chunkLow, KeyRanges.nextHigh(chunkLow, high, this.chunkSize));
+                final int updateCount = executeChunk(connection, chunkSql, keyRange);
+                totalUpdateCount += updateCount;
+                chunksDone += 1;
+                this.progressConsumer.accept(new Progress(keyRange, updateCount, totalUpdateCount, chunksDone, high - 1));
+                // keys inserted after querying the key range are left out
+                chunkLowOptional = keyRange.high() < high
+                        ? queryNextKey(connection, keyRange.high()).filter((k) -> k < high)
+                        : Optional.empty();
+                if (chunkLowOptional.isPresent()) {
+                    throttle(startMillis, totalUpdateCount);
+                }
+            }
+        }
+        return totalUpdateCount;
+    }
+
+    /**
+     * @return the smallest key not less than fromKey, or empty
+     */
+    Optional<Long> queryNextKey(Connection connection, long fromKey) throws SQLException {
+        final String nextKeySql = String.format("SELECT MIN(%s) FROM %s WHERE %s >= ?", this.keyColumn, this.table, this.keyColumn);
+        final Holder<Long> holder = new Holder<>();
+        JdbcSqlF.ResultSetCommands.processResultSet(connection, nextKeySql, Arrays.asList(fromKey), (ResultSet rs) -> {
+            if (rs.next()) {
+                final long nextKey = rs.getLong(1);
+                if (!rs.wasNull()) {
+                    holder.set(nextKey);
+                }
+            }
+        });
+        return Optional.ofNullable(holder.get());
+    }
+
+    int executeChunk(Connection connection, String chunkSql, KeyRange keyRange) throws SQLException {
+        final List<Object> chunkParams = new ArrayList<>(this.params);
+        chunkParams.add(keyRange.low());
+        chunkParams.add(keyRange.high());
+        final int[] updateCount = new int[1];
+        JdbcSqlF.Connections.withTransaction(connection, (c) -> {
+            updateCount[0] = JdbcSqlF.UpdateCommands.executeUpdate(c, chunkSql, chunkParams);
+        });
+        return updateCount[0];
+    }
+
+    void throttle(long startMillis, long totalUpdateCount) throws SQLException {
+        long sleepMillis = this.pauseMillis;
+        if (this.maxRowsPerSecond > 0) {
+            final long expectedElapsedMillis = totalUpdateCount * 1000L / this.maxRowsPerSecond;
+            final long elapsedMillis = System.currentTimeMillis() - startMillis;
+            sleepMillis = Math.max(sleepMillis, expectedElapsedMillis - elapsedMillis);
+        }
+        if (sleepMillis > 0) {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("throttle", ex);
+            }
+        }
+    }
+
+    /**
+     * Restrict sql to a key range.
+     * <p>
+     * The range predicate is combined with the top-level WHERE clause, thus
+     * WHERE clauses of sub-queries are left untouched. A trailing semicolon is
+     * dropped. Comments, and top-level ORDER BY, LIMIT, OFFSET, or FETCH
+     * clauses are rejected, as the range predicate would be appended after
+     * them.
+     *
+     * @param sql UPDATE, or DELETE statement
+     * @param keyColumn
+     * @return sql having two additional parameters for the key range
+     * @throws IllegalArgumentException if sql has a comment, or a trailing
+     * clause
+     */
+    static String createChunkSql(String sql, String keyColumn) {
+        String trimmedSql = sql.trim();
+        if (trimmedSql.endsWith(";")) {
+            trimmedSql = trimmedSql.substring(0, trimmedSql.length() - 1).trim();
+        }
+        for (final String keyword : TRAILING_KEYWORDS) {
+            if (findTopLevel(trimmedSql, keyword) >= 0) {
+                throw new IllegalArgumentException("sql must not have a " + keyword + " clause: " + sql);
+            }
+        }
+        final int whereIndex = findTopLevelWhere(trimmedSql);
+        final String rangePredicate = KeyRanges.rangePredicate(keyColumn);
+        final String chunkSql;
+        if (whereIndex < 0) {
+            chunkSql = trimmedSql + " WHERE " + rangePredicate;
+        } else {
+            final String condition = trimmedSql.substring(whereIndex + "WHERE".length()).trim();
+            chunkSql = trimmedSql.substring(0, whereIndex) + "WHERE (" + condition + ") AND " + rangePredicate;
+        }
+        return chunkSql;
+    }
+
+    static int findTopLevelWhere(String sql) {
+        return findTopLevel(sql, "WHERE");
+    }
+
+    /**
+     * Find a keyword outside of quotes, and parentheses.
+     *
+     * @param sql
+     * @param keyword upper case keyword
+     * @return index of the first top-level keyword, or -1
+     * @throws IllegalArgumentException if sql has a comment
+     */
+    static int findTopLevel(String sql, String keyword) {
+        final int length = keyword.length();
+        int depth = 0;
+        boolean inSingleQuote = false;
+        boolean inDoubleQuote = false;
+        for (int i = 0; i < sql.length(); i++) {
+            final char c = sql.charAt(i);
+            if (inSingleQuote) {
+                inSingleQuote = c != '\'';
+            } else if (inDoubleQuote) {
+                inDoubleQuote = c != '"';
+            } else if (c == '\'') {
+                inSingleQuote = true;
+            } else if (c == '"') {
+                inDoubleQuote = true;
+            } else if (sql.startsWith("--", i) || sql.startsWith("/*", i) || sql.startsWith("//", i)) {
+                throw new IllegalArgumentException("sql must not have comments: " + sql);
+            } else if (c == '(') {
+                depth += 1;
+            } else if (c == ')') {
+                depth -= 1;
+            } else if (depth == 0
+                    && sql.regionMatches(true, i, keyword, 0, length)
+                    && (i == 0 || !Character.isJavaIdentifierPart(sql.charAt(i - 1)))
+                    && (i + length == sql.length() || !Character.isJavaIdentifierPart(sql.charAt(i + length)))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
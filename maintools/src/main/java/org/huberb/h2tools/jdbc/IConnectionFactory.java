@@ -27,4 +27,17 @@ public interface IConnectionFactory {
 
     Connection createConnection() throws SQLException;
 
+    /**
+     * Create a connection for read-only work.
+     * <p>
+     * Implementations may route read-only connections to replicas, by default
+     * a connection of {@link #createConnection()} is returned.
+     *
+     * @return a connection
+     * @throws SQLException
+     */
+    default Connection createReadOnlyConnection() throws SQLException {
+        return createConnection();
+    }
+
 }
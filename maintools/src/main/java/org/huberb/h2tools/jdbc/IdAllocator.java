@@ -0,0 +1,242 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.huberb.h2tools.jdbc.Supports.Holder;
+
+/**
+ * Hi-lo id allocator backed by an H2 sequence.
+ * <p>
+ * The sequence is expected to use {@code INCREMENT BY blockSize}, thus a
+ * single {@code NEXT VALUE FOR} reserves a whole block of ids. The ids of a
+ * block are handed out lock-free from an {@link AtomicLong}. When the current
+ * block is running low the next block is fetched asynchronously.
+ * <p>
+ * An instance is thread-safe, and shall be closed to release its prefetch
+ * thread. After closing, allocating an id beyond the current block fails.
+ *
+ * @author berni3
+ */
+public class IdAllocator implements AutoCloseable {
+
+    /**
+     * A block of reserved ids {@code [start, end)}.
+     */
+    static class Block {
+
+        final AtomicLong next;
+        final long end;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    final IConnectionFactory connectionFactory;
+    final String sequenceName;
+    final long blockSize;
+    final long prefetchAt;
+    final AtomicReference<Block> current;
+    final AtomicReference<CompletableFuture<Block>> prefetched;
+    final ExecutorService executorService;
+
+    /**
+     * Create an allocator, prefetching when a quarter of a block is left.
+     *
+     * @param connectionFactory factory for the connections fetching blocks
+     * @param sequenceName the name of the H2 sequence
+     * @param blockSize the number of ids reserved per sequence value
+     */
+    public IdAllocator(IConnectionFactory connectionFactory, String sequenceName, long blockSize) {
+        this(connectionFactory, sequenceName, blockSize, blockSize / 4);
+    }
+
+    /**
+     * Create an allocator.
+     *
+     * @param connectionFactory factory for the connections fetching blocks
+     * @param sequenceName the name of the H2 sequence
+     * @param blockSize the number of ids reserved per sequence value
+     * @param prefetchAt prefetch the next block when this number of ids is
+     * left in the current block
+     */
+    public IdAllocator(IConnectionFactory connectionFactory, String sequenceName, long blockSize, long prefetchAt) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        this.connectionFactory = connectionFactory;
+        this.sequenceName = sequenceName;
+        this.blockSize = blockSize;
+        this.prefetchAt = Math.max(0L, Math.min(prefetchAt, blockSize - 1));
+        // an exhausted block, fetching the first block on demand
+        this.current = new AtomicReference<>(new Block(0L, 0L));
+        this.prefetched = new AtomicReference<>(null);
+        this.executorService = Executors.newSingleThreadExecutor((r) -> {
+            final Thread t = new Thread(r, "IdAllocator-" + sequenceName);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Create the sequence if it does not exist yet.
+     * <p>
+     * If the sequence exists its increment must match the block size.
+     *
+     * @throws SQLException if the sequence exists with a different increment
+     */
+    public void createSequenceIfNotExists() throws SQLException {
+        JdbcSql.withInstance(this.connectionFactory, (jdbcSql) -> {
+            final String sql = String.format("CREATE SEQUENCE IF NOT EXISTS %s START WITH 1 INCREMENT BY %d",
+                    this.sequenceName, this.blockSize);
+            jdbcSql.executeUpdate(sql, JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+
+            final Holder<Long> increment = new Holder<>();
+            final String sqlIncrement = "SELECT INCREMENT FROM INFORMATION_SCHEMA.SEQUENCES "
+                    + "WHERE UPPER(SEQUENCE_NAME) = UPPER(?)";
+            final List<Object> params = Arrays.asList(unquote(this.sequenceName));
+            jdbcSql.executeQuery(sqlIncrement, params, (ResultSet rs) -> {
+                if (rs.next()) {
+                    increment.set(rs.getLong(1));
+                }
+            });
+            if (increment.get() != null && increment.get() != this.blockSize) {
+                throw new SQLException(String.format("Sequence %s uses increment %d, expected block size %d",
+                        this.sequenceName, increment.get(), this.blockSize));
+            }
+        });
+    }
+
+    /**
+     * Allocate the next id.
+     *
+     * @return next id
+     * @throws SQLException if fetching a new block fails
+     */
+    public long nextId() throws SQLException {
+        while (true) {
+            final Block block = this.current.get();
+            final long id = block.next.getAndIncrement();
+            if (id < block.end) {
+                if (block.end - id - 1 == this.prefetchAt) {
+                    prefetch();
+                }
+                return id;
+            }
+            // block is exhausted, switch to the prefetched block
+            final CompletableFuture<Block> nextBlockFuture = prefetch();
+            final Block nextBlock;
+            try {
+                nextBlock = nextBlockFuture.join();
+            } catch (CompletionException ex) {
+                this.prefetched.compareAndSet(nextBlockFuture, null);
+                if (ex.getCause() instanceof SQLException) {
+                    throw (SQLException) ex.getCause();
+                }
+                throw new SQLException("nextId", ex.getCause());
+            }
+            if (this.current.compareAndSet(block, nextBlock)) {
+                this.prefetched.compareAndSet(nextBlockFuture, null);
+            }
+        }
+    }
+
+    /**
+     * Allocate count ids, for example for the rows of a batch insert.
+     * <p>
+     * The ids are unique, but not necessarily contiguous.
+     *
+     * @param count number of ids
+     * @return the allocated ids
+     * @throws SQLException if fetching a new block fails
+     */
+    public long[] nextIds(int count) throws SQLException {
+        final long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = nextId();
+        }
+        return ids;
+    }
+
+    /**
+     * Get the pending prefetch, or start a new one.
+     */
+    CompletableFuture<Block> prefetch() {
+        while (true) {
+            final CompletableFuture<Block> pending = this.prefetched.get();
+            if (pending != null) {
+                return pending;
+            }
+            final CompletableFuture<Block> future = new CompletableFuture<>();
+            if (this.prefetched.compareAndSet(null, future)) {
+                try {
+                    this.executorService.execute(() -> {
+                        try {
+                            future.complete(fetchBlock());
+                        } catch (SQLException | RuntimeException ex) {
+                            future.completeExceptionally(ex);
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                }
+                return future;
+            }
+        }
+    }
+
+    /**
+     * Reserve a new block by a single round trip to the sequence.
+     */
+    Block fetchBlock() throws SQLException {
+        final Holder<Long> start = new Holder<>();
+        JdbcSql.withInstance(this.connectionFactory, (jdbcSql) -> {
+            final String sql = String.format("SELECT NEXT VALUE FOR %s", this.sequenceName);
+            jdbcSql.executeQuery(sql, JdbcSql.EMPTY_PARAMS, (ResultSet rs) -> {
+                rs.next();
+                start.set(rs.getLong(1));
+            });
+        });
+        return new Block(start.get(), start.get() + this.blockSize);
+    }
+
+    static String unquote(String name) {
+        final String n = name.contains(".") ? name.substring(name.lastIndexOf('.') + 1) : name;
+        return n.replace("\"", "");
+    }
+
+    @Override
+    public void close() {
+        this.executorService.shutdownNow();
+        // a prefetch dropped, or still running, shall not block its waiters
+        final CompletableFuture<Block> pending = this.prefetched.get();
+        if (pending != null) {
+            pending.completeExceptionally(new SQLException("IdAllocator " + this.sequenceName + " closed"));
+        }
+    }
+
+}
@@ -20,6 +20,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -62,11 +63,32 @@ public class JdbcSql implements AutoCloseable {
         }
     }
 
+    /**
+     * Create a new JdbcSql instance for read-only work.
+     * <p>
+     * Its connections are created by
+     * {@link IConnectionFactory#createReadOnlyConnection()}, thus a routing
+     * connection factory may send the queries to a replica.
+     *
+     * @param iconnectionFactory
+     * @return
+     */
+    public static JdbcSql newReadOnlyInstance(IConnectionFactory iconnectionFactory) {
+        final JdbcSql javaSQL = new JdbcSql(iconnectionFactory, true);
+        return javaSQL;
+    }
+
     final IConnectionFactory connectionFactory;
+    final boolean readOnly;
     Optional<Connection> connectionOptional;
 
     JdbcSql(IConnectionFactory connectionFactory) {
+        this(connectionFactory, false);
+    }
+
+    JdbcSql(IConnectionFactory connectionFactory, boolean readOnly) {
         this.connectionFactory = connectionFactory;
+        this.readOnly = readOnly;
         this.connectionOptional = Optional.empty();
     }
 
@@ -82,6 +104,23 @@ public class JdbcSql implements AutoCloseable {
         }
     }
 
+    /**
+     * Pass a read-only connection to the consumer.
+     * <p>
+     * The connection is created by
+     * {@link IConnectionFactory#createReadOnlyConnection()}, and is marked
+     * read-only.
+     *
+     * @param consumer
+     * @throws SQLException
+     */
+    public void withReadOnlyConnection(ConsumerThrowingSQLException<Connection> consumer) throws SQLException {
+        try (Connection connection = this.connectionFactory.createReadOnlyConnection()) {
+            connection.setReadOnly(true);
+            consumer.accept(connection);
+        }
+    }
+
     /**
      * Pass a non-auto-commit connection to the consumer.
      * <p>
@@ -352,6 +391,84 @@ public class JdbcSql implements AutoCloseable {
         }
     }
 
+    /**
+     * Execute an sql insert statement, and retrieve the generated keys.
+     * <p>
+     * Use this method for bulk inserts like
+     * {@code INSERT INTO T(NAME) VALUES (?), (?), (?)}, the keys of all
+     * inserted rows are returned in insert order.
+     *
+     * @param sql the sql statement.
+     * @param params optional parameters, if no parameters pass
+     * {@link JdbcSql#EMPTY_PARAMS}.
+     * @param generatedKeysConsumer optional consumer of the generated keys
+     * @return the generated keys
+     * @throws SQLException if executing fails, or a generated key is not
+     * numeric
+     */
+    public long[] executeUpdateReturningGeneratedKeys(String sql,
+            List<Object> params,
+            ConsumerThrowingSQLException<long[]> generatedKeysConsumer) throws SQLException {
+        final boolean closeConnectionInFinally = !this.isConnectionActive();
+        final Connection connection = _createOrGetConnection();
+        try {
+            try (PreparedStatement preparedStatement = _createPreparedStatementReturningGeneratedKeys(connection, sql, params)) {
+                preparedStatement.executeUpdate();
+                final long[] generatedKeys;
+                try (ResultSet resultSet = preparedStatement.getGeneratedKeys()) {
+                    generatedKeys = JdbcSqlF.ResultSets.convertGeneratedKeysToLongArray().apply(resultSet);
+                }
+                if (generatedKeysConsumer != null) {
+                    generatedKeysConsumer.accept(generatedKeys);
+                }
+                return generatedKeys;
+            }
+        } finally {
+            if (closeConnectionInFinally) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Execute an sql insert statement in batch mode, and retrieve the
+     * generated keys of the whole batch.
+     * <p>
+     * The keys are returned in the order of paramsList, thus the n-th key
+     * belongs to the n-th parameters entry.
+     *
+     * @param sql the sql statement
+     * @param paramsList list of parameters
+     * @param generatedKeysConsumer optional consumer of the generated keys
+     * @return the generated keys
+     * @throws SQLException if executing fails, or a generated key is not
+     * numeric
+     */
+    public long[] executeBatchReturningGeneratedKeys(String sql,
+            List<List<Object>> paramsList,
+            ConsumerThrowingSQLException<long[]> generatedKeysConsumer) throws SQLException {
+        final boolean closeConnectionInFinally = !this.isConnectionActive();
+        final Connection connection = _createOrGetConnection();
+        try {
+            try (PreparedStatement preparedStatement = _createPreparedStatementReturningGeneratedKeys(connection, sql, null)) {
+                JdbcSqlF.PreparedStatements.batchParamsList(paramsList).accept(preparedStatement);
+                preparedStatement.executeBatch();
+                final long[] generatedKeys;
+                try (ResultSet resultSet = preparedStatement.getGeneratedKeys()) {
+                    generatedKeys = JdbcSqlF.ResultSets.convertGeneratedKeysToLongArray().apply(resultSet);
+                }
+                if (generatedKeysConsumer != null) {
+                    generatedKeysConsumer.accept(generatedKeys);
+                }
+                return generatedKeys;
+            }
+        } finally {
+            if (closeConnectionInFinally) {
+                connection.close();
+            }
+        }
+    }
+
     //=========================================================================
     /**
      * Create a map from a given result set.
@@ -399,7 +516,9 @@ public class JdbcSql implements AutoCloseable {
         if (isConnectionActive()) {
             connection = connectionOptional.get();
         } else {
-            connection = this.connectionFactory.createConnection();
+            connection = this.readOnly
+                    ? this.connectionFactory.createReadOnlyConnection()
+                    : this.connectionFactory.createConnection();
             connectionOptional = Optional.of(connection);
         }
         return connection;
@@ -427,6 +546,23 @@ public class JdbcSql implements AutoCloseable {
         return preparedStatement;
     }
 
+    /**
+     * Create a {@link PreparedStatement} returning generated keys.
+     *
+     * @param connection
+     * @param sql
+     * @param params
+     * @return
+     * @throws SQLException
+     */
+    private PreparedStatement _createPreparedStatementReturningGeneratedKeys(Connection connection,
+            String sql,
+            List<Object> params) throws SQLException {
+        final PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        JdbcSqlF.PreparedStatements.params(params).accept(preparedStatement);
+        return preparedStatement;
+    }
+
     /**
      * Create a {@link PreparedStatement}.
      *
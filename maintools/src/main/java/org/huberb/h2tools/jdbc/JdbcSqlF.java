@@ -22,11 +22,14 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Savepoint;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.function.Consumer;
 import javax.sql.DataSource;
 import org.huberb.h2tools.jdbc.Supports.ConsumerThrowingSQLException;
@@ -109,6 +112,29 @@ public class JdbcSqlF {
             final ConsumerThrowingSQLException<PreparedStatement> c0 = JdbcSqlF.PreparedStatements.params(params);
             return executeUpdate(conn, f1, c0);
         }
+
+        /**
+         * Execute an insert statement, and return the generated numeric keys
+         * of all inserted rows.
+         *
+         * @param conn
+         * @param sql
+         * @param params
+         * @return the generated keys in insert order
+         * @throws SQLException if executing fails, or a generated key is not
+         * numeric
+         */
+        public static long[] executeUpdateReturningGeneratedKeys(Connection conn,
+                String sql, List<Object> params) throws SQLException {
+            final FunctionThrowingSQLException<Connection, PreparedStatement> f1 = Connections.createPreparedStatementReturningGeneratedKeys(sql);
+            try (PreparedStatement ps = f1.apply(conn)) {
+                JdbcSqlF.PreparedStatements.params(params).accept(ps);
+                ps.executeUpdate();
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    return ResultSets.convertGeneratedKeysToLongArray().apply(rs);
+                }
+            }
+        }
     }
     //---
 
@@ -131,6 +157,29 @@ public class JdbcSqlF {
             ConsumerThrowingSQLException<PreparedStatement> c0 = JdbcSqlF.PreparedStatements.batchParamsList(paramsList);
             return executeBatch(conn, f1, c0);
         }
+
+        /**
+         * Execute an insert statement in batch mode, and return the generated
+         * numeric keys of the whole batch.
+         *
+         * @param conn
+         * @param sql
+         * @param paramsList
+         * @return the generated keys in the order of paramsList
+         * @throws SQLException if executing fails, or a generated key is not
+         * numeric
+         */
+        public static long[] executeBatchReturningGeneratedKeys(Connection conn,
+                String sql, List<List<Object>> paramsList) throws SQLException {
+            final FunctionThrowingSQLException<Connection, PreparedStatement> f1 = Connections.createPreparedStatementReturningGeneratedKeys(sql);
+            try (PreparedStatement ps = f1.apply(conn)) {
+                JdbcSqlF.PreparedStatements.batchParamsList(paramsList).accept(ps);
+                ps.executeBatch();
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    return ResultSets.convertGeneratedKeysToLongArray().apply(rs);
+                }
+            }
+        }
     }
     
     public static class Connections {
@@ -211,7 +260,30 @@ public class JdbcSqlF {
         public static FunctionThrowingSQLException<Connection, PreparedStatement> createPreparedStatement(String sql) {
             return (connection) -> connection.prepareStatement(sql);
         }
+
+        /**
+         * Create a {@link PreparedStatement} returning generated keys.
+         *
+         * @param sql
+         * @return function that creates a {@link PreparedStatement} from a
+         * {@link Connection}.
+         * @see Statement#RETURN_GENERATED_KEYS
+         */
+        public static FunctionThrowingSQLException<Connection, PreparedStatement> createPreparedStatementReturningGeneratedKeys(String sql) {
+            return (connection) -> connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        }
         
+        /**
+         * Create a forward-only, read-only {@link PreparedStatement}.
+         *
+         * @param sql
+         * @return function that creates a {@link PreparedStatement} from a
+         * {@link Connection}.
+         */
+        public static FunctionThrowingSQLException<Connection, PreparedStatement> createForwardOnlyPreparedStatement(String sql) {
+            return (connection) -> connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        }
+
         public static FunctionThrowingSQLException<Connection, Map<String, Object>> getConnectionInfos() {
             return (connection) -> {
                 Map<String, Object> metaDataMap = new HashMap<String, Object>() {
@@ -298,6 +370,28 @@ public class JdbcSqlF {
             };
         }
         
+        /**
+         * Consume a {@link PreparedStatement} for pushing offset, limit, and
+         * fetch size to the statement.
+         *
+         * @param offset number of rows skipped by the caller
+         * @param limit maximum number of rows, a value {@code <= 0} means no
+         * limit
+         * @param fetchSize fetch size hint, a value {@code <= 0} means driver
+         * default
+         * @return a {@link Consumer} setting max rows, and fetch size.
+         */
+        public static ConsumerThrowingSQLException<PreparedStatement> limits(int offset, int limit, int fetchSize) {
+            return (PreparedStatement ps) -> {
+                if (limit > 0) {
+                    ps.setMaxRows(Math.max(0, offset) + limit);
+                }
+                if (fetchSize > 0) {
+                    ps.setFetchSize(fetchSize);
+                }
+            };
+        }
+
         public static ConsumerThrowingSQLException<PreparedStatement> batchParamsList(List<List<Object>> paramsList) {
             return (PreparedStatement ps) -> {
                 if (paramsList != null) {
@@ -356,48 +450,130 @@ public class JdbcSqlF {
         static Iterator<ResultSet> resultSetIterator(ResultSet rs, int offset, int limit) {
             return new ResultSetIterator(rs, offset, limit);
         }
-        
+
+        /**
+         * Query forward-only, and convert each row.
+         * <p>
+         * The limit is pushed to the statement via
+         * {@link Statement#setMaxRows(int)}, and the fetch size via
+         * {@link Statement#setFetchSize(int)}, the offset rows are skipped by
+         * {@link ResultSet#next()}.
+         *
+         * @param <T>
+         * @param conn
+         * @param sql
+         * @param params
+         * @param offset number of rows to skip
+         * @param limit maximum number of rows, a value {@code <= 0} means no
+         * limit
+         * @param fetchSize fetch size hint, a value {@code <= 0} means driver
+         * default
+         * @param f converts a row
+         * @return the converted rows
+         * @throws SQLException
+         */
+        public static <T> List<T> convertResultSets(Connection conn,
+                String sql, List<Object> params,
+                int offset, int limit, int fetchSize,
+                FunctionThrowingSQLException<ResultSet, T> f) throws SQLException {
+            try (final PreparedStatement ps = Connections.createForwardOnlyPreparedStatement(sql).apply(conn)) {
+                PreparedStatements.params(params).accept(ps);
+                PreparedStatements.limits(offset, limit, fetchSize).accept(ps);
+                try (final ResultSet rs = ps.executeQuery()) {
+                    return convertResultSets(rs, offset, limit, f);
+                }
+            }
+        }
+
+        /**
+         * Forward-only iterator of a {@link ResultSet}.
+         * <p>
+         * The iterator moves the cursor by {@link ResultSet#next()} only, thus
+         * it works with {@link ResultSet#TYPE_FORWARD_ONLY} result sets. The
+         * offset rows are skipped on the first invocation of
+         * {@link #hasNext()}. {@link #hasNext()} looks ahead at most one row,
+         * repeated invocations do not advance the cursor.
+         */
         static class ResultSetIterator implements Iterator<ResultSet> {
-            
+
             final ResultSet rs;
             final int offset;
             final int limit;
             int countNextCalled = 0;
-            
+            boolean offsetSkipped = false;
+            boolean lookedAhead = false;
+            boolean hasRow = false;
+
+            /**
+             * @param rs the result set
+             * @param offset number of rows to skip
+             * @param limit maximum number of rows, a value {@code <= 0} means
+             * no limit
+             */
             public ResultSetIterator(ResultSet rs, int offset, int limit) {
                 this.rs = rs;
-                this.offset = offset;
+                this.offset = Math.max(0, offset);
                 this.limit = limit > 0 ? limit : -1;
-                
-                try {
-                    this.rs.absolute(this.offset);
-                } catch (SQLException sqlex) {
-                    throw new RuntimeException("hasNext", sqlex);
-                }
             }
-            
+
             @Override
             public boolean hasNext() {
+                if (this.lookedAhead) {
+                    return this.hasRow;
+                }
                 try {
-                    return this.limit >= 1
-                            && countNextCalled < this.limit
-                            && rs.isBeforeFirst() && !rs.isAfterLast();
+                    if (!this.offsetSkipped) {
+                        this.offsetSkipped = true;
+                        for (int i = 0; i < this.offset; i++) {
+                            if (!this.rs.next()) {
+                                this.lookedAhead = true;
+                                this.hasRow = false;
+                                return false;
+                            }
+                        }
+                    }
+                    this.hasRow = (this.limit < 0 || this.countNextCalled < this.limit)
+                            && this.rs.next();
+                    this.lookedAhead = true;
+                    return this.hasRow;
                 } catch (SQLException sqlex) {
                     throw new RuntimeException("hasNext", sqlex);
                 }
             }
-            
+
             @Override
             public ResultSet next() {
-                try {
-                    boolean afterLastRowMoved = rs.next();
-                    countNextCalled += 1;
-                    return rs;
-                } catch (SQLException sqlex) {
-                    throw new RuntimeException("next", sqlex);
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                this.lookedAhead = false;
+                this.countNextCalled += 1;
+                return this.rs;
             }
-            
+
+        }
+
+        //---
+        /**
+         * Convert the first column of a generated keys {@link ResultSet} to
+         * an array of longs.
+         *
+         * @return function reading all generated keys
+         * @see Statement#getGeneratedKeys()
+         */
+        static FunctionThrowingSQLException<ResultSet, long[]> convertGeneratedKeysToLongArray() {
+            return (rs) -> {
+                long[] keys = new long[16];
+                int count = 0;
+                while (rs.next()) {
+                    if (count == keys.length) {
+                        keys = Arrays.copyOf(keys, keys.length * 2);
+                    }
+                    keys[count] = rs.getLong(1);
+                    count += 1;
+                }
+                return Arrays.copyOf(keys, count);
+            };
         }
 
         //---
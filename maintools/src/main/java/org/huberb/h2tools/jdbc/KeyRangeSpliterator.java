@@ -0,0 +1,245 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.huberb.h2tools.jdbc.KeyRanges.KeyRange;
+import org.huberb.h2tools.jdbc.Supports.FunctionThrowingSQLException;
+
+/**
+ * Spliterator of the rows of a key range.
+ * <p>
+ * Splitting halves the key range, thus a parallel stream queries disjoint key
+ * ranges concurrently. Each split queries its key range using its own
+ * connection, and a forward-only result set. The connection is opened on the
+ * first advance, and closed when the key range is exhausted, or the stream is
+ * closed.
+ * <p>
+ * The sql shall select the rows of a key range, its last two parameters are
+ * the low, and the high key, eg.
+ * {@code SELECT * FROM EVENT_ENTITY WHERE ID >= ? AND ID < ? ORDER BY ID}.
+ *
+ * @author berni3
+ * @param <T> the converted row type
+ */
+public class KeyRangeSpliterator<T> implements Spliterator<T>, AutoCloseable {
+
+    final IConnectionFactory connectionFactory;
+    final String sql;
+    final List<Object> params;
+    final FunctionThrowingSQLException<ResultSet, T> f;
+    final long minSplitSize;
+    final int fetchSize;
+    final Queue<AutoCloseable> openResources;
+    KeyRange keyRange;
+    Connection connection;
+    PreparedStatement preparedStatement;
+    ResultSet rs;
+    boolean exhausted = false;
+
+    /**
+     * Create a spliterator.
+     *
+     * @param connectionFactory creates a connection per split
+     * @param sql the query of a key range
+     * @param params optional parameters of sql preceding the key range
+     * parameters, if no parameters pass {@link JdbcSql#EMPTY_PARAMS}.
+     * @param keyRange the key range
+     * @param minSplitSize do not split key ranges smaller than this
+     * @param fetchSize fetch size hint, a value {@code <= 0} means driver
+     * default
+     * @param f converts a row
+     */
+    public KeyRangeSpliterator(IConnectionFactory connectionFactory,
+            String sql, List<Object> params,
+            KeyRange keyRange, long minSplitSize, int fetchSize,
+            FunctionThrowingSQLException<ResultSet, T> f) {
+        this(connectionFactory, sql, params, keyRange, minSplitSize, fetchSize, f, new ConcurrentLinkedQueue<>());
+    }
+
+    KeyRangeSpliterator(IConnectionFactory connectionFactory,
+            String sql, List<Object> params,
+            KeyRange keyRange, long minSplitSize, int fetchSize,
+            FunctionThrowingSQLException<ResultSet, T> f,
+            Queue<AutoCloseable> openResources) {
+        this.connectionFactory = connectionFactory;
+        this.sql = sql;
+        this.params = params != null ? params : Collections.emptyList();
+        this.keyRange = keyRange;
+        this.minSplitSize = Math.max(1L, minSplitSize);
+        this.fetchSize = fetchSize;
+        this.f = f;
+        this.openResources = openResources;
+    }
+
+    /**
+     * Create a stream of the rows of a table.
+     * <p>
+     * The stream shall be closed, for closing the connections of partially
+     * consumed splits.
+     *
+     * @param <T>
+     * @param connectionFactory creates a connection per split
+     * @param table the table name
+     * @param keyColumn the numeric key column of the table
+     * @param minSplitSize do not split key ranges smaller than this
+     * @param fetchSize fetch size hint
+     * @param f converts a row
+     * @param parallel true for a parallel stream
+     * @return stream of the converted rows
+     * @throws SQLException if querying the key range fails
+     */
+    public static <T> Stream<T> stream(IConnectionFactory connectionFactory,
+            String table, String keyColumn,
+            long minSplitSize, int fetchSize,
+            FunctionThrowingSQLException<ResultSet, T> f,
+            boolean parallel) throws SQLException {
+        final Optional<KeyRange> keyRangeOptional;
+        try (final JdbcSql jdbcSql = JdbcSql.newInstance(connectionFactory)) {
+            keyRangeOptional = KeyRanges.queryKeyRange(jdbcSql, table, keyColumn);
+        }
+        if (keyRangeOptional.isEmpty()) {
+            return Stream.empty();
+        }
+        final KeyRangeSpliterator<T> spliterator = new KeyRangeSpliterator<>(connectionFactory,
+                createRangeSql(table, keyColumn), JdbcSql.EMPTY_PARAMS,
+                keyRangeOptional.get(), minSplitSize, fetchSize, f);
+        return StreamSupport.stream(spliterator, parallel).onClose(spliterator::closeQuietly);
+    }
+
+    /**
+     * Create the query of a key range of a table, ordered by the key.
+     *
+     * @param table
+     * @param keyColumn
+     * @return sql having two parameters for the key range
+     */
+    public static String createRangeSql(String table, String keyColumn) {
+        return String.format("SELECT * FROM %s WHERE %s ORDER BY %s",
+                table, KeyRanges.rangePredicate(keyColumn), keyColumn);
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        if (this.rs != null || this.exhausted || this.keyRange.size() < 2 * this.minSplitSize) {
+            return null;
+        }
+        final long middle = this.keyRange.low() + this.keyRange.size() / 2;
+        final KeyRange prefix = new KeyRange(this.keyRange.low(), middle);
+        this.keyRange = new KeyRange(middle, this.keyRange.high());
+        return new KeyRangeSpliterator<>(this.connectionFactory,
+                this.sql, this.params,
+                prefix, this.minSplitSize, this.fetchSize, this.f,
+                this.openResources);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (this.exhausted) {
+            return false;
+        }
+        try {
+            if (this.rs == null) {
+                open();
+            }
+            if (this.rs.next()) {
+                action.accept(this.f.apply(this.rs));
+                return true;
+            }
+            close();
+            return false;
+        } catch (SQLException sqlex) {
+            try {
+                close();
+            } catch (SQLException closeSqlex) {
+                sqlex.addSuppressed(closeSqlex);
+            }
+            throw new RuntimeException("tryAdvance " + this.keyRange, sqlex);
+        }
+    }
+
+    void open() throws SQLException {
+        this.connection = this.connectionFactory.createConnection();
+        this.openResources.add(this);
+        final List<Object> rangeParams = new ArrayList<>(this.params);
+        rangeParams.add(this.keyRange.low());
+        rangeParams.add(this.keyRange.high());
+        this.preparedStatement = JdbcSqlF.Connections.createForwardOnlyPreparedStatement(this.sql).apply(this.connection);
+        JdbcSqlF.PreparedStatements.params(rangeParams).accept(this.preparedStatement);
+        JdbcSqlF.PreparedStatements.limits(0, 0, this.fetchSize).accept(this.preparedStatement);
+        this.rs = this.preparedStatement.executeQuery();
+    }
+
+    @Override
+    public long estimateSize() {
+        return this.exhausted ? 0L : this.keyRange.size();
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    /**
+     * Close the connection of this split.
+     *
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        this.exhausted = true;
+        this.openResources.remove(this);
+        if (this.connection != null) {
+            final Connection c = this.connection;
+            this.connection = null;
+            this.preparedStatement = null;
+            this.rs = null;
+            // closing the connection closes its statement, and result set
+            c.close();
+        }
+    }
+
+    /**
+     * Close the connections of this split, and of all splits derived from it.
+     */
+    void closeQuietly() {
+        for (AutoCloseable ac; (ac = this.openResources.poll()) != null;) {
+            try {
+                ac.close();
+            } catch (Exception ex) {
+                // ignore, continue closing
+            }
+        }
+        try {
+            close();
+        } catch (SQLException sqlex) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.huberb.h2tools.jdbc.Supports.Holder;
+
+/**
+ * Split a table into ranges of a numeric key column.
+ *
+ * @author berni3
+ */
+public class KeyRanges {
+
+    private KeyRanges() {
+    }
+
+    /**
+     * A half-open key range {@code [low, high)}.
+     */
+    public static class KeyRange {
+
+        final long low;
+        final long high;
+
+        public KeyRange(long low, long high) {
+            this.low = low;
+            this.high = high;
+        }
+
+        public long low() {
+            return low;
+        }
+
+        public long high() {
+            return high;
+        }
+
+        public long size() {
+            return high - low;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + low + ", " + high + ")";
+        }
+    }
+
+    /**
+     * Query the minimum, and maximum of a key column.
+     *
+     * @param jdbcSql
+     * @param table the table name
+     * @param keyColumn the numeric key column
+     * @return the range {@code [min, max + 1)}, or empty if the table is empty
+     * @throws SQLException if the maximum is {@link Long#MAX_VALUE}, not
+     * representable by a half-open range
+     */
+    public static Optional<KeyRange> queryKeyRange(JdbcSql jdbcSql, String table, String keyColumn) throws SQLException {
+        final String sql = String.format("SELECT MIN(%s), MAX(%s) FROM %s", keyColumn, keyColumn, table);
+        final Holder<KeyRange> holder = new Holder<>();
+        jdbcSql.executeQuery(sql, JdbcSql.EMPTY_PARAMS, (ResultSet rs) -> {
+            if (rs.next()) {
+                final long min = rs.getLong(1);
+                final boolean empty = rs.wasNull();
+                final long max = rs.getLong(2);
+                if (!empty) {
+                    holder.set(new KeyRange(min, exclusiveHigh(max, keyColumn)));
+                }
+            }
+        });
+        return Optional.ofNullable(holder.get());
+    }
+
+    /**
+     * @param max the maximum key
+     * @param keyColumn the key column, for the message
+     * @return the high key of a half-open range including max
+     * @throws SQLException if max is {@link Long#MAX_VALUE}
+     */
+    public static long exclusiveHigh(long max, String keyColumn) throws SQLException {
+        if (max == Long.MAX_VALUE) {
+            throw new SQLException(String.format("Key %s has the maximum value %d, not supported by key ranges", keyColumn, max));
+        }
+        return max + 1;
+    }
+
+    /**
+     * Split a range into chunks of at most chunkSize keys.
+     *
+     * @param keyRange
+     * @param chunkSize
+     * @return list of consecutive ranges
+     */
+    public static List<KeyRange> splitBySize(KeyRange keyRange, long chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        final List<KeyRange> l = new ArrayList<>();
+        long low = keyRange.low;
+        while (low < keyRange.high) {
+            final long high = nextHigh(low, keyRange.high, chunkSize);
+            l.add(new KeyRange(low, high));
+            low = high;
+        }
+        return l;
+    }
+
+    /**
+     * @return the high key of a chunk starting at low, at most high
+     */
+    static long nextHigh(long low, long high, long chunkSize) {
+        // unsigned, as high - low of a range spanning more than half of long overflows
+        return Long.compareUnsigned(high - low, chunkSize) > 0 ? low + chunkSize : high;
+    }
+
+    /**
+     * Split a range into count chunks of about the same size.
+     *
+     * @param keyRange
+     * @param count
+     * @return list of at most count consecutive ranges
+     */
+    public static List<KeyRange> splitByCount(KeyRange keyRange, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be positive: " + count);
+        }
+        if (keyRange.low >= keyRange.high) {
+            return new ArrayList<>();
+        }
+        // unsigned, as the size of a range spanning more than half of long overflows
+        final long chunkSize = Long.divideUnsigned(keyRange.size() - 1, count) + 1;
+        return splitBySize(keyRange, chunkSize > 0 ? chunkSize : Long.MAX_VALUE);
+    }
+
+    /**
+     * Create the sql predicate selecting a key range.
+     * <p>
+     * The predicate uses two parameters, the low, and the high key.
+     *
+     * @param keyColumn
+     * @return sql predicate
+     */
+    public static String rangePredicate(String keyColumn) {
+        return String.format("%s >= ? AND %s < ?", keyColumn, keyColumn);
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Route read-only work to replicas, and all other work to the primary.
+ * <p>
+ * {@link #createReadOnlyConnection()} returns a connection of a healthy
+ * replica, chosen round-robin, or by the least number of active connections.
+ * {@link #createConnection()} returns a connection which is bound on first use:
+ * if it is marked {@link Connection#setReadOnly(boolean)} before, it is bound to
+ * a replica, otherwise to the primary. If no replica is healthy, read-only work
+ * falls back to the primary.
+ * <p>
+ * The replicas are checked in the background by
+ * {@link Connection#isValid(int)}. Keeping the replicas in sync, eg. by
+ * {@code org.h2.tools.CreateCluster}, is not the responsibility of this
+ * factory.
+ *
+ * @author berni3
+ */
+public class RoutingConnectionFactory implements IConnectionFactory, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RoutingConnectionFactory.class);
+
+    /**
+     * Define strategies choosing a replica.
+     */
+    public enum Strategy {
+        ROUND_ROBIN, LEAST_LOADED
+    }
+
+    /**
+     * A replica, its health, and its number of active connections.
+     */
+    static class Replica {
+
+        final IConnectionFactory connectionFactory;
+        final AtomicBoolean healthy = new AtomicBoolean(true);
+        final AtomicInteger activeConnections = new AtomicInteger();
+
+        Replica(IConnectionFactory connectionFactory) {
+            this.connectionFactory = connectionFactory;
+        }
+    }
+
+    final IConnectionFactory primary;
+    final List<Replica> replicas;
+    final Strategy strategy;
+    final AtomicInteger roundRobinCounter;
+    final ScheduledExecutorService scheduledExecutorService;
+
+    /**
+     * Create a routing factory, checking the replicas every 5 seconds.
+     *
+     * @param primary
+     * @param replicas
+     * @param strategy
+     */
+    public RoutingConnectionFactory(IConnectionFactory primary, List<IConnectionFactory> replicas, Strategy strategy) {
+        this(primary, replicas, strategy, 5000L);
+    }
+
+    /**
+     * Create a routing factory.
+     *
+     * @param primary
+     * @param replicas
+     * @param strategy
+     * @param healthCheckMillis the interval of the background health check
+     */
+    public RoutingConnectionFactory(IConnectionFactory primary, List<IConnectionFactory> replicas, Strategy strategy,
+            long healthCheckMillis) {
+        this.primary = primary;
+        this.replicas = replicas.stream().map(Replica::new).collect(Collectors.toList());
+        this.strategy = strategy;
+        this.roundRobinCounter = new AtomicInteger();
+        this.scheduledExecutorService = Executors.newSingleThreadScheduledExecutor((r) -> {
+            final Thread t = new Thread(r, "RoutingConnectionFactory");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduledExecutorService.scheduleWithFixedDelay(this::checkHealth,
+                healthCheckMillis, healthCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a connection bound on first use, to a replica if marked
+     * read-only, otherwise to the primary.
+     *
+     * @return a connection
+     * @throws SQLException
+     */
+    @Override
+    public Connection createConnection() throws SQLException {
+        return (Connection) Proxy.newProxyInstance(RoutingConnectionFactory.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new LazyRoutingInvocationHandler());
+    }
+
+    /**
+     * Create a connection of a healthy replica, or of the primary if no
+     * replica is healthy.
+     *
+     * @return a connection
+     * @throws SQLException
+     */
+    @Override
+    public Connection createReadOnlyConnection() throws SQLException {
+        for (Replica replica : chooseReplicas()) {
+            try {
+                final Connection connection = replica.connectionFactory.createConnection();
+                replica.activeConnections.incrementAndGet();
+                return countingConnection(connection, replica);
+            } catch (SQLException sqlex) {
+                logger.warn("Replica not available, mark as unhealthy", sqlex);
+                replica.healthy.set(false);
+            }
+        }
+        logger.debug("No healthy replica, use primary");
+        return this.primary.createConnection();
+    }
+
+    /**
+     * @return healthy replicas, the preferred replica first
+     */
+    List<Replica> chooseReplicas() {
+        final List<Replica> healthyReplicas = this.replicas.stream()
+                .filter((replica) -> replica.healthy.get())
+                .collect(Collectors.toList());
+        if (healthyReplicas.isEmpty()) {
+            return healthyReplicas;
+        }
+        final List<Replica> l = new ArrayList<>(healthyReplicas.size());
+        if (this.strategy == Strategy.LEAST_LOADED) {
+            l.addAll(healthyReplicas);
+            l.sort(Comparator.comparingInt((replica) -> replica.activeConnections.get()));
+        } else {
+            final int start = Math.floorMod(this.roundRobinCounter.getAndIncrement(), healthyReplicas.size());
+            for (int i = 0; i < healthyReplicas.size(); i++) {
+                l.add(healthyReplicas.get((start + i) % healthyReplicas.size()));
+            }
+        }
+        return l;
+    }
+
+    Connection countingConnection(Connection connection, Replica replica) {
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        return (Connection) Proxy.newProxyInstance(RoutingConnectionFactory.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    if ("close".equals(method.getName()) && closed.compareAndSet(false, true)) {
+                        replica.activeConnections.decrementAndGet();
+                    }
+                    return invoke(connection, method, args);
+                });
+    }
+
+    static Object invoke(Connection connection, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(connection, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Check the health of all replicas.
+     */
+    void checkHealth() {
+        for (Replica replica : this.replicas) {
+            boolean valid;
+            try (final Connection connection = replica.connectionFactory.createConnection()) {
+                valid = connection.isValid(2);
+            } catch (SQLException sqlex) {
+                valid = false;
+            }
+            final boolean wasHealthy = replica.healthy.getAndSet(valid);
+            if (wasHealthy != valid) {
+                logger.info("Replica {} healthy {}", this.replicas.indexOf(replica), valid);
+            }
+        }
+    }
+
+    /**
+     * @return number of healthy replicas
+     */
+    public int healthyReplicaCount() {
+        return (int) this.replicas.stream().filter((replica) -> replica.healthy.get()).count();
+    }
+
+    /**
+     * Stop the background health check.
+     */
+    @Override
+    public void close() {
+        this.scheduledExecutorService.shutdownNow();
+    }
+
+    /**
+     * Bind a connection on first use.
+     */
+    class LazyRoutingInvocationHandler implements InvocationHandler {
+
+        Connection target;
+        boolean readOnly = false;
+        boolean closed = false;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (this.target == null) {
+                final String name = method.getName();
+                if ("setReadOnly".equals(name)) {
+                    this.readOnly = (Boolean) args[0];
+                    return null;
+                } else if ("isReadOnly".equals(name)) {
+                    return this.readOnly;
+                } else if ("close".equals(name)) {
+                    this.closed = true;
+                    return null;
+                } else if ("isClosed".equals(name)) {
+                    return this.closed;
+                } else if ("toString".equals(name)) {
+                    return "unbound routing connection";
+                } else if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                } else if ("equals".equals(name)) {
+                    return proxy == args[0];
+                }
+                if (this.closed) {
+                    throw new SQLException("Connection is closed");
+                }
+                this.target = this.readOnly ? createReadOnlyConnection() : primary.createConnection();
+                this.target.setReadOnly(this.readOnly);
+            }
+            return RoutingConnectionFactory.invoke(this.target, method, args);
+        }
+    }
+}
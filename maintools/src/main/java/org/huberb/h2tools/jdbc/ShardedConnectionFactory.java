@@ -0,0 +1,205 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.ToIntFunction;
+import org.huberb.h2tools.jdbc.Supports.ConsumerThrowingSQLException;
+
+/**
+ * Select the {@link IConnectionFactory} of a shard by a shard key.
+ * <p>
+ * Shards are selected either by a hash of the shard key, or by ranges of a
+ * numeric shard key.
+ * <p>
+ * As {@link IConnectionFactory} it routes {@link #createConnection()} to the
+ * shard of the shard key bound to the current thread by
+ * {@link #withShardKey(java.lang.Object, org.huberb.h2tools.jdbc.Supports.ConsumerThrowingSQLException)},
+ * thus code written against {@link IConnectionFactory}, eg. {@link JdbcSql},
+ * works on a single shard.
+ *
+ * @author berni3
+ */
+public class ShardedConnectionFactory implements IConnectionFactory {
+
+    final List<IConnectionFactory> shards;
+    final ToIntFunction<Object> shardSelector;
+    final ThreadLocal<Object> boundShardKey = new ThreadLocal<>();
+
+    /**
+     * Create a sharded factory.
+     *
+     * @param shards the connection factories of the shards
+     * @param shardSelector maps a shard key to an index of shards
+     */
+    public ShardedConnectionFactory(List<IConnectionFactory> shards, ToIntFunction<Object> shardSelector) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shards");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.shardSelector = shardSelector;
+    }
+
+    /**
+     * Create a factory selecting a shard by the hash of the shard key.
+     * <p>
+     * Integral numbers are hashed by their long value, thus an {@link Integer},
+     * and a {@link Long} key of the same value select the same shard.
+     *
+     * @param shards
+     * @return sharded factory
+     */
+    public static ShardedConnectionFactory hashSharded(List<IConnectionFactory> shards) {
+        final int shardCount = shards.size();
+        return new ShardedConnectionFactory(shards, (key) -> Math.floorMod(hash(key), shardCount));
+    }
+
+    /**
+     * Create a factory selecting a shard by ranges of a numeric shard key.
+     * <p>
+     * Shard i holds the keys {@code < upperBounds[i]}, and
+     * {@code >= upperBounds[i - 1]}, the last shard holds all remaining keys.
+     *
+     * @param shards
+     * @param upperBounds ascending exclusive upper bounds of the first
+     * {@code shards.size() - 1} shards
+     * @return sharded factory
+     */
+    public static ShardedConnectionFactory rangeSharded(List<IConnectionFactory> shards, long... upperBounds) {
+        if (upperBounds.length != shards.size() - 1) {
+            throw new IllegalArgumentException(String.format("Expected %d upper bounds, but got %d",
+                    shards.size() - 1, upperBounds.length));
+        }
+        final long[] theUpperBounds = upperBounds.clone();
+        return new ShardedConnectionFactory(shards, (key) -> {
+            final long k = ((Number) key).longValue();
+            final int index = Arrays.binarySearch(theUpperBounds, k);
+            return index >= 0 ? index + 1 : -index - 1;
+        });
+    }
+
+    static int hash(Object key) {
+        final long h;
+        if (key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte) {
+            h = ((Number) key).longValue();
+        } else {
+            h = key.hashCode();
+        }
+        // mix bits, thus sequential keys spread evenly
+        long x = h * 0x9E3779B97F4A7C15L;
+        x ^= x >>> 32;
+        return (int) x;
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int shardCount() {
+        return this.shards.size();
+    }
+
+    /**
+     * @param index
+     * @return connection factory of a shard
+     */
+    public IConnectionFactory shard(int index) {
+        return this.shards.get(index);
+    }
+
+    /**
+     * @return connection factories of all shards
+     */
+    public List<IConnectionFactory> shards() {
+        return this.shards;
+    }
+
+    /**
+     * @param shardKey
+     * @return index of the shard holding the shard key
+     */
+    public int shardIndex(Object shardKey) {
+        if (shardKey == null) {
+            throw new IllegalArgumentException("Shard key is null");
+        }
+        return this.shardSelector.applyAsInt(shardKey);
+    }
+
+    /**
+     * @param shardKey
+     * @return connection factory of the shard holding the shard key
+     */
+    public IConnectionFactory forKey(Object shardKey) {
+        return this.shards.get(shardIndex(shardKey));
+    }
+
+    /**
+     * Bind a shard key to the current thread while consumer is executed.
+     * <p>
+     * Example: {@code shardedConnectionFactory.withShardKey(id, (cf) -> JdbcSql.withInstance(cf, ...))}
+     *
+     * @param shardKey
+     * @param consumer accepts this factory, routing to the shard of shardKey
+     * @throws SQLException
+     */
+    public void withShardKey(Object shardKey, ConsumerThrowingSQLException<IConnectionFactory> consumer) throws SQLException {
+        final Object previousShardKey = this.boundShardKey.get();
+        this.boundShardKey.set(shardKey);
+        try {
+            consumer.accept(this);
+        } finally {
+            if (previousShardKey != null) {
+                this.boundShardKey.set(previousShardKey);
+            } else {
+                this.boundShardKey.remove();
+            }
+        }
+    }
+
+    /**
+     * Create a connection of the shard of the bound shard key.
+     *
+     * @return a connection
+     * @throws SQLException if no shard key is bound to the current thread
+     */
+    @Override
+    public Connection createConnection() throws SQLException {
+        return boundShard().createConnection();
+    }
+
+    /**
+     * Create a read-only connection of the shard of the bound shard key.
+     *
+     * @return a connection
+     * @throws SQLException if no shard key is bound to the current thread
+     */
+    @Override
+    public Connection createReadOnlyConnection() throws SQLException {
+        return boundShard().createReadOnlyConnection();
+    }
+
+    IConnectionFactory boundShard() throws SQLException {
+        final Object shardKey = this.boundShardKey.get();
+        if (shardKey == null) {
+            throw new SQLException("No shard key bound, use withShardKey, or forKey");
+        }
+        return forKey(shardKey);
+    }
+}
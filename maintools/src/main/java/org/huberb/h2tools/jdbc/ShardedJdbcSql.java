@@ -0,0 +1,514 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.huberb.h2tools.jdbc.Supports.ConsumerThrowingSQLException;
+import org.huberb.h2tools.jdbc.Supports.FunctionThrowingSQLException;
+
+/**
+ * Execute sql statements on a {@link ShardedConnectionFactory}.
+ * <p>
+ * Updates are routed to the shard of their shard key. Queries are executed in
+ * parallel on all shards, and their results are merged: concatenated, as
+ * aggregate, or by a k-way merge of ordered results.
+ * <p>
+ * The update methods follow {@link JdbcSql}, having an additional shard key,
+ * or shard key extractor. The query methods convert the rows on the shard
+ * threads, thus they take a row converter like
+ * {@link JdbcSqlF.ResultSets#convertResultSets(java.sql.Connection, java.lang.String, java.util.List, int, int, int, org.huberb.h2tools.jdbc.Supports.FunctionThrowingSQLException)}
+ * instead of a result-set consumer.
+ *
+ * @author berni3
+ */
+public class ShardedJdbcSql implements AutoCloseable {
+
+    /**
+     * Define how single-value aggregates of the shards are merged.
+     */
+    public enum Aggregate {
+        /**
+         * Merge {@code COUNT(...)} by summing.
+         */
+        COUNT,
+        /**
+         * Merge {@code SUM(...)} by summing.
+         */
+        SUM,
+        /**
+         * Merge {@code MIN(...)} by the minimum.
+         */
+        MIN,
+        /**
+         * Merge {@code MAX(...)} by the maximum.
+         */
+        MAX;
+
+        BigDecimal merge(BigDecimal v1, BigDecimal v2) {
+            if (v1 == null) {
+                return this == COUNT && v2 == null ? BigDecimal.ZERO : v2;
+            } else if (v2 == null) {
+                return v1;
+            } else if (this == MIN) {
+                return v1.min(v2);
+            } else if (this == MAX) {
+                return v1.max(v2);
+            } else {
+                return v1.add(v2);
+            }
+        }
+    }
+
+    final ShardedConnectionFactory shardedConnectionFactory;
+    final ExecutorService executorService;
+    int queueCapacity = 1000;
+
+    /**
+     * Create an instance using a thread per shard.
+     *
+     * @param shardedConnectionFactory
+     */
+    public ShardedJdbcSql(ShardedConnectionFactory shardedConnectionFactory) {
+        this.shardedConnectionFactory = shardedConnectionFactory;
+        this.executorService = Executors.newFixedThreadPool(shardedConnectionFactory.shardCount(), (r) -> {
+            final Thread t = new Thread(r, "ShardedJdbcSql");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param queueCapacity number of rows buffered by
+     * {@link #queryStream(java.lang.String, java.util.List, org.huberb.h2tools.jdbc.Supports.FunctionThrowingSQLException)}
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    //---
+    /**
+     * Execute an update on the shard of a shard key.
+     *
+     * @param shardKey
+     * @param sql
+     * @param params optional parameters, if no parameters pass
+     * {@link JdbcSql#EMPTY_PARAMS}.
+     * @param resultSetConsumer accepts the update count
+     * @return update count
+     * @throws SQLException
+     */
+    public int executeUpdate(Object shardKey, String sql, List<Object> params,
+            ConsumerThrowingSQLException<Integer> resultSetConsumer) throws SQLException {
+        final int[] updateCount = new int[1];
+        this.shardedConnectionFactory.withShardKey(shardKey, (connectionFactory) -> {
+            JdbcSql.withInstance(connectionFactory, (jdbcSql) -> {
+                updateCount[0] = jdbcSql.executeUpdate(sql, params, resultSetConsumer);
+            });
+        });
+        return updateCount[0];
+    }
+
+    /**
+     * Execute an update on all shards, eg. DDL statements.
+     *
+     * @param sql
+     * @param params optional parameters, if no parameters pass
+     * {@link JdbcSql#EMPTY_PARAMS}.
+     * @param resultSetConsumer accepts the sum of the update counts
+     * @return sum of the update counts
+     * @throws SQLException
+     */
+    public int executeUpdateOnAllShards(String sql, List<Object> params,
+            ConsumerThrowingSQLException<Integer> resultSetConsumer) throws SQLException {
+        final List<Integer> updateCounts = onAllShards((connectionFactory) -> {
+            final int[] updateCount = new int[1];
+            JdbcSql.withInstance(connectionFactory, (jdbcSql) -> {
+                updateCount[0] = jdbcSql.executeUpdate(sql, params, JdbcSql.EMPTY_INTEGER_CONSUMER);
+            });
+            return updateCount[0];
+        });
+        final int updateCount = updateCounts.stream().mapToInt(Integer::intValue).sum();
+        if (resultSetConsumer != null) {
+            resultSetConsumer.accept(updateCount);
+        }
+        return updateCount;
+    }
+
+    /**
+     * Execute a batch, routing each parameter list to the shard of its shard
+     * key.
+     * <p>
+     * The batches of the shards are executed in parallel, each in its own
+     * transaction.
+     *
+     * @param sql
+     * @param paramsList list of parameters
+     * @param shardKeyExtractor extracts the shard key of a parameter list
+     * @param resultSetConsumer accepts the update counts
+     * @return update counts in the order of paramsList
+     * @throws SQLException
+     */
+    public int[] executeBatch(String sql, List<List<Object>> paramsList,
+            Function<List<Object>, Object> shardKeyExtractor,
+            ConsumerThrowingSQLException<int[]> resultSetConsumer) throws SQLException {
+        final Map<Integer, List<Integer>> positionsByShard = new LinkedHashMap<>();
+        for (int i = 0; i < paramsList.size(); i++) {
+            final int shardIndex = this.shardedConnectionFactory.shardIndex(shardKeyExtractor.apply(paramsList.get(i)));
+            positionsByShard.computeIfAbsent(shardIndex, (k) -> new ArrayList<>()).add(i);
+        }
+        final int[] updateCounts = new int[paramsList.size()];
+        final List<Callable<Void>> callables = new ArrayList<>();
+        positionsByShard.forEach((shardIndex, positions) -> callables.add(() -> {
+            final List<List<Object>> shardParamsList = new ArrayList<>(positions.size());
+            positions.forEach((position) -> shardParamsList.add(paramsList.get(position)));
+            try (final Connection connection = this.shardedConnectionFactory.shard(shardIndex).createConnection()) {
+                JdbcSqlF.Connections.withTransaction(connection, (c) -> {
+                    final int[] shardUpdateCounts = JdbcSqlF.BatchCommands.executeBatch(c, sql, shardParamsList);
+                    for (int i = 0; i < shardUpdateCounts.length; i++) {
+                        updateCounts[positions.get(i)] = shardUpdateCounts[i];
+                    }
+                });
+            }
+            return null;
+        }));
+        invokeAll(callables);
+        if (resultSetConsumer != null) {
+            resultSetConsumer.accept(updateCounts);
+        }
+        return updateCounts;
+    }
+
+    //---
+    /**
+     * Query all shards in parallel, and concatenate the results in shard
+     * order.
+     *
+     * @param <T>
+     * @param sql
+     * @param params
+     * @param f converts a row
+     * @return converted rows of all shards
+     * @throws SQLException
+     */
+    public <T> List<T> queryList(String sql, List<Object> params,
+            FunctionThrowingSQLException<ResultSet, T> f) throws SQLException {
+        final List<List<T>> lists = onAllShards((connectionFactory) -> queryShard(connectionFactory, sql, params, -1, f));
+        final List<T> l = new ArrayList<>();
+        lists.forEach(l::addAll);
+        return l;
+    }
+
+    /**
+     * Query all shards in parallel, and merge the rows into a stream in
+     * arrival order.
+     * <p>
+     * At most queueCapacity rows are buffered, the shard queries wait while
+     * the buffer is full. The stream must be closed, eg. by
+     * try-with-resources: closing stops the shard queries of a partially
+     * consumed stream, otherwise they keep waiting until this instance is
+     * closed.
+     *
+     * @param <T>
+     * @param sql
+     * @param params
+     * @param f converts a row
+     * @return stream of the converted rows of all shards
+     */
+    public <T> Stream<T> queryStream(String sql, List<Object> params,
+            FunctionThrowingSQLException<ResultSet, T> f) {
+        final MergingIterator<T> mergingIterator = new MergingIterator<>(this.queueCapacity,
+                this.shardedConnectionFactory.shardCount());
+        for (IConnectionFactory connectionFactory : this.shardedConnectionFactory.shards()) {
+            mergingIterator.futures.add(this.executorService.submit(() -> {
+                try (final Connection connection = connectionFactory.createConnection();
+                        final PreparedStatement ps = JdbcSqlF.Connections.createForwardOnlyPreparedStatement(sql).apply(connection)) {
+                    JdbcSqlF.PreparedStatements.params(params).accept(ps);
+                    try (final ResultSet rs = ps.executeQuery()) {
+                        while (!mergingIterator.cancelled.get() && rs.next()) {
+                            if (!mergingIterator.offer(new Object[]{f.apply(rs)})) {
+                                break;
+                            }
+                        }
+                    }
+                } catch (SQLException | RuntimeException ex) {
+                    mergingIterator.offer(new Object[]{null, ex});
+                } finally {
+                    mergingIterator.offer(MergingIterator.END_OF_SHARD);
+                }
+                return null;
+            }));
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(mergingIterator, Spliterator.NONNULL), false)
+                .onClose(mergingIterator::cancel);
+    }
+
+    /**
+     * Query a single-value aggregate on all shards, and merge the values.
+     * <p>
+     * Example: {@code SELECT COUNT(*) FROM EVENT_ENTITY} merged by
+     * {@link Aggregate#COUNT}. Note that an average is not mergeable, query
+     * {@code SUM}, and {@code COUNT} instead.
+     *
+     * @param sql query returning one row, and one numeric column
+     * @param params
+     * @param aggregate defines how the values are merged
+     * @return merged value, or null if all shards returned null
+     * @throws SQLException
+     */
+    public BigDecimal queryAggregate(String sql, List<Object> params, Aggregate aggregate) throws SQLException {
+        final List<List<BigDecimal>> values = onAllShards((connectionFactory) -> queryShard(connectionFactory, sql, params, -1,
+                (rs) -> rs.getBigDecimal(1)));
+        BigDecimal merged = null;
+        for (List<BigDecimal> l : values) {
+            for (BigDecimal v : l) {
+                merged = aggregate.merge(merged, v);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Query ordered rows on all shards, and merge them by a k-way merge.
+     * <p>
+     * The limit is pushed down to each shard by
+     * {@link java.sql.Statement#setMaxRows(int)}, thus each shard returns at
+     * most limit rows. Example: {@code SELECT * FROM EVENT_ENTITY ORDER BY CREATED DESC}
+     * with a comparator ordering by CREATED descending.
+     *
+     * @param <T>
+     * @param sql query ordered like comparator
+     * @param params
+     * @param f converts a row
+     * @param comparator the order of the query
+     * @param limit number of rows of the merged result
+     * @return the first limit rows of all shards
+     * @throws SQLException
+     */
+    public <T> List<T> queryOrderedLimit(String sql, List<Object> params,
+            FunctionThrowingSQLException<ResultSet, T> f,
+            Comparator<? super T> comparator, int limit) throws SQLException {
+        final List<List<T>> lists = onAllShards((connectionFactory) -> queryShard(connectionFactory, sql, params, limit, f));
+        final PriorityQueue<PeekingIterator<T>> priorityQueue = new PriorityQueue<>(Math.max(1, lists.size()),
+                (it1, it2) -> comparator.compare(it1.peek(), it2.peek()));
+        for (List<T> l : lists) {
+            if (!l.isEmpty()) {
+                priorityQueue.add(new PeekingIterator<>(l.iterator()));
+            }
+        }
+        final List<T> merged = new ArrayList<>();
+        while (merged.size() < limit && !priorityQueue.isEmpty()) {
+            final PeekingIterator<T> it = priorityQueue.poll();
+            merged.add(it.next());
+            if (it.hasNext()) {
+                priorityQueue.add(it);
+            }
+        }
+        return merged;
+    }
+
+    //---
+    static <T> List<T> queryShard(IConnectionFactory connectionFactory, String sql, List<Object> params, int limit,
+            FunctionThrowingSQLException<ResultSet, T> f) throws SQLException {
+        try (final Connection connection = connectionFactory.createConnection()) {
+            return JdbcSqlF.ResultSets.convertResultSets(connection, sql, params, 0, limit, 0, f);
+        }
+    }
+
+    <T> List<T> onAllShards(FunctionThrowingSQLException<IConnectionFactory, T> f) throws SQLException {
+        final List<Callable<T>> callables = new ArrayList<>();
+        for (IConnectionFactory connectionFactory : this.shardedConnectionFactory.shards()) {
+            callables.add(() -> f.apply(connectionFactory));
+        }
+        return invokeAll(callables);
+    }
+
+    <T> List<T> invokeAll(List<Callable<T>> callables) throws SQLException {
+        final List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : this.executorService.invokeAll(callables)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("invokeAll", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            }
+            throw new SQLException("invokeAll", ex.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Stop the shard threads.
+     */
+    @Override
+    public void close() {
+        this.executorService.shutdownNow();
+    }
+
+    /**
+     * Iterator over the rows put into a queue by the shard queries.
+     * <p>
+     * An element of the queue is either {@code {row}}, {@code {null,
+     * exception}}, or {@link #END_OF_SHARD}. Producer, and consumer wait at
+     * most {@link #WAIT_MILLIS} before checking for a cancel.
+     */
+    static class MergingIterator<T> implements Iterator<T> {
+
+        static final Object[] END_OF_SHARD = new Object[0];
+        static final long WAIT_MILLIS = 100L;
+
+        final BlockingQueue<Object[]> queue;
+        final List<Future<?>> futures = new ArrayList<>();
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        int runningShards;
+        Object[] next;
+
+        MergingIterator(int queueCapacity, int shardCount) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.runningShards = shardCount;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null && this.runningShards > 0) {
+                if (this.cancelled.get()) {
+                    throw new IllegalStateException("Query stream cancelled");
+                }
+                final Object[] element;
+                try {
+                    element = this.queue.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    throw new RuntimeException("hasNext", ex);
+                }
+                if (element == null) {
+                    continue;
+                } else if (element == END_OF_SHARD) {
+                    this.runningShards -= 1;
+                } else if (element.length == 2) {
+                    cancel();
+                    throw new RuntimeException("query shard", (Throwable) element[1]);
+                } else {
+                    this.next = element;
+                }
+            }
+            return this.next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final T t = (T) this.next[0];
+            this.next = null;
+            return t;
+        }
+
+        /**
+         * Offer an element, waiting while the queue is full.
+         *
+         * @param element
+         * @return false if cancelled, or interrupted
+         */
+        boolean offer(Object[] element) {
+            try {
+                while (!this.cancelled.get()) {
+                    if (this.queue.offer(element, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                this.cancelled.set(true);
+            }
+            return false;
+        }
+
+        void cancel() {
+            this.cancelled.set(true);
+            this.futures.forEach((future) -> future.cancel(true));
+            this.queue.clear();
+        }
+    }
+
+    /**
+     * Iterator allowing to peek at its next element.
+     */
+    static class PeekingIterator<T> implements Iterator<T> {
+
+        final Iterator<T> it;
+        T peeked;
+        boolean hasPeeked = false;
+
+        PeekingIterator(Iterator<T> it) {
+            this.it = it;
+        }
+
+        T peek() {
+            if (!this.hasPeeked) {
+                this.peeked = this.it.next();
+                this.hasPeeked = true;
+            }
+            return this.peeked;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.hasPeeked || this.it.hasNext();
+        }
+
+        @Override
+        public T next() {
+            if (this.hasPeeked) {
+                this.hasPeeked = false;
+                return this.peeked;
+            }
+            return this.it.next();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind buffer for high-frequency single-row updates.
+ * <p>
+ * Updates are accepted into a bounded buffer, and updates of the same key are
+ * coalesced. The buffer is flushed as jdbc batches in a single transaction
+ * when maxBatchSize updates are pending, or maxDelayMillis elapsed. If the
+ * buffer is full, submitting blocks until the next flush has completed.
+ * Closing flushes all updates submitted before, an update submitted after
+ * closing fails.
+ * <p>
+ * Example, coalescing counter increments:
+ * <pre>
+ * final WriteBehindBuffer&lt;Long&gt; buffer = new WriteBehindBuffer&lt;&gt;(connectionFactory,
+ *         "UPDATE COUNTER SET VALUE = VALUE + ? WHERE ID = ?",
+ *         1000, 100L, 10000,
+ *         (l1, l2) -&gt; Arrays.asList((Long) l1.get(0) + (Long) l2.get(0), l1.get(1)));
+ * buffer.submit(id, Arrays.asList(1L, id));
+ * </pre>
+ *
+ * @author berni3
+ * @param <K> the key identifying the updated row
+ */
+public class WriteBehindBuffer<K> implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindBuffer.class);
+
+    /**
+     * Coalesce by keeping the latest parameters.
+     *
+     * @return operator keeping the latest parameters
+     */
+    public static BinaryOperator<List<Object>> lastWins() {
+        return (older, newer) -> newer;
+    }
+
+    final IConnectionFactory connectionFactory;
+    final String sql;
+    final int maxBatchSize;
+    final BinaryOperator<List<Object>> coalescer;
+    final ConcurrentHashMap<K, List<Object>> pending;
+    final Semaphore capacity;
+    final ScheduledExecutorService scheduledExecutorService;
+    final ScheduledFuture<?> periodicFlush;
+    final AtomicBoolean flushRequested;
+    final AtomicBoolean closed;
+    /**
+     * Held for reading while adding an update, and for writing while closing,
+     * thus no update is added after the final flush.
+     */
+    final ReadWriteLock closeLock;
+    BiConsumer<List<List<Object>>, SQLException> failureConsumer = (paramsList, sqlex) -> {
+        logger.error(String.format("Flushing %d updates failed", paramsList.size()), sqlex);
+    };
+
+    /**
+     * Create a buffer, the latest update of a key wins.
+     *
+     * @param connectionFactory
+     * @param sql the parameterized update statement
+     * @param maxBatchSize flush if this number of keys is pending
+     * @param maxDelayMillis flush at least every maxDelayMillis
+     * @param capacity maximum number of pending keys
+     */
+    public WriteBehindBuffer(IConnectionFactory connectionFactory, String sql,
+            int maxBatchSize, long maxDelayMillis, int capacity) {
+        this(connectionFactory, sql, maxBatchSize, maxDelayMillis, capacity, lastWins());
+    }
+
+    /**
+     * Create a buffer.
+     *
+     * @param connectionFactory
+     * @param sql the parameterized update statement
+     * @param maxBatchSize flush if this number of keys is pending
+     * @param maxDelayMillis flush at least every maxDelayMillis
+     * @param capacity maximum number of pending keys
+     * @param coalescer combines the pending parameters of a key with the
+     * parameters of a new update of this key
+     */
+    public WriteBehindBuffer(IConnectionFactory connectionFactory, String sql,
+            int maxBatchSize, long maxDelayMillis, int capacity,
+            BinaryOperator<List<Object>> coalescer) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        if (maxDelayMillis <= 0) {
+            throw new IllegalArgumentException("maxDelayMillis must be positive: " + maxDelayMillis);
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.connectionFactory = connectionFactory;
+        this.sql = sql;
+        this.maxBatchSize = maxBatchSize;
+        this.coalescer = coalescer;
+        this.pending = new ConcurrentHashMap<>();
+        this.capacity = new Semaphore(capacity);
+        this.flushRequested = new AtomicBoolean(false);
+        this.closed = new AtomicBoolean(false);
+        this.closeLock = new ReentrantReadWriteLock();
+        this.scheduledExecutorService = Executors.newSingleThreadScheduledExecutor((r) -> {
+            final Thread t = new Thread(r, "WriteBehindBuffer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.periodicFlush = this.scheduledExecutorService.scheduleWithFixedDelay(this::flushQuietly,
+                maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param failureConsumer invoked with the parameters of a failed flush,
+     * by default the failure is logged
+     */
+    public void setFailureConsumer(BiConsumer<List<List<Object>>, SQLException> failureConsumer) {
+        this.failureConsumer = failureConsumer;
+    }
+
+    /**
+     * Submit an update, blocking while the buffer is full.
+     *
+     * @param key the key identifying the updated row
+     * @param params the parameters of the update statement
+     * @throws InterruptedException if interrupted while waiting for capacity
+     */
+    public void submit(K key, List<Object> params) throws InterruptedException {
+        if (!coalesceIfPending(key, params)) {
+            this.capacity.acquire();
+            put(key, params);
+        }
+    }
+
+    /**
+     * Submit an update, waiting at most timeout while the buffer is full.
+     *
+     * @param key the key identifying the updated row
+     * @param params the parameters of the update statement
+     * @param timeout
+     * @param unit
+     * @return false if the buffer stayed full
+     * @throws InterruptedException if interrupted while waiting for capacity
+     */
+    public boolean offer(K key, List<Object> params, long timeout, TimeUnit unit) throws InterruptedException {
+        if (!coalesceIfPending(key, params)) {
+            if (!this.capacity.tryAcquire(timeout, unit)) {
+                return false;
+            }
+            put(key, params);
+        }
+        return true;
+    }
+
+    /**
+     * Coalesce an update of a pending key, this needs no capacity.
+     */
+    boolean coalesceIfPending(K key, List<Object> params) {
+        this.closeLock.readLock().lock();
+        try {
+            checkNotClosed();
+            return this.pending.computeIfPresent(key, (k, older) -> this.coalescer.apply(older, params)) != null;
+        } finally {
+            this.closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add an update having acquired capacity.
+     */
+    void put(K key, List<Object> params) {
+        this.closeLock.readLock().lock();
+        try {
+            if (this.closed.get()) {
+                // closed while waiting for capacity
+                this.capacity.release();
+            }
+            checkNotClosed();
+            putNotClosed(key, params);
+        } finally {
+            this.closeLock.readLock().unlock();
+        }
+    }
+
+    void putNotClosed(K key, List<Object> params) {
+        final boolean[] coalesced = new boolean[1];
+        this.pending.compute(key, (k, older) -> {
+            if (older == null) {
+                return params;
+            }
+            coalesced[0] = true;
+            return this.coalescer.apply(older, params);
+        });
+        if (coalesced[0]) {
+            this.capacity.release();
+        }
+        if (this.pending.size() >= this.maxBatchSize && this.flushRequested.compareAndSet(false, true)) {
+            this.scheduledExecutorService.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * @return number of pending keys
+     */
+    public int pendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * Flush all pending updates, and wait for completion.
+     *
+     * @throws SQLException if the flush fails
+     */
+    public void flush() throws SQLException {
+        final Future<?> future = this.scheduledExecutorService.submit(() -> {
+            doFlush();
+            return null;
+        });
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("flush", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            }
+            throw new SQLException("flush", ex.getCause());
+        }
+    }
+
+    void flushQuietly() {
+        try {
+            doFlush();
+        } catch (SQLException sqlex) {
+            // already passed to the failureConsumer
+        }
+    }
+
+    /**
+     * Drain the pending updates, and execute them in one transaction.
+     * <p>
+     * Only invoked by the single thread of the executor.
+     */
+    void doFlush() throws SQLException {
+        this.flushRequested.set(false);
+        final List<List<Object>> paramsList = new ArrayList<>();
+        for (K key : this.pending.keySet()) {
+            final List<Object> params = this.pending.remove(key);
+            if (params != null) {
+                paramsList.add(params);
+            }
+        }
+        if (paramsList.isEmpty()) {
+            return;
+        }
+        try {
+            try (final Connection connection = this.connectionFactory.createConnection()) {
+                JdbcSqlF.Connections.withTransaction(connection, (c) -> {
+                    for (int i = 0; i < paramsList.size(); i += this.maxBatchSize) {
+                        final List<List<Object>> batch = paramsList.subList(i, Math.min(i + this.maxBatchSize, paramsList.size()));
+                        JdbcSqlF.BatchCommands.executeBatch(c, this.sql, batch);
+                    }
+                });
+            }
+            logger.debug("Flushed {} updates", paramsList.size());
+        } catch (SQLException sqlex) {
+            this.failureConsumer.accept(paramsList, sqlex);
+            throw sqlex;
+        } finally {
+            this.capacity.release(paramsList.size());
+        }
+    }
+
+    void checkNotClosed() {
+        if (this.closed.get()) {
+            throw new IllegalStateException("WriteBehindBuffer is closed");
+        }
+    }
+
+    /**
+     * Stop accepting updates, flush all pending updates, and stop the flush
+     * thread.
+     *
+     * @throws SQLException if the final flush fails
+     */
+    @Override
+    public void close() throws SQLException {
+        // waits for updates being added
+        this.closeLock.writeLock().lock();
+        try {
+            if (!this.closed.compareAndSet(false, true)) {
+                return;
+            }
+        } finally {
+            this.closeLock.writeLock().unlock();
+        }
+        this.periodicFlush.cancel(false);
+        try {
+            flush();
+        } finally {
+            this.scheduledExecutorService.shutdown();
+            try {
+                this.scheduledExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.picocli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import org.huberb.h2tools.jdbc.ChunkedUpdate;
+import org.huberb.h2tools.jdbc.ChunkedUpdate.Progress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+/**
+ * Execute a large UPDATE, or DELETE statement in chunks of key ranges.
+ *
+ * @author pi
+ */
+@CommandLine.Command(name = "chunkedUpdate",
+        mixinStandardHelpOptions = true,
+        showDefaultValues = true,
+        description = "Execute a large UPDATE, or DELETE statement in chunks of primary key ranges, "
+        + "committing each chunk in its own short transaction.")
+public class ChunkedUpdateSubCommand implements Callable<Integer> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedUpdateSubCommand.class);
+
+    // picocli injects reference to parent command
+    @CommandLine.ParentCommand
+    private MainH2 mainH2;
+    //---
+    @CommandLine.Option(names = {"--sql"},
+            paramLabel = "SQL",
+            required = true,
+            description = "The UPDATE, or DELETE statement, eg. \"DELETE FROM EVENT_ENTITY WHERE CREATED < ?\"")
+    private String sql;
+    @CommandLine.Option(names = {"--param"},
+            paramLabel = "PARAM",
+            required = false,
+            description = "A parameter of the statement, repeat for multiple parameters.")
+    private List<String> params = new ArrayList<>();
+    @CommandLine.Option(names = {"--table"},
+            paramLabel = "TABLE",
+            required = true,
+            description = "The table modified by the statement.")
+    private String table;
+    @CommandLine.Option(names = {"--key-column"},
+            paramLabel = "KEYCOLUMN",
+            required = true,
+            description = "The numeric primary key column used for splitting into chunks.")
+    private String keyColumn;
+    @CommandLine.Option(names = {"--chunk-size"},
+            paramLabel = "CHUNKSIZE",
+            defaultValue = "10000",
+            required = false,
+            description = "Number of keys per chunk.")
+    private long chunkSize;
+    @CommandLine.Option(names = {"--pause-millis"},
+            paramLabel = "PAUSEMILLIS",
+            defaultValue = "0",
+            required = false,
+            description = "Pause between chunks in milliseconds.")
+    private long pauseMillis;
+    @CommandLine.Option(names = {"--max-rows-per-second"},
+            paramLabel = "MAXROWSPERSECOND",
+            defaultValue = "0",
+            required = false,
+            description = "Limit the rate of modified rows, 0 for no limit.")
+    private long maxRowsPerSecond;
+    @CommandLine.Option(names = {"--resume-from"},
+            paramLabel = "RESUMEFROM",
+            required = false,
+            description = "Start at this key, instead of the minimum key.")
+    private Long resumeFrom;
+    @CommandLine.Option(names = {"--state-file"},
+            paramLabel = "STATEFILE",
+            required = false,
+            description = "Record the last completed chunk in this file, and resume from it if it exists.")
+    private File stateFile;
+
+    @Override
+    public Integer call() throws Exception {
+        logger.info("Args sql {}, params {}, table {}, keyColumn {}, chunkSize {}",
+                this.sql, this.params, this.table, this.keyColumn, this.chunkSize);
+        //---
+        process();
+        return 0;
+    }
+
+    private void process() throws SQLException, IOException {
+        final Optional<Long> resumeKeyOptional = this.resumeFrom != null
+                ? Optional.of(this.resumeFrom)
+                : readResumeKey();
+        final List<Object> theParams = new ArrayList<>(this.params);
+        final ChunkedUpdate chunkedUpdate = new ChunkedUpdate(this.mainH2::createConnection,
+                this.table, this.keyColumn,
+                this.sql, theParams,
+                this.chunkSize);
+        chunkedUpdate.setPauseMillis(this.pauseMillis);
+        chunkedUpdate.setMaxRowsPerSecond(this.maxRowsPerSecond);
+        chunkedUpdate.setProgressConsumer((Progress progress) -> {
+            System.out.println(progress);
+            writeResumeKey(progress);
+        });
+        logger.info("Resume key {}", resumeKeyOptional);
+        final long updateCount = chunkedUpdate.execute(resumeKeyOptional);
+        System.out.printf("updateCount %d%n", updateCount);
+    }
+
+    Optional<Long> readResumeKey() throws IOException {
+        if (this.stateFile == null || !this.stateFile.exists()) {
+            return Optional.empty();
+        }
+        final Properties properties = new Properties();
+        try (final Reader reader = Files.newBufferedReader(this.stateFile.toPath(), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        if (!this.sql.equals(properties.getProperty("sql")) || !this.table.equals(properties.getProperty("table"))) {
+            throw new IOException(String.format("State file %s was recorded for a different statement", this.stateFile));
+        }
+        return Optional.of(Long.valueOf(properties.getProperty("resumeKey")));
+    }
+
+    void writeResumeKey(Progress progress) throws SQLException {
+        if (this.stateFile == null) {
+            return;
+        }
+        final Properties properties = new Properties();
+        properties.setProperty("table", this.table);
+        properties.setProperty("keyColumn", this.keyColumn);
+        properties.setProperty("sql", this.sql);
+        properties.setProperty("resumeKey", String.valueOf(progress.resumeKey()));
+        properties.setProperty("updateCount", String.valueOf(progress.totalUpdateCount()));
+        try {
+            final File tmpFile = new File(this.stateFile.getAbsolutePath() + ".tmp");
+            try (final Writer writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+                properties.store(writer, "chunkedUpdate state");
+            }
+            Files.move(tmpFile.toPath(), this.stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ioex) {
+            throw new SQLException("writeResumeKey", ioex);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.picocli;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import org.huberb.h2tools.jdbc.ConnectionFactoryWithMap;
+import org.huberb.h2tools.support.TableCopy;
+import picocli.CommandLine;
+
+/**
+ *
+ * @author pi
+ */
+@CommandLine.Command(name = "copy",
+        mixinStandardHelpOptions = true,
+        showDefaultValues = true,
+        description = "Copies tables of the database into a target database by batched inserts, "
+        + "creating missing tables.")
+public class CopySubCommand implements Callable<Integer> {
+
+    // picocli injects reference to parent command
+    @CommandLine.ParentCommand
+    private MainH2 mainH2;
+    //---
+    @CommandLine.Option(names = {"--target-url"},
+            paramLabel = "URL",
+            required = true,
+            description = "h2 jdbc URL of the target database")
+    private String targetUrl;
+    @CommandLine.Option(names = {"--target-user"},
+            defaultValue = "sa",
+            paramLabel = "USER",
+            required = false,
+            description = "h2 user of the target database")
+    private String targetUser;
+    @CommandLine.Option(names = {"--target-password"},
+            defaultValue = "",
+            paramLabel = "PASSWORD",
+            required = false,
+            description = "h2 password of the target database")
+    private String targetPassword;
+    @CommandLine.Option(names = {"--table"},
+            paramLabel = "TABLE",
+            required = false,
+            description = "copy only the selected table(s), separated by comma")
+    private String table;
+    @CommandLine.Option(names = {"--schema"},
+            paramLabel = "SCHEMA",
+            required = false,
+            description = "copy only the tables of the selected schema")
+    private String schema;
+    @CommandLine.Option(names = {"--parallel"},
+            paramLabel = "PARALLEL",
+            defaultValue = "4",
+            required = false,
+            description = "number of tables, or key ranges copied concurrently, each database using a connection per copy")
+    private int parallel;
+    @CommandLine.Option(names = {"--batch-size"},
+            paramLabel = "BATCHSIZE",
+            defaultValue = "1000",
+            required = false,
+            description = "number of rows inserted by a batch, and committed")
+    private int batchSize;
+    @CommandLine.Option(names = {"--partition-rows"},
+            paramLabel = "PARTITIONROWS",
+            defaultValue = "100000",
+            required = false,
+            description = "copy a table having more rows by key ranges of about this number of rows, "
+            + "if its leading primary key column is an integer")
+    private long partitionRows;
+    @CommandLine.Option(names = {"--no-create"},
+            required = false,
+            description = "do not create tables missing in the target database")
+    private boolean noCreate;
+
+    @Override
+    public Integer call() throws Exception {
+        final Map<String, Object> m = new HashMap<>();
+        m.put("url", this.targetUrl);
+        m.put("user", this.targetUser);
+        m.put("password", this.targetPassword);
+        final TableCopy tableCopy = new TableCopy(this.mainH2::createConnection, new ConnectionFactoryWithMap(m));
+        tableCopy.setParallel(this.parallel);
+        tableCopy.setSchema(this.schema != null ? this.schema.toUpperCase() : null);
+        if (this.table != null) {
+            tableCopy.setTables(Arrays.stream(this.table.split(","))
+                    .map((t) -> t.trim().toUpperCase())
+                    .collect(Collectors.toSet()));
+        }
+        tableCopy.setBatchSize(this.batchSize);
+        tableCopy.setPartitionRows(this.partitionRows);
+        tableCopy.setCreateTables(!this.noCreate);
+        final TableCopy.Result result = tableCopy.execute();
+        System.out.printf("updateCount %d%n", result.rows());
+        System.out.println(result);
+        return 0;
+    }
+}
@@ -16,15 +16,35 @@
 package org.huberb.h2tools.picocli;
 
 import java.io.File;
+import java.io.Reader;
 import java.net.URI;
+import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.huberb.h2tools.jdbc.BulkLoad;
+import org.huberb.h2tools.support.CsvImportCheckpoint;
+import org.huberb.h2tools.support.CsvRejectFile;
+import org.huberb.h2tools.support.CsvSchemaInference;
+import org.huberb.h2tools.support.CsvStreams;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import org.huberb.h2tools.support.CsvSchemaInference.ColumnType;
+import org.huberb.h2tools.support.MappedCsvReader;
+import org.huberb.h2tools.support.MappedCsvReader.ColumnBatch;
+import org.huberb.h2tools.support.ParallelCsvImport;
 import org.huberb.h2tools.support.OutputResultSet.OutputBy;
 import org.huberb.h2tools.support.OutputResultSet.OutputMode;
 import org.slf4j.Logger;
@@ -73,13 +93,105 @@ public class CsvReadSubCommand implements Callable<Integer> {
             defaultValue = "csvread.csv",
             paramLabel = "FROM",
             required = true,
-            description = "The source csv file name.")
+            description = "The source csv file name, or - for stdin.")
     private String from;
     @CommandLine.Option(names = {"--csv-columns"},
             paramLabel = "COLUMNS",
             required = false,
             description = "CSV columns")
     private String csvColumns;
+    @CommandLine.Option(names = {"--compression"},
+            paramLabel = "COMPRESSION",
+            defaultValue = "NONE",
+            required = false,
+            description = "decompress the read CSV data. "
+            + "Valid values: ${COMPLETION-CANDIDATES}")
+    private Compression compression;
+    @CommandLine.Option(names = {"--parallel"},
+            paramLabel = "PARALLEL",
+            defaultValue = "0",
+            required = false,
+            description = "insert by this number of writer threads, each using its own connection, "
+            + "converting values to the column types; 0 inserts on a single connection")
+    private int parallel;
+    @CommandLine.Option(names = {"--batch-size"},
+            paramLabel = "BATCHSIZE",
+            defaultValue = "1000",
+            required = false,
+            description = "number of rows per insert batch")
+    private int batchSize;
+    @CommandLine.Option(names = {"--commit-every"},
+            paramLabel = "COMMITEVERY",
+            defaultValue = "10000",
+            required = false,
+            description = "number of rows per writer after which it commits, if parallel")
+    private int commitEvery;
+    @CommandLine.Option(names = {"--infer-types"},
+            required = false,
+            description = "infer the column types of the created table from a sample of the rows, "
+            + "and insert converted values")
+    private boolean inferTypes;
+    @CommandLine.Option(names = {"--print-inferred-ddl"},
+            required = false,
+            description = "print the CREATE TABLE statement of the inferred column types, without inserting")
+    private boolean printInferredDdl;
+    @CommandLine.Option(names = {"--sample-rows"},
+            paramLabel = "SAMPLEROWS",
+            defaultValue = "1000",
+            required = false,
+            description = "number of first rows, and number of randomly chosen rows sampled for inferring the column types")
+    private int sampleRows;
+    @CommandLine.Option(names = {"--bulk-load"},
+            required = false,
+            description = "drop the secondary indexes, and foreign key constraints of the insert table while inserting, "
+            + "and rebuild them afterwards, deleting inserted rows violating a foreign key, and failing")
+    private boolean bulkLoad;
+    @CommandLine.Option(names = {"--bulk-load-disable-log"},
+            required = false,
+            description = "disable the transaction log of the whole database while bulk loading, "
+            + "a crash while loading may corrupt the database")
+    private boolean bulkLoadDisableLog;
+    @CommandLine.Option(names = {"--checkpoint"},
+            required = false,
+            description = "commit after each chunk of the CSV file, and record a checkpoint in the checkpoint table")
+    private boolean checkpoint;
+    @CommandLine.Option(names = {"--resume"},
+            required = false,
+            description = "resume at the checkpoint of a failed import, implies --checkpoint")
+    private boolean resume;
+    @CommandLine.Option(names = {"--checkpoint-table"},
+            paramLabel = "CHECKPOINTTABLE",
+            defaultValue = CsvImportCheckpoint.DEFAULT_TABLE,
+            required = false,
+            description = "name of the checkpoint table")
+    private String checkpointTable;
+    @CommandLine.Option(names = {"--reject-file"},
+            paramLabel = "REJECTFILE",
+            required = false,
+            description = "insert tolerating errors, writing rejected rows together with their line number, "
+            + "and error to this CSV file")
+    private String rejectFile;
+    @CommandLine.Option(names = {"--max-errors"},
+            paramLabel = "MAXERRORS",
+            defaultValue = "-1",
+            required = false,
+            description = "insert tolerating errors, failing if more rows are rejected; -1 for no maximum; "
+            + "without --reject-file, and --max-errors the first rejected row fails")
+    private long maxErrors;
+    @CommandLine.Option(names = {"--key"},
+            paramLabel = "KEY",
+            required = false,
+            description = "comma separated key columns of the merge table")
+    private String key;
+    @CommandLine.Option(names = {"--key-filter"},
+            required = false,
+            description = "load the existing keys of the merge table into a bloom filter, "
+            + "inserting rows of new keys, and merging only rows of possibly existing keys, "
+            + "needs a unique index on the key columns")
+    private boolean keyFilter;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
 
     //---
     @CommandLine.Mixin
@@ -101,6 +213,12 @@ public class CsvReadSubCommand implements Callable<Integer> {
                 required = true,
                 description = "use this table, and insert read CSV data into this table.")
         private String insertTable;
+        @CommandLine.Option(names = {"--merge-into"},
+                paramLabel = "MERGE-INTO",
+                required = true,
+                description = "use this table, and merge read CSV data into this table by the columns of option --key, "
+                + "by a single writer.")
+        private String mergeInto;
         //---
         @CommandLine.Option(names = {"--output-format"},
                 paramLabel = "OUTPUTFORMAT",
@@ -112,6 +230,15 @@ public class CsvReadSubCommand implements Callable<Integer> {
 
     @Override
     public Integer call() throws Exception {
+        if (this.exclusive.mergeInto != null && this.key == null) {
+            throw new CommandLine.ParameterException(this.spec.commandLine(),
+                    "Option --merge-into requires option --key");
+        }
+        if (this.exclusive.mergeInto != null && this.parallel > 1) {
+            // rows of the same key would be merged by several writers, in any order
+            throw new CommandLine.ParameterException(this.spec.commandLine(),
+                    "Option --merge-into supports at most option --parallel 1");
+        }
         Map<String, String> argsAsList = convertOptionsToArgs();
         logger.info("Args {}", argsAsList);
         //---
@@ -142,6 +269,15 @@ public class CsvReadSubCommand implements Callable<Integer> {
                     theOptions
             );
             m.put("insertTable", sql);
+        } else if (this.exclusive.mergeInto != null) {
+            String sql = String.format("MERGE INTO %s KEY(%s) SELECT * FROM CSVREAD( '%s', %s, %s)",
+                    this.exclusive.mergeInto,
+                    this.key,
+                    theFrom,
+                    theCsvColumns,
+                    theOptions
+            );
+            m.put("mergeInto", sql);
         } else {
             final String sql = String.format("SELECT * FROM CSVREAD( '%s', %s, %s)",
                     theFrom,
@@ -180,15 +316,58 @@ public class CsvReadSubCommand implements Callable<Integer> {
     }
 
     private void process(Map<String, String> args) throws SQLException, Exception {
+        if (this.bulkLoad && this.exclusive.insertTable != null) {
+            final BulkLoad theBulkLoad = new BulkLoad(this.mainH2::createConnection, this.exclusive.insertTable);
+            theBulkLoad.setDisableLog(this.bulkLoadDisableLog);
+            theBulkLoad.execute(() -> {
+                processLoad(args);
+                return null;
+            });
+        } else {
+            processLoad(args);
+        }
+    }
+
+    private void processLoad(Map<String, String> args) throws SQLException, Exception {
         try (final Connection connection = this.mainH2.createConnection()) {
             connection.setAutoCommit(false);
             connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
             //---
             final Savepoint savepoint = connection.setSavepoint();
+            final boolean streamed = CsvStreams.STANDARD_STREAM.equals(this.from) || this.compression != Compression.NONE;
+            final boolean localFile = !streamed && new File(normalizeFileOrUriName(this.from)).isFile();
+            if (isErrorTolerant() && (!localFile || this.checkpoint || this.resume)) {
+                throw new CommandLine.ParameterException(this.spec.commandLine(),
+                        "Options --reject-file, and --max-errors require an uncompressed local file option --from, "
+                        + "and no option --checkpoint");
+            }
+            if (!localFile && (this.inferTypes || this.printInferredDdl || this.parallel > 0 || this.keyFilter
+                    || this.checkpoint || this.resume)) {
+                throw new CommandLine.ParameterException(this.spec.commandLine(),
+                        "Options --infer-types, --print-inferred-ddl, --parallel, --key-filter, --checkpoint, and --resume "
+                        + "require an uncompressed local file option --from");
+            }
+            if ((this.checkpoint || this.resume) && (this.parallel > 0 || this.keyFilter)) {
+                throw new CommandLine.ParameterException(this.spec.commandLine(),
+                        "Options --checkpoint, and --resume insert on a single connection, "
+                        + "and do not support options --parallel, and --key-filter");
+            }
+            if (streamed) {
+                // stream by the Java-side CSV reader, instead of CSVREAD
+                processStreamedCsv(connection);
+                connection.commit();
+                return;
+            }
+            if (localFile) {
+                // parse local files in parallel, instead of CSVREAD
+                processMappedCsv(connection, normalizeFileOrUriName(this.from));
+                connection.commit();
+                return;
+            }
             try (final Statement statement = connection.createStatement()) {
                 final String sql = buildSql(args);
                 logger.info("Execute sql {}", sql);
-                if (sql.startsWith("INSERT") || sql.startsWith("CREATE")) {
+                if (sql.startsWith("INSERT") || sql.startsWith("CREATE") || sql.startsWith("MERGE")) {
                     final boolean executedRc = statement.execute(sql);
                     handleExecuteStatementOutput(executedRc, statement);
                 } else {
@@ -202,12 +381,239 @@ public class CsvReadSubCommand implements Callable<Integer> {
         }
     }
 
+    /**
+     * Read a local CSV file by {@link MappedCsvReader}, and either output it,
+     * or insert it into a table.
+     * <p>
+     * Like {@code CSVREAD} all columns are of type VARCHAR, and the columns are
+     * inserted by position. If inferring types, the columns of a created table
+     * are of the types inferred by {@link CsvSchemaInference}.
+     * <p>
+     * If checkpointing, the rows are inserted on a single connection,
+     * committing each chunk together with its {@link CsvImportCheckpoint}.
+     * <p>
+     * If tolerating errors, the rows are inserted by {@link ParallelCsvImport},
+     * writing rejected rows to a {@link CsvRejectFile}. If merging, the rows
+     * are merged by {@link ParallelCsvImport}, unless checkpointing.
+     */
+    void processMappedCsv(Connection connection, String theFrom) throws SQLException, Exception {
+        final Map<String, String> options = this.csvReadWriteOptions.createOptionsMap();
+        final String[] columnNames = splitCsvColumns(options);
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(Paths.get(theFrom), options, columnNames)) {
+            if (this.exclusive.outputFormat != null) {
+                try (final ResultSet rs = mappedCsvReader.readAsResultSet()) {
+                    final OutputBy outputBy = OutputMode.createOutputBy(this.exclusive.outputFormat);
+                    outputBy.output(rs, System.out);
+                }
+                return;
+            }
+            final String[] theColumnNames = mappedCsvReader.getColumnNames();
+            final boolean inferred = this.inferTypes || this.printInferredDdl;
+            final String table = targetTable();
+            final CsvImportCheckpoint checkpoint = (this.checkpoint || this.resume) && !this.printInferredDdl
+                    ? new CsvImportCheckpoint(this.checkpointTable, Paths.get(theFrom), table)
+                    : null;
+            boolean resumed = false;
+            if (checkpoint != null) {
+                checkpoint.createTableIfNotExists(connection);
+                resumed = this.resume && checkpoint.load(connection);
+                if (resumed) {
+                    logger.info("Resume {}", checkpoint);
+                    mappedCsvReader.setStartOffset(checkpoint.byteOffset(), checkpoint.lineNumber());
+                } else {
+                    checkpoint.delete(connection);
+                }
+            }
+            // if resumed the table exists already
+            if (!resumed && inferred && (this.printInferredDdl || this.exclusive.createTable != null)) {
+                final CsvSchemaInference csvSchemaInference = new CsvSchemaInference();
+                csvSchemaInference.setHeadRows(this.sampleRows);
+                csvSchemaInference.setSampleRows(this.sampleRows);
+                final List<ColumnType> columnTypes = csvSchemaInference.infer(mappedCsvReader);
+                final String createSql = CsvSchemaInference.createTableSql(table, columnTypes);
+                if (this.printInferredDdl) {
+                    System.out.printf("%s;%n", createSql);
+                    return;
+                }
+                logger.info("Execute sql {}", createSql);
+                try (final Statement statement = connection.createStatement()) {
+                    statement.execute(createSql);
+                }
+            } else if (!resumed && this.exclusive.createTable != null) {
+                createVarcharTable(connection, table, theColumnNames);
+            }
+            if ((this.parallel > 0 || inferred || isErrorTolerant() || this.exclusive.mergeInto != null) && checkpoint == null) {
+                // let the writers see the created table
+                connection.commit();
+                final ParallelCsvImport parallelCsvImport = new ParallelCsvImport(this.mainH2::createConnection,
+                        table, mappedCsvReader);
+                parallelCsvImport.setParallel(Math.max(1, this.parallel));
+                parallelCsvImport.setBatchSize(this.batchSize);
+                parallelCsvImport.setCommitEvery(this.commitEvery);
+                // not tolerating errors, fail at the first rejected row
+                parallelCsvImport.setMaxErrors(isErrorTolerant() ? this.maxErrors : 0L);
+                if (this.exclusive.mergeInto != null) {
+                    parallelCsvImport.setMergeKeys(this.key.split(","));
+                    parallelCsvImport.setUseKeyFilter(this.keyFilter);
+                }
+                final ParallelCsvImport.Result result;
+                if (this.rejectFile != null) {
+                    final String theRejectFile = CsvStreams.STANDARD_STREAM.equals(this.rejectFile)
+                            ? this.rejectFile : normalizeFileOrUriName(this.rejectFile);
+                    try (final CsvRejectFile csvRejectFile = new CsvRejectFile(theRejectFile, options, theColumnNames)) {
+                        parallelCsvImport.setRejectConsumer(csvRejectFile);
+                        result = parallelCsvImport.execute();
+                    }
+                } else {
+                    result = parallelCsvImport.execute();
+                }
+                System.out.printf("updateCount %d%n", result.rows());
+                System.out.println(result);
+                return;
+            }
+            final String insertSql = insertSql(table, theColumnNames.length);
+            logger.info("Execute sql {}", insertSql);
+            long updateCount = 0L;
+            try (final PreparedStatement ps = connection.prepareStatement(insertSql)) {
+                final Iterator<ColumnBatch> it = mappedCsvReader.batches();
+                while (it.hasNext()) {
+                    final ColumnBatch batch = it.next();
+                    for (int row = 0; row < batch.getRowCount(); row++) {
+                        for (int column = 0; column < theColumnNames.length; column++) {
+                            ps.setString(column + 1, batch.getValue(row, column));
+                        }
+                        ps.addBatch();
+                        if ((row + 1) % this.batchSize == 0) {
+                            updateCount += ps.executeBatch().length;
+                        }
+                    }
+                    updateCount += ps.executeBatch().length;
+                    if (checkpoint != null) {
+                        checkpoint.save(connection, batch);
+                        connection.commit();
+                    }
+                }
+            }
+            if (checkpoint != null) {
+                logger.info("Completed {}", checkpoint);
+                checkpoint.delete(connection);
+            }
+            System.out.printf("updateCount %d%n", updateCount);
+        }
+    }
+
+    /**
+     * @return the created, inserted, or merged table
+     */
+    String targetTable() {
+        if (this.exclusive.createTable != null) {
+            return this.exclusive.createTable;
+        }
+        return this.exclusive.insertTable != null ? this.exclusive.insertTable : this.exclusive.mergeInto;
+    }
+
+    /**
+     * @return statement inserting, or merging all columns of a row by
+     * position
+     */
+    String insertSql(String table, int columnCount) {
+        final String parameters = String.join(", ", Collections.nCopies(columnCount, "?"));
+        return this.exclusive.mergeInto != null
+                ? String.format("MERGE INTO %s KEY(%s) VALUES(%s)", table, this.key, parameters)
+                : String.format("INSERT INTO %s VALUES(%s)", table, parameters);
+    }
+
+    /**
+     * @return true if rejecting rows failing to insert, instead of failing
+     */
+    boolean isErrorTolerant() {
+        return this.rejectFile != null || this.maxErrors >= 0L;
+    }
+
+    /**
+     * Read CSV data from stdin, or from a compressed file by
+     * {@link org.h2.tools.Csv}, and either output it, or insert it into a
+     * table.
+     * <p>
+     * Like {@code CSVREAD} all columns are of type VARCHAR, and the columns are
+     * inserted, or merged by {@code MERGE INTO ... KEY} by position, on a
+     * single connection.
+     */
+    void processStreamedCsv(Connection connection) throws SQLException, Exception {
+        final Map<String, String> options = this.csvReadWriteOptions.createOptionsMap();
+        final String theFrom = CsvStreams.STANDARD_STREAM.equals(this.from) ? this.from : normalizeFileOrUriName(this.from);
+        logger.info("Read from {}, compression {}", theFrom, this.compression);
+        try (final Reader reader = CsvStreams.openReader(theFrom, this.compression, options);
+                final ResultSet rs = CsvStreams.createCsv(options).read(reader, splitCsvColumns(options))) {
+            if (this.exclusive.outputFormat != null) {
+                final OutputBy outputBy = OutputMode.createOutputBy(this.exclusive.outputFormat);
+                outputBy.output(rs, System.out);
+                return;
+            }
+            final ResultSetMetaData meta = rs.getMetaData();
+            final String[] theColumnNames = new String[meta.getColumnCount()];
+            for (int i = 0; i < theColumnNames.length; i++) {
+                theColumnNames[i] = meta.getColumnLabel(i + 1);
+            }
+            final String table = targetTable();
+            if (this.exclusive.createTable != null) {
+                createVarcharTable(connection, table, theColumnNames);
+            }
+            final String insertSql = insertSql(table, theColumnNames.length);
+            logger.info("Execute sql {}", insertSql);
+            long updateCount = 0L;
+            try (final PreparedStatement ps = connection.prepareStatement(insertSql)) {
+                long row = 0L;
+                while (rs.next()) {
+                    for (int column = 0; column < theColumnNames.length; column++) {
+                        ps.setString(column + 1, rs.getString(column + 1));
+                    }
+                    ps.addBatch();
+                    row += 1;
+                    if (row % this.batchSize == 0) {
+                        updateCount += ps.executeBatch().length;
+                    }
+                }
+                updateCount += ps.executeBatch().length;
+            }
+            System.out.printf("updateCount %d%n", updateCount);
+        }
+    }
+
+    /**
+     * @return the column names of option {@code --csv-columns}, separated by
+     * the field separator, or null
+     */
+    String[] splitCsvColumns(Map<String, String> options) {
+        final String fieldSeparator = options.getOrDefault("fieldSeparator", ",");
+        return this.csvColumns != null
+                ? this.csvColumns.split(Pattern.quote(fieldSeparator.isEmpty() ? "," : fieldSeparator.substring(0, 1)))
+                : null;
+    }
+
+    static void createVarcharTable(Connection connection, String table, String[] columnNames) throws SQLException {
+        final String createSql = String.format("CREATE TABLE %s(%s)", table,
+                Arrays.stream(columnNames)
+                        .map((columnName) -> quoteIdentifier(columnName) + " VARCHAR")
+                        .collect(Collectors.joining(", ")));
+        logger.info("Execute sql {}", createSql);
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute(createSql);
+        }
+    }
+
+    static String quoteIdentifier(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
     String buildSql(Map<String, String> args) {
         final String sql;
         if (args.containsKey("createTable")) {
             sql = args.get("createTable");
         } else if (args.containsKey("insertTable")) {
             sql = args.get("insertTable");
+        } else if (args.containsKey("mergeInto")) {
+            sql = args.get("mergeInto");
         } else if (args.containsKey("selectOnly")) {
             sql = args.get("selectOnly");
         } else {
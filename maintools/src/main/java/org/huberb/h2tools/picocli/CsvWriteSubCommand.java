@@ -16,6 +16,8 @@
 package org.huberb.h2tools.picocli;
 
 import java.io.File;
+import java.io.Writer;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -23,8 +25,12 @@ import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import org.huberb.h2tools.support.CsvStreams;
+import org.huberb.h2tools.support.CsvStreams.Compression;
 import org.huberb.h2tools.support.OutputResultSet.OutputBy;
+import org.huberb.h2tools.support.PartitionedCsvExport;
 import org.huberb.h2tools.support.OutputResultSet.OutputMode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +55,7 @@ import picocli.CommandLine;
 public class CsvWriteSubCommand implements Callable<Integer> {
 
     private static final Logger logger = LoggerFactory.getLogger(CsvWriteSubCommand.class);
+    private static final int FETCH_SIZE = 1000;
 
     // picocli injects reference to parent command
     @CommandLine.ParentCommand
@@ -58,13 +65,41 @@ public class CsvWriteSubCommand implements Callable<Integer> {
             defaultValue = "csvwrite.csv",
             paramLabel = "TO",
             required = true,
-            description = "The target csv file name")
-    private File toFile;
+            description = "The target csv file name, or - for stdout")
+    private String to;
     @CommandLine.Option(names = {"--query"},
             paramLabel = "QUERY",
             required = true,
             description = "The query string to extract data")
     private String query;
+    @CommandLine.Option(names = {"--compression"},
+            paramLabel = "COMPRESSION",
+            defaultValue = "NONE",
+            required = false,
+            description = "compress the written CSV data. "
+            + "Valid values: ${COMPLETION-CANDIDATES}")
+    private Compression compression;
+    @CommandLine.Option(names = {"--partitions"},
+            paramLabel = "PARTITIONS",
+            defaultValue = "0",
+            required = false,
+            description = "split the query into this number of key ranges, "
+            + "each written by its own connection to its own files; 0 writes a single file")
+    private int partitions;
+    @CommandLine.Option(names = {"--partition-key"},
+            paramLabel = "PARTITIONKEY",
+            required = false,
+            description = "numeric column of the query splitting it into key ranges")
+    private String partitionKey;
+    @CommandLine.Option(names = {"--max-file-size"},
+            paramLabel = "MAXFILESIZE",
+            defaultValue = "0",
+            required = false,
+            description = "number of characters after which a partition file is rolled; 0 does not roll")
+    private long maxFileSize;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
 
     //---
     @CommandLine.Mixin
@@ -81,8 +116,8 @@ public class CsvWriteSubCommand implements Callable<Integer> {
 
     private List<String> convertOptionsToArgs() {
         final List<String> argsAsList = new ArrayList<>();
-        if (this.toFile != null) {
-            argsAsList.add(String.format("%s", this.toFile.getAbsolutePath()));
+        if (this.to != null) {
+            argsAsList.add(String.format("%s", new File(this.to).getAbsolutePath()));
         }
         if (this.query != null) {
             argsAsList.add(String.format("%s", this.query));
@@ -93,6 +128,14 @@ public class CsvWriteSubCommand implements Callable<Integer> {
     }
 
     private void process(List<String> args) throws SQLException, Exception {
+        if (this.partitions > 0) {
+            processPartitioned();
+            return;
+        }
+        if (CsvStreams.STANDARD_STREAM.equals(this.to) || this.compression != Compression.NONE) {
+            processStreamed();
+            return;
+        }
         try (final Connection connection = this.mainH2.createConnection()) {
             connection.setAutoCommit(false);
             connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
@@ -108,6 +151,55 @@ public class CsvWriteSubCommand implements Callable<Integer> {
         }
     }
 
+    /**
+     * Write the query result by the Java-side CSV writer, streaming to stdout,
+     * or to a file, instead of {@code CSVWRITE}.
+     */
+    void processStreamed() throws SQLException, Exception {
+        final Map<String, String> options = this.csvReadWriteOptions.createOptionsMap();
+        final String theTo = CsvStreams.STANDARD_STREAM.equals(this.to) ? this.to : new File(this.to).getAbsolutePath();
+        try (final Connection connection = this.mainH2.createConnection()) {
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            //---
+            final Savepoint savepoint = connection.setSavepoint();
+            logger.info("Execute query {}, write to {}, compression {}", this.query, theTo, this.compression);
+            final int rows;
+            try (final Statement statement = connection.createStatement();
+                    final Writer writer = CsvStreams.openWriter(theTo, this.compression, options)) {
+                statement.setFetchSize(FETCH_SIZE);
+                // closes the result set, and the writer
+                rows = CsvStreams.createCsv(options).write(writer, statement.executeQuery(this.query));
+            }
+            connection.rollback(savepoint);
+            if (CsvStreams.STANDARD_STREAM.equals(theTo)) {
+                // keep stdout for the CSV data
+                logger.info("Written rows {}", rows);
+            } else {
+                System.out.printf("updateCount %d%n", rows);
+            }
+        }
+    }
+
+    /**
+     * Write the query result into several files, and a manifest, by
+     * {@link PartitionedCsvExport}.
+     */
+    void processPartitioned() throws SQLException, Exception {
+        if (this.partitionKey == null || CsvStreams.STANDARD_STREAM.equals(this.to)) {
+            throw new CommandLine.ParameterException(this.spec.commandLine(),
+                    "Option --partitions requires option --partition-key, and a file name option --to");
+        }
+        final PartitionedCsvExport partitionedCsvExport = new PartitionedCsvExport(this.mainH2::createConnection,
+                this.query, this.partitionKey, Paths.get(this.to).toAbsolutePath(), this.csvReadWriteOptions.createOptionsMap());
+        partitionedCsvExport.setPartitions(this.partitions);
+        partitionedCsvExport.setMaxFileSize(this.maxFileSize);
+        partitionedCsvExport.setCompression(this.compression);
+        final PartitionedCsvExport.Result result = partitionedCsvExport.execute();
+        System.out.printf("updateCount %d%n", result.rows());
+        System.out.println(result);
+    }
+
     private String buildSql(List<String> args) {
         final String theToFile = args.get(0);
         final String theQuery = args.get(1);
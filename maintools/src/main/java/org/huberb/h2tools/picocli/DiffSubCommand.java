@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.picocli;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import org.huberb.h2tools.jdbc.ConnectionFactoryWithMap;
+import org.huberb.h2tools.support.CsvStreams;
+import org.huberb.h2tools.support.TableDiff;
+import picocli.CommandLine;
+
+/**
+ *
+ * @author pi
+ */
+@CommandLine.Command(name = "diff",
+        mixinStandardHelpOptions = true,
+        showDefaultValues = true,
+        description = "Compares a table of the database, and of a target database by hashes of key ranges, "
+        + "and writes the statements making the target table equal.")
+public class DiffSubCommand implements Callable<Integer> {
+
+    // picocli injects reference to parent command
+    @CommandLine.ParentCommand
+    private MainH2 mainH2;
+    //---
+    @CommandLine.Option(names = {"--target-url"},
+            paramLabel = "URL",
+            required = true,
+            description = "h2 jdbc URL of the target database")
+    private String targetUrl;
+    @CommandLine.Option(names = {"--target-user"},
+            defaultValue = "sa",
+            paramLabel = "USER",
+            required = false,
+            description = "h2 user of the target database")
+    private String targetUser;
+    @CommandLine.Option(names = {"--target-password"},
+            defaultValue = "",
+            paramLabel = "PASSWORD",
+            required = false,
+            description = "h2 password of the target database")
+    private String targetPassword;
+    @CommandLine.Option(names = {"--table"},
+            paramLabel = "TABLE",
+            required = true,
+            description = "the compared table")
+    private String table;
+    @CommandLine.Option(names = {"--schema"},
+            paramLabel = "SCHEMA",
+            defaultValue = "PUBLIC",
+            required = false,
+            description = "schema of the compared table")
+    private String schema;
+    @CommandLine.Option(names = {"--output"},
+            paramLabel = "OUTPUT",
+            required = false,
+            description = "write the INSERT, UPDATE, DELETE statements to this file, '-' for stdout, "
+            + "else report the number of differences only")
+    private String output;
+    @CommandLine.Option(names = {"--parallel"},
+            paramLabel = "PARALLEL",
+            defaultValue = "4",
+            required = false,
+            description = "number of key ranges compared concurrently, each database using a connection per range")
+    private int parallel;
+    @CommandLine.Option(names = {"--fanout"},
+            paramLabel = "FANOUT",
+            defaultValue = "16",
+            required = false,
+            description = "number of sub ranges hashed of a differing key range")
+    private int fanout;
+    @CommandLine.Option(names = {"--leaf-rows"},
+            paramLabel = "LEAFROWS",
+            defaultValue = "1000",
+            required = false,
+            description = "maximum number of rows of a key range compared by rows instead of hashes")
+    private int leafRows;
+
+    @Override
+    public Integer call() throws Exception {
+        final Map<String, Object> m = new HashMap<>();
+        m.put("url", this.targetUrl);
+        m.put("user", this.targetUser);
+        m.put("password", this.targetPassword);
+        final TableDiff tableDiff = new TableDiff(this.mainH2::createConnection, new ConnectionFactoryWithMap(m),
+                this.schema.toUpperCase(), this.table.toUpperCase());
+        tableDiff.setParallel(this.parallel);
+        tableDiff.setFanout(this.fanout);
+        tableDiff.setLeafRows(this.leafRows);
+        final TableDiff.Result result;
+        if (this.output != null) {
+            try (final Writer writer = CsvStreams.openWriter(this.output, CsvStreams.Compression.NONE, Map.of())) {
+                tableDiff.setStatementConsumer((sql) -> {
+                    try {
+                        writer.write(sql);
+                        writer.write(System.lineSeparator());
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException("Cannot write statement", ex);
+                    }
+                });
+                result = tableDiff.execute();
+            }
+        } else {
+            result = tableDiff.execute();
+        }
+        System.out.printf("updateCount %d%n", result.insertedRows() + result.updatedRows() + result.deletedRows());
+        System.out.println(result);
+        return 0;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.picocli;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import org.huberb.h2tools.support.ParallelScriptExport;
+import org.huberb.h2tools.support.ParallelScriptExport.DataFormat;
+import picocli.CommandLine;
+
+/**
+ *
+ * @author pi
+ */
+@CommandLine.Command(name = "dump",
+        mixinStandardHelpOptions = true,
+        showDefaultValues = true,
+        description = "Dumps the schema, and a typed binary data file per table, loadable by the load command.")
+public class DumpSubCommand implements Callable<Integer> {
+
+    // picocli injects reference to parent command
+    @CommandLine.ParentCommand
+    private MainH2 mainH2;
+    //---
+    @CommandLine.Option(names = {"--to"},
+            defaultValue = "backup.sql",
+            paramLabel = "TO",
+            required = false,
+            description = "The target file name, the schema, data, and manifest files are named after")
+    private File toFile;
+    @CommandLine.Option(names = {"--compression"},
+            paramLabel = "COMPRESSION",
+            defaultValue = "LZF",
+            required = false,
+            description = "compress the schema script, and the blocks of the data files. "
+            + "Valid values: NONE, LZF, DEFLATE")
+    private Compression compression;
+    @CommandLine.Option(names = {"--parallel"},
+            paramLabel = "PARALLEL",
+            defaultValue = "4",
+            required = false,
+            description = "number of tables dumped concurrently, each using its own connection")
+    private int parallel;
+    @CommandLine.Option(names = {"--nopasswords"},
+            required = false,
+            description = "NOPASSWORDS")
+    private boolean nopasswords;
+    @CommandLine.Option(names = {"--table"},
+            paramLabel = "TABLE",
+            required = false,
+            description = "dump the data of the selected table(s) only")
+    private String table;
+    @CommandLine.Option(names = {"--schema"},
+            paramLabel = "SCHEMA",
+            required = false,
+            description = "dump the selected schema only")
+    private String schema;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    @Override
+    public Integer call() throws Exception {
+        if (this.compression != Compression.NONE && this.compression != Compression.LZF && this.compression != Compression.DEFLATE) {
+            throw new CommandLine.ParameterException(this.spec.commandLine(),
+                    String.format("Option --compression %s is not supported, valid values: NONE, LZF, DEFLATE", this.compression));
+        }
+        final ParallelScriptExport parallelScriptExport = new ParallelScriptExport(this.mainH2::createConnection,
+                this.toFile.getAbsoluteFile().toPath());
+        parallelScriptExport.setDataFormat(DataFormat.BINARY);
+        parallelScriptExport.setCompression(this.compression);
+        parallelScriptExport.setParallel(this.parallel);
+        parallelScriptExport.setSchema(this.schema);
+        if (this.table != null) {
+            parallelScriptExport.setTables(Arrays.stream(this.table.split(","))
+                    .map((t) -> t.trim().toUpperCase())
+                    .collect(Collectors.toSet()));
+        }
+        if (this.nopasswords) {
+            parallelScriptExport.setScriptOptions("NOPASSWORDS");
+        }
+        final ParallelScriptExport.Result result = parallelScriptExport.execute();
+        System.out.printf("updateCount %d%n", result.rows());
+        System.out.println(result);
+        return 0;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.picocli;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import org.huberb.h2tools.support.ParallelRestore;
+import picocli.CommandLine;
+
+/**
+ *
+ * @author pi
+ */
+@CommandLine.Command(name = "load",
+        mixinStandardHelpOptions = true,
+        showDefaultValues = true,
+        description = "Loads the schema, and the data files written by the dump command.")
+public class LoadSubCommand implements Callable<Integer> {
+
+    // picocli injects reference to parent command
+    @CommandLine.ParentCommand
+    private MainH2 mainH2;
+    //---
+    @CommandLine.Option(names = {"--from"},
+            defaultValue = "backup.manifest.csv",
+            paramLabel = "FROM",
+            required = false,
+            description = "The manifest file name of the dump")
+    private File fromFile;
+    @CommandLine.Option(names = {"--parallel"},
+            paramLabel = "PARALLEL",
+            defaultValue = "4",
+            required = false,
+            description = "number of data files loaded concurrently, each using its own connection")
+    private int parallel;
+    @CommandLine.Option(names = {"--batch-size"},
+            paramLabel = "BATCHSIZE",
+            defaultValue = "1000",
+            required = false,
+            description = "number of rows inserted per batch")
+    private int batchSize;
+
+    @Override
+    public Integer call() throws Exception {
+        final ParallelRestore parallelRestore = new ParallelRestore(this.mainH2::createConnection);
+        parallelRestore.setParallel(this.parallel);
+        parallelRestore.setBatchSize(this.batchSize);
+        final ParallelRestore.Result result = parallelRestore.restoreManifest(this.fromFile.getAbsoluteFile().toPath());
+        System.out.printf("updateCount %d%n", result.rows());
+        System.out.println(result);
+        return 0;
+    }
+}
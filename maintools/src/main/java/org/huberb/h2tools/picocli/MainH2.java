@@ -30,9 +30,15 @@ import picocli.CommandLine;
 @CommandLine.Command(name = "MainH2",
         subcommands = {
             ScriptSubCommand.class,
+            RestoreSubCommand.class,
+            DumpSubCommand.class,
+            LoadSubCommand.class,
+            DiffSubCommand.class,
+            CopySubCommand.class,
             CsvReadSubCommand.class,
             CsvWriteSubCommand.class,
-            ShowSubCommand.class,},
+            ShowSubCommand.class,
+            ChunkedUpdateSubCommand.class,},
         mixinStandardHelpOptions = true,
         showAtFileInUsageHelp = true,
         showDefaultValues = true,
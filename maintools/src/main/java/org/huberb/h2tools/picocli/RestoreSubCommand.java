@@ -0,0 +1,99 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.picocli;
+
+import java.io.File;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import org.huberb.h2tools.support.ParallelRestore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+/**
+ *
+ * @author pi
+ */
+@CommandLine.Command(name = "restore",
+        mixinStandardHelpOptions = true,
+        showDefaultValues = true,
+        description = "Restores a SQL script file, or the files of a split per table script, "
+        + "loading the data of independent tables concurrently.")
+public class RestoreSubCommand implements Callable<Integer> {
+
+    private static final Logger logger = LoggerFactory.getLogger(RestoreSubCommand.class);
+
+    static final String MANIFEST_SUFFIX = ".manifest.csv";
+
+    // picocli injects reference to parent command
+    @CommandLine.ParentCommand
+    private MainH2 mainH2;
+    //---
+    @CommandLine.Option(names = {"--from"},
+            defaultValue = "backup.sql",
+            paramLabel = "FROM",
+            required = false,
+            description = "The source script file name, '-' for stdin, "
+            + "or the manifest file name '*" + MANIFEST_SUFFIX + "' of a split per table script")
+    private String fromFile;
+    @CommandLine.Option(names = {"--compression"},
+            paramLabel = "COMPRESSION",
+            defaultValue = "NONE",
+            required = false,
+            description = "decompress the read script file. "
+            + "Valid values: ${COMPLETION-CANDIDATES}")
+    private Compression compression;
+    @CommandLine.Option(names = {"--charset"},
+            paramLabel = "CHARSET",
+            defaultValue = "UTF-8",
+            required = false,
+            description = "script charset, eg UTF-8, ISO-8859-1")
+    private String charset;
+    @CommandLine.Option(names = {"--parallel"},
+            paramLabel = "PARALLEL",
+            defaultValue = "4",
+            required = false,
+            description = "number of concurrent loaders, each using its own connection")
+    private int parallel;
+    @CommandLine.Option(names = {"--batch-size"},
+            paramLabel = "BATCHSIZE",
+            defaultValue = "100",
+            required = false,
+            description = "number of insert statements, or rows executed per batch")
+    private int batchSize;
+
+    @Override
+    public Integer call() throws Exception {
+        final ParallelRestore parallelRestore = new ParallelRestore(this.mainH2::createConnection);
+        parallelRestore.setParallel(this.parallel);
+        parallelRestore.setBatchSize(this.batchSize);
+        final ParallelRestore.Result result;
+        if (this.fromFile.endsWith(MANIFEST_SUFFIX)) {
+            logger.info("Restore manifest {}", this.fromFile);
+            result = parallelRestore.restoreManifest(new File(this.fromFile).getAbsoluteFile().toPath());
+        } else {
+            logger.info("Restore script {}, compression {}", this.fromFile, this.compression);
+            try (final Reader reader = ParallelRestore.openScript(this.fromFile, this.compression, Charset.forName(this.charset))) {
+                result = parallelRestore.restoreScript(reader);
+            }
+        }
+        System.out.printf("updateCount %d%n", result.rows());
+        System.out.println(result);
+        return 0;
+    }
+}
@@ -21,10 +21,15 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import org.huberb.h2tools.support.IncrementalExport;
 import org.huberb.h2tools.support.OutputResultSet.OutputBy;
 import org.huberb.h2tools.support.OutputResultSet.OutputMode;
+import org.huberb.h2tools.support.ParallelScriptExport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
@@ -122,9 +127,49 @@ public class ScriptSubCommand implements Callable<Integer> {
             required = false,
             description = "When using the SCHEMA option, only the selected schema(s) are included.")
     private String schema;
+    @CommandLine.Option(names = {"--split-per-table"},
+            required = false,
+            description = "write a schema-only script, a CSV data file per table, and a manifest of the files "
+            + "in restore order with their checksums")
+    private boolean splitPerTable;
+    @CommandLine.Option(names = {"--parallel"},
+            paramLabel = "PARALLEL",
+            defaultValue = "4",
+            required = false,
+            description = "number of tables exported concurrently, each using its own connection, if split per table")
+    private int parallel;
+    @CommandLine.Option(names = {"--incremental-state"},
+            paramLabel = "STATEDIR",
+            required = false,
+            description = "write the rows changed since the previous export, and the deleted keys per table, "
+            + "keeping the state of the exports in this directory")
+    private File incrementalState;
+    @CommandLine.Option(names = {"--watermark-column"},
+            paramLabel = "COLUMN",
+            required = false,
+            description = "column, eg. UPDATED_AT, or a monotonic id, of the rows changed since the previous "
+            + "incremental export, tables without this column are compared by chunk hashes")
+    private String watermarkColumn;
+    @CommandLine.Option(names = {"--chunk-size"},
+            paramLabel = "CHUNKSIZE",
+            defaultValue = "1000",
+            required = false,
+            description = "primary key range of a chunk compared by its hash, if incremental")
+    private int chunkSize;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
 
     @Override
     public Integer call() throws Exception {
+        if (this.incrementalState != null) {
+            processIncremental();
+            return 0;
+        }
+        if (this.splitPerTable) {
+            processSplitPerTable();
+            return 0;
+        }
         List<String> argsAsList = convertOptionsToArgs();
         logger.info("Args {}", argsAsList);
         //---
@@ -132,6 +177,71 @@ public class ScriptSubCommand implements Callable<Integer> {
         return 0;
     }
 
+    /**
+     * Export the schema, and the data of each table into its own file by
+     * {@link ParallelScriptExport}.
+     */
+    void processSplitPerTable() throws SQLException, Exception {
+        if (this.toFile == null || this.cipherAlgorithm != null || this.nodata) {
+            throw new CommandLine.ParameterException(this.spec.commandLine(),
+                    "Option --split-per-table requires option --to, and supports no option --cipher-algorithm, --nodata");
+        }
+        final ParallelScriptExport parallelScriptExport = new ParallelScriptExport(this.mainH2::createConnection,
+                this.toFile.getAbsoluteFile().toPath());
+        parallelScriptExport.setParallel(this.parallel);
+        parallelScriptExport.setSchema(this.schema);
+        if (this.table != null) {
+            parallelScriptExport.setTables(Arrays.stream(this.table.split(","))
+                    .map((t) -> t.trim().toUpperCase())
+                    .collect(Collectors.toSet()));
+        }
+        final List<String> scriptOptions = new ArrayList<>();
+        if (nopasswords) {
+            scriptOptions.add("NOPASSWORDS");
+        }
+        if (nosettings) {
+            scriptOptions.add("NOSETTINGS");
+        }
+        if (drop) {
+            scriptOptions.add("DROP");
+        }
+        parallelScriptExport.setScriptOptions(String.join(" ", scriptOptions));
+        if (this.compression != null) {
+            parallelScriptExport.setCompression(Compression.valueOf(this.compression.toUpperCase()));
+        }
+        final ParallelScriptExport.Result result = parallelScriptExport.execute();
+        System.out.printf("updateCount %d%n", result.rows());
+        System.out.println(result);
+    }
+
+    /**
+     * Export the rows changed since the previous export, and the deleted keys
+     * by {@link IncrementalExport}.
+     */
+    void processIncremental() throws SQLException, Exception {
+        if (this.toFile == null || this.cipherAlgorithm != null || this.nodata) {
+            throw new CommandLine.ParameterException(this.spec.commandLine(),
+                    "Option --incremental-state requires option --to, and supports no option --cipher-algorithm, --nodata");
+        }
+        final IncrementalExport incrementalExport = new IncrementalExport(this.mainH2::createConnection,
+                this.toFile.getAbsoluteFile().toPath(), this.incrementalState.getAbsoluteFile().toPath());
+        incrementalExport.setParallel(this.parallel);
+        incrementalExport.setSchema(this.schema);
+        if (this.table != null) {
+            incrementalExport.setTables(Arrays.stream(this.table.split(","))
+                    .map((t) -> t.trim().toUpperCase())
+                    .collect(Collectors.toSet()));
+        }
+        incrementalExport.setWatermarkColumn(this.watermarkColumn);
+        incrementalExport.setChunkSize(this.chunkSize);
+        if (this.compression != null) {
+            incrementalExport.setCompression(Compression.valueOf(this.compression.toUpperCase()));
+        }
+        final IncrementalExport.Result result = incrementalExport.execute();
+        System.out.printf("updateCount %d%n", result.upsertedRows() + result.deletedKeys());
+        System.out.println(result);
+    }
+
     private List<String> convertOptionsToArgs() {
         List<String> argsAsList = new ArrayList<>();
         //---
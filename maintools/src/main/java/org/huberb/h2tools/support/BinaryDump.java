@@ -0,0 +1,602 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import org.h2.tools.CompressTool;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+
+/**
+ * Typed binary row format of a table dump.
+ * <p>
+ * A dump starts with a header of magic bytes, a version, and the names, and
+ * SQL types of the columns. The rows follow in blocks, each holding the
+ * number of its rows, its compressed length, the CRC32C of the compressed
+ * bytes, and the compressed bytes by {@link CompressTool}. A block of 0 rows
+ * ends the dump, thus a dump can be written, and read as a stream.
+ * <p>
+ * A row starts with a bitmap of its null values, followed by the other values
+ * by the {@link ValueKind} of their column. Integers are encoded as zig-zag
+ * varints, floating point numbers as their 8 bytes, strings as the varint
+ * length, and the UTF-8 bytes, binary values, and LOBs as the varint length,
+ * and the bytes.
+ *
+ * @author pi
+ */
+public class BinaryDump {
+
+    static final byte[] MAGIC = {'H', '2', 'B', 'D'};
+    static final int VERSION = 1;
+
+    /**
+     * Encoding of the values of a column.
+     */
+    public enum ValueKind {
+        BOOLEAN, LONG, DOUBLE, DECIMAL, DATE, TIME, TIMESTAMP, TIMESTAMP_WITH_TIME_ZONE, BYTES, STRING;
+
+        /**
+         * @param sqlType a {@link Types} value
+         * @return the value kind of the SQL type, {@link #STRING} if no other
+         * kind fits
+         */
+        public static ValueKind of(int sqlType) {
+            switch (sqlType) {
+                case Types.BOOLEAN:
+                case Types.BIT:
+                    return BOOLEAN;
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                    return LONG;
+                case Types.REAL:
+                case Types.FLOAT:
+                case Types.DOUBLE:
+                    return DOUBLE;
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                    return DECIMAL;
+                case Types.DATE:
+                    return DATE;
+                case Types.TIME:
+                    return TIME;
+                case Types.TIMESTAMP:
+                    return TIMESTAMP;
+                case Types.TIMESTAMP_WITH_TIMEZONE:
+                    return TIMESTAMP_WITH_TIME_ZONE;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                case Types.BLOB:
+                case Types.JAVA_OBJECT:
+                    return BYTES;
+                default:
+                    return STRING;
+            }
+        }
+    }
+
+    private BinaryDump() {
+    }
+
+    /**
+     * @param compression compression of the blocks
+     * @return the algorithm of {@link CompressTool}
+     * @throws IllegalArgumentException if the compression is not supported
+     * for blocks
+     */
+    static String compressAlgorithm(Compression compression) {
+        if (compression == null || compression == Compression.NONE) {
+            return "NO";
+        } else if (compression == Compression.LZF || compression == Compression.DEFLATE) {
+            return compression.name();
+        }
+        throw new IllegalArgumentException(String.format("Compression %s is not supported for blocks, "
+                + "supported are NONE, LZF, DEFLATE", compression));
+    }
+
+    //---
+    /**
+     * Writer of the rows of a result set.
+     */
+    public static class Writer implements AutoCloseable {
+
+        final OutputStream out;
+        final String compressAlgorithm;
+        final CompressTool compressTool = CompressTool.getInstance();
+        int blockSize = 256 * 1024;
+
+        final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        int blockRows;
+        long rows;
+        long blocks;
+
+        /**
+         * @param out the stream, closed by {@link #close()}
+         * @param compression compression of the blocks, NONE, LZF, or DEFLATE
+         */
+        public Writer(OutputStream out, Compression compression) {
+            this.out = out;
+            this.compressAlgorithm = compressAlgorithm(compression);
+        }
+
+        /**
+         * @param blockSize number of uncompressed bytes of a block, a block
+         * holds at least one row
+         */
+        public void setBlockSize(int blockSize) {
+            this.blockSize = Math.max(1, blockSize);
+        }
+
+        public long rows() {
+            return rows;
+        }
+
+        public long blocks() {
+            return blocks;
+        }
+
+        /**
+         * Write the header, and all rows of the result set, and the end of the
+         * dump.
+         *
+         * @param rs a result set
+         * @return number of written rows
+         * @throws SQLException
+         * @throws IOException
+         */
+        public long write(ResultSet rs) throws SQLException, IOException {
+            final ResultSetMetaData meta = rs.getMetaData();
+            final int columnCount = meta.getColumnCount();
+            final String[] columnNames = new String[columnCount];
+            final int[] sqlTypes = new int[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columnNames[i] = meta.getColumnLabel(i + 1);
+                sqlTypes[i] = meta.getColumnType(i + 1);
+            }
+            writeHeader(columnNames, sqlTypes);
+            final ValueKind[] kinds = kinds(sqlTypes);
+            final byte[] nulls = new byte[(columnCount + 7) / 8];
+            final ByteArrayOutputStream row = new ByteArrayOutputStream();
+            while (rs.next()) {
+                Arrays.fill(nulls, (byte) 0);
+                row.reset();
+                for (int i = 0; i < columnCount; i++) {
+                    if (!writeValue(row, rs, i + 1, kinds[i])) {
+                        nulls[i >>> 3] |= (byte) (1 << (i & 7));
+                    }
+                }
+                this.block.write(nulls);
+                row.writeTo(this.block);
+                this.blockRows += 1;
+                this.rows += 1;
+                if (this.block.size() >= this.blockSize) {
+                    flushBlock();
+                }
+            }
+            flushBlock();
+            // end of dump
+            writeVarLong(this.out, 0L);
+            return this.rows;
+        }
+
+        void writeHeader(String[] columnNames, int[] sqlTypes) throws IOException {
+            this.out.write(MAGIC);
+            writeVarLong(this.out, VERSION);
+            writeVarLong(this.out, columnNames.length);
+            for (int i = 0; i < columnNames.length; i++) {
+                writeBytes(this.out, columnNames[i].getBytes(StandardCharsets.UTF_8));
+                writeVarLong(this.out, zigZag(sqlTypes[i]));
+            }
+        }
+
+        /**
+         * @return false if the value is null, and nothing was written
+         */
+        static boolean writeValue(ByteArrayOutputStream out, ResultSet rs, int i, ValueKind kind) throws SQLException, IOException {
+            switch (kind) {
+                case BOOLEAN: {
+                    final boolean value = rs.getBoolean(i);
+                    if (rs.wasNull()) {
+                        return false;
+                    }
+                    out.write(value ? 1 : 0);
+                    return true;
+                }
+                case LONG: {
+                    final long value = rs.getLong(i);
+                    if (rs.wasNull()) {
+                        return false;
+                    }
+                    writeVarLong(out, zigZag(value));
+                    return true;
+                }
+                case DOUBLE: {
+                    final double value = rs.getDouble(i);
+                    if (rs.wasNull()) {
+                        return false;
+                    }
+                    writeLong(out, Double.doubleToRawLongBits(value));
+                    return true;
+                }
+                case DECIMAL: {
+                    final BigDecimal value = rs.getBigDecimal(i);
+                    if (value == null) {
+                        return false;
+                    }
+                    writeVarLong(out, zigZag(value.scale()));
+                    writeBytes(out, value.unscaledValue().toByteArray());
+                    return true;
+                }
+                case DATE: {
+                    final LocalDate value = rs.getObject(i, LocalDate.class);
+                    if (value == null) {
+                        return false;
+                    }
+                    writeVarLong(out, zigZag(value.toEpochDay()));
+                    return true;
+                }
+                case TIME: {
+                    final LocalTime value = rs.getObject(i, LocalTime.class);
+                    if (value == null) {
+                        return false;
+                    }
+                    writeVarLong(out, value.toNanoOfDay());
+                    return true;
+                }
+                case TIMESTAMP: {
+                    final LocalDateTime value = rs.getObject(i, LocalDateTime.class);
+                    if (value == null) {
+                        return false;
+                    }
+                    writeVarLong(out, zigZag(value.toEpochSecond(ZoneOffset.UTC)));
+                    writeVarLong(out, value.getNano());
+                    return true;
+                }
+                case TIMESTAMP_WITH_TIME_ZONE: {
+                    final OffsetDateTime value = rs.getObject(i, OffsetDateTime.class);
+                    if (value == null) {
+                        return false;
+                    }
+                    writeVarLong(out, zigZag(value.toLocalDateTime().toEpochSecond(ZoneOffset.UTC)));
+                    writeVarLong(out, value.getNano());
+                    writeVarLong(out, zigZag(value.getOffset().getTotalSeconds()));
+                    return true;
+                }
+                case BYTES: {
+                    final byte[] value = rs.getBytes(i);
+                    if (value == null) {
+                        return false;
+                    }
+                    writeBytes(out, value);
+                    return true;
+                }
+                default: {
+                    final String value = rs.getString(i);
+                    if (value == null) {
+                        return false;
+                    }
+                    writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+                    return true;
+                }
+            }
+        }
+
+        void flushBlock() throws IOException {
+            if (this.blockRows == 0) {
+                return;
+            }
+            final byte[] compressed = this.compressTool.compress(this.block.toByteArray(), this.compressAlgorithm);
+            final CRC32C crc = new CRC32C();
+            crc.update(compressed);
+            writeVarLong(this.out, this.blockRows);
+            writeVarLong(this.out, compressed.length);
+            writeLong(this.out, crc.getValue());
+            this.out.write(compressed);
+            this.block.reset();
+            this.blockRows = 0;
+            this.blocks += 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+    }
+
+    //---
+    /**
+     * Reader of the rows of a dump, binding them to the parameters of a
+     * prepared statement.
+     */
+    public static class Reader implements AutoCloseable {
+
+        final InputStream in;
+        final CompressTool compressTool = CompressTool.getInstance();
+        final String[] columnNames;
+        final int[] sqlTypes;
+        final ValueKind[] kinds;
+
+        byte[] block = new byte[0];
+        int position;
+        int blockRows;
+        long blocks;
+        boolean endOfDump;
+
+        /**
+         * Create a reader, reading the header.
+         *
+         * @param in the stream, closed by {@link #close()}
+         * @throws IOException if the stream is not a dump
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = in;
+            final byte[] magic = new byte[MAGIC.length];
+            readFully(in, magic);
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException("Not a binary dump, invalid magic bytes");
+            }
+            final long version = readVarLong(in);
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported binary dump version %d", version));
+            }
+            final int columnCount = (int) readVarLong(in);
+            this.columnNames = new String[columnCount];
+            this.sqlTypes = new int[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                this.columnNames[i] = new String(readBytes(in), StandardCharsets.UTF_8);
+                this.sqlTypes[i] = (int) unZigZag(readVarLong(in));
+            }
+            this.kinds = kinds(this.sqlTypes);
+        }
+
+        public String[] columnNames() {
+            return columnNames.clone();
+        }
+
+        public int[] sqlTypes() {
+            return sqlTypes.clone();
+        }
+
+        public long blocks() {
+            return blocks;
+        }
+
+        /**
+         * Read the next row, and bind its values to the parameters 1..n of the
+         * prepared statement by typed setters.
+         *
+         * @param ps a prepared statement having a parameter per column
+         * @return false at end of dump
+         * @throws SQLException
+         * @throws IOException if the dump is truncated, or a block checksum
+         * does not match
+         */
+        public boolean next(PreparedStatement ps) throws SQLException, IOException {
+            if (this.blockRows == 0 && !readBlock()) {
+                return false;
+            }
+            this.blockRows -= 1;
+            final int nullsPosition = this.position;
+            this.position += (this.kinds.length + 7) / 8;
+            for (int i = 0; i < this.kinds.length; i++) {
+                if ((this.block[nullsPosition + (i >>> 3)] & (1 << (i & 7))) != 0) {
+                    ps.setNull(i + 1, this.sqlTypes[i]);
+                } else {
+                    bindValue(ps, i + 1, this.kinds[i]);
+                }
+            }
+            return true;
+        }
+
+        void bindValue(PreparedStatement ps, int i, ValueKind kind) throws SQLException {
+            switch (kind) {
+                case BOOLEAN:
+                    ps.setBoolean(i, this.block[this.position++] != 0);
+                    break;
+                case LONG:
+                    ps.setLong(i, unZigZag(blockVarLong()));
+                    break;
+                case DOUBLE:
+                    ps.setDouble(i, Double.longBitsToDouble(blockLong()));
+                    break;
+                case DECIMAL: {
+                    final int scale = (int) unZigZag(blockVarLong());
+                    ps.setBigDecimal(i, new BigDecimal(new BigInteger(blockBytes()), scale));
+                    break;
+                }
+                case DATE:
+                    ps.setObject(i, LocalDate.ofEpochDay(unZigZag(blockVarLong())));
+                    break;
+                case TIME:
+                    ps.setObject(i, LocalTime.ofNanoOfDay(blockVarLong()));
+                    break;
+                case TIMESTAMP: {
+                    final long epochSecond = unZigZag(blockVarLong());
+                    ps.setObject(i, LocalDateTime.ofEpochSecond(epochSecond, (int) blockVarLong(), ZoneOffset.UTC));
+                    break;
+                }
+                case TIMESTAMP_WITH_TIME_ZONE: {
+                    final long epochSecond = unZigZag(blockVarLong());
+                    final int nano = (int) blockVarLong();
+                    final ZoneOffset offset = ZoneOffset.ofTotalSeconds((int) unZigZag(blockVarLong()));
+                    ps.setObject(i, OffsetDateTime.of(LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC), offset));
+                    break;
+                }
+                case BYTES:
+                    ps.setBytes(i, blockBytes());
+                    break;
+                default:
+                    ps.setString(i, new String(blockBytes(), StandardCharsets.UTF_8));
+                    break;
+            }
+        }
+
+        /**
+         * @return false at end of dump
+         */
+        boolean readBlock() throws IOException {
+            if (this.endOfDump) {
+                return false;
+            }
+            final int rows = (int) readVarLong(this.in);
+            if (rows == 0) {
+                this.endOfDump = true;
+                return false;
+            }
+            final byte[] compressed = new byte[(int) readVarLong(this.in)];
+            final long checksum = readLong(this.in);
+            readFully(this.in, compressed);
+            final CRC32C crc = new CRC32C();
+            crc.update(compressed);
+            if (crc.getValue() != checksum) {
+                throw new IOException(String.format("Checksum mismatch of block %d", this.blocks));
+            }
+            this.block = this.compressTool.expand(compressed);
+            this.position = 0;
+            this.blockRows = rows;
+            this.blocks += 1;
+            return true;
+        }
+
+        long blockVarLong() {
+            long value = 0L;
+            for (int shift = 0;; shift += 7) {
+                final int b = this.block[this.position++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        long blockLong() {
+            long value = 0L;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (this.block[this.position++] & 0xff);
+            }
+            return value;
+        }
+
+        byte[] blockBytes() {
+            final int length = (int) blockVarLong();
+            final byte[] bytes = Arrays.copyOfRange(this.block, this.position, this.position + length);
+            this.position += length;
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+
+    //---
+    static ValueKind[] kinds(int[] sqlTypes) {
+        final ValueKind[] kinds = new ValueKind[sqlTypes.length];
+        for (int i = 0; i < sqlTypes.length; i++) {
+            kinds[i] = ValueKind.of(sqlTypes[i]);
+        }
+        return kinds;
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0L) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static void writeLong(OutputStream out, long value) throws IOException {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    static void writeBytes(OutputStream out, byte[] bytes) throws IOException {
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0L;
+        for (int shift = 0;; shift += 7) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated binary dump");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    static long readLong(InputStream in) throws IOException {
+        final byte[] bytes = new byte[8];
+        readFully(in, bytes);
+        long value = 0L;
+        for (byte b : bytes) {
+            value = (value << 8) | (b & 0xff);
+        }
+        return value;
+    }
+
+    static byte[] readBytes(InputStream in) throws IOException {
+        final byte[] bytes = new byte[(int) readVarLong(in)];
+        readFully(in, bytes);
+        return bytes;
+    }
+
+    static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            final int n = in.read(bytes, offset, bytes.length - offset);
+            if (n < 0) {
+                throw new EOFException("Truncated binary dump");
+            }
+            offset += n;
+        }
+    }
+}
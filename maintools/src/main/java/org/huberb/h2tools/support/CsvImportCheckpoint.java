@@ -0,0 +1,172 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.huberb.h2tools.support.MappedCsvReader.ColumnBatch;
+
+/**
+ * Checkpoint of a CSV import, stored in a control table.
+ * <p>
+ * The checkpoint is saved in the transaction inserting a batch, thus it is
+ * committed together with the inserted rows. Resuming an import starts at the
+ * byte offset following the last committed record. A checkpoint is valid
+ * only as long as the size and the modification time of the CSV file are
+ * unchanged.
+ *
+ * @author pi
+ */
+public class CsvImportCheckpoint {
+
+    public static final String DEFAULT_TABLE = "CSV_IMPORT_CHECKPOINT";
+
+    final String checkpointTable;
+    final String file;
+    final String table;
+    final long fileSize;
+    final long lastModified;
+    long byteOffset;
+    long lineNumber = 1L;
+    long rowCount;
+
+    /**
+     * @param checkpointTable name of the control table
+     * @param path the imported CSV file
+     * @param table the table the CSV file is imported into
+     * @throws IOException
+     */
+    public CsvImportCheckpoint(String checkpointTable, Path path, String table) throws IOException {
+        this.checkpointTable = checkpointTable;
+        this.file = path.toAbsolutePath().toString();
+        this.table = table;
+        this.fileSize = Files.size(path);
+        this.lastModified = Files.getLastModifiedTime(path).toMillis();
+    }
+
+    /**
+     * @return byte offset following the last committed record
+     */
+    public long byteOffset() {
+        return byteOffset;
+    }
+
+    /**
+     * @return line number at {@link #byteOffset()}
+     */
+    public long lineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return number of committed rows
+     */
+    public long rowCount() {
+        return rowCount;
+    }
+
+    //---
+    public void createTableIfNotExists(Connection connection) throws SQLException {
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute(String.format("CREATE TABLE IF NOT EXISTS %s("
+                    + "FILE_PATH VARCHAR NOT NULL, TABLE_NAME VARCHAR NOT NULL, "
+                    + "FILE_SIZE BIGINT, LAST_MODIFIED BIGINT, BYTE_OFFSET BIGINT, LINE_NUMBER BIGINT, ROW_COUNT BIGINT, "
+                    + "PRIMARY KEY(FILE_PATH, TABLE_NAME))", this.checkpointTable));
+        }
+    }
+
+    /**
+     * Load the checkpoint of the file, and the table.
+     *
+     * @param connection a connection
+     * @return true if a checkpoint exists
+     * @throws SQLException
+     * @throws IOException if the file changed since the checkpoint
+     */
+    public boolean load(Connection connection) throws SQLException, IOException {
+        final String sql = String.format("SELECT FILE_SIZE, LAST_MODIFIED, BYTE_OFFSET, LINE_NUMBER, ROW_COUNT FROM %s "
+                + "WHERE FILE_PATH = ? AND TABLE_NAME = ?", this.checkpointTable);
+        try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, this.file);
+            ps.setString(2, this.table);
+            try (final ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return false;
+                }
+                if (rs.getLong(1) != this.fileSize || rs.getLong(2) != this.lastModified) {
+                    throw new IOException(String.format("File %s changed since checkpoint, size %d, last modified %d",
+                            this.file, rs.getLong(1), rs.getLong(2)));
+                }
+                this.byteOffset = rs.getLong(3);
+                this.lineNumber = rs.getLong(4);
+                this.rowCount = rs.getLong(5);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Save the checkpoint following a batch, without committing.
+     *
+     * @param connection the connection inserting the batch
+     * @param batch the inserted batch
+     * @throws SQLException
+     */
+    public void save(Connection connection, ColumnBatch batch) throws SQLException {
+        this.byteOffset = batch.getEndOffset();
+        this.lineNumber = batch.getEndLineNumber();
+        this.rowCount += batch.getRowCount();
+        final String sql = String.format("MERGE INTO %s(FILE_PATH, TABLE_NAME, FILE_SIZE, LAST_MODIFIED, BYTE_OFFSET, LINE_NUMBER, ROW_COUNT) "
+                + "KEY(FILE_PATH, TABLE_NAME) VALUES(?, ?, ?, ?, ?, ?, ?)", this.checkpointTable);
+        try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, this.file);
+            ps.setString(2, this.table);
+            ps.setLong(3, this.fileSize);
+            ps.setLong(4, this.lastModified);
+            ps.setLong(5, this.byteOffset);
+            ps.setLong(6, this.lineNumber);
+            ps.setLong(7, this.rowCount);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Delete the checkpoint, without committing.
+     *
+     * @param connection a connection
+     * @throws SQLException
+     */
+    public void delete(Connection connection) throws SQLException {
+        final String sql = String.format("DELETE FROM %s WHERE FILE_PATH = ? AND TABLE_NAME = ?", this.checkpointTable);
+        try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, this.file);
+            ps.setString(2, this.table);
+            ps.executeUpdate();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("file %s, table %s, byteOffset %d, lineNumber %d, rowCount %d",
+                file, table, byteOffset, lineNumber, rowCount);
+    }
+}
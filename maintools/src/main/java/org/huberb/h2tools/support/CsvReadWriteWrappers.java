@@ -15,21 +15,24 @@
  */
 package org.huberb.h2tools.support;
 
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
-import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import org.h2.tools.Csv;
+import org.huberb.h2tools.support.MappedCsvReader.ColumnBatch;
 
 /**
  *
@@ -49,9 +52,7 @@ public class CsvReadWriteWrappers {
         CsvWriter(Writer writer, Map<String, String> options) {
             this.writer = writer;
             this.options = options;
-            this.csv = new Csv();
-            final String csvOptions = "";
-            this.csv.setOptions(csvOptions);
+            this.csv = CsvStreams.createCsv(options);
         }
 
         int writeTo(Connection connection, String querySql) throws CsvReaderWriteWrappersRuntimeException {
@@ -94,9 +95,7 @@ public class CsvReadWriteWrappers {
 
             CsvWriter create(String outFilename, Map<String, String> options) throws CsvReaderWriteWrappersRuntimeException {
                 try {
-                    final String charsetAsString = options.getOrDefault("charset", null);
-                    final Charset charset = charsetAsString != null ? Charset.forName(charsetAsString) : Charset.defaultCharset();
-                    final Writer w = new FileWriter(outFilename, charset);
+                    final Writer w = CsvStreams.openWriter(outFilename, CsvStreams.Compression.NONE, options);
                     final CsvWriter csvWriter = new CsvWriter(w, options);
                     return csvWriter;
                 } catch (IOException ioException) {
@@ -108,25 +107,48 @@ public class CsvReadWriteWrappers {
 
     /**
      * Read CSV.
+     * <p>
+     * A CSV file is read by {@link MappedCsvReader}, parsing it in parallel, a
+     * reader is read by {@link Csv}. The records are passed either as
+     * {@link ResultSet}, or as batches of columns by
+     * {@link #readBatches(int, Consumer)}.
      */
     static class CsvReader implements AutoCloseable {
 
         final Reader reader;
+        final Path path;
         final Map<String, String> options;
         final String[] colNames;
 
         CsvReader(Reader reader, Map<String, String> options, String[] colNames) {
             this.reader = reader;
+            this.path = null;
+            this.options = options;
+            this.colNames = colNames;
+        }
+
+        CsvReader(Path path, Map<String, String> options, String[] colNames) {
+            this.reader = null;
+            this.path = path;
             this.options = options;
             this.colNames = colNames;
         }
 
         void readFrom(Consumer<ResultSet> c) throws CsvReaderWriteWrappersRuntimeException {
+            if (this.path != null) {
+                // closing the result set closes mappedCsvReader, its mapping, and reader threads
+                try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(this.path, this.options, this.colNames);
+                        final ResultSet rs = mappedCsvReader.readAsResultSet()) {
+                    c.accept(rs);
+                } catch (IOException ex) {
+                    throw new CsvReaderWriteWrappersRuntimeException("readFrom", ex);
+                } catch (SQLException ex) {
+                    throw new CsvReaderWriteWrappersRuntimeException("readFrom", ex);
+                }
+                return;
+            }
             try {
-                final Csv csv = new Csv();
-                final String csvOptions = "";
-                csv.setOptions(csvOptions);
-                //---
+                final Csv csv = CsvStreams.createCsv(this.options);
                 final ResultSet rs = csv.read(reader, colNames);
                 c.accept(rs);
             } catch (IOException ex) {
@@ -134,6 +156,96 @@ public class CsvReadWriteWrappers {
             }
         }
 
+        /**
+         * Read all records, passing them in batches of columns to a consumer.
+         * <p>
+         * The batch passed to the consumer, and its column arrays are reused
+         * for the following batch, thus a consumer must not keep them. The
+         * line numbers of a batch read from a reader are record numbers,
+         * exact only for records without line breaks.
+         *
+         * @param batchSize maximum number of rows of a batch
+         * @param c consumer of batches
+         * @throws CsvReaderWriteWrappersRuntimeException
+         */
+        void readBatches(int batchSize, Consumer<ColumnBatch> c) throws CsvReaderWriteWrappersRuntimeException {
+            final int size = Math.max(1, batchSize);
+            if (this.path != null) {
+                try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(this.path, this.options, this.colNames)) {
+                    final ColumnBatch batch = new ColumnBatch(mappedCsvReader.getColumnNames(), size);
+                    final Iterator<ColumnBatch> it = mappedCsvReader.batches();
+                    while (it.hasNext()) {
+                        final ColumnBatch chunk = it.next();
+                        for (int row = 0; row < chunk.getRowCount(); row++) {
+                            batch.addFrom(chunk, row);
+                            if (batch.getRowCount() == size) {
+                                c.accept(batch);
+                                batch.clear();
+                            }
+                        }
+                    }
+                    if (batch.getRowCount() > 0) {
+                        c.accept(batch);
+                    }
+                } catch (IOException ex) {
+                    throw new CsvReaderWriteWrappersRuntimeException("readBatches", ex);
+                }
+                return;
+            }
+            final Csv csv = CsvStreams.createCsv(this.options);
+            try (final ResultSet rs = csv.read(reader, colNames)) {
+                final ResultSetMetaData meta = rs.getMetaData();
+                final String[] columnNames = new String[meta.getColumnCount()];
+                for (int i = 0; i < columnNames.length; i++) {
+                    columnNames[i] = meta.getColumnLabel(i + 1);
+                }
+                final ColumnBatch batch = new ColumnBatch(columnNames, size);
+                final String[] row = new String[columnNames.length];
+                long lineNumber = this.colNames == null ? 2L : 1L;
+                while (rs.next()) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = rs.getString(i + 1);
+                    }
+                    batch.add(row, lineNumber);
+                    lineNumber += 1;
+                    if (batch.getRowCount() == size) {
+                        c.accept(batch);
+                        batch.clear();
+                    }
+                }
+                if (batch.getRowCount() > 0) {
+                    c.accept(batch);
+                }
+            } catch (IOException ex) {
+                throw new CsvReaderWriteWrappersRuntimeException("readBatches", ex);
+            } catch (SQLException sqlex) {
+                throw new CsvReaderWriteWrappersRuntimeException("readBatches", sqlex);
+            }
+        }
+
+        /**
+         * Read all records, passing them in batches of typed columns to a
+         * consumer.
+         * <p>
+         * The batch passed to the consumer is reused for the following batch.
+         *
+         * @param batchSize maximum number of rows of a batch
+         * @param sqlTypes types of {@link java.sql.Types} per column
+         * @param c consumer of batches
+         * @throws CsvReaderWriteWrappersRuntimeException
+         * @throws IllegalArgumentException if a value is not convertible
+         */
+        void readBatches(int batchSize, int[] sqlTypes, Consumer<TypedColumnBatch> c) throws CsvReaderWriteWrappersRuntimeException {
+            final TypedColumnBatch[] typedColumnBatch = new TypedColumnBatch[1];
+            readBatches(batchSize, batch -> {
+                if (typedColumnBatch[0] == null) {
+                    typedColumnBatch[0] = new TypedColumnBatch(batch.getColumnNames(), sqlTypes);
+                }
+                typedColumnBatch[0].fill(batch);
+                c.accept(typedColumnBatch[0]);
+            });
+        }
+
         @Override
         public void close() throws IOException {
             if (this.reader != null) {
@@ -176,10 +288,11 @@ public class CsvReadWriteWrappers {
         static class CsvReaderFactory {
 
             CsvReader create(String inFilename, Map<String, String> options, String[] colNames) throws IOException {
-                final String charsetAsString = options.getOrDefault("charset", null);
-                final Charset charset = charsetAsString != null ? Charset.forName(charsetAsString) : Charset.defaultCharset();
-                final Reader r = new FileReader(inFilename, charset);
-                final CsvReader csvReader = new CsvReader(r, options, colNames);
+                final Path path = Paths.get(inFilename);
+                if (!Files.isReadable(path)) {
+                    throw new FileNotFoundException(inFilename);
+                }
+                final CsvReader csvReader = new CsvReader(path, options, colNames);
                 return csvReader;
             }
         }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * CSV file of the rows rejected by an import.
+ * <p>
+ * Each record holds the line number of the rejected row, the SQL state, and
+ * the message of the error rejecting it, followed by the CSV values of the
+ * row. Line breaks of the message are replaced by a space. The file uses the
+ * field separator, and the field delimiter of the CSV options.
+ *
+ * @author pi
+ */
+public class CsvRejectFile implements ParallelCsvImport.RejectConsumer, AutoCloseable {
+
+    final Writer writer;
+    final String fieldSeparator;
+    final char fieldDelimiter;
+    final String lineSeparator;
+    long rejectedRows;
+
+    /**
+     * @param name a file name, or {@value CsvStreams#STANDARD_STREAM} for
+     * stdout
+     * @param options CSV options
+     * @param columnNames column names of the imported CSV data
+     * @throws IOException
+     */
+    public CsvRejectFile(String name, Map<String, String> options, String[] columnNames) throws IOException {
+        this.writer = CsvStreams.openWriter(name, CsvStreams.Compression.NONE, options);
+        this.fieldSeparator = options.getOrDefault("fieldSeparator", ",");
+        this.fieldDelimiter = CsvStreams.firstChar(options.getOrDefault("fieldDelimiter", "\""));
+        this.lineSeparator = options.getOrDefault("lineSeparator", System.lineSeparator());
+        final String[] header = new String[columnNames.length + 3];
+        header[0] = "LINE_NUMBER";
+        header[1] = "SQL_STATE";
+        header[2] = "ERROR_MESSAGE";
+        System.arraycopy(columnNames, 0, header, 3, columnNames.length);
+        writeRecord(header);
+    }
+
+    public synchronized long rejectedRows() {
+        return rejectedRows;
+    }
+
+    @Override
+    public synchronized void accept(long lineNumber, String[] values, Exception reason) {
+        final String[] record = new String[values.length + 3];
+        record[0] = String.valueOf(lineNumber);
+        record[1] = reason instanceof SQLException ? ((SQLException) reason).getSQLState() : null;
+        // a single line per record, eg. for grep
+        record[2] = reason.getMessage() != null ? reason.getMessage().replaceAll("\\s*[\\r\\n]+\\s*", " ") : null;
+        System.arraycopy(values, 0, record, 3, values.length);
+        try {
+            writeRecord(record);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot write reject file", ex);
+        }
+        this.rejectedRows += 1;
+    }
+
+    void writeRecord(String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                this.writer.write(this.fieldSeparator);
+            }
+            if (values[i] != null) {
+                this.writer.write(quote(values[i]));
+            }
+        }
+        this.writer.write(this.lineSeparator);
+    }
+
+    /**
+     * @return the value enclosed by the field delimiter, doubling a contained
+     * field delimiter, or the value if there is no field delimiter
+     */
+    String quote(String value) {
+        if (this.fieldDelimiter == 0) {
+            return value;
+        }
+        final String delimiter = String.valueOf(this.fieldDelimiter);
+        return delimiter + value.replace(delimiter, delimiter + delimiter) + delimiter;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.writer.close();
+    }
+}
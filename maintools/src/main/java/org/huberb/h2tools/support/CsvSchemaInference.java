@@ -0,0 +1,297 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.huberb.h2tools.support.MappedCsvReader.ColumnBatch;
+
+/**
+ * Infer the column types of a CSV file.
+ * <p>
+ * The types are inferred from a sample of the rows: the first rows, and a
+ * reservoir sample of the remaining rows. The lengths of VARCHAR columns are
+ * the maximum lengths of all rows.
+ * <p>
+ * A value is considered of a type only if {@link ParallelCsvImport} converts
+ * it to that type, thus the inferred table can be loaded by a
+ * {@link ParallelCsvImport}. Rows not sampled may still fail conversion, and
+ * are rejected then.
+ *
+ * @author pi
+ */
+public class CsvSchemaInference {
+
+    /**
+     * Candidate types, in order of preference.
+     */
+    enum Candidate {
+        BOOLEAN(Types.BOOLEAN),
+        INT(Types.INTEGER),
+        BIGINT(Types.BIGINT),
+        DECIMAL(Types.DECIMAL),
+        DOUBLE(Types.DOUBLE),
+        DATE(Types.DATE),
+        TIMESTAMP(Types.TIMESTAMP),
+        UUID(Types.OTHER);
+
+        final Function<String, Object> converter;
+
+        Candidate(int sqlType) {
+            this.converter = ParallelCsvImport.createConverter(sqlType);
+        }
+    }
+
+    static final int MAX_DECIMAL_PRECISION = 38;
+    static final Pattern BOOLEAN_PATTERN = Pattern.compile("(?i)true|false|yes|no|t|f|y|n");
+    // leading zeros, like in zip codes, are kept as VARCHAR
+    static final Pattern INTEGER_PATTERN = Pattern.compile("[+-]?(0|[1-9]\\d*)");
+    static final Pattern DECIMAL_PATTERN = Pattern.compile("[+-]?(0|[1-9]\\d*)?(\\.\\d+)?");
+    static final Pattern DOUBLE_PATTERN = Pattern.compile("[+-]?(0|[1-9]\\d*)?(\\.\\d*)?([eE][+-]?\\d+)?");
+    static final Pattern UUID_PATTERN = Pattern.compile("\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}");
+
+    /**
+     * Inferred type of a column.
+     */
+    public static class ColumnType {
+
+        final String name;
+        final String typeName;
+        final long nonNullValues;
+        final int maxLength;
+
+        ColumnType(String name, String typeName, long nonNullValues, int maxLength) {
+            this.name = name;
+            this.typeName = typeName;
+            this.nonNullValues = nonNullValues;
+            this.maxLength = maxLength;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @return SQL type, eg. INT, DECIMAL(10,2), VARCHAR(20)
+         */
+        public String typeName() {
+            return typeName;
+        }
+
+        /**
+         * @return number of sampled values, not null nor blank
+         */
+        public long nonNullValues() {
+            return nonNullValues;
+        }
+
+        /**
+         * @return maximum length of a value in all rows
+         */
+        public int maxLength() {
+            return maxLength;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s", name, typeName);
+        }
+    }
+
+    /**
+     * Statistics of the sampled values of a column.
+     */
+    static class ColumnStats {
+
+        final boolean[] candidates = new boolean[Candidate.values().length];
+        long nonNullValues;
+        int maxIntegerDigits = 1;
+        int maxScale;
+        int maxLength;
+
+        ColumnStats() {
+            Arrays.fill(this.candidates, true);
+        }
+
+        void addLength(String value) {
+            if (value != null) {
+                this.maxLength = Math.max(this.maxLength, value.length());
+            }
+        }
+
+        void addSample(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return;
+            }
+            final String v = value.trim();
+            this.nonNullValues += 1;
+            check(Candidate.BOOLEAN, v, BOOLEAN_PATTERN);
+            check(Candidate.INT, v, INTEGER_PATTERN);
+            check(Candidate.BIGINT, v, INTEGER_PATTERN);
+            if (check(Candidate.DECIMAL, v, DECIMAL_PATTERN)) {
+                final BigDecimal bd = new BigDecimal(v);
+                this.maxScale = Math.max(this.maxScale, Math.max(0, bd.scale()));
+                this.maxIntegerDigits = Math.max(this.maxIntegerDigits, bd.precision() - bd.scale());
+                if (this.maxIntegerDigits + this.maxScale > MAX_DECIMAL_PRECISION) {
+                    this.candidates[Candidate.DECIMAL.ordinal()] = false;
+                }
+            }
+            check(Candidate.DOUBLE, v, DOUBLE_PATTERN);
+            check(Candidate.DATE, v, null);
+            check(Candidate.TIMESTAMP, v, null);
+            check(Candidate.UUID, v, UUID_PATTERN);
+        }
+
+        /**
+         * @return true if value is still of the candidate type
+         */
+        boolean check(Candidate candidate, String v, Pattern pattern) {
+            final int i = candidate.ordinal();
+            if (!this.candidates[i]) {
+                return false;
+            }
+            if (pattern != null && !pattern.matcher(v).matches()) {
+                this.candidates[i] = false;
+                return false;
+            }
+            try {
+                candidate.converter.apply(v);
+                return true;
+            } catch (IllegalArgumentException ex) {
+                this.candidates[i] = false;
+                return false;
+            }
+        }
+
+        String typeName() {
+            if (this.nonNullValues > 0) {
+                for (Candidate candidate : Candidate.values()) {
+                    if (this.candidates[candidate.ordinal()]) {
+                        return candidate == Candidate.DECIMAL
+                                ? String.format("DECIMAL(%d,%d)", this.maxIntegerDigits + this.maxScale, this.maxScale)
+                                : candidate.name();
+                    }
+                }
+            }
+            return String.format("VARCHAR(%d)", Math.max(1, this.maxLength));
+        }
+    }
+
+    int headRows = 1000;
+    int sampleRows = 1000;
+    Random random = new Random();
+
+    /**
+     * @param headRows number of first rows sampled
+     */
+    public void setHeadRows(int headRows) {
+        this.headRows = Math.max(0, headRows);
+    }
+
+    /**
+     * @param sampleRows number of randomly sampled rows, after the first rows
+     */
+    public void setSampleRows(int sampleRows) {
+        this.sampleRows = Math.max(0, sampleRows);
+    }
+
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    //---
+    /**
+     * Infer the column types of a CSV file.
+     *
+     * @param mappedCsvReader reader of the CSV file
+     * @return the column types, in the order of the CSV columns
+     * @throws IOException
+     */
+    public List<ColumnType> infer(MappedCsvReader mappedCsvReader) throws IOException {
+        final String[] columnNames = mappedCsvReader.getColumnNames();
+        final ColumnStats[] columnStats = new ColumnStats[columnNames.length];
+        for (int i = 0; i < columnStats.length; i++) {
+            columnStats[i] = new ColumnStats();
+        }
+        final List<String[]> reservoir = new ArrayList<>();
+        long rowCount = 0L;
+        final Iterator<ColumnBatch> it = mappedCsvReader.batches();
+        while (it.hasNext()) {
+            final ColumnBatch batch = it.next();
+            final int columnCount = Math.min(columnNames.length, batch.getColumnNames().length);
+            for (int row = 0; row < batch.getRowCount(); row++, rowCount++) {
+                for (int column = 0; column < columnCount; column++) {
+                    columnStats[column].addLength(batch.getValue(row, column));
+                }
+                if (rowCount < this.headRows) {
+                    addSample(columnStats, batch.getRow(row));
+                } else {
+                    // reservoir sampling, each remaining row is sampled with same probability
+                    final long sampledRowCount = rowCount - this.headRows;
+                    if (sampledRowCount < this.sampleRows) {
+                        reservoir.add(batch.getRow(row));
+                    } else {
+                        final long j = (long) (this.random.nextDouble() * (sampledRowCount + 1));
+                        if (j < this.sampleRows) {
+                            reservoir.set((int) j, batch.getRow(row));
+                        }
+                    }
+                }
+            }
+        }
+        for (String[] values : reservoir) {
+            addSample(columnStats, values);
+        }
+        final List<ColumnType> columnTypes = new ArrayList<>();
+        for (int i = 0; i < columnNames.length; i++) {
+            columnTypes.add(new ColumnType(columnNames[i], columnStats[i].typeName(),
+                    columnStats[i].nonNullValues, columnStats[i].maxLength));
+        }
+        return columnTypes;
+    }
+
+    static void addSample(ColumnStats[] columnStats, String[] values) {
+        final int columnCount = Math.min(columnStats.length, values.length);
+        for (int column = 0; column < columnCount; column++) {
+            columnStats[column].addSample(values[column]);
+        }
+    }
+
+    /**
+     * @param table name of the table
+     * @param columnTypes inferred column types
+     * @return CREATE TABLE statement of the inferred column types
+     */
+    public static String createTableSql(String table, List<ColumnType> columnTypes) {
+        return String.format("CREATE TABLE %s(%s)", table,
+                columnTypes.stream()
+                        .map((columnType) -> quoteIdentifier(columnType.name()) + " " + columnType.typeName())
+                        .collect(Collectors.joining(", ")));
+    }
+
+    static String quoteIdentifier(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import org.h2.tools.CompressTool;
+import org.h2.tools.Csv;
+
+/**
+ * Streams of CSV data, read from, and written to files or the standard
+ * streams, optionally compressed.
+ * <p>
+ * The name {@value #STANDARD_STREAM} denotes stdin for reading, and stdout
+ * for writing. The standard streams are not closed, thus the JVM can still
+ * use them.
+ *
+ * @author pi
+ */
+public class CsvStreams {
+
+    public static final String STANDARD_STREAM = "-";
+    static final int BUFFER_SIZE = 1024 * 1024;
+    /**
+     * Name of the entry of a ZIP compressed CSV stream.
+     */
+    public static final String CSV_ZIP_ENTRY = "csv";
+
+    /**
+     * Compression of a CSV stream, by {@link CompressTool}.
+     */
+    public enum Compression {
+        NONE, GZIP, DEFLATE, LZF, ZIP;
+    }
+
+    private CsvStreams() {
+    }
+
+    /**
+     * Create a {@link Csv} using the CSV options.
+     *
+     * @param options CSV options, eg. fieldSeparator, fieldDelimiter, escape,
+     * lineComment, lineSeparator, null, preserveWhitespace,
+     * caseSensitiveColumnNames, writeColumnHeader
+     * @return the {@link Csv}
+     */
+    public static Csv createCsv(Map<String, String> options) {
+        final Csv csv = new Csv();
+        options.forEach((key, value) -> {
+            switch (key) {
+                case "fieldSeparator":
+                    csv.setFieldSeparatorWrite(value);
+                    csv.setFieldSeparatorRead(firstChar(value));
+                    break;
+                case "fieldDelimiter":
+                    csv.setFieldDelimiter(firstChar(value));
+                    break;
+                case "escape":
+                    csv.setEscapeCharacter(firstChar(value));
+                    break;
+                case "lineComment":
+                    csv.setLineCommentCharacter(firstChar(value));
+                    break;
+                case "lineSeparator":
+                    csv.setLineSeparator(value);
+                    break;
+                case "null":
+                    csv.setNullString(value);
+                    break;
+                case "preserveWhitespace":
+                    csv.setPreserveWhitespace(Boolean.parseBoolean(value));
+                    break;
+                case "caseSensitiveColumnNames":
+                    csv.setCaseSensitiveColumnNames(Boolean.parseBoolean(value));
+                    break;
+                case "writeColumnHeader":
+                    csv.setWriteColumnHeader(Boolean.parseBoolean(value));
+                    break;
+                default:
+                    // eg. charset, applied to the streams
+                    break;
+            }
+        });
+        return csv;
+    }
+
+    static char firstChar(String value) {
+        return value == null || value.isEmpty() ? 0 : value.charAt(0);
+    }
+
+    static Charset charset(Map<String, String> options) {
+        final String charsetAsString = options.getOrDefault("charset", null);
+        return charsetAsString != null ? Charset.forName(charsetAsString) : Charset.defaultCharset();
+    }
+
+    //---
+    /**
+     * @param name a file name, or {@value #STANDARD_STREAM} for stdin
+     * @param compression compression of the stream
+     * @return buffered, decompressed input stream
+     * @throws IOException
+     */
+    public static InputStream openInputStream(String name, Compression compression) throws IOException {
+        return openInputStream(name, compression, CSV_ZIP_ENTRY);
+    }
+
+    /**
+     * @param name a file name, or {@value #STANDARD_STREAM} for stdin
+     * @param compression compression of the stream
+     * @param zipEntryName name of the read entry if ZIP compressed, eg.
+     * {@code script.sql} of a script written by {@code SCRIPT}
+     * @return buffered, decompressed input stream
+     * @throws IOException
+     */
+    public static InputStream openInputStream(String name, Compression compression, String zipEntryName) throws IOException {
+        final InputStream in = STANDARD_STREAM.equals(name)
+                ? new FilterInputStream(System.in) {
+            @Override
+            public void close() {
+                // keep stdin open
+            }
+        }
+                : new FileInputStream(name);
+        return wrapInputStream(in, compression, zipEntryName);
+    }
+
+    /**
+     * @param in an input stream
+     * @param compression compression of the stream
+     * @param zipEntryName name of the read entry if ZIP compressed
+     * @return buffered, decompressed input stream, closing in
+     * @throws IOException
+     */
+    public static InputStream wrapInputStream(InputStream in, Compression compression, String zipEntryName) throws IOException {
+        final InputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        if (compression == null || compression == Compression.NONE) {
+            return buffered;
+        }
+        try {
+            return new BufferedInputStream(CompressTool.wrapInputStream(buffered, compression.name(), zipEntryName), BUFFER_SIZE);
+        } catch (RuntimeException ex) {
+            buffered.close();
+            throw new IOException("Cannot decompress " + compression, ex);
+        }
+    }
+
+    /**
+     * @param name a file name, or {@value #STANDARD_STREAM} for stdout
+     * @param compression compression of the stream
+     * @return buffered, compressing output stream
+     * @throws IOException
+     */
+    public static OutputStream openOutputStream(String name, Compression compression) throws IOException {
+        final OutputStream out = STANDARD_STREAM.equals(name)
+                ? new FilterOutputStream(System.out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // keep stdout open
+                flush();
+            }
+        }
+                : new FileOutputStream(name);
+        return wrapOutputStream(out, compression);
+    }
+
+    /**
+     * @param out an output stream
+     * @param compression compression of the stream
+     * @return buffered, compressing output stream, closing out
+     */
+    public static OutputStream wrapOutputStream(OutputStream out, Compression compression) {
+        final OutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+        if (compression == null || compression == Compression.NONE) {
+            return buffered;
+        }
+        return new BufferedOutputStream(CompressTool.wrapOutputStream(buffered, compression.name(), CSV_ZIP_ENTRY), BUFFER_SIZE);
+    }
+
+    /**
+     * @param name a file name, or {@value #STANDARD_STREAM} for stdin
+     * @param compression compression of the stream
+     * @param options CSV options, using option charset
+     * @return buffered reader
+     * @throws IOException
+     */
+    public static Reader openReader(String name, Compression compression, Map<String, String> options) throws IOException {
+        return new BufferedReader(new InputStreamReader(openInputStream(name, compression), charset(options)), BUFFER_SIZE);
+    }
+
+    /**
+     * @param name a file name, or {@value #STANDARD_STREAM} for stdout
+     * @param compression compression of the stream
+     * @param options CSV options, using option charset
+     * @return buffered writer
+     * @throws IOException
+     */
+    public static Writer openWriter(String name, Compression compression, Map<String, String> options) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(openOutputStream(name, compression), charset(options)), BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,805 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.h2.tools.Csv;
+import org.h2.tools.SimpleResultSet;
+import org.h2.tools.SimpleRowSource;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import org.huberb.h2tools.support.ParallelScriptExport.Entry;
+import org.huberb.h2tools.support.ParallelScriptExport.Kind;
+import org.huberb.h2tools.support.ParallelScriptExport.Table;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Export the rows changed since the previous export, and the primary keys of
+ * the deleted rows, in parallel.
+ * <p>
+ * A table having the watermark column, eg. {@code UPDATED_AT}, or a
+ * monotonic id, is exported by {@link Strategy#WATERMARK}: the rows having a
+ * watermark greater than the maximum watermark of the previous export. This
+ * strategy does not detect deleted rows, nor rows committed later having a
+ * smaller watermark.
+ * <p>
+ * Any other table is exported by {@link Strategy#CHUNK_HASH}: the rows are
+ * read in primary key order, and hashed. The rows of a key range, a chunk,
+ * are exported only if the hash of the chunk differs from the previous
+ * export, and then only the rows having a new, or changed row hash.
+ * Remaining keys of the previous export are deleted keys. The leading primary
+ * key column must be an integer, defining the chunk of a row by
+ * {@code key / chunkSize}.
+ * <p>
+ * The state of the previous export, the watermarks, and the keys, and row
+ * hashes of the chunks, is kept in a state directory, and replaced only if
+ * the export succeeds. The first export, having no state, exports all rows.
+ * <p>
+ * The changed rows of a table are written to {@code name.upsert-0000.csv},
+ * its deleted keys to {@code name.delete-0000.csv}, listed by a manifest
+ * {@code name.manifest.csv} like {@link ParallelScriptExport}, applicable by
+ * {@link ParallelRestore#restoreManifest(Path)}. The delete files are listed
+ * first, in reverse restore level, then the upsert files in restore level.
+ *
+ * @author pi
+ */
+public class IncrementalExport {
+
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalExport.class);
+
+    /**
+     * Name of the file of the watermarks of the tables in the state
+     * directory.
+     */
+    public static final String WATERMARKS_FILE = "watermarks.properties";
+    static final int HASHES_VERSION = 1;
+
+    /**
+     * Detection of changed rows.
+     */
+    public enum Strategy {
+        WATERMARK, CHUNK_HASH;
+    }
+
+    /**
+     * Result of an export.
+     */
+    public static class Result {
+
+        final List<Entry> entries;
+        final Path manifest;
+        final long elapsedMillis;
+
+        Result(List<Entry> entries, Path manifest, long elapsedMillis) {
+            this.entries = entries;
+            this.manifest = manifest;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return the files in restore order
+         */
+        public List<Entry> entries() {
+            return entries;
+        }
+
+        public Path manifest() {
+            return manifest;
+        }
+
+        /**
+         * @return number of new, or changed rows
+         */
+        public long upsertedRows() {
+            return this.entries.stream().filter((e) -> e.kind() == Kind.UPSERT).mapToLong(Entry::rows).sum();
+        }
+
+        /**
+         * @return number of deleted keys
+         */
+        public long deletedKeys() {
+            return this.entries.stream().filter((e) -> e.kind() == Kind.DELETE).mapToLong(Entry::rows).sum();
+        }
+
+        public long elapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("upserted rows %d, deleted keys %d, files %d, elapsed %d ms, manifest %s",
+                    upsertedRows(), deletedKeys(), entries.size(), elapsedMillis, manifest);
+        }
+    }
+
+    /**
+     * Delta of a table.
+     */
+    static class TableDelta {
+
+        Entry upsertEntry;
+        Entry deleteEntry;
+        String watermark;
+        Path hashesFile;
+        Path newHashesFile;
+    }
+
+    /**
+     * Keys, and row hashes of a chunk.
+     */
+    static class Chunk {
+
+        final long id;
+        final List<String[]> keys = new ArrayList<>();
+        final List<Long> rowHashes = new ArrayList<>();
+        long hash = 1L;
+
+        Chunk(long id) {
+            this.id = id;
+        }
+
+        void add(String[] key, long rowHash) {
+            this.keys.add(key);
+            this.rowHashes.add(rowHash);
+            this.hash = this.hash * 31L + rowHash;
+        }
+
+        boolean sameHash(Chunk other) {
+            return other != null && this.keys.size() == other.keys.size() && this.hash == other.hash;
+        }
+    }
+
+    final IConnectionFactory connectionFactory;
+    final Path target;
+    final Path stateDirectory;
+    int parallel = 4;
+    String schema;
+    Set<String> tables;
+    String watermarkColumn;
+    int chunkSize = 1000;
+    Compression compression = Compression.NONE;
+
+    /**
+     * Create an export.
+     *
+     * @param connectionFactory creates a connection per exported table
+     * @param target the file name, eg. name.sql, the files are named after
+     * @param stateDirectory directory of the state of the previous export
+     */
+    public IncrementalExport(IConnectionFactory connectionFactory, Path target, Path stateDirectory) {
+        this.connectionFactory = connectionFactory;
+        this.target = target;
+        this.stateDirectory = stateDirectory;
+    }
+
+    /**
+     * @param parallel number of concurrently exported tables, and connections
+     */
+    public void setParallel(int parallel) {
+        this.parallel = Math.max(1, parallel);
+    }
+
+    /**
+     * @param schema export only the tables of this schema, or null for all
+     * schemas
+     */
+    public void setSchema(String schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * @param tables export these tables only, given by upper case names, or
+     * null for all tables
+     */
+    public void setTables(Set<String> tables) {
+        this.tables = tables;
+    }
+
+    /**
+     * @param watermarkColumn the column, eg. {@code UPDATED_AT}, of the
+     * tables exported by {@link Strategy#WATERMARK}, or null
+     */
+    public void setWatermarkColumn(String watermarkColumn) {
+        this.watermarkColumn = watermarkColumn;
+    }
+
+    /**
+     * @param chunkSize key range of a chunk of a table without state, the
+     * chunk size of the state of a table is kept
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression != null ? compression : Compression.NONE;
+    }
+
+    //---
+    /**
+     * @param target the file name, eg. name.sql
+     * @param index index of a table
+     * @return the file name of the changed rows, eg. name.upsert-0000.csv
+     */
+    public static Path upsertFile(Path target, int index) {
+        return target.resolveSibling(ParallelScriptExport.baseName(target) + String.format(".upsert-%04d.csv", index));
+    }
+
+    /**
+     * @param target the file name, eg. name.sql
+     * @param index index of a table
+     * @return the file name of the deleted keys, eg. name.delete-0000.csv
+     */
+    public static Path deleteFile(Path target, int index) {
+        return target.resolveSibling(ParallelScriptExport.baseName(target) + String.format(".delete-%04d.csv", index));
+    }
+
+    static Path hashesFile(Path stateDirectory, Table table) {
+        return stateDirectory.resolve(table.schema + "." + table.name + ".hashes");
+    }
+
+    /**
+     * Export the changes of all tables, and replace the state.
+     *
+     * @return the result
+     * @throws SQLException
+     * @throws IOException
+     */
+    public Result execute() throws SQLException, IOException {
+        final long startMillis = System.currentTimeMillis();
+        final ParallelScriptExport tablesQuery = new ParallelScriptExport(this.connectionFactory, this.target);
+        tablesQuery.setSchema(this.schema);
+        tablesQuery.setTables(this.tables);
+        final List<Table> exportedTables = tablesQuery.queryTables();
+        Files.createDirectories(this.stateDirectory);
+        final Properties watermarks = readWatermarks(this.stateDirectory.resolve(WATERMARKS_FILE));
+        logger.info("Export changes of {} tables by {} connections", exportedTables.size(), this.parallel);
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(this.parallel, (r) -> {
+            final Thread t = new Thread(r, "IncrementalExport");
+            t.setDaemon(true);
+            return t;
+        });
+        final List<TableDelta> deltas = new ArrayList<>(Collections.nCopies(exportedTables.size(), null));
+        try {
+            final List<Future<TableDelta>> futures = new ArrayList<>();
+            for (int i = 0; i < exportedTables.size(); i++) {
+                final Table table = exportedTables.get(i);
+                final int index = i;
+                futures.add(executorService.submit(() -> exportTable(table, index,
+                        watermarks.getProperty(table.qualifiedName()))));
+            }
+            Exception failure = null;
+            for (int i = 0; i < exportedTables.size(); i++) {
+                try {
+                    deltas.set(i, get(futures.get(i)));
+                } catch (SQLException | IOException ex) {
+                    failure = failure != null ? failure : ex;
+                }
+            }
+            if (failure != null) {
+                for (int i = 0; i < exportedTables.size(); i++) {
+                    Files.deleteIfExists(upsertFile(this.target, i));
+                    Files.deleteIfExists(deleteFile(this.target, i));
+                    if (deltas.get(i) != null && deltas.get(i).newHashesFile != null) {
+                        Files.deleteIfExists(deltas.get(i).newHashesFile);
+                    }
+                }
+                if (failure instanceof SQLException) {
+                    throw (SQLException) failure;
+                }
+                throw (IOException) failure;
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        final List<Entry> entries = new ArrayList<>();
+        for (int i = deltas.size() - 1; i >= 0; i--) {
+            if (deltas.get(i).deleteEntry != null) {
+                entries.add(deltas.get(i).deleteEntry);
+            }
+        }
+        for (TableDelta delta : deltas) {
+            if (delta.upsertEntry != null) {
+                entries.add(delta.upsertEntry);
+            }
+        }
+        final Path manifest = PartitionedCsvExport.manifestFile(this.target);
+        ParallelScriptExport.writeManifest(manifest, entries);
+
+        // replace the state, after the delta is complete
+        for (int i = 0; i < deltas.size(); i++) {
+            final TableDelta delta = deltas.get(i);
+            if (delta.watermark != null) {
+                watermarks.setProperty(exportedTables.get(i).qualifiedName(), delta.watermark);
+            }
+            if (delta.newHashesFile != null) {
+                Files.move(delta.newHashesFile, delta.hashesFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        writeWatermarks(this.stateDirectory.resolve(WATERMARKS_FILE), watermarks);
+        return new Result(Collections.unmodifiableList(entries), manifest, System.currentTimeMillis() - startMillis);
+    }
+
+    TableDelta exportTable(Table table, int index, String watermark) throws SQLException, IOException {
+        try (final Connection connection = this.connectionFactory.createConnection()) {
+            connection.setAutoCommit(false);
+            final List<String> keyColumns = primaryKeyColumns(connection, table);
+            if (keyColumns.isEmpty()) {
+                throw new SQLException(String.format("Table %s has no primary key, required by an incremental export",
+                        table.qualifiedName()));
+            }
+            final TableDelta delta;
+            if (this.watermarkColumn != null && hasColumn(connection, table, this.watermarkColumn)) {
+                delta = exportByWatermark(connection, table, index, watermark);
+            } else {
+                delta = exportByChunkHash(connection, table, index, keyColumns);
+            }
+            connection.rollback();
+            return delta;
+        }
+    }
+
+    TableDelta exportByWatermark(Connection connection, Table table, int index, String watermark) throws SQLException, IOException {
+        final String column = ParallelScriptExport.quoteIdentifier(this.watermarkColumn);
+        final TableDelta delta = new TableDelta();
+        try (final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery(String.format("SELECT MAX(%s) FROM %s", column, table.qualifiedName()))) {
+            rs.next();
+            delta.watermark = rs.getString(1);
+        }
+        if (delta.watermark == null || delta.watermark.equals(watermark)) {
+            delta.watermark = watermark;
+            return delta;
+        }
+        // rows up to the read maximum, as later rows are exported next time
+        final String sql = String.format("SELECT * FROM %s WHERE %s <= ?%s ORDER BY %s",
+                table.qualifiedName(), column, watermark != null ? String.format(" AND %s > ?", column) : "", column);
+        logger.info("Export {} by watermark {} from {} to {}", table.qualifiedName(), this.watermarkColumn, watermark, delta.watermark);
+        try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setFetchSize(1000);
+            ps.setString(1, delta.watermark);
+            if (watermark != null) {
+                ps.setString(2, watermark);
+            }
+            delta.upsertEntry = writeCsv(upsertFile(this.target, index), Kind.UPSERT, table, ps.executeQuery());
+        }
+        return delta;
+    }
+
+    TableDelta exportByChunkHash(Connection connection, Table table, int index, List<String> keyColumns) throws SQLException, IOException {
+        final TableDelta delta = new TableDelta();
+        delta.hashesFile = hashesFile(this.stateDirectory, table);
+        delta.newHashesFile = delta.hashesFile.resolveSibling(delta.hashesFile.getFileName() + ".new");
+        final List<String[]> deletedKeys = new ArrayList<>();
+        final String orderBy = keyColumns.stream().map(ParallelScriptExport::quoteIdentifier).reduce((a, b) -> a + ", " + b).get();
+        final String sql = String.format("SELECT * FROM %s ORDER BY %s", table.qualifiedName(), orderBy);
+        try (final Statement statement = connection.createStatement();
+                final HashesReader previous = HashesReader.open(delta.hashesFile, keyColumns.size())) {
+            final int theChunkSize = previous != null ? previous.chunkSize : this.chunkSize;
+            logger.info("Export {} by chunk hashes, chunk size {}, previous state {}", table.qualifiedName(), theChunkSize, previous != null);
+            statement.setFetchSize(1000);
+            try (final DataOutputStream hashesOut = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(delta.newHashesFile), CsvStreams.BUFFER_SIZE))) {
+                hashesOut.writeInt(HASHES_VERSION);
+                hashesOut.writeInt(keyColumns.size());
+                hashesOut.writeInt(theChunkSize);
+                final ResultSet rs = statement.executeQuery(sql);
+                final ChangedRows changedRows = new ChangedRows(rs, keyColumns, theChunkSize, previous, hashesOut, deletedKeys);
+                // closes result set
+                delta.upsertEntry = writeCsv(upsertFile(this.target, index), Kind.UPSERT, table, changedRows.resultSet());
+                hashesOut.writeBoolean(false);
+            }
+        }
+        if (!deletedKeys.isEmpty()) {
+            final SimpleResultSet simpleResultSet = new SimpleResultSet();
+            for (String keyColumn : keyColumns) {
+                simpleResultSet.addColumn(keyColumn, Types.VARCHAR, Integer.MAX_VALUE, 0);
+            }
+            for (String[] key : deletedKeys) {
+                simpleResultSet.addRow((Object[]) key);
+            }
+            delta.deleteEntry = writeCsv(deleteFile(this.target, index), Kind.DELETE, table, simpleResultSet);
+        }
+        return delta;
+    }
+
+    /**
+     * Rows of a table, ordered by primary key, filtered by comparing the
+     * chunks with the previous state, and writing the new state.
+     */
+    static class ChangedRows implements SimpleRowSource {
+
+        final ResultSet rs;
+        final int columnCount;
+        final int[] keyIndexes;
+        final int chunkSize;
+        final HashesReader previous;
+        final DataOutputStream hashesOut;
+        final List<String[]> deletedKeys;
+        final Deque<Object[]> pending = new ArrayDeque<>();
+        final List<String[]> chunkRows = new ArrayList<>();
+        Chunk previousChunk;
+        String[] nextRow;
+        boolean endOfRows;
+
+        ChangedRows(ResultSet rs, List<String> keyColumns, int chunkSize, HashesReader previous,
+                DataOutputStream hashesOut, List<String[]> deletedKeys) throws SQLException, IOException {
+            this.rs = rs;
+            final ResultSetMetaData meta = rs.getMetaData();
+            this.columnCount = meta.getColumnCount();
+            this.keyIndexes = new int[keyColumns.size()];
+            for (int k = 0; k < this.keyIndexes.length; k++) {
+                this.keyIndexes[k] = -1;
+                for (int i = 0; i < this.columnCount; i++) {
+                    if (keyColumns.get(k).equals(meta.getColumnName(i + 1))) {
+                        this.keyIndexes[k] = i;
+                    }
+                }
+            }
+            final int leadingKeyType = meta.getColumnType(this.keyIndexes[0] + 1);
+            if (leadingKeyType != Types.TINYINT && leadingKeyType != Types.SMALLINT
+                    && leadingKeyType != Types.INTEGER && leadingKeyType != Types.BIGINT) {
+                throw new SQLException(String.format("Leading primary key column %s is not an integer, "
+                        + "required for chunk hashes, use a watermark column", keyColumns.get(0)));
+            }
+            this.chunkSize = chunkSize;
+            this.previous = previous;
+            this.hashesOut = hashesOut;
+            this.deletedKeys = deletedKeys;
+            this.previousChunk = previous != null ? previous.readChunk() : null;
+        }
+
+        ResultSet resultSet() throws SQLException {
+            final ResultSetMetaData meta = this.rs.getMetaData();
+            final SimpleResultSet simpleResultSet = new SimpleResultSet(this);
+            for (int i = 1; i <= this.columnCount; i++) {
+                simpleResultSet.addColumn(meta.getColumnLabel(i), Types.VARCHAR, Integer.MAX_VALUE, 0);
+            }
+            return simpleResultSet;
+        }
+
+        @Override
+        public Object[] readRow() throws SQLException {
+            try {
+                while (this.pending.isEmpty() && !this.endOfRows) {
+                    readChunk();
+                }
+            } catch (IOException ex) {
+                throw new SQLException("Cannot read, or write chunk hashes", ex);
+            }
+            return this.pending.poll();
+        }
+
+        /**
+         * Read the rows of the next chunk, compare them to the previous
+         * chunk, and write the chunk.
+         */
+        void readChunk() throws SQLException, IOException {
+            if (this.nextRow == null && !readNextRow()) {
+                // remaining chunks of the previous state are deleted
+                while (this.previousChunk != null) {
+                    this.deletedKeys.addAll(this.previousChunk.keys);
+                    this.previousChunk = this.previous.readChunk();
+                }
+                this.endOfRows = true;
+                return;
+            }
+            final Chunk chunk = new Chunk(chunkId(this.nextRow));
+            this.chunkRows.clear();
+            do {
+                chunk.add(keyOf(this.nextRow), rowHash(this.nextRow));
+                this.chunkRows.add(this.nextRow);
+                this.nextRow = null;
+            } while (readNextRow() && chunkId(this.nextRow) == chunk.id);
+
+            while (this.previousChunk != null && this.previousChunk.id < chunk.id) {
+                this.deletedKeys.addAll(this.previousChunk.keys);
+                this.previousChunk = this.previous.readChunk();
+            }
+            if (this.previousChunk != null && this.previousChunk.id == chunk.id) {
+                if (!chunk.sameHash(this.previousChunk)) {
+                    compareRows(chunk, this.previousChunk);
+                }
+                this.previousChunk = this.previous.readChunk();
+            } else {
+                this.pending.addAll(this.chunkRows);
+            }
+            writeChunk(chunk);
+        }
+
+        /**
+         * Add the new, and changed rows to the pending rows, and the keys not
+         * found anymore to the deleted keys.
+         */
+        void compareRows(Chunk chunk, Chunk previousChunk) {
+            final Map<String, Integer> previousIndexes = new HashMap<>();
+            for (int i = 0; i < previousChunk.keys.size(); i++) {
+                previousIndexes.put(KeyFilter.keyOf((Object[]) previousChunk.keys.get(i)), i);
+            }
+            for (int i = 0; i < chunk.keys.size(); i++) {
+                final Integer previousIndex = previousIndexes.remove(KeyFilter.keyOf((Object[]) chunk.keys.get(i)));
+                if (previousIndex == null || !previousChunk.rowHashes.get(previousIndex).equals(chunk.rowHashes.get(i))) {
+                    this.pending.add(this.chunkRows.get(i));
+                }
+            }
+            previousIndexes.values().stream().sorted()
+                    .forEach((i) -> this.deletedKeys.add(previousChunk.keys.get(i)));
+        }
+
+        /**
+         * @return false at end of rows
+         */
+        boolean readNextRow() throws SQLException {
+            if (!this.rs.next()) {
+                return false;
+            }
+            final String[] row = new String[this.columnCount];
+            for (int i = 0; i < this.columnCount; i++) {
+                row[i] = this.rs.getString(i + 1);
+            }
+            this.nextRow = row;
+            return true;
+        }
+
+        long chunkId(String[] row) {
+            return Math.floorDiv(Long.parseLong(row[this.keyIndexes[0]]), (long) this.chunkSize);
+        }
+
+        String[] keyOf(String[] row) {
+            final String[] key = new String[this.keyIndexes.length];
+            for (int k = 0; k < this.keyIndexes.length; k++) {
+                key[k] = row[this.keyIndexes[k]];
+            }
+            return key;
+        }
+
+        void writeChunk(Chunk chunk) throws IOException {
+            this.hashesOut.writeBoolean(true);
+            this.hashesOut.writeLong(chunk.id);
+            this.hashesOut.writeInt(chunk.keys.size());
+            for (int i = 0; i < chunk.keys.size(); i++) {
+                for (String keyValue : chunk.keys.get(i)) {
+                    this.hashesOut.writeUTF(keyValue);
+                }
+                this.hashesOut.writeLong(chunk.rowHashes.get(i));
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                this.rs.close();
+            } catch (SQLException sqlex) {
+                logger.warn("Cannot close result set", sqlex);
+            }
+        }
+
+        @Override
+        public void reset() throws SQLException {
+            throw new SQLException("reset is not supported");
+        }
+    }
+
+    /**
+     * Reader of the chunks of a previous export.
+     */
+    static class HashesReader implements AutoCloseable {
+
+        final DataInputStream in;
+        final int keyCount;
+        final int chunkSize;
+
+        HashesReader(DataInputStream in, int keyCount, int chunkSize) {
+            this.in = in;
+            this.keyCount = keyCount;
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * @return the reader, or null if there is no state
+         * @throws IOException if the state does not fit the primary key
+         */
+        static HashesReader open(Path file, int keyCount) throws IOException {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), CsvStreams.BUFFER_SIZE));
+            try {
+                final int version = in.readInt();
+                final int stateKeyCount = in.readInt();
+                final int stateChunkSize = in.readInt();
+                if (version != HASHES_VERSION || stateKeyCount != keyCount) {
+                    throw new IOException(String.format("State %s does not fit, version %d, key columns %d, expected %d",
+                            file, version, stateKeyCount, keyCount));
+                }
+                return new HashesReader(in, keyCount, stateChunkSize);
+            } catch (IOException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * @return the next chunk, or null
+         */
+        Chunk readChunk() throws IOException {
+            try {
+                if (!this.in.readBoolean()) {
+                    return null;
+                }
+                final Chunk chunk = new Chunk(this.in.readLong());
+                final int rows = this.in.readInt();
+                for (int i = 0; i < rows; i++) {
+                    final String[] key = new String[this.keyCount];
+                    for (int k = 0; k < this.keyCount; k++) {
+                        key[k] = this.in.readUTF();
+                    }
+                    chunk.add(key, this.in.readLong());
+                }
+                return chunk;
+            } catch (EOFException ex) {
+                throw new IOException("Truncated state", ex);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+
+    Entry writeCsv(Path file, Kind kind, Table table, ResultSet rs) throws SQLException, IOException {
+        final MessageDigest messageDigest = PartitionedCsvExport.createMessageDigest();
+        final OutputStream out = CsvStreams.wrapOutputStream(new DigestOutputStream(new FileOutputStream(file.toFile()), messageDigest), this.compression);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), CsvStreams.BUFFER_SIZE);
+        // closes writer, and result set
+        final int rows = new Csv().write(writer, rs);
+        if (rows == 0) {
+            Files.delete(file);
+            return null;
+        }
+        final Entry entry = new Entry(file.getFileName().toString(), kind, table.schema, table.name, table.restoreLevel,
+                this.compression, rows, Files.size(file), PartitionedCsvExport.toHex(messageDigest.digest()));
+        logger.info("Written {}", entry);
+        return entry;
+    }
+
+    //---
+    static List<String> primaryKeyColumns(Connection connection, Table table) throws SQLException {
+        final List<String> keyColumns = new ArrayList<>();
+        final String sql = "SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.INDEXES "
+                + "WHERE PRIMARY_KEY = TRUE AND TABLE_SCHEMA = ? AND TABLE_NAME = ? ORDER BY ORDINAL_POSITION";
+        try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, table.schema);
+            ps.setString(2, table.name);
+            try (final ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    keyColumns.add(rs.getString(1));
+                }
+            }
+        }
+        return keyColumns;
+    }
+
+    static boolean hasColumn(Connection connection, Table table, String column) throws SQLException {
+        final String sql = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS "
+                + "WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND COLUMN_NAME = ?";
+        try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, table.schema);
+            ps.setString(2, table.name);
+            ps.setString(3, column);
+            try (final ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getInt(1) > 0;
+            }
+        }
+    }
+
+    /**
+     * @param values the values of a row
+     * @return 64-bit FNV-1a hash of the values, distinguishing null, and
+     * empty values
+     */
+    static long rowHash(String[] values) {
+        long hash = KeyFilter.FNV_OFFSET_BASIS;
+        for (String value : values) {
+            if (value == null) {
+                hash = (hash ^ 0xff) * KeyFilter.FNV_PRIME;
+                continue;
+            }
+            hash = (hash ^ value.length()) * KeyFilter.FNV_PRIME;
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                hash = (hash ^ (c & 0xff)) * KeyFilter.FNV_PRIME;
+                hash = (hash ^ (c >>> 8)) * KeyFilter.FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    static Properties readWatermarks(Path file) throws IOException {
+        final Properties watermarks = new Properties();
+        if (Files.exists(file)) {
+            try (final InputStream in = Files.newInputStream(file)) {
+                watermarks.load(in);
+            }
+        }
+        return watermarks;
+    }
+
+    static void writeWatermarks(Path file, Properties watermarks) throws IOException {
+        final Path newFile = file.resolveSibling(file.getFileName() + ".new");
+        try (final OutputStream out = Files.newOutputStream(newFile)) {
+            watermarks.store(out, "watermarks of " + IncrementalExport.class.getSimpleName());
+        }
+        Files.move(newFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static TableDelta get(Future<TableDelta> future) throws SQLException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("get", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            } else if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("exportTable", ex.getCause());
+        }
+    }
+}
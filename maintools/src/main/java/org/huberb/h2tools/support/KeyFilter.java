@@ -0,0 +1,139 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of keys, telling a key is definitely absent, or might be
+ * present.
+ * <p>
+ * A key is hashed by 64-bit FNV-1a of its string, and the bits are chosen by
+ * double hashing. Adding, and testing keys is thread-safe.
+ *
+ * @author pi
+ */
+public class KeyFilter {
+
+    static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    static final long FNV_PRIME = 0x100000001b3L;
+
+    final AtomicLongArray bits;
+    final long bitCount;
+    final int hashCount;
+
+    /**
+     * Create a filter sized for the expected number of keys.
+     *
+     * @param expectedKeys expected number of keys
+     * @param falsePositiveRate rate of absent keys reported as might be
+     * present, eg. 0.01
+     */
+    public KeyFilter(long expectedKeys, double falsePositiveRate) {
+        final double n = Math.max(1L, expectedKeys);
+        final double p = Math.min(0.5d, Math.max(1e-9d, falsePositiveRate));
+        final long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+        final int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1L, (m + 63) / 64));
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = words * 64L;
+        this.hashCount = (int) Math.max(1L, Math.min(16L, Math.round(m / n * Math.log(2))));
+    }
+
+    /**
+     * @param values values of a key, eg. the columns of a composite key
+     * @return string of the key, joining the normalized values
+     */
+    public static String keyOf(Object... values) {
+        if (values.length == 1) {
+            return String.valueOf(normalize(values[0]));
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (Object value : values) {
+            // unit separator, not expected in a key
+            sb.append(normalize(value)).append('\u001f');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the value, numbers without trailing zeros, thus equal numbers
+     * of a different scale, eg. 1.5 and 1.50, have the same key
+     */
+    static Object normalize(Object value) {
+        final BigDecimal decimal;
+        if (value instanceof BigDecimal) {
+            decimal = (BigDecimal) value;
+        } else if ((value instanceof Double || value instanceof Float) && Double.isFinite(((Number) value).doubleValue())) {
+            decimal = new BigDecimal(value.toString());
+        } else {
+            return value;
+        }
+        return decimal.signum() == 0 ? "0" : decimal.stripTrailingZeros().toPlainString();
+    }
+
+    public void add(String key) {
+        final long hash = hash(key);
+        final long h1 = hash;
+        final long h2 = (hash >>> 32) | 1L;
+        for (int i = 0; i < this.hashCount; i++) {
+            final long bit = Math.floorMod(h1 + i * h2, this.bitCount);
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << (bit & 63);
+            long current = this.bits.get(word);
+            while ((current & mask) == 0L && !this.bits.compareAndSet(word, current, current | mask)) {
+                current = this.bits.get(word);
+            }
+        }
+    }
+
+    /**
+     * @param key a key
+     * @return false if the key was definitely not added, true if it might
+     * have been added
+     */
+    public boolean mightContain(String key) {
+        final long hash = hash(key);
+        final long h1 = hash;
+        final long h2 = (hash >>> 32) | 1L;
+        for (int i = 0; i < this.hashCount; i++) {
+            final long bit = Math.floorMod(h1 + i * h2, this.bitCount);
+            if ((this.bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long hash(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        // finalize, spreading the bits of short keys
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bits %d, hashes %d", bitCount, hashCount);
+    }
+}
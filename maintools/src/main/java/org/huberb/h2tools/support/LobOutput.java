@@ -0,0 +1,195 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Stream LOB column values in chunks, without materializing them in memory.
+ * <p>
+ * Character LOBs are read via {@link ResultSet#getCharacterStream(int)}, and
+ * passed chunk-wise to the encoder of the output format. Binary values are read
+ * via {@link ResultSet#getBinaryStream(int)}, and written as base64, or hex.
+ * <p>
+ * If a side file directory is set, each LOB value is written to its own file
+ * in this directory, and the output contains the file name only.
+ * <p>
+ * A {@link LobOutput} is passed by
+ * {@link OutputResultSet.OutputMode#createOutputBy(OutputResultSet.OutputMode, LobOutput)}
+ * to each output format, including CSV. The subcommands output results
+ * without LOB columns, and use the default inline hex encoding.
+ *
+ * @author pi
+ */
+public class LobOutput {
+
+    /**
+     * Define supported encodings of binary values.
+     */
+    public enum BinaryEncoding {
+        BASE64, HEX
+    }
+
+    static final int CHUNK_SIZE = 8192;
+    static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    final BinaryEncoding binaryEncoding;
+    final File sideFileDirectory;
+    final AtomicLong sideFileCount;
+
+    /**
+     * Stream LOBs inline, binary values as hex like
+     * {@link ResultSet#getString(int)}.
+     */
+    public LobOutput() {
+        this(BinaryEncoding.HEX, null);
+    }
+
+    /**
+     * Stream LOBs.
+     *
+     * @param binaryEncoding encoding of inline binary values
+     * @param sideFileDirectory if not null write each LOB to a file in this
+     * directory
+     */
+    public LobOutput(BinaryEncoding binaryEncoding, File sideFileDirectory) {
+        this.binaryEncoding = binaryEncoding;
+        this.sideFileDirectory = sideFileDirectory;
+        this.sideFileCount = new AtomicLong();
+    }
+
+    static boolean isCharacterLob(int sqlType) {
+        return sqlType == Types.CLOB
+                || sqlType == Types.NCLOB
+                || sqlType == Types.LONGVARCHAR
+                || sqlType == Types.LONGNVARCHAR;
+    }
+
+    static boolean isBinary(int sqlType) {
+        return sqlType == Types.BLOB
+                || sqlType == Types.BINARY
+                || sqlType == Types.VARBINARY
+                || sqlType == Types.LONGVARBINARY;
+    }
+
+    /**
+     * @param sqlType column type of {@link java.sql.ResultSetMetaData}
+     * @return true if the column values shall be streamed
+     */
+    public static boolean isLob(int sqlType) {
+        return isCharacterLob(sqlType) || isBinary(sqlType);
+    }
+
+    /**
+     * Write a LOB column value of the current row.
+     *
+     * @param rs
+     * @param columnIndex
+     * @param sqlType
+     * @param label the column label, used for the side file name
+     * @param out
+     * @param encoder encoder of the output format, eg. JSON escaping
+     * @throws SQLException
+     * @throws IOException
+     */
+    void write(ResultSet rs, int columnIndex, int sqlType, String label,
+            PrintStream out, UnaryOperator<String> encoder) throws SQLException, IOException {
+        if (isCharacterLob(sqlType)) {
+            try (final Reader reader = rs.getCharacterStream(columnIndex)) {
+                if (reader == null) {
+                    out.print(encoder.apply(null));
+                } else if (this.sideFileDirectory != null) {
+                    out.print(encoder.apply(writeSideFile(reader, label)));
+                } else {
+                    writeCharacters(reader, out, encoder);
+                }
+            }
+        } else {
+            try (final InputStream is = rs.getBinaryStream(columnIndex)) {
+                if (is == null) {
+                    out.print(encoder.apply(null));
+                } else if (this.sideFileDirectory != null) {
+                    out.print(encoder.apply(writeSideFile(is, label)));
+                } else {
+                    writeBinary(is, out);
+                }
+            }
+        }
+    }
+
+    static void writeCharacters(Reader reader, PrintStream out, UnaryOperator<String> encoder) throws IOException {
+        final char[] buf = new char[CHUNK_SIZE];
+        int n;
+        while ((n = reader.read(buf)) >= 0) {
+            out.print(encoder.apply(new String(buf, 0, n)));
+        }
+    }
+
+    void writeBinary(InputStream is, PrintStream out) throws IOException {
+        // a multiple of 3 bytes, thus base64 chunks can be concatenated
+        final byte[] buf = new byte[3 * CHUNK_SIZE];
+        int n;
+        while ((n = is.readNBytes(buf, 0, buf.length)) > 0) {
+            if (this.binaryEncoding == BinaryEncoding.HEX) {
+                final char[] hex = new char[2 * n];
+                for (int i = 0; i < n; i++) {
+                    hex[2 * i] = HEX_DIGITS[(buf[i] >> 4) & 0xf];
+                    hex[2 * i + 1] = HEX_DIGITS[buf[i] & 0xf];
+                }
+                out.print(hex);
+            } else {
+                final byte[] encoded = n == buf.length
+                        ? Base64.getEncoder().encode(buf)
+                        : Base64.getEncoder().encode(Arrays.copyOf(buf, n));
+                out.write(encoded, 0, encoded.length);
+            }
+        }
+    }
+
+    String writeSideFile(Reader reader, String label) throws IOException {
+        final File file = createSideFile(label, "txt");
+        try (final Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            reader.transferTo(writer);
+        }
+        return file.getName();
+    }
+
+    String writeSideFile(InputStream is, String label) throws IOException {
+        final File file = createSideFile(label, "bin");
+        Files.copy(is, file.toPath());
+        return file.getName();
+    }
+
+    File createSideFile(String label, String extension) {
+        final String safeLabel = label.replaceAll("[^A-Za-z0-9_]", "_");
+        final String name = String.format("lob-%06d-%s.%s", this.sideFileCount.incrementAndGet(), safeLabel, extension);
+        return new File(this.sideFileDirectory, name);
+    }
+}
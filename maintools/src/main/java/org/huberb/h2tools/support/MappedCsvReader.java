@@ -0,0 +1,1254 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import org.h2.tools.SimpleResultSet;
+import org.h2.tools.SimpleRowSource;
+
+/**
+ * Read a CSV file by memory-mapping it, and parsing chunks of it in parallel.
+ * <p>
+ * The file is split into chunks at record boundaries. As a record boundary
+ * depends on the quoting state of all preceding bytes, the chunks are scanned
+ * in parallel first, computing the quoting state at the end of a chunk for
+ * every possible state at its start. Chaining these results yields the state
+ * at each nominal chunk start, thus the first record boundary following it.
+ * Finally the chunks are decoded, and parsed in parallel into
+ * {@link ColumnBatch}es, which are delivered in file order.
+ * <p>
+ * The parsing rules, and the options follow {@link org.h2.tools.Csv}: the keys
+ * {@code fieldSeparator}, {@code fieldDelimiter}, {@code escape},
+ * {@code null}, {@code lineComment}, {@code charset},
+ * {@code preserveWhitespace}, and {@code caseSensitiveColumnNames} of
+ * {@link org.huberb.h2tools.picocli.CsvReadWriteOptions}. If column names are
+ * given, the first line is data, otherwise it is the header.
+ * <p>
+ * Splitting at byte level is safe only if the charset encodes the special
+ * characters as single bytes, which never occur inside multi-byte sequences,
+ * eg. UTF-8, or ISO-8859-1. Other charsets, eg. UTF-16, are decoded, and
+ * parsed sequentially in windows of about chunk size bytes.
+ *
+ * @author pi
+ */
+public class MappedCsvReader implements AutoCloseable {
+
+    static final int STATE_START = 0;
+    static final int STATE_UNQUOTED = 1;
+    static final int STATE_QUOTED = 2;
+    static final int STATE_QUOTED_ESCAPE = 3;
+    static final int STATE_AFTER_QUOTE = 4;
+    static final int STATE_TRAILING = 5;
+    static final int STATE_COMMENT = 6;
+    static final int STATE_COUNT = 7;
+    static final long SEGMENT_SIZE = 1L << 30;
+    static final int SCAN_BLOCK_SIZE = 64 * 1024;
+
+    final Path path;
+    final Charset charset;
+    final char fieldSeparator;
+    final char fieldDelimiter;
+    final char escapeCharacter;
+    final char lineComment;
+    final String nullString;
+    final boolean preserveWhitespace;
+    final boolean caseSensitiveColumnNames;
+    final String[] givenColumnNames;
+
+    long chunkSize = 8L * 1024 * 1024;
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    long startOffset;
+    long startLineNumber = 1L;
+
+    FileChannel fileChannel;
+    List<ByteBuffer> segments;
+    DecodingRecordParser decodingRecordParser;
+    ExecutorService executorService;
+    String[] columnNames;
+    long dataStart;
+    long dataStartLineNumber;
+
+    /**
+     * Create a reader.
+     *
+     * @param path the CSV file
+     * @param options CSV options
+     * @param columnNames column names, or null if the first line is the header
+     */
+    public MappedCsvReader(Path path, Map<String, String> options, String[] columnNames) {
+        this.path = path;
+        final String charsetAsString = options.getOrDefault("charset", null);
+        this.charset = charsetAsString != null ? Charset.forName(charsetAsString) : Charset.defaultCharset();
+        this.fieldSeparator = optionChar(options, "fieldSeparator", ',');
+        this.fieldDelimiter = optionChar(options, "fieldDelimiter", '\"');
+        this.escapeCharacter = optionChar(options, "escape", '\"');
+        this.lineComment = optionChar(options, "lineComment", (char) 0);
+        this.nullString = options.getOrDefault("null", "");
+        this.preserveWhitespace = Boolean.parseBoolean(options.getOrDefault("preserveWhitespace", "false"));
+        this.caseSensitiveColumnNames = Boolean.parseBoolean(options.getOrDefault("caseSensitiveColumnNames", "false"));
+        this.givenColumnNames = columnNames;
+    }
+
+    static char optionChar(Map<String, String> options, String key, char defaultValue) {
+        final String value = options.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.isEmpty() ? 0 : value.charAt(0);
+    }
+
+    /**
+     * @param chunkSize nominal size of a chunk in bytes
+     */
+    public void setChunkSize(long chunkSize) {
+        this.chunkSize = Math.max(1L, Math.min(chunkSize, Integer.MAX_VALUE / 2));
+    }
+
+    /**
+     * @param parallelism number of threads parsing chunks
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Start reading the records at a byte offset, eg. of a checkpoint, instead
+     * of the first record. The header, if any, is still read from the start
+     * of the file.
+     *
+     * @param startOffset byte offset of a record start, eg.
+     * {@link ColumnBatch#getEndOffset()}
+     * @param startLineNumber line number at the byte offset
+     */
+    public void setStartOffset(long startOffset, long startLineNumber) {
+        this.startOffset = Math.max(0L, startOffset);
+        this.startLineNumber = startLineNumber;
+    }
+
+    //---
+    /**
+     * Columns of consecutive CSV records.
+     */
+    public static class ColumnBatch {
+
+        final String[] columnNames;
+        String[][] columns;
+        long[] lineNumbers;
+        int rowCount;
+        long endOffset;
+        long endLineNumber;
+
+        ColumnBatch(String[] columnNames, int capacity) {
+            this.columnNames = columnNames;
+            this.columns = new String[columnNames.length][Math.max(1, capacity)];
+            this.lineNumbers = new long[Math.max(1, capacity)];
+        }
+
+        void add(String[] row, long lineNumber) {
+            if (this.rowCount == this.lineNumbers.length) {
+                final int capacity = this.rowCount * 2;
+                for (int i = 0; i < this.columns.length; i++) {
+                    this.columns[i] = Arrays.copyOf(this.columns[i], capacity);
+                }
+                this.lineNumbers = Arrays.copyOf(this.lineNumbers, capacity);
+            }
+            for (int i = 0; i < this.columns.length; i++) {
+                this.columns[i][this.rowCount] = row[i];
+            }
+            this.lineNumbers[this.rowCount] = lineNumber;
+            this.rowCount += 1;
+        }
+
+        /**
+         * Append a row of another batch, without allocating a row array.
+         */
+        void addFrom(ColumnBatch batch, int row) {
+            if (this.rowCount == this.lineNumbers.length) {
+                final int capacity = this.rowCount * 2;
+                for (int i = 0; i < this.columns.length; i++) {
+                    this.columns[i] = Arrays.copyOf(this.columns[i], capacity);
+                }
+                this.lineNumbers = Arrays.copyOf(this.lineNumbers, capacity);
+            }
+            for (int i = 0; i < this.columns.length; i++) {
+                this.columns[i][this.rowCount] = batch.columns[i][row];
+            }
+            this.lineNumbers[this.rowCount] = batch.lineNumbers[row];
+            this.rowCount += 1;
+        }
+
+        /**
+         * Remove all rows, keeping the column arrays for reuse.
+         */
+        void clear() {
+            this.rowCount = 0;
+            this.endOffset = 0L;
+            this.endLineNumber = 0L;
+        }
+
+        public String[] getColumnNames() {
+            return this.columnNames;
+        }
+
+        public int getRowCount() {
+            return this.rowCount;
+        }
+
+        /**
+         * @param column 0-based column index
+         * @return values of a column, valid up to {@link #getRowCount()}
+         */
+        public String[] getColumn(int column) {
+            return this.columns[column];
+        }
+
+        public String getValue(int row, int column) {
+            return this.columns[column][row];
+        }
+
+        /**
+         * @param row 0-based row index
+         * @return 1-based line number of the first line of a record
+         */
+        public long getLineNumber(int row) {
+            return this.lineNumbers[row];
+        }
+
+        /**
+         * @return byte offset following the last record, a record start; for
+         * charsets not split at byte level the offset of the decoded bytes,
+         * which is not resumable
+         */
+        public long getEndOffset() {
+            return this.endOffset;
+        }
+
+        /**
+         * @return line number at {@link #getEndOffset()}
+         */
+        public long getEndLineNumber() {
+            return this.endLineNumber;
+        }
+
+        public String[] getRow(int row) {
+            final String[] values = new String[this.columns.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = this.columns[i][row];
+            }
+            return values;
+        }
+    }
+
+    //---
+    /**
+     * Read all records, passing the batches in file order to a consumer.
+     *
+     * @param c consumer of batches
+     * @throws IOException
+     */
+    public void read(Consumer<ColumnBatch> c) throws IOException {
+        final Iterator<ColumnBatch> it = batches();
+        while (it.hasNext()) {
+            c.accept(it.next());
+        }
+    }
+
+    /**
+     * @return column names, given or read from the header
+     * @throws IOException
+     */
+    public String[] getColumnNames() throws IOException {
+        open();
+        return this.columnNames;
+    }
+
+    /**
+     * Read all records as {@link ResultSet} of VARCHAR columns, like
+     * {@link org.h2.tools.Csv#read(java.io.Reader, java.lang.String[])}.
+     *
+     * @return result set
+     * @throws IOException
+     */
+    public ResultSet readAsResultSet() throws IOException {
+        final Iterator<ColumnBatch> it = batches();
+        final SimpleResultSet simpleResultSet = new SimpleResultSet(new SimpleRowSource() {
+            ColumnBatch batch;
+            int row;
+
+            @Override
+            public Object[] readRow() throws SQLException {
+                while (this.batch == null || this.row >= this.batch.getRowCount()) {
+                    if (!it.hasNext()) {
+                        return null;
+                    }
+                    this.batch = it.next();
+                    this.row = 0;
+                }
+                final Object[] values = this.batch.getRow(this.row);
+                this.row += 1;
+                return values;
+            }
+
+            @Override
+            public void close() {
+                MappedCsvReader.this.close();
+            }
+
+            @Override
+            public void reset() throws SQLException {
+                throw new SQLException("reset not supported");
+            }
+        });
+        for (String columnName : this.columnNames) {
+            simpleResultSet.addColumn(columnName, Types.VARCHAR, Integer.MAX_VALUE, 0);
+        }
+        return simpleResultSet;
+    }
+
+    /**
+     * @return iterator of batches in file order
+     * @throws IOException
+     */
+    public Iterator<ColumnBatch> batches() throws IOException {
+        open();
+        if (this.startOffset > 0L && this.startOffset > this.dataStart) {
+            if (!isSplittable()) {
+                throw new IOException(String.format("Cannot start at offset %d, charset %s", this.startOffset, this.charset));
+            }
+            this.dataStart = this.startOffset;
+            this.dataStartLineNumber = this.startLineNumber;
+        }
+        if (!isSplittable()) {
+            return new DecodingBatchIterator();
+        }
+        final long size = this.fileChannel.size();
+        final List<Callable<ColumnBatch>> tasks = new ArrayList<>();
+        final long[] chunkStarts = findChunkStarts(size);
+        for (int i = 0; i < chunkStarts.length; i += 2) {
+            final long start = chunkStarts[i];
+            final long end = i + 2 < chunkStarts.length ? chunkStarts[i + 2] : size;
+            final long lineNumber = chunkStarts[i + 1];
+            if (end > start) {
+                tasks.add(() -> parseChunk(start, end, lineNumber));
+            }
+        }
+        return new OrderedBatchIterator(tasks);
+    }
+
+    //---
+    void open() throws IOException {
+        if (this.fileChannel != null) {
+            return;
+        }
+        this.fileChannel = FileChannel.open(this.path, StandardOpenOption.READ);
+        final long size = this.fileChannel.size();
+        this.segments = new ArrayList<>();
+        for (long position = 0L; position < size; position += SEGMENT_SIZE) {
+            this.segments.add(this.fileChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position)));
+        }
+        this.executorService = Executors.newFixedThreadPool(this.parallelism, (r) -> {
+            final Thread t = new Thread(r, "MappedCsvReader");
+            t.setDaemon(true);
+            return t;
+        });
+        this.dataStart = 0L;
+        this.dataStartLineNumber = 1L;
+        if (!isSplittable()) {
+            this.decodingRecordParser = new DecodingRecordParser(size);
+        }
+        if (this.givenColumnNames != null) {
+            this.columnNames = this.givenColumnNames.clone();
+        } else if (isSplittable()) {
+            readHeader();
+        } else {
+            this.columnNames = toColumnNames(this.decodingRecordParser);
+        }
+    }
+
+    void readHeader() throws IOException {
+        final long size = this.fileChannel.size();
+        long window = Math.min(size, 64L * 1024);
+        while (true) {
+            final byte[] bytes = new byte[(int) window];
+            region(0L, window).get(bytes);
+            final RecordParser recordParser = new ByteRecordParser(bytes, 1L);
+            final String[] header = toColumnNames(recordParser);
+            if (recordParser.endOfLine || window >= size) {
+                this.columnNames = header;
+                this.dataStart = Math.min(recordParser.pos, recordParser.end);
+                this.dataStartLineNumber = recordParser.lineNumber;
+                return;
+            }
+            window = Math.min(size, window * 2);
+        }
+    }
+
+    String[] toColumnNames(RecordReader recordParser) {
+        final List<String> l = new ArrayList<>();
+        if (recordParser.readRecord()) {
+            for (int i = 0; i < recordParser.valueCount(); i++) {
+                final String v = recordParser.values()[i];
+                final String name;
+                if (v == null || v.isEmpty()) {
+                    name = "COLUMN" + l.size();
+                } else if (!this.caseSensitiveColumnNames && isSimpleColumnName(v)) {
+                    name = v.toUpperCase(Locale.ENGLISH);
+                } else {
+                    name = v;
+                }
+                l.add(name);
+            }
+        }
+        return l.toArray(new String[0]);
+    }
+
+    static boolean isSimpleColumnName(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (i == 0 && !Character.isLetter(c) && c != '_') {
+                return false;
+            } else if (!Character.isLetterOrDigit(c) && c != '_') {
+                return false;
+            }
+        }
+        return !s.isEmpty();
+    }
+
+    /**
+     * @return true if the file is split at byte level
+     */
+    boolean isSplittable() {
+        final boolean asciiCompatible = StandardCharsets.UTF_8.equals(this.charset)
+                || (this.charset.newEncoder().maxBytesPerChar() == 1.0f
+                && Arrays.equals("\n\r\t ,;|\"'\\#".getBytes(this.charset), "\n\r\t ,;|\"'\\#".getBytes(StandardCharsets.US_ASCII)));
+        return asciiCompatible
+                && this.fieldSeparator < 0x80 && this.fieldDelimiter < 0x80
+                && this.escapeCharacter < 0x80 && this.lineComment < 0x80;
+    }
+
+    /**
+     * @return bytes of the file, sliced from the mapped segments
+     */
+    ByteBuffer region(long start, long end) throws IOException {
+        if (start >= end) {
+            return ByteBuffer.allocate(0);
+        }
+        final int segment = (int) (start / SEGMENT_SIZE);
+        final long segmentStart = segment * SEGMENT_SIZE;
+        if (end > segmentStart + SEGMENT_SIZE) {
+            // crossing a segment boundary, rare
+            return this.fileChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+        final ByteBuffer bb = this.segments.get(segment).duplicate();
+        bb.position((int) (start - segmentStart));
+        bb.limit((int) (end - segmentStart));
+        return bb.slice();
+    }
+
+    ColumnBatch parseChunk(long start, long end, long lineNumber) throws IOException {
+        // bytes of special characters are never part of a multi-byte character
+        final byte[] bytes = new byte[(int) (end - start)];
+        region(start, end).get(bytes);
+        final RecordParser recordParser = new ByteRecordParser(bytes, lineNumber);
+        final ColumnBatch batch = new ColumnBatch(this.columnNames, (int) Math.min(1024L, (end - start) / 16 + 1));
+        final String[] row = new String[this.columnNames.length];
+        while (recordParser.readRecord()) {
+            Arrays.fill(row, null);
+            System.arraycopy(recordParser.values, 0, row, 0, Math.min(recordParser.valueCount, row.length));
+            batch.add(row, recordParser.recordLineNumber);
+        }
+        batch.endOffset = end;
+        batch.endLineNumber = recordParser.lineNumber;
+        return batch;
+    }
+
+    //---
+    /**
+     * Find the chunk starts, and their line numbers.
+     *
+     * @param size file size
+     * @return pairs of chunk start, and line number of the chunk start
+     */
+    long[] findChunkStarts(long size) throws IOException {
+        final int[][] transitions = createTransitions();
+        final boolean[][] recordEnds = createRecordEnds(transitions);
+        final long dataSize = size - this.dataStart;
+        final int chunkCount = (int) Math.max(1L, (dataSize + this.chunkSize - 1) / this.chunkSize);
+        final long[] nominalStarts = new long[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            nominalStarts[i] = this.dataStart + i * this.chunkSize;
+        }
+        // pass 1: state at chunk end for each state at chunk start, and line count
+        final List<Future<long[]>> scanFutures = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            final long start = nominalStarts[i];
+            final long end = i + 1 < chunkCount ? nominalStarts[i + 1] : size;
+            scanFutures.add(this.executorService.submit(() -> scanChunk(start, end, transitions)));
+        }
+        final int[] startStates = new int[chunkCount];
+        final long[] startLineNumbers = new long[chunkCount];
+        int state = STATE_START;
+        long lineNumber = this.dataStartLineNumber;
+        for (int i = 0; i < chunkCount; i++) {
+            startStates[i] = state;
+            startLineNumbers[i] = lineNumber;
+            final long[] scan = get(scanFutures.get(i));
+            state = (int) scan[state];
+            lineNumber += scan[STATE_COUNT];
+        }
+        // pass 2: first record boundary following each nominal chunk start
+        final List<Future<long[]>> boundaryFutures = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            final long start = nominalStarts[i];
+            final int startState = startStates[i];
+            if (i == 0) {
+                boundaryFutures.add(null);
+            } else {
+                boundaryFutures.add(this.executorService.submit(() -> findRecordEnd(start, size, startState, transitions, recordEnds)));
+            }
+        }
+        final long[] chunkStarts = new long[chunkCount * 2];
+        chunkStarts[0] = this.dataStart;
+        chunkStarts[1] = this.dataStartLineNumber;
+        for (int i = 1; i < chunkCount; i++) {
+            final long[] boundary = get(boundaryFutures.get(i));
+            chunkStarts[i * 2] = boundary[0];
+            chunkStarts[i * 2 + 1] = startLineNumbers[i] + boundary[1];
+        }
+        return chunkStarts;
+    }
+
+    static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("parse", ex.getCause());
+        }
+    }
+
+    /**
+     * Scan a chunk simulating all start states at once.
+     * <p>
+     * The combined state, the current state for each start state, is a state
+     * of a lazily built automaton, thus a single table lookup per byte.
+     *
+     * @return end state for each start state, followed by number of newlines
+     */
+    long[] scanChunk(long start, long end, int[][] transitions) throws IOException {
+        final ByteBuffer bb = region(start, end);
+        final byte[] block = new byte[SCAN_BLOCK_SIZE];
+        final CombinedStates combinedStates = new CombinedStates(transitions);
+        // offset of the combined state in table
+        int offset = combinedStates.initialOffset();
+        int[] table = combinedStates.table;
+        long newlines = 0;
+        while (bb.hasRemaining()) {
+            // bulk copy, as single byte access of a mapped buffer is slow
+            final int blockLength = Math.min(block.length, bb.remaining());
+            bb.get(block, 0, blockLength);
+            for (int p = 0; p < blockLength; p++) {
+                final int b = block[p] & 0xff;
+                if (b == '\n') {
+                    newlines += 1;
+                }
+                final int nextOffset = table[offset + b];
+                if (nextOffset >= 0) {
+                    offset = nextOffset;
+                } else {
+                    offset = combinedStates.computeNext(offset, b);
+                    table = combinedStates.table;
+                }
+            }
+        }
+        final long[] result = new long[STATE_COUNT + 1];
+        for (int s = 0; s < STATE_COUNT; s++) {
+            result[s] = combinedStates.state(offset, s);
+        }
+        result[STATE_COUNT] = newlines;
+        return result;
+    }
+
+    /**
+     * Combined states of the quoting state machine, a combined state packs the
+     * current state for each start state in 3 bits.
+     */
+    static class CombinedStates {
+
+        final int[][] transitions;
+        final Map<Integer, Integer> offsetByKey = new HashMap<>();
+        int[] keys = new int[16];
+        // offset of the next combined state indexed by offset, and byte, or -1
+        int[] table = new int[0];
+        int count;
+
+        CombinedStates(int[][] transitions) {
+            this.transitions = transitions;
+        }
+
+        int initialOffset() {
+            int key = 0;
+            for (int s = 0; s < STATE_COUNT; s++) {
+                key |= s << (s * 3);
+            }
+            return offset(key);
+        }
+
+        int state(int offset, int startState) {
+            return (this.keys[offset / 256] >>> (startState * 3)) & 7;
+        }
+
+        int computeNext(int offset, int b) {
+            int key = 0;
+            for (int s = 0; s < STATE_COUNT; s++) {
+                key |= this.transitions[state(offset, s)][b] << (s * 3);
+            }
+            final int nextOffset = offset(key);
+            this.table[offset + b] = nextOffset;
+            return nextOffset;
+        }
+
+        int offset(int key) {
+            final Integer existing = this.offsetByKey.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            if (this.count == this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, this.count * 2);
+            }
+            this.keys[this.count] = key;
+            final int offset = this.count * 256;
+            this.count += 1;
+            this.table = Arrays.copyOf(this.table, this.count * 256);
+            Arrays.fill(this.table, offset, offset + 256, -1);
+            this.offsetByKey.put(key, offset);
+            return offset;
+        }
+    }
+
+    /**
+     * @return position following the first record end, and number of newlines
+     * up to it
+     */
+    long[] findRecordEnd(long start, long size, int startState, int[][] transitions, boolean[][] recordEnds) throws IOException {
+        int state = startState;
+        long newlines = 0;
+        long windowStart = start;
+        while (windowStart < size) {
+            final long windowEnd = Math.min(size, windowStart + Math.min(this.chunkSize, 1024L * 1024));
+            final byte[] window = new byte[(int) (windowEnd - windowStart)];
+            region(windowStart, windowEnd).get(window);
+            for (int p = 0; p < window.length; p++) {
+                final int b = window[p] & 0xff;
+                if (b == '\n') {
+                    newlines += 1;
+                }
+                final boolean recordEnd = recordEnds[state][b];
+                state = transitions[state][b];
+                if (recordEnd) {
+                    return new long[]{windowStart + p + 1, newlines};
+                }
+            }
+            windowStart = windowEnd;
+        }
+        return new long[]{size, newlines};
+    }
+
+    /**
+     * Create the transitions of the quoting state machine, following
+     * {@code org.h2.tools.Csv#readValue}.
+     *
+     * @return next state indexed by state, and byte
+     */
+    int[][] createTransitions() {
+        final int[][] transitions = new int[STATE_COUNT][256];
+        for (int b = 0; b < 256; b++) {
+            final char c = (char) b;
+            final int startNext = startTransition(c);
+            transitions[STATE_START][b] = startNext;
+            transitions[STATE_UNQUOTED][b] = isSeparator(c) || isLineEnd(c) ? STATE_START : STATE_UNQUOTED;
+            if (is(c, this.fieldDelimiter)) {
+                transitions[STATE_QUOTED][b] = STATE_AFTER_QUOTE;
+            } else if (is(c, this.escapeCharacter)) {
+                transitions[STATE_QUOTED][b] = STATE_QUOTED_ESCAPE;
+            } else {
+                transitions[STATE_QUOTED][b] = STATE_QUOTED;
+            }
+            transitions[STATE_QUOTED_ESCAPE][b] = STATE_QUOTED;
+            if (is(c, this.fieldDelimiter)) {
+                transitions[STATE_AFTER_QUOTE][b] = STATE_QUOTED;
+            } else {
+                transitions[STATE_AFTER_QUOTE][b] = trailingTransition(c, startNext);
+            }
+            transitions[STATE_TRAILING][b] = trailingTransition(c, startNext);
+            transitions[STATE_COMMENT][b] = isLineEnd(c) ? STATE_START : STATE_COMMENT;
+        }
+        return transitions;
+    }
+
+    int startTransition(char c) {
+        if (is(c, this.fieldDelimiter)) {
+            return STATE_QUOTED;
+        } else if (isLineEnd(c) || isSeparator(c) || c <= ' ') {
+            return STATE_START;
+        } else if (is(c, this.lineComment)) {
+            return STATE_COMMENT;
+        } else {
+            return STATE_UNQUOTED;
+        }
+    }
+
+    int trailingTransition(char c, int startNext) {
+        if (isSeparator(c) || isLineEnd(c)) {
+            return STATE_START;
+        } else if (c == ' ' || c == '\t') {
+            return STATE_TRAILING;
+        } else {
+            // pushed back, and read as start of a value
+            return startNext;
+        }
+    }
+
+    /**
+     * @return true indexed by state, and byte if the byte ends a record
+     */
+    boolean[][] createRecordEnds(int[][] transitions) {
+        final boolean[][] recordEnds = new boolean[STATE_COUNT][256];
+        for (int s = 0; s < STATE_COUNT; s++) {
+            for (int b = 0; b < 256; b++) {
+                final boolean quoted = s == STATE_QUOTED || s == STATE_QUOTED_ESCAPE;
+                recordEnds[s][b] = !quoted && isLineEnd((char) b) && transitions[s][b] == STATE_START;
+            }
+        }
+        return recordEnds;
+    }
+
+    boolean isSeparator(char c) {
+        return is(c, this.fieldSeparator);
+    }
+
+    static boolean isLineEnd(char c) {
+        return c == '\n' || c == '\r';
+    }
+
+    static boolean is(char c, char special) {
+        return special != 0 && c == special;
+    }
+
+    /**
+     * Stop the parsing threads, and close the file.
+     */
+    @Override
+    public void close() {
+        if (this.executorService != null) {
+            this.executorService.shutdownNow();
+        }
+        if (this.fileChannel != null) {
+            try {
+                this.fileChannel.close();
+            } catch (IOException ioex) {
+                throw new CsvReadWriteWrappers.CsvReaderWriteWrappersRuntimeException("close", ioex);
+            }
+        }
+    }
+
+    //---
+    /**
+     * Iterate over parsed chunks in file order, keeping a bounded number of
+     * chunks in flight.
+     */
+    class OrderedBatchIterator implements Iterator<ColumnBatch> {
+
+        final Iterator<Callable<ColumnBatch>> tasks;
+        final Deque<Future<ColumnBatch>> inFlight = new ArrayDeque<>();
+
+        OrderedBatchIterator(List<Callable<ColumnBatch>> tasks) {
+            this.tasks = tasks.iterator();
+            fill();
+        }
+
+        final void fill() {
+            while (this.inFlight.size() < parallelism * 2 && this.tasks.hasNext()) {
+                this.inFlight.add(executorService.submit(this.tasks.next()));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !this.inFlight.isEmpty();
+        }
+
+        @Override
+        public ColumnBatch next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Future<ColumnBatch> future = this.inFlight.poll();
+            try {
+                return get(future);
+            } catch (IOException ioex) {
+                throw new CsvReadWriteWrappers.CsvReaderWriteWrappersRuntimeException("next", ioex);
+            } finally {
+                fill();
+            }
+        }
+    }
+
+    /**
+     * Iterate over the batches of a charset not split at byte level, a batch
+     * per decoded window.
+     */
+    class DecodingBatchIterator implements Iterator<ColumnBatch> {
+
+        ColumnBatch nextBatch;
+
+        @Override
+        public boolean hasNext() {
+            if (this.nextBatch == null) {
+                this.nextBatch = readBatch();
+            }
+            return this.nextBatch.getRowCount() > 0;
+        }
+
+        @Override
+        public ColumnBatch next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final ColumnBatch batch = this.nextBatch;
+            this.nextBatch = null;
+            return batch;
+        }
+
+        ColumnBatch readBatch() {
+            final DecodingRecordParser recordParser = decodingRecordParser;
+            final ColumnBatch batch = new ColumnBatch(columnNames, 1024);
+            final String[] row = new String[columnNames.length];
+            final long windowCount = recordParser.windowCount;
+            while (recordParser.readRecord()) {
+                Arrays.fill(row, null);
+                System.arraycopy(recordParser.values, 0, row, 0, Math.min(recordParser.valueCount, row.length));
+                batch.add(row, recordParser.recordLineNumber);
+                if (recordParser.windowCount != windowCount) {
+                    break;
+                }
+            }
+            batch.endOffset = recordParser.position;
+            batch.endLineNumber = recordParser.lineNumber;
+            return batch;
+        }
+    }
+
+    /**
+     * Read records into values.
+     */
+    interface RecordReader {
+
+        /**
+         * Read the next record into values.
+         *
+         * @return false at the end
+         */
+        boolean readRecord();
+
+        String[] values();
+
+        int valueCount();
+    }
+
+    /**
+     * Decode the file sequentially by a {@link CharsetDecoder} over the mapped
+     * segments, and parse the records of each decoded window.
+     * <p>
+     * A record incomplete at the end of a window is carried over, and parsed
+     * again as start of the next window.
+     */
+    class DecodingRecordParser implements RecordReader {
+
+        final long size;
+        final CharsetDecoder decoder;
+        long position;
+        long windowCount;
+        char[] carry = new char[0];
+        long carryLineNumber = 1L;
+        boolean endOfInput;
+        CharRecordParser windowParser;
+        String[] values;
+        int valueCount;
+        long lineNumber = 1L;
+        long recordLineNumber;
+
+        DecodingRecordParser(long size) {
+            this.size = size;
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        @Override
+        public boolean readRecord() {
+            while (true) {
+                if (this.windowParser == null) {
+                    if (this.endOfInput) {
+                        return false;
+                    }
+                    this.windowParser = decodeWindow();
+                }
+                final CharRecordParser p = this.windowParser;
+                final int recordStart = p.pos;
+                final long recordStartLineNumber = p.lineNumber;
+                final boolean read = p.readRecord();
+                if (p.endOfFile && !this.endOfInput) {
+                    // the record may continue in the next window
+                    this.carry = Arrays.copyOfRange(p.chars, recordStart, p.end);
+                    this.carryLineNumber = recordStartLineNumber;
+                    this.windowParser = null;
+                    continue;
+                }
+                this.lineNumber = p.lineNumber;
+                if (!read) {
+                    this.windowParser = null;
+                    return false;
+                }
+                this.values = p.values;
+                this.valueCount = p.valueCount;
+                this.recordLineNumber = p.recordLineNumber;
+                return true;
+            }
+        }
+
+        CharRecordParser decodeWindow() {
+            // at least some bytes, thus each window decodes at least one character
+            final long windowEnd = Math.min(this.size, this.position + Math.max(chunkSize, 16L));
+            final ByteBuffer in;
+            try {
+                in = region(this.position, windowEnd);
+            } catch (IOException ioex) {
+                throw new CsvReadWriteWrappers.CsvReaderWriteWrappersRuntimeException("decodeWindow", ioex);
+            }
+            final boolean last = windowEnd == this.size;
+            final long capacity = this.carry.length + (long) Math.ceil(in.remaining() * (double) this.decoder.maxCharsPerByte()) + 1;
+            if (capacity > Integer.MAX_VALUE) {
+                throw new CsvReadWriteWrappers.CsvReaderWriteWrappersRuntimeException("decodeWindow",
+                        new IOException(String.format("Record at line %d too large, charset %s", this.carryLineNumber, charset)));
+            }
+            final CharBuffer out = CharBuffer.allocate((int) capacity);
+            out.put(this.carry);
+            this.decoder.decode(in, out, last);
+            if (last) {
+                this.decoder.flush(out);
+                this.endOfInput = true;
+            }
+            // undecoded bytes of a split character are decoded by the next window
+            this.position += in.position();
+            this.windowCount += 1;
+            out.flip();
+            return new CharRecordParser(out, this.carryLineNumber);
+        }
+
+        @Override
+        public String[] values() {
+            return this.values;
+        }
+
+        @Override
+        public int valueCount() {
+            return this.valueCount;
+        }
+    }
+
+    /**
+     * Parse records, following {@code org.h2.tools.Csv#readRow}.
+     */
+    abstract class RecordParser implements RecordReader {
+
+        final int end;
+        int pos;
+        boolean endOfLine;
+        boolean endOfFile;
+        long lineNumber;
+        long recordLineNumber;
+        String[] values = new String[16];
+        int valueCount;
+
+        RecordParser(int pos, int end, long lineNumber) {
+            this.pos = pos;
+            this.end = end;
+            this.lineNumber = lineNumber;
+        }
+
+        /**
+         * @return character at index, a byte if special characters are single
+         * bytes
+         */
+        abstract int charAt(int index);
+
+        abstract String string(int start, int end);
+
+        int readChar() {
+            if (this.pos >= this.end) {
+                this.pos += 1;
+                this.endOfFile = true;
+                return -1;
+            }
+            final int c = charAt(this.pos++);
+            if (c == '\n') {
+                this.lineNumber += 1;
+            }
+            return c;
+        }
+
+        void pushBack() {
+            this.pos -= 1;
+            if (this.pos < this.end && charAt(this.pos) == '\n') {
+                this.lineNumber -= 1;
+            }
+        }
+
+        /**
+         * Read the next record into values.
+         *
+         * @return false at end of chunk
+         */
+        @Override
+        public boolean readRecord() {
+            this.valueCount = 0;
+            while (true) {
+                if (this.valueCount == 0) {
+                    this.recordLineNumber = this.lineNumber;
+                }
+                final String v = readValue();
+                if (v == null && this.endOfLine) {
+                    if (this.valueCount == 0) {
+                        if (this.endOfFile) {
+                            return false;
+                        }
+                        // empty line
+                        continue;
+                    }
+                    break;
+                }
+                if (this.valueCount == this.values.length) {
+                    this.values = Arrays.copyOf(this.values, this.valueCount * 2);
+                }
+                this.values[this.valueCount++] = v;
+                if (this.endOfLine) {
+                    break;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String[] values() {
+            return this.values;
+        }
+
+        @Override
+        public int valueCount() {
+            return this.valueCount;
+        }
+
+        String readValue() {
+            this.endOfLine = false;
+            int valueStart = this.pos;
+            while (true) {
+                int ch = readChar();
+                if (ch >= 0 && is((char) ch, fieldDelimiter)) {
+                    // delimited value
+                    boolean containsEscape = false;
+                    valueStart = this.pos;
+                    int sep;
+                    while (true) {
+                        ch = readChar();
+                        if (ch >= 0 && is((char) ch, fieldDelimiter)) {
+                            ch = readChar();
+                            if (ch < 0 || !is((char) ch, fieldDelimiter)) {
+                                sep = 2;
+                                break;
+                            }
+                            containsEscape = true;
+                        } else if (ch >= 0 && is((char) ch, escapeCharacter)) {
+                            ch = readChar();
+                            if (ch < 0) {
+                                sep = 1;
+                                break;
+                            }
+                            containsEscape = true;
+                        } else if (ch < 0) {
+                            sep = 1;
+                            break;
+                        }
+                    }
+                    final int valueEnd = Math.min(this.pos - sep, this.end);
+                    String s = string(valueStart, Math.max(valueStart, valueEnd));
+                    if (containsEscape) {
+                        s = unEscape(s);
+                    }
+                    while (true) {
+                        if (ch >= 0 && isSeparator((char) ch)) {
+                            break;
+                        } else if (ch < 0 || isLineEnd((char) ch)) {
+                            this.endOfLine = true;
+                            break;
+                        } else if (ch == ' ' || ch == '\t') {
+                            // ignore
+                        } else {
+                            pushBack();
+                            break;
+                        }
+                        ch = readChar();
+                    }
+                    return s;
+                } else if (ch < 0 || isLineEnd((char) ch)) {
+                    this.endOfLine = true;
+                    return null;
+                } else if (isSeparator((char) ch)) {
+                    // null
+                    return null;
+                } else if (ch <= ' ') {
+                    // ignore spaces
+                } else if (is((char) ch, lineComment)) {
+                    // comment until end of line
+                    do {
+                        ch = readChar();
+                    } while (ch >= 0 && !isLineEnd((char) ch));
+                    this.endOfLine = true;
+                    return null;
+                } else {
+                    // undelimited value
+                    while (true) {
+                        ch = readChar();
+                        if (ch >= 0 && isSeparator((char) ch)) {
+                            break;
+                        } else if (ch < 0 || isLineEnd((char) ch)) {
+                            this.endOfLine = true;
+                            break;
+                        }
+                    }
+                    final int valueEnd = Math.min(this.pos - 1, this.end);
+                    String s = string(valueStart, valueEnd);
+                    if (!preserveWhitespace) {
+                        s = s.trim();
+                    }
+                    return nullString.equals(s) ? null : s;
+                }
+            }
+        }
+
+        String unEscape(String s) {
+            final StringBuilder sb = new StringBuilder(s.length());
+            int start = 0;
+            while (true) {
+                int idx = escapeCharacter != 0 ? s.indexOf(escapeCharacter, start) : -1;
+                if (idx < 0) {
+                    idx = fieldDelimiter != 0 ? s.indexOf(fieldDelimiter, start) : -1;
+                    if (idx < 0) {
+                        break;
+                    }
+                }
+                sb.append(s, start, idx);
+                if (idx == s.length() - 1) {
+                    start = s.length();
+                    break;
+                }
+                sb.append(s.charAt(idx + 1));
+                start = idx + 2;
+            }
+            sb.append(s, start, s.length());
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Parse records of undecoded bytes, decoding values only.
+     */
+    class ByteRecordParser extends RecordParser {
+
+        final byte[] bytes;
+
+        ByteRecordParser(byte[] bytes, long lineNumber) {
+            super(0, bytes.length, lineNumber);
+            this.bytes = bytes;
+        }
+
+        @Override
+        int charAt(int index) {
+            return this.bytes[index] & 0xff;
+        }
+
+        @Override
+        String string(int start, int end) {
+            return new String(this.bytes, start, end - start, charset);
+        }
+    }
+
+    /**
+     * Parse records of decoded characters.
+     */
+    class CharRecordParser extends RecordParser {
+
+        final char[] chars;
+
+        CharRecordParser(CharBuffer cb, long lineNumber) {
+            super(cb.arrayOffset() + cb.position(), cb.arrayOffset() + cb.limit(), lineNumber);
+            this.chars = cb.array();
+        }
+
+        @Override
+        int charAt(int index) {
+            return this.chars[index];
+        }
+
+        @Override
+        String string(int start, int end) {
+            return new String(this.chars, start, end - start);
+        }
+    }
+}
@@ -17,7 +17,6 @@ package org.huberb.h2tools.support;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.io.StringWriter;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -26,7 +25,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.TreeMap;
 import java.util.function.Consumer;
-import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import org.h2.tools.Csv;
 import static org.huberb.h2tools.support.OutputResultSet.OutputMode.CSV;
@@ -37,6 +36,7 @@ import static org.huberb.h2tools.support.OutputResultSet.OutputMode.RAW;
 import static org.huberb.h2tools.support.OutputResultSet.OutputMode.TABULAR;
 import static org.huberb.h2tools.support.OutputResultSet.OutputMode.YAML;
 import org.huberb.h2tools.support.OutputResultSet.ResultSetIterator.DefaultResulSetConsumer;
+import org.huberb.h2tools.support.OutputResultSet.ResultSetIterator.ResultSetProcessingRuntimeException;
 
 /**
  *
@@ -96,39 +96,98 @@ public class OutputResultSet {
 
     }
 
+    static final UnaryOperator<String> PLAIN_ENCODER = (s) -> String.valueOf(s);
+
     /**
      * Output in plain ASCII format
      */
     static class OutputByRaw implements OutputBy {
 
+        final LobOutput lobOutput;
+
+        OutputByRaw() {
+            this(new LobOutput());
+        }
+
+        OutputByRaw(LobOutput lobOutput) {
+            this.lobOutput = lobOutput;
+        }
+
         @Override
         public void output(ResultSet rs, PrintStream out) throws SQLException {
-            final Consumer<Map<String, String>> c = (Map<String, String> m) -> {
+            final Consumer<Map<String, ColumnValue>> c = (Map<String, ColumnValue> m) -> {
                 m.entrySet().
                         stream().
                         forEach((e) -> {
-                            out.printf("%s: %s%n", e.getKey(), e.getValue());
+                            out.printf("%s: ", e.getKey());
+                            e.getValue().writeTo(out, PLAIN_ENCODER);
+                            out.println();
                         });
                 out.println();
             };
-            final DefaultResulSetConsumer drsc = new DefaultResulSetConsumer(c);
+            final DefaultResulSetConsumer drsc = new DefaultResulSetConsumer(c, this.lobOutput);
             new ResultSetIterator().iterate(rs, drsc);
         }
     }
 
     /**
      * Output in CSV format
+     * <p>
+     * Formatted like {@link Csv#write(java.io.Writer, java.sql.ResultSet)},
+     * each value quoted, and a null value empty. LOB values are streamed.
      */
     static class OutputByCsv implements OutputBy {
 
+        static final UnaryOperator<String> CSV_ENCODER = (s) -> s != null ? s.replace("\"", "\"\"") : "";
+
+        final LobOutput lobOutput;
+
+        OutputByCsv() {
+            this(new LobOutput());
+        }
+
+        OutputByCsv(LobOutput lobOutput) {
+            this.lobOutput = lobOutput;
+        }
+
         @Override
-        public void output(ResultSet rs, PrintStream out) throws SQLException, IOException {
-            final StringWriter sw = new StringWriter();
-            try (sw) {
-                final Csv csv = new Csv();
-                csv.write(sw, rs);
+        public void output(ResultSet rs, PrintStream out) throws SQLException {
+            final String lineSeparator = System.lineSeparator();
+            try (rs) {
+                final ResultSetMetaData meta = rs.getMetaData();
+                final int columnCount = meta.getColumnCount();
+                for (int i = 1; i <= columnCount; i++) {
+                    out.print(i > 1 ? ",\"" : "\"");
+                    out.print(CSV_ENCODER.apply(meta.getColumnLabel(i)));
+                    out.print("\"");
+                }
+                out.print(lineSeparator);
+                while (rs.next()) {
+                    for (int i = 1; i <= columnCount; i++) {
+                        if (i > 1) {
+                            out.print(",");
+                        }
+                        final int sqlType = meta.getColumnType(i);
+                        if (LobOutput.isLob(sqlType)) {
+                            // a LOB object is a locator, its value is not read
+                            if (rs.getObject(i) != null) {
+                                out.print("\"");
+                                new ColumnValue(null, rs, i, sqlType, meta.getColumnLabel(i), this.lobOutput).writeTo(out, CSV_ENCODER);
+                                out.print("\"");
+                            }
+                        } else {
+                            final String value = rs.getString(i);
+                            if (value != null) {
+                                out.print("\"");
+                                out.print(CSV_ENCODER.apply(value));
+                                out.print("\"");
+                            }
+                        }
+                    }
+                    out.print(lineSeparator);
+                }
             }
-            out.println(sw.toString());
+            out.println();
         }
     }
 
@@ -137,49 +196,57 @@ public class OutputResultSet {
      */
     static class OutputByJson implements OutputBy {
 
+        final LobOutput lobOutput;
+
+        OutputByJson() {
+            this(new LobOutput());
+        }
+
+        OutputByJson(LobOutput lobOutput) {
+            this.lobOutput = lobOutput;
+        }
+
         @Override
         public void output(ResultSet rs, PrintStream out) throws SQLException {
-            final Consumer<Map<String, String>> c = new TabularMapArrayOfMapsConsumer(out);
+            final Consumer<Map<String, ColumnValue>> c = new TabularMapArrayOfMapsConsumer(out, OutputResultSet::encodeJson);
             final String jsonStart = "[\n";
             out.print(jsonStart);
-            final DefaultResulSetConsumer drsc = new DefaultResulSetConsumer(c);
+            final DefaultResulSetConsumer drsc = new DefaultResulSetConsumer(c, this.lobOutput);
             new ResultSetIterator().iterate(rs, drsc);
 
             final String jsonEnd = "\n]\n";
             out.print(jsonEnd);
         }
 
-        static class TabularMapArrayOfMapsConsumer implements Consumer<Map<String, String>> {
+        static class TabularMapArrayOfMapsConsumer implements Consumer<Map<String, ColumnValue>> {
 
             private int rowCount = 0;
             private final PrintStream out;
+            private final UnaryOperator<String> encoder;
 
-            TabularMapArrayOfMapsConsumer(PrintStream out) {
+            TabularMapArrayOfMapsConsumer(PrintStream out, UnaryOperator<String> encoder) {
                 this.out = out;
+                this.encoder = encoder;
             }
 
             @Override
-            public void accept(Map<String, String> m) {
-                final Function<Map.Entry<String, String>, String> f = (Map.Entry<String, String> mapEntry) -> {
-                    final String keyValueAsJson = String.format("\"%s\": \"%s\"",
-                            encodeJson(mapEntry.getKey()),
-                            encodeJson(mapEntry.getValue())
-                    );
-                    return keyValueAsJson;
-                };
-
-                final StringBuilder sb = new StringBuilder();
+            public void accept(Map<String, ColumnValue> m) {
                 final String joiningDelimiter = ", ";
                 if (rowCount > 0) {
-                    sb.append(", \n");
+                    out.print(", \n");
+                }
+                out.print("{");
+                int columnCount = 0;
+                for (Map.Entry<String, ColumnValue> mapEntry : m.entrySet()) {
+                    if (columnCount > 0) {
+                        out.print(joiningDelimiter);
+                    }
+                    out.printf("\"%s\": \"", encoder.apply(mapEntry.getKey()));
+                    mapEntry.getValue().writeTo(out, encoder);
+                    out.print("\"");
+                    columnCount += 1;
                 }
-                sb.append("{");
-                sb.append(m.entrySet()
-                        .stream()
-                        .map(f)
-                        .collect(Collectors.joining(joiningDelimiter)));
-                sb.append("}");
-                out.print(sb.toString());
+                out.print("}");
                 rowCount += 1;
             }
 
@@ -191,12 +258,22 @@ public class OutputResultSet {
      */
     static class OutputByArrayOfArraysJson implements OutputBy {
 
+        final LobOutput lobOutput;
+
+        OutputByArrayOfArraysJson() {
+            this(new LobOutput());
+        }
+
+        OutputByArrayOfArraysJson(LobOutput lobOutput) {
+            this.lobOutput = lobOutput;
+        }
+
         @Override
         public void output(ResultSet rs, PrintStream out) throws SQLException {
-            final Consumer<Map<String, String>> c = new TabularMapArrayOfArraysConsumer(out);
+            final Consumer<Map<String, ColumnValue>> c = new TabularMapArrayOfArraysConsumer(out);
             final String jsonStart = "[\n";
             out.print(jsonStart);
-            final DefaultResulSetConsumer drsc = new DefaultResulSetConsumer(c);
+            final DefaultResulSetConsumer drsc = new DefaultResulSetConsumer(c, this.lobOutput);
             new ResultSetIterator().iterate(rs, drsc);
 
             final String jsonEnd = "\n]\n";
@@ -204,7 +281,7 @@ public class OutputResultSet {
 
         }
 
-        static class TabularMapArrayOfArraysConsumer implements Consumer<Map<String, String>> {
+        static class TabularMapArrayOfArraysConsumer implements Consumer<Map<String, ColumnValue>> {
 
             private int rowCount = 0;
             private final PrintStream out;
@@ -214,8 +291,7 @@ public class OutputResultSet {
             }
 
             @Override
-            public void accept(Map<String, String> m) {
-                final StringBuilder sb = new StringBuilder();
+            public void accept(Map<String, ColumnValue> m) {
                 final String joiningDelimiter = ", ";
                 if (rowCount == 0) {
                     final String firstRow = m.keySet()
@@ -223,21 +299,23 @@ public class OutputResultSet {
                             .map((k) -> "\"" + encodeJson(k) + "\"")
                             .collect(Collectors.joining(joiningDelimiter)
                             );
-                    sb.append("[");
-                    sb.append(firstRow);
-                    sb.append("]");
+                    out.print("[");
+                    out.print(firstRow);
+                    out.print("]");
+                }
+                out.print(", \n");
+                out.print("[");
+                int columnCount = 0;
+                for (ColumnValue columnValue : m.values()) {
+                    if (columnCount > 0) {
+                        out.print(joiningDelimiter);
+                    }
+                    out.print("\"");
+                    columnValue.writeTo(out, OutputResultSet::encodeJson);
+                    out.print("\"");
+                    columnCount += 1;
                 }
-                sb.append(", \n");
-                final String valuesRow = m.values()
-                        .stream()
-                        .map((k) -> "\"" + encodeJson(k) + "\"")
-                        .collect(Collectors.joining(joiningDelimiter)
-                        );
-                sb.append("[");
-                sb.append(valuesRow);
-                sb.append("]");
-
-                out.print(sb.toString());
+                out.print("]");
                 rowCount += 1;
             }
         }
@@ -248,57 +326,30 @@ public class OutputResultSet {
      */
     static class OutputByYaml implements OutputBy {
 
+        final LobOutput lobOutput;
+
+        OutputByYaml() {
+            this(new LobOutput());
+        }
+
+        OutputByYaml(LobOutput lobOutput) {
+            this.lobOutput = lobOutput;
+        }
+
         @Override
         public void output(ResultSet rs, PrintStream out) throws SQLException {
-            final TabularMapConsumer c = new TabularMapConsumer(out);
+            final Consumer<Map<String, ColumnValue>> c = new OutputByJson.TabularMapArrayOfMapsConsumer(out, OutputResultSet::encodeYaml);
             final String yamlStart = ""
                     + "## YAML\n"
                     + "---\n"
                     + "[\n" + "";
             out.print(yamlStart);
-            final DefaultResulSetConsumer drsc = new DefaultResulSetConsumer(c);
+            final DefaultResulSetConsumer drsc = new DefaultResulSetConsumer(c, this.lobOutput);
             new ResultSetIterator().iterate(rs, drsc);
 
             final String yamlEnd = "" + "\n]\n";
             out.print(yamlEnd);
         }
-
-        static class TabularMapConsumer implements Consumer<Map<String, String>> {
-
-            int rowCount = 0;
-            private final PrintStream out;
-
-            TabularMapConsumer(PrintStream out) {
-                this.out = out;
-            }
-
-            @Override
-            public void accept(Map<String, String> m) {
-                final Function<Map.Entry<String, String>, String> f = (Map.Entry<String, String> mapEntry) -> {
-                    final String keyValueAsYaml = String.format("\"%s\": \"%s\"",
-                            encodeYaml(mapEntry.getKey()),
-                            encodeYaml(mapEntry.getValue())
-                    );
-                    return keyValueAsYaml;
-                };
-
-                final StringBuilder sb = new StringBuilder();
-                final String joiningDelimiter = ", ";
-                if (rowCount > 0) {
-                    sb.append(", \n");
-                }
-                sb.append("{");
-                sb.append(m.entrySet()
-                        .stream()
-                        .map(f)
-                        .collect(Collectors.joining(joiningDelimiter)));
-                sb.append("}");
-                out.print(sb.toString());
-                rowCount += 1;
-            }
-
-        }
-
     }
 
     /**
@@ -306,14 +357,24 @@ public class OutputResultSet {
      */
     static class OutputByTabular implements OutputBy {
 
+        final LobOutput lobOutput;
+
+        OutputByTabular() {
+            this(new LobOutput());
+        }
+
+        OutputByTabular(LobOutput lobOutput) {
+            this.lobOutput = lobOutput;
+        }
+
         @Override
         public void output(ResultSet rs, PrintStream out) throws SQLException {
-            final Consumer<Map<String, String>> c = new TabularMapConsumer(out);
-            final DefaultResulSetConsumer drsc = new DefaultResulSetConsumer(c);
+            final Consumer<Map<String, ColumnValue>> c = new TabularMapConsumer(out);
+            final DefaultResulSetConsumer drsc = new DefaultResulSetConsumer(c, this.lobOutput);
             new ResultSetIterator().iterate(rs, drsc);
         }
 
-        static class TabularMapConsumer implements Consumer<Map<String, String>> {
+        static class TabularMapConsumer implements Consumer<Map<String, ColumnValue>> {
 
             private int rowCount = 0;
             private final PrintStream out;
@@ -323,22 +384,67 @@ public class OutputResultSet {
             }
 
             @Override
-            public void accept(Map<String, String> m) {
-                final StringBuilder sb = new StringBuilder();
+            public void accept(Map<String, ColumnValue> m) {
                 final String joiningDelimiter = ", ";
                 if (rowCount == 0) {
-                    sb.append(m.keySet().stream().collect(Collectors.joining(joiningDelimiter)));
-                    sb.append("\n");
+                    out.print(m.keySet().stream().collect(Collectors.joining(joiningDelimiter)));
+                    out.print("\n");
                 }
-                sb.append(m.values().stream().collect(Collectors.joining(joiningDelimiter)));
-                sb.append("\n");
-                out.print(sb.toString());
+                int columnCount = 0;
+                for (ColumnValue columnValue : m.values()) {
+                    if (columnCount > 0) {
+                        out.print(joiningDelimiter);
+                    }
+                    columnValue.writeTo(out, PLAIN_ENCODER);
+                    columnCount += 1;
+                }
+                out.print("\n");
                 rowCount += 1;
             }
 
         }
     }
 
+    /**
+     * A column value of the current row.
+     * <p>
+     * Values of LOB columns are not read in advance, but streamed when written.
+     */
+    static class ColumnValue {
+
+        final String value;
+        final ResultSet rs;
+        final int columnIndex;
+        final int sqlType;
+        final String label;
+        final LobOutput lobOutput;
+
+        ColumnValue(String value) {
+            this(value, null, 0, 0, null, null);
+        }
+
+        ColumnValue(String value, ResultSet rs, int columnIndex, int sqlType, String label, LobOutput lobOutput) {
+            this.value = value;
+            this.rs = rs;
+            this.columnIndex = columnIndex;
+            this.sqlType = sqlType;
+            this.label = label;
+            this.lobOutput = lobOutput;
+        }
+
+        void writeTo(PrintStream out, UnaryOperator<String> encoder) {
+            if (this.lobOutput == null) {
+                out.print(encoder.apply(this.value));
+            } else {
+                try {
+                    this.lobOutput.write(this.rs, this.columnIndex, this.sqlType, this.label, out, encoder);
+                } catch (SQLException | IOException ex) {
+                    throw new ResultSetProcessingRuntimeException("write LOB " + this.label, ex);
+                }
+            }
+        }
+    }
+
     static class ResultSetIterator {
 
         void iterate(ResultSet rs, Consumer<ResultSet> c) {
@@ -353,19 +459,27 @@ public class OutputResultSet {
 
         static class DefaultResulSetConsumer implements Consumer<ResultSet> {
 
-            final Consumer<Map<String, String>> c;
+            final Consumer<Map<String, ColumnValue>> c;
+            final LobOutput lobOutput;
 
-            DefaultResulSetConsumer(Consumer<Map<String, String>> c) {
+            DefaultResulSetConsumer(Consumer<Map<String, ColumnValue>> c, LobOutput lobOutput) {
                 this.c = c;
+                this.lobOutput = lobOutput;
             }
 
             @Override
             public void accept(ResultSet rs) {
                 try {
-                    final Map<String, String> m = new TreeMap<>();
+                    final Map<String, ColumnValue> m = new TreeMap<>();
                     final ResultSetMetaData meta = rs.getMetaData();
                     for (int i = 0; i < meta.getColumnCount(); i++) {
-                        m.put(meta.getColumnLabel(i + 1), rs.getString(i + 1));
+                        final String label = meta.getColumnLabel(i + 1);
+                        final int sqlType = meta.getColumnType(i + 1);
+                        if (LobOutput.isLob(sqlType)) {
+                            m.put(label, new ColumnValue(null, rs, i + 1, sqlType, label, this.lobOutput));
+                        } else {
+                            m.put(label, new ColumnValue(rs.getString(i + 1)));
+                        }
                     }
                     c.accept(m);
                 } catch (SQLException ex) {
@@ -407,23 +521,34 @@ public class OutputResultSet {
          * @return
          */
         public static OutputBy createOutputBy(OutputMode theOutputFormat) {
+            return createOutputBy(theOutputFormat, new LobOutput());
+        }
+
+        /**
+         * Create an {@link OutputBy} instance for a given output format.
+         *
+         * @param theOutputFormat
+         * @param lobOutput defines how LOB values are streamed
+         * @return
+         */
+        public static OutputBy createOutputBy(OutputMode theOutputFormat, LobOutput lobOutput) {
             final OutputBy result;
             if (RAW == theOutputFormat) {
-                result = new OutputResultSet.OutputByRaw();
+                result = new OutputResultSet.OutputByRaw(lobOutput);
             } else if (CSV == theOutputFormat) {
-                result = new OutputResultSet.OutputByCsv();
+                result = new OutputResultSet.OutputByCsv(lobOutput);
             } else if (JSON == theOutputFormat) {
-                result = new OutputResultSet.OutputByJson();
+                result = new OutputResultSet.OutputByJson(lobOutput);
             } else if (JSON_ARRAYS == theOutputFormat) {
-                result = new OutputResultSet.OutputByArrayOfArraysJson();
+                result = new OutputResultSet.OutputByArrayOfArraysJson(lobOutput);
             } else if (JSON_MAPS == theOutputFormat) {
-                result = new OutputResultSet.OutputByJson();
+                result = new OutputResultSet.OutputByJson(lobOutput);
             } else if (YAML == theOutputFormat) {
-                result = new OutputResultSet.OutputByYaml();
+                result = new OutputResultSet.OutputByYaml(lobOutput);
             } else if (TABULAR == theOutputFormat) {
-                result = new OutputResultSet.OutputByTabular();
+                result = new OutputResultSet.OutputByTabular(lobOutput);
             } else {
-                result = new OutputResultSet.OutputByTabular();
+                result = new OutputResultSet.OutputByTabular(lobOutput);
             }
 
             return result;
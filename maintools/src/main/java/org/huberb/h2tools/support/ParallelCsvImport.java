@@ -0,0 +1,776 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.support.MappedCsvReader.ColumnBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Import a CSV file into a table using multiple connections.
+ * <p>
+ * The import runs in three stages: {@link MappedCsvReader} parses chunks of
+ * the file concurrently, the parsed batches are fed through a bounded queue to
+ * writer threads, and each writer inserts them via its own connection in
+ * batches, committing periodically.
+ * <p>
+ * The values are converted to the types of the table columns before
+ * inserting. Rows failing conversion, or failing to insert, eg. by a
+ * constraint violation, are rejected, and passed to the reject consumer. The
+ * CSV columns are inserted by position.
+ * <p>
+ * A failing batch is rolled back to a savepoint, and bisected, until the
+ * failing rows are isolated. Thus rare bad rows cost a few additional
+ * batches, instead of inserting the whole batch row by row. The import fails
+ * if more rows than the maximum errors are rejected, by default at the first
+ * rejected row.
+ * <p>
+ * If merging by key columns, the rows are upserted by
+ * {@code MERGE INTO ... KEY(...)}. Using a {@link KeyFilter} of the existing
+ * keys, rows of a definitely new key are inserted by the cheaper
+ * {@code INSERT}, and only rows of a possibly existing key are merged. A row
+ * failing to insert by a duplicate key is merged instead, thus the key filter
+ * needs a unique index on the key columns. Before merging a row
+ * of a key possibly inserted by this import, the pending inserts are
+ * executed, keeping the rows of a key in file order. Rows of the same key are
+ * merged in file order only by a single writer.
+ *
+ * @author pi
+ */
+public class ParallelCsvImport {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelCsvImport.class);
+
+    /**
+     * Consume a rejected row.
+     */
+    @FunctionalInterface
+    public interface RejectConsumer {
+
+        /**
+         * @param lineNumber line number of the row in the CSV file
+         * @param values CSV values of the row
+         * @param reason exception rejecting the row
+         */
+        void accept(long lineNumber, String[] values, Exception reason);
+    }
+
+    /**
+     * Result of an import.
+     */
+    public static class Result {
+
+        final long rows;
+        final long mergedRows;
+        final long rejectedRows;
+        final long elapsedMillis;
+
+        Result(long rows, long mergedRows, long rejectedRows, long elapsedMillis) {
+            this.rows = rows;
+            this.mergedRows = mergedRows;
+            this.rejectedRows = rejectedRows;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return number of inserted, or merged rows
+         */
+        public long rows() {
+            return rows;
+        }
+
+        /**
+         * @return number of rows of {@link #rows()} merged, instead of
+         * inserted
+         */
+        public long mergedRows() {
+            return mergedRows;
+        }
+
+        public long rejectedRows() {
+            return rejectedRows;
+        }
+
+        public long elapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public double rowsPerSecond() {
+            return rows * 1000.0d / Math.max(1L, elapsedMillis);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rows %d, merged %d, rejected %d, elapsed %d ms, rows/sec %.1f",
+                    rows, mergedRows, rejectedRows, elapsedMillis, rowsPerSecond());
+        }
+    }
+
+    static final String DUPLICATE_KEY_SQL_STATE = "23505";
+    /**
+     * Expected number of keys inserted by an import, a false positive only
+     * executes the pending inserts early.
+     */
+    static final long EXPECTED_IMPORTED_KEYS = 1L << 20;
+    static final ColumnBatch END_OF_BATCHES = new ColumnBatch(new String[0], 1);
+
+    final IConnectionFactory connectionFactory;
+    final String table;
+    final MappedCsvReader mappedCsvReader;
+    int parallel = 4;
+    int batchSize = 1000;
+    int commitEvery = 10000;
+    long maxErrors = 0L;
+    String[] mergeKeys;
+    boolean useKeyFilter;
+    double falsePositiveRate = 0.01d;
+    RejectConsumer rejectConsumer = (lineNumber, values, reason) -> {
+        logger.warn("Reject line {} {}: {}", lineNumber, Arrays.toString(values), reason.getMessage());
+    };
+
+    final AtomicLong rows = new AtomicLong();
+    final AtomicLong mergedRows = new AtomicLong();
+    final AtomicLong rejectedRows = new AtomicLong();
+
+    /**
+     * Create an import.
+     *
+     * @param connectionFactory creates a connection per writer
+     * @param table an existing table
+     * @param mappedCsvReader reader of the CSV file
+     */
+    public ParallelCsvImport(IConnectionFactory connectionFactory, String table, MappedCsvReader mappedCsvReader) {
+        this.connectionFactory = connectionFactory;
+        this.table = table;
+        this.mappedCsvReader = mappedCsvReader;
+    }
+
+    /**
+     * @param parallel number of writer threads, and connections
+     */
+    public void setParallel(int parallel) {
+        this.parallel = Math.max(1, parallel);
+    }
+
+    /**
+     * @param batchSize number of rows per executed batch
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @param commitEvery number of rows per writer after which it commits
+     */
+    public void setCommitEvery(int commitEvery) {
+        this.commitEvery = Math.max(1, commitEvery);
+    }
+
+    /**
+     * @param maxErrors maximum number of rejected rows, failing the import if
+     * exceeded, or a negative value for no maximum; defaults to 0
+     */
+    public void setMaxErrors(long maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * @param mergeKeys key columns of the table, merging rows instead of
+     * inserting them
+     */
+    public void setMergeKeys(String... mergeKeys) {
+        this.mergeKeys = mergeKeys;
+    }
+
+    /**
+     * @param useKeyFilter if merging, load the existing keys into a
+     * {@link KeyFilter}, inserting rows of definitely new keys, needs a
+     * unique index on the key columns
+     */
+    public void setUseKeyFilter(boolean useKeyFilter) {
+        this.useKeyFilter = useKeyFilter;
+    }
+
+    /**
+     * @param falsePositiveRate false positive rate of the {@link KeyFilter}
+     */
+    public void setFalsePositiveRate(double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    public void setRejectConsumer(RejectConsumer rejectConsumer) {
+        this.rejectConsumer = rejectConsumer;
+    }
+
+    //---
+    /**
+     * Import all rows.
+     *
+     * @return the result
+     * @throws SQLException
+     * @throws IOException
+     */
+    public Result execute() throws SQLException, IOException {
+        final long startMillis = System.currentTimeMillis();
+        final List<Function<String, Object>> converters = createConverters();
+        final String parameters = String.join(", ", Collections.nCopies(converters.size(), "?"));
+        final String insertSql = String.format("INSERT INTO %s VALUES(%s)", this.table, parameters);
+        final Merge merge;
+        if (this.mergeKeys != null) {
+            final String mergeSql = String.format("MERGE INTO %s KEY(%s) VALUES(%s)", this.table,
+                    String.join(", ", this.mergeKeys), parameters);
+            final int[] keyIndexes = keyIndexes();
+            if (this.useKeyFilter && !hasUniqueKeyIndex()) {
+                throw new SQLException(String.format("Key filter needs a unique index of table %s on key columns %s",
+                        this.table, String.join(", ", this.mergeKeys)));
+            }
+            merge = this.useKeyFilter
+                    ? new Merge(mergeSql, keyIndexes, loadKeyFilter(keyIndexes), new KeyFilter(EXPECTED_IMPORTED_KEYS, this.falsePositiveRate))
+                    : new Merge(mergeSql, keyIndexes, null, null);
+            logger.info("Import by {} writers, sql {}, key filter {}", this.parallel, mergeSql, merge.keyFilter);
+        } else {
+            merge = null;
+            logger.info("Import by {} writers, sql {}", this.parallel, insertSql);
+        }
+
+        final BlockingQueue<ColumnBatch> queue = new ArrayBlockingQueue<>(this.parallel * 2);
+        final ExecutorService executorService = Executors.newFixedThreadPool(this.parallel, (r) -> {
+            final Thread t = new Thread(r, "ParallelCsvImport");
+            t.setDaemon(true);
+            return t;
+        });
+        final CompletionService<Void> completionService = new ExecutorCompletionService<>(executorService);
+        try {
+            final List<Future<Void>> writers = new ArrayList<>();
+            for (int i = 0; i < this.parallel; i++) {
+                writers.add(completionService.submit(() -> {
+                    write(queue, insertSql, merge, converters);
+                    return null;
+                }));
+            }
+            final Iterator<ColumnBatch> it = this.mappedCsvReader.batches();
+            boolean writing = true;
+            while (writing && it.hasNext()) {
+                writing = put(queue, it.next(), writers);
+            }
+            put(queue, END_OF_BATCHES, writers);
+            // in order of completion, thus a failed writer is seen first
+            for (int i = 0; i < writers.size(); i++) {
+                get(completionService);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        return new Result(this.rows.get(), this.mergedRows.get(), this.rejectedRows.get(), System.currentTimeMillis() - startMillis);
+    }
+
+    /**
+     * @return false if a writer failed, as a writer is done before the end of
+     * batches only if it failed
+     */
+    static boolean put(BlockingQueue<ColumnBatch> queue, ColumnBatch batch, List<Future<Void>> writers) throws IOException {
+        try {
+            while (!queue.offer(batch, 100L, TimeUnit.MILLISECONDS)) {
+                if (writers.stream().anyMatch(Future::isDone)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("put", ex);
+        }
+    }
+
+    static void get(CompletionService<Void> completionService) throws SQLException, IOException {
+        try {
+            completionService.take().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("get", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            }
+            throw new IOException("write", ex.getCause());
+        }
+    }
+
+    /**
+     * Write batches taken from queue, until the end of batches.
+     */
+    void write(BlockingQueue<ColumnBatch> queue, String insertSql, Merge merge, List<Function<String, Object>> converters) throws SQLException, InterruptedException {
+        try (final Connection connection = this.connectionFactory.createConnection()) {
+            connection.setAutoCommit(false);
+            try (final PreparedStatement ps = connection.prepareStatement(insertSql);
+                    final PreparedStatement mergePs = merge != null ? connection.prepareStatement(merge.mergeSql) : null) {
+                final PendingRows mergePendingRows = merge != null ? new PendingRows(connection, mergePs, null) : null;
+                final PendingRows insertPendingRows = new PendingRows(connection, ps, mergePendingRows);
+                while (true) {
+                    final ColumnBatch batch = queue.take();
+                    if (batch == END_OF_BATCHES) {
+                        // let the other writers see the end too
+                        queue.put(batch);
+                        break;
+                    }
+                    for (int row = 0; row < batch.getRowCount(); row++) {
+                        final Object[] values = convert(batch, row, converters);
+                        if (values == null) {
+                            continue;
+                        }
+                        if (merge == null || merge.isNew(values)) {
+                            insertPendingRows.add(values, batch.getRow(row), batch.getLineNumber(row));
+                            continue;
+                        }
+                        if (merge.mightBeInserted(values)) {
+                            // insert the earlier row of the key first
+                            insertPendingRows.flush();
+                        }
+                        mergePendingRows.add(values, batch.getRow(row), batch.getLineNumber(row));
+                    }
+                }
+                insertPendingRows.flush();
+                if (mergePendingRows != null) {
+                    mergePendingRows.flush();
+                }
+                connection.commit();
+            }
+        }
+    }
+
+    /**
+     * @return converted values of a row, or null if rejected
+     */
+    Object[] convert(ColumnBatch batch, int row, List<Function<String, Object>> converters) throws SQLException {
+        final Object[] values = new Object[converters.size()];
+        final int columnCount = Math.min(values.length, batch.getColumnNames().length);
+        for (int column = 0; column < columnCount; column++) {
+            final String value = batch.getValue(row, column);
+            try {
+                values[column] = value != null ? converters.get(column).apply(value) : null;
+            } catch (IllegalArgumentException ex) {
+                reject(batch.getLineNumber(row), batch.getRow(row), new IllegalArgumentException(
+                        String.format("column %s: %s", batch.getColumnNames()[column], ex.getMessage()), ex));
+                return null;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @throws SQLException if more rows than the maximum errors are rejected
+     */
+    void reject(long lineNumber, String[] values, Exception reason) throws SQLException {
+        final long rejected = this.rejectedRows.incrementAndGet();
+        this.rejectConsumer.accept(lineNumber, values, reason);
+        if (this.maxErrors >= 0L && rejected > this.maxErrors) {
+            throw new SQLException(String.format("Too many rejected rows, %d exceed max errors %d, last at line %d",
+                    rejected, this.maxErrors, lineNumber), reason);
+        }
+    }
+
+    /**
+     * Merge statement, and routing of rows to insert, or to merge.
+     */
+    static class Merge {
+
+        final String mergeSql;
+        final int[] keyIndexes;
+        final KeyFilter keyFilter;
+        final KeyFilter insertedKeys;
+
+        /**
+         * @param keyFilter keys of the table, or null
+         * @param insertedKeys keys inserted by this import, or null
+         */
+        Merge(String mergeSql, int[] keyIndexes, KeyFilter keyFilter, KeyFilter insertedKeys) {
+            this.mergeSql = mergeSql;
+            this.keyIndexes = keyIndexes;
+            this.keyFilter = keyFilter;
+            this.insertedKeys = insertedKeys;
+        }
+
+        /**
+         * @return true if the key of the row is definitely new, adding the key
+         * to the filters, thus a later row of the same key is merged
+         */
+        boolean isNew(Object[] values) {
+            if (this.keyFilter == null) {
+                return false;
+            }
+            final String key = keyOf(values, this.keyIndexes);
+            if (this.keyFilter.mightContain(key)) {
+                return false;
+            }
+            this.keyFilter.add(key);
+            this.insertedKeys.add(key);
+            return true;
+        }
+
+        /**
+         * @return true if the key of the row might have been inserted by this
+         * import
+         */
+        boolean mightBeInserted(Object[] values) {
+            return this.insertedKeys != null && this.insertedKeys.mightContain(keyOf(values, this.keyIndexes));
+        }
+    }
+
+    static String keyOf(Object[] values, int[] keyIndexes) {
+        final Object[] keyValues = new Object[keyIndexes.length];
+        for (int i = 0; i < keyIndexes.length; i++) {
+            keyValues[i] = values[keyIndexes[i]];
+        }
+        return KeyFilter.keyOf(keyValues);
+    }
+
+    /**
+     * Rows added to the batch of a prepared statement, but not executed yet.
+     */
+    class PendingRows {
+
+        final Connection connection;
+        final PreparedStatement ps;
+        final PendingRows duplicateKeyRows;
+        final List<Object[]> values = new ArrayList<>();
+        final List<String[]> csvValues = new ArrayList<>();
+        final List<Long> lineNumbers = new ArrayList<>();
+        long uncommittedRows;
+
+        /**
+         * @param duplicateKeyRows merging rows failing to insert by a
+         * duplicate key, or null
+         */
+        PendingRows(Connection connection, PreparedStatement ps, PendingRows duplicateKeyRows) {
+            this.connection = connection;
+            this.ps = ps;
+            this.duplicateKeyRows = duplicateKeyRows;
+        }
+
+        void add(Object[] rowValues, String[] rowCsvValues, long lineNumber) throws SQLException {
+            this.values.add(rowValues);
+            this.csvValues.add(rowCsvValues);
+            this.lineNumbers.add(lineNumber);
+            if (this.values.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        void flush() throws SQLException {
+            if (this.values.isEmpty()) {
+                return;
+            }
+            insert(0, this.values.size());
+            this.uncommittedRows += this.values.size();
+            this.values.clear();
+            this.csvValues.clear();
+            this.lineNumbers.clear();
+            if (this.uncommittedRows >= commitEvery) {
+                this.connection.commit();
+                this.uncommittedRows = 0;
+            }
+        }
+
+        /**
+         * Insert the rows from, inclusive, to, exclusive, as batch. If the
+         * batch fails, undo it, and insert both halves, until a failing row
+         * is isolated, and rejected.
+         */
+        void insert(int from, int to) throws SQLException {
+            final Savepoint savepoint = this.connection.setSavepoint();
+            try {
+                for (int i = from; i < to; i++) {
+                    setParameters(this.values.get(i));
+                    this.ps.addBatch();
+                }
+                this.ps.executeBatch();
+                rows.addAndGet(to - from);
+                if (this.duplicateKeyRows == null && mergeKeys != null) {
+                    mergedRows.addAndGet(to - from);
+                }
+                this.connection.releaseSavepoint(savepoint);
+                return;
+            } catch (SQLException sqlex) {
+                // undo the partially executed batch
+                this.ps.clearBatch();
+                this.connection.rollback(savepoint);
+                if (to - from == 1) {
+                    final SQLException cause = unwrap(sqlex);
+                    if (this.duplicateKeyRows != null && DUPLICATE_KEY_SQL_STATE.equals(cause.getSQLState())) {
+                        this.duplicateKeyRows.add(this.values.get(from), this.csvValues.get(from), this.lineNumbers.get(from));
+                    } else {
+                        reject(this.lineNumbers.get(from), this.csvValues.get(from), cause);
+                    }
+                    return;
+                }
+                logger.debug("Batch of {} rows failed, bisect", to - from, sqlex);
+            }
+            final int middle = (from + to) >>> 1;
+            insert(from, middle);
+            insert(middle, to);
+        }
+
+        void setParameters(Object[] rowValues) throws SQLException {
+            for (int i = 0; i < rowValues.length; i++) {
+                this.ps.setObject(i + 1, rowValues[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the cause of a failed batch of a single row, as a batch
+     * exception wraps the failure of its rows
+     */
+    static SQLException unwrap(SQLException sqlex) {
+        final SQLException next = sqlex.getNextException();
+        return next != null ? next : sqlex;
+    }
+
+    //---
+    /**
+     * @return a converter from CSV value to column value for each column of
+     * the table
+     */
+    List<Function<String, Object>> createConverters() throws SQLException {
+        final List<Function<String, Object>> converters = new ArrayList<>();
+        try (final Connection connection = this.connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery(String.format("SELECT * FROM %s WHERE 1 = 0", this.table))) {
+            final ResultSetMetaData meta = rs.getMetaData();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                final int sqlType = meta.getColumnType(i);
+                final Function<String, Object> converter = createConverter(sqlType);
+                final boolean dateTime = sqlType == Types.DATE || sqlType == Types.TIME || sqlType == Types.TIMESTAMP;
+                converters.add(dateTime ? orAsString(converter) : converter);
+            }
+        }
+        return converters;
+    }
+
+    /**
+     * @return 0-based indexes of the merge keys among the columns of the
+     * table
+     */
+    int[] keyIndexes() throws SQLException {
+        final int[] keyIndexes = new int[this.mergeKeys.length];
+        try (final Connection connection = this.connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery(String.format("SELECT * FROM %s WHERE 1 = 0", this.table))) {
+            final ResultSetMetaData meta = rs.getMetaData();
+            for (int k = 0; k < this.mergeKeys.length; k++) {
+                final String key = unquote(this.mergeKeys[k]);
+                keyIndexes[k] = -1;
+                for (int i = 1; i <= meta.getColumnCount(); i++) {
+                    if (meta.getColumnLabel(i).equalsIgnoreCase(key)) {
+                        keyIndexes[k] = i - 1;
+                        break;
+                    }
+                }
+                if (keyIndexes[k] < 0) {
+                    throw new SQLException(String.format("Key column %s not in table %s", this.mergeKeys[k], this.table));
+                }
+            }
+        }
+        return keyIndexes;
+    }
+
+    /**
+     * @return true if a unique index of the table has only merge key columns,
+     * thus inserting a row of an existing key fails, and the row is merged,
+     * instead of duplicating the key
+     */
+    boolean hasUniqueKeyIndex() throws SQLException {
+        final Set<String> keys = new HashSet<>();
+        for (String mergeKey : this.mergeKeys) {
+            keys.add(unquote(mergeKey).toUpperCase(Locale.ROOT));
+        }
+        try (final Connection connection = this.connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery(String.format("SELECT * FROM %s WHERE 1 = 0", this.table))) {
+            final ResultSetMetaData meta = rs.getMetaData();
+            // index name, and all its columns are key columns
+            final Map<String, Boolean> uniqueIndexes = new HashMap<>();
+            try (final ResultSet indexRs = connection.getMetaData().getIndexInfo(null,
+                    meta.getSchemaName(1), meta.getTableName(1), true, false)) {
+                while (indexRs.next()) {
+                    final String column = indexRs.getString("COLUMN_NAME");
+                    if (column != null) {
+                        uniqueIndexes.merge(indexRs.getString("INDEX_NAME"),
+                                keys.contains(column.toUpperCase(Locale.ROOT)), Boolean::logicalAnd);
+                    }
+                }
+            }
+            return uniqueIndexes.containsValue(true);
+        }
+    }
+
+    static String unquote(String identifier) {
+        final String s = identifier.trim();
+        return s.length() >= 2 && s.startsWith("\"") && s.endsWith("\"")
+                ? s.substring(1, s.length() - 1).replace("\"\"", "\"")
+                : s;
+    }
+
+    /**
+     * @return filter of the existing keys of the table
+     */
+    KeyFilter loadKeyFilter(int[] keyIndexes) throws SQLException {
+        final long startMillis = System.currentTimeMillis();
+        final String keyColumns = String.join(", ", this.mergeKeys);
+        try (final Connection connection = this.connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            final long count;
+            try (final ResultSet rs = statement.executeQuery(String.format("SELECT COUNT(*) FROM %s", this.table))) {
+                rs.next();
+                count = rs.getLong(1);
+            }
+            // room for as many new keys, added while importing
+            final KeyFilter keyFilter = new KeyFilter(Math.max(count, 1024L) * 2, this.falsePositiveRate);
+            // stream the keys, instead of buffering them in a temporary result
+            statement.execute("SET LAZY_QUERY_EXECUTION 1");
+            statement.setFetchSize(10000);
+            try (final ResultSet rs = statement.executeQuery(String.format("SELECT %s FROM %s", keyColumns, this.table))) {
+                final Object[] keyValues = new Object[keyIndexes.length];
+                while (rs.next()) {
+                    for (int i = 0; i < keyValues.length; i++) {
+                        keyValues[i] = rs.getObject(i + 1);
+                    }
+                    keyFilter.add(KeyFilter.keyOf(keyValues));
+                }
+            }
+            logger.info("Loaded {} keys into key filter {} in {} ms", count, keyFilter, System.currentTimeMillis() - startMillis);
+            return keyFilter;
+        }
+    }
+
+    /**
+     * @param sqlType a type of {@link Types}
+     * @return converter from CSV value to a value of sqlType, throwing
+     * {@link IllegalArgumentException} if not convertible
+     */
+    static Function<String, Object> createConverter(int sqlType) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return nullIfBlank((s) -> Integer.valueOf(s));
+            case Types.BIGINT:
+                return nullIfBlank((s) -> Long.valueOf(s));
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return nullIfBlank((s) -> new BigDecimal(s));
+            case Types.REAL:
+                return nullIfBlank((s) -> Float.valueOf(s));
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return nullIfBlank((s) -> Double.valueOf(s));
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return nullIfBlank(ParallelCsvImport::toBoolean);
+            case Types.DATE:
+                return nullIfBlank((s) -> Date.valueOf(s));
+            case Types.TIME:
+                return nullIfBlank((s) -> Time.valueOf(s));
+            case Types.TIMESTAMP:
+                return nullIfBlank((s) -> Timestamp.valueOf(s.replace('T', ' ')));
+            default:
+                // let the database convert
+                return (s) -> s;
+        }
+    }
+
+    /**
+     * @return converter of the trimmed value, converting a blank value to null
+     */
+    /**
+     * Convert a value not in JDBC escape format by the database, eg. a
+     * date-only TIMESTAMP, or a timestamp having a time zone.
+     * <p>
+     * Not used by {@link CsvSchemaInference}, which needs the strict
+     * converters.
+     */
+    static Function<String, Object> orAsString(Function<String, Object> f) {
+        return (s) -> {
+            try {
+                return f.apply(s);
+            } catch (IllegalArgumentException ex) {
+                return s;
+            }
+        };
+    }
+
+    static Function<String, Object> nullIfBlank(Function<String, Object> f) {
+        return (s) -> {
+            final String v = s.trim();
+            return v.isEmpty() ? null : f.apply(v);
+        };
+    }
+
+    static Boolean toBoolean(String s) {
+        final String v = s.trim().toLowerCase();
+        switch (v) {
+            case "true":
+            case "t":
+            case "yes":
+            case "y":
+            case "1":
+                return Boolean.TRUE;
+            case "false":
+            case "f":
+            case "no":
+            case "n":
+            case "0":
+                return Boolean.FALSE;
+            default:
+                throw new IllegalArgumentException("Not a boolean: " + s);
+        }
+    }
+}
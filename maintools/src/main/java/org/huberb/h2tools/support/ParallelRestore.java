@@ -0,0 +1,643 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.h2.tools.Csv;
+import org.h2.util.ScriptReader;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import org.huberb.h2tools.support.ParallelScriptExport.DataFormat;
+import org.huberb.h2tools.support.ParallelScriptExport.Entry;
+import org.huberb.h2tools.support.ParallelScriptExport.Kind;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Restore a script written by {@code SCRIPT}, or the files of a
+ * {@link ParallelScriptExport} using multiple connections.
+ * <p>
+ * The statements of a script are read by {@link ScriptReader}. DDL statements
+ * are executed serially, in script order. Consecutive {@code INSERT}
+ * statements of a table are grouped into JDBC batches, which are executed
+ * concurrently by loaders, each using its own connection. Constraints, and
+ * indexes are deferred, and created after loading, except primary keys, being
+ * the row key of a table in H2. Also deferred are {@code DROP},
+ * {@code CALL}, and {@code CREATE TRIGGER} statements following the first
+ * {@code INSERT}, eg. dropping the LOB helpers of a script.
+ * <p>
+ * Restoring a manifest executes its schema script alike, and loads its CSV,
+ * or {@link BinaryDump} data files concurrently, verifying their checksums.
+ * The delta files of an {@link IncrementalExport} are applied level by level,
+ * as the foreign keys exist already.
+ *
+ * @author pi
+ */
+public class ParallelRestore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelRestore.class);
+
+    /**
+     * Name of the entry of a ZIP compressed script written by {@code SCRIPT}.
+     */
+    public static final String SCRIPT_ZIP_ENTRY = "script.sql";
+
+    /**
+     * How a statement of a script is executed.
+     */
+    enum StatementKind {
+        /**
+         * Executed serially, when read.
+         */
+        DDL,
+        /**
+         * Executed in a batch by a loader.
+         */
+        DATA,
+        /**
+         * Executed serially, after loading.
+         */
+        DEFERRED,
+        /**
+         * Deferred if following data, else DDL.
+         */
+        DEFERRED_AFTER_DATA;
+    }
+
+    static final Pattern INSERT_PATTERN = Pattern.compile(
+            "^INSERT\\s+INTO\\s+((?:\"(?:[^\"]|\"\")*\"|[^\\s\"(.]+)(?:\\.(?:\"(?:[^\"]|\"\")*\"|[^\\s\"(.]+))?)",
+            Pattern.CASE_INSENSITIVE);
+    static final Pattern DEFERRED_PATTERN = Pattern.compile(
+            "^(ALTER\\s+TABLE\\s.+\\sADD\\s+CONSTRAINT\\s|CREATE\\s+(UNIQUE\\s+|HASH\\s+|SPATIAL\\s+)*INDEX\\s)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    static final Pattern PRIMARY_KEY_PATTERN = Pattern.compile(
+            "\\sADD\\s+CONSTRAINT\\s+(\"(?:[^\"]|\"\")*\"|[^\\s\"(.]+)(?:\\.(\"(?:[^\"]|\"\")*\"|[^\\s\"(.]+))?\\s+PRIMARY\\s+KEY",
+            Pattern.CASE_INSENSITIVE);
+    static final Pattern DEFERRED_AFTER_DATA_PATTERN = Pattern.compile(
+            "^(DROP|CALL|CREATE\\s+(OR\\s+REPLACE\\s+)?(FORCE\\s+)?TRIGGER)\\s",
+            Pattern.CASE_INSENSITIVE);
+    static final String LOB_STREAM_TABLE = "SYSTEM_LOB_STREAM";
+
+    /**
+     * Result of a restore.
+     */
+    public static class Result {
+
+        final long statements;
+        final long rows;
+        final long deferredStatements;
+        final long elapsedMillis;
+
+        Result(long statements, long rows, long deferredStatements, long elapsedMillis) {
+            this.statements = statements;
+            this.rows = rows;
+            this.deferredStatements = deferredStatements;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return number of executed statements, excluding data files
+         */
+        public long statements() {
+            return statements;
+        }
+
+        /**
+         * @return number of inserted rows
+         */
+        public long rows() {
+            return rows;
+        }
+
+        public long deferredStatements() {
+            return deferredStatements;
+        }
+
+        public long elapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("statements %d, rows %d, deferred %d, elapsed %d ms",
+                    statements, rows, deferredStatements, elapsedMillis);
+        }
+    }
+
+    /**
+     * A unit of work of a loader.
+     */
+    @FunctionalInterface
+    interface Load {
+
+        /**
+         * @return number of inserted rows
+         */
+        long load(Connection connection) throws SQLException, IOException;
+    }
+
+    static final Load END_OF_LOADS = (connection) -> 0L;
+
+    final IConnectionFactory connectionFactory;
+    int parallel = 4;
+    int batchSize = 100;
+
+    final AtomicLong rows = new AtomicLong();
+    long statements;
+    final List<String> deferred = new ArrayList<>();
+
+    /**
+     * Create a restore.
+     *
+     * @param connectionFactory creates a connection per loader
+     */
+    public ParallelRestore(IConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    /**
+     * @param parallel number of loaders, and connections
+     */
+    public void setParallel(int parallel) {
+        this.parallel = Math.max(1, parallel);
+    }
+
+    /**
+     * @param batchSize number of statements, or rows of a data file per
+     * executed batch
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    //---
+    /**
+     * Restore a script.
+     *
+     * @param reader the script
+     * @return the result
+     * @throws SQLException
+     * @throws IOException
+     */
+    public Result restoreScript(Reader reader) throws SQLException, IOException {
+        final long startMillis = System.currentTimeMillis();
+        try (final Connection connection = this.connectionFactory.createConnection()) {
+            connection.setAutoCommit(true);
+            runLoaders((queue, loaders) -> {
+                executeScript(connection, reader, queue, loaders);
+            });
+            executeDeferred(connection);
+        }
+        return new Result(this.statements, this.rows.get(), this.deferred.size(), System.currentTimeMillis() - startMillis);
+    }
+
+    /**
+     * Restore the files of a manifest written by {@link ParallelScriptExport}.
+     *
+     * @param manifest the manifest file
+     * @return the result
+     * @throws SQLException
+     * @throws IOException
+     */
+    public Result restoreManifest(Path manifest) throws SQLException, IOException {
+        final long startMillis = System.currentTimeMillis();
+        final List<Entry> entries = ParallelScriptExport.readManifest(manifest);
+        try (final Connection connection = this.connectionFactory.createConnection()) {
+            connection.setAutoCommit(true);
+            int from = 0;
+            while (from < entries.size()) {
+                int to = from + 1;
+                while (to < entries.size() && sameGroup(entries.get(from), entries.get(to))) {
+                    to += 1;
+                }
+                final List<Entry> group = entries.subList(from, to);
+                runLoaders((queue, loaders) -> {
+                    for (Entry entry : group) {
+                        final Path file = manifest.resolveSibling(entry.file());
+                        if (entry.kind() == Kind.SCHEMA) {
+                            try (final VerifiedFile verifiedFile = new VerifiedFile(file, entry, SCRIPT_ZIP_ENTRY);
+                                    final Reader reader = new InputStreamReader(verifiedFile.inputStream(), StandardCharsets.UTF_8)) {
+                                executeScript(connection, reader, queue, loaders);
+                                verifiedFile.verify();
+                            }
+                        } else if (!put(queue, (loaderConnection) -> loadDataFile(loaderConnection, file, entry), loaders)) {
+                            break;
+                        }
+                    }
+                });
+                from = to;
+            }
+            executeDeferred(connection);
+        }
+        return new Result(this.statements, this.rows.get(), this.deferred.size(), System.currentTimeMillis() - startMillis);
+    }
+
+    /**
+     * @return true if the files are loaded concurrently, all data files, as
+     * foreign keys are created after loading, else the delta files of the same
+     * kind, and restore level, as foreign keys exist already
+     */
+    static boolean sameGroup(Entry first, Entry entry) {
+        if (first.kind() != entry.kind()) {
+            return false;
+        }
+        return first.kind() == Kind.SCHEMA || first.kind() == Kind.DATA || first.restoreLevel() == entry.restoreLevel();
+    }
+
+    /**
+     * Producer of loads.
+     */
+    @FunctionalInterface
+    interface Producer {
+
+        void produce(BlockingQueue<Load> queue, List<Future<Void>> loaders) throws SQLException, IOException;
+    }
+
+    /**
+     * Run the loaders, taking the loads of the producer, until the end of
+     * loads.
+     */
+    void runLoaders(Producer producer) throws SQLException, IOException {
+        final BlockingQueue<Load> queue = new ArrayBlockingQueue<>(this.parallel * 2);
+        final ExecutorService executorService = Executors.newFixedThreadPool(this.parallel, (r) -> {
+            final Thread t = new Thread(r, "ParallelRestore");
+            t.setDaemon(true);
+            return t;
+        });
+        final CompletionService<Void> completionService = new ExecutorCompletionService<>(executorService);
+        try {
+            final List<Future<Void>> loaders = new ArrayList<>();
+            for (int i = 0; i < this.parallel; i++) {
+                loaders.add(completionService.submit(() -> {
+                    load(queue);
+                    return null;
+                }));
+            }
+            try {
+                producer.produce(queue, loaders);
+            } finally {
+                put(queue, END_OF_LOADS, loaders);
+            }
+            // in order of completion, thus a failed loader is seen first
+            for (int i = 0; i < loaders.size(); i++) {
+                get(completionService);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Execute loads taken from queue, until the end of loads.
+     */
+    void load(BlockingQueue<Load> queue) throws SQLException, IOException, InterruptedException {
+        try (final Connection connection = this.connectionFactory.createConnection()) {
+            connection.setAutoCommit(false);
+            while (true) {
+                final Load load = queue.take();
+                if (load == END_OF_LOADS) {
+                    // let the other loaders see the end too
+                    queue.put(load);
+                    break;
+                }
+                this.rows.addAndGet(load.load(connection));
+                connection.commit();
+            }
+        }
+    }
+
+    /**
+     * Execute the statements of a script, putting batches of consecutive
+     * {@code INSERT} statements of a table into the queue.
+     */
+    void executeScript(Connection connection, Reader reader, BlockingQueue<Load> queue, List<Future<Void>> loaders) throws SQLException, IOException {
+        final ScriptReader scriptReader = new ScriptReader(reader);
+        scriptReader.setSkipRemarks(true);
+        boolean afterData = false;
+        List<String> batch = new ArrayList<>();
+        String batchTable = null;
+        try (final Statement statement = connection.createStatement()) {
+            String sql;
+            while ((sql = scriptReader.readStatement()) != null) {
+                sql = sql.trim();
+                if (sql.isEmpty()) {
+                    continue;
+                }
+                this.statements += 1;
+                final StatementKind kind = classify(sql);
+                if (kind == StatementKind.DATA) {
+                    final String table = insertTable(sql);
+                    if (!table.equals(batchTable) || batch.size() >= this.batchSize) {
+                        if (!putBatch(queue, batch, loaders)) {
+                            return;
+                        }
+                        batch = new ArrayList<>();
+                        batchTable = table;
+                    }
+                    batch.add(sql);
+                    afterData = true;
+                } else if (kind == StatementKind.DEFERRED || (kind == StatementKind.DEFERRED_AFTER_DATA && afterData)) {
+                    this.deferred.add(sql);
+                } else {
+                    statement.execute(sql);
+                }
+            }
+        }
+        putBatch(queue, batch, loaders);
+    }
+
+    boolean putBatch(BlockingQueue<Load> queue, List<String> batch, List<Future<Void>> loaders) throws IOException {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        return put(queue, (connection) -> {
+            try (final Statement statement = connection.createStatement()) {
+                for (String sql : batch) {
+                    statement.addBatch(sql);
+                }
+                long count = 0L;
+                for (int updateCount : statement.executeBatch()) {
+                    count += Math.max(0, updateCount);
+                }
+                return count;
+            }
+        }, loaders);
+    }
+
+    void executeDeferred(Connection connection) throws SQLException {
+        logger.info("Execute {} deferred statements", this.deferred.size());
+        try (final Statement statement = connection.createStatement()) {
+            for (String sql : this.deferred) {
+                logger.debug("Execute deferred sql {}", sql);
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * Insert the rows of a data file, merge the rows of an upsert file, or
+     * delete the keys of a delete file, committing each batch.
+     */
+    long loadDataFile(Connection connection, Path file, Entry entry) throws SQLException, IOException {
+        if (DataFormat.of(entry.file()) == DataFormat.BINARY) {
+            return loadBinaryFile(connection, file, entry);
+        }
+        long count = 0L;
+        try (final VerifiedFile verifiedFile = new VerifiedFile(file, entry, CsvStreams.CSV_ZIP_ENTRY);
+                final Reader reader = new InputStreamReader(verifiedFile.inputStream(), StandardCharsets.UTF_8);
+                final ResultSet rs = new Csv().read(reader, null)) {
+            final ResultSetMetaData meta = rs.getMetaData();
+            final List<String> columns = new ArrayList<>();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                columns.add(ParallelScriptExport.quoteIdentifier(meta.getColumnLabel(i)));
+            }
+            try (final PreparedStatement ps = connection.prepareStatement(dataSql(entry, columns))) {
+                int pending = 0;
+                while (rs.next()) {
+                    for (int i = 1; i <= columns.size(); i++) {
+                        ps.setString(i, rs.getString(i));
+                    }
+                    ps.addBatch();
+                    pending += 1;
+                    if (pending >= this.batchSize) {
+                        ps.executeBatch();
+                        connection.commit();
+                        count += pending;
+                        pending = 0;
+                    }
+                }
+                ps.executeBatch();
+                count += pending;
+            }
+            verifiedFile.verify();
+        }
+        logger.info("Loaded {} rows of {}", count, entry);
+        return count;
+    }
+
+    /**
+     * Insert the rows of a binary data file by typed setters, committing each
+     * batch.
+     */
+    long loadBinaryFile(Connection connection, Path file, Entry entry) throws SQLException, IOException {
+        long count = 0L;
+        try (final VerifiedFile verifiedFile = new VerifiedFile(file, entry, CsvStreams.CSV_ZIP_ENTRY);
+                final BinaryDump.Reader reader = new BinaryDump.Reader(verifiedFile.inputStream())) {
+            final List<String> columns = new ArrayList<>();
+            for (String columnName : reader.columnNames()) {
+                columns.add(ParallelScriptExport.quoteIdentifier(columnName));
+            }
+            try (final PreparedStatement ps = connection.prepareStatement(dataSql(entry, columns))) {
+                int pending = 0;
+                while (reader.next(ps)) {
+                    ps.addBatch();
+                    pending += 1;
+                    if (pending >= this.batchSize) {
+                        ps.executeBatch();
+                        connection.commit();
+                        count += pending;
+                        pending = 0;
+                    }
+                }
+                ps.executeBatch();
+                count += pending;
+            }
+            verifiedFile.verify();
+        }
+        logger.info("Loaded {} rows of {}", count, entry);
+        return count;
+    }
+
+    /**
+     * @return SQL having a parameter per column of a file, merging by primary
+     * key for an upsert file
+     */
+    static String dataSql(Entry entry, List<String> quotedColumns) {
+        final String table = ParallelScriptExport.quoteIdentifier(entry.tableSchema()) + "."
+                + ParallelScriptExport.quoteIdentifier(entry.tableName());
+        if (entry.kind() == Kind.DELETE) {
+            return String.format("DELETE FROM %s WHERE %s", table,
+                    quotedColumns.stream().map((c) -> c + " = ?").collect(Collectors.joining(" AND ")));
+        }
+        return String.format("%s %s(%s) VALUES(%s)",
+                entry.kind() == Kind.UPSERT ? "MERGE INTO" : "INSERT INTO", table,
+                String.join(", ", quotedColumns),
+                String.join(", ", Collections.nCopies(quotedColumns.size(), "?")));
+    }
+
+    /**
+     * A file of a manifest, computing the checksum of the file while reading.
+     * <p>
+     * The file is closed by {@link #close()} only, as a reader may close its
+     * stream at end of data, before the checksum is verified.
+     */
+    static class VerifiedFile implements AutoCloseable {
+
+        final Entry entry;
+        final InputStream fileInputStream;
+        final DigestInputStream digestInputStream;
+        final InputStream inputStream;
+
+        VerifiedFile(Path file, Entry entry, String zipEntryName) throws IOException {
+            this.entry = entry;
+            this.fileInputStream = Files.newInputStream(file);
+            this.digestInputStream = new DigestInputStream(new FilterInputStream(this.fileInputStream) {
+                @Override
+                public void close() {
+                    // keep open for verify
+                }
+            }, PartitionedCsvExport.createMessageDigest());
+            try {
+                this.inputStream = CsvStreams.wrapInputStream(this.digestInputStream, entry.compression(), zipEntryName);
+            } catch (IOException ex) {
+                this.fileInputStream.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * @return decompressed stream of the file
+         */
+        InputStream inputStream() {
+            return inputStream;
+        }
+
+        /**
+         * Verify the checksum of the file.
+         *
+         * @throws IOException if the checksum does not match
+         */
+        void verify() throws IOException {
+            // read the bytes not needed by the decompression, eg. a trailer
+            final byte[] buffer = new byte[8192];
+            while (this.digestInputStream.read(buffer) >= 0) {
+                // digest only
+            }
+            final MessageDigest messageDigest = this.digestInputStream.getMessageDigest();
+            final String checksum = PartitionedCsvExport.toHex(messageDigest.digest());
+            if (!checksum.equals(this.entry.checksum())) {
+                throw new IOException(String.format("Checksum mismatch of %s, expected %s, actual %s",
+                        this.entry.file(), this.entry.checksum(), checksum));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.inputStream.close();
+            } finally {
+                this.fileInputStream.close();
+            }
+        }
+    }
+
+    //---
+    static StatementKind classify(String sql) {
+        if (INSERT_PATTERN.matcher(sql).find()) {
+            return LOB_STREAM_TABLE.equalsIgnoreCase(insertTable(sql)) ? StatementKind.DDL : StatementKind.DATA;
+        } else if (DEFERRED_PATTERN.matcher(sql).find() && !PRIMARY_KEY_PATTERN.matcher(sql).find()) {
+            return StatementKind.DEFERRED;
+        } else if (DEFERRED_AFTER_DATA_PATTERN.matcher(sql).find()) {
+            return StatementKind.DEFERRED_AFTER_DATA;
+        }
+        return StatementKind.DDL;
+    }
+
+    /**
+     * @return the table of an {@code INSERT} statement, as written
+     */
+    static String insertTable(String sql) {
+        final Matcher matcher = INSERT_PATTERN.matcher(sql);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * @return false if a loader failed, as a loader is done before the end of
+     * loads only if it failed
+     */
+    static boolean put(BlockingQueue<Load> queue, Load load, List<Future<Void>> loaders) throws IOException {
+        try {
+            while (!queue.offer(load, 100L, TimeUnit.MILLISECONDS)) {
+                if (loaders.stream().anyMatch(Future::isDone)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("put", ex);
+        }
+    }
+
+    static void get(CompletionService<Void> completionService) throws SQLException, IOException {
+        try {
+            completionService.take().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("get", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            } else if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("load", ex.getCause());
+        }
+    }
+
+    /**
+     * @param name a file name
+     * @param compression compression of the script
+     * @param charset charset of the script
+     * @return buffered reader of a script
+     * @throws IOException
+     */
+    public static Reader openScript(String name, Compression compression, Charset charset) throws IOException {
+        return new InputStreamReader(CsvStreams.openInputStream(name, compression, SCRIPT_ZIP_ENTRY), charset);
+    }
+}
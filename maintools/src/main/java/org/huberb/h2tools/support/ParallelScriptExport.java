@@ -0,0 +1,641 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.h2.tools.Csv;
+import org.h2.tools.SimpleResultSet;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Export a database into a schema script, and a CSV data file per table, in
+ * parallel.
+ * <p>
+ * The schema is written by {@code SCRIPT NODATA} to {@code name.schema.sql}.
+ * The rows of each table are written by its own connection to
+ * {@code name.data-0000.csv}, {@code name.data-0001.csv}, ... The tables are
+ * exported concurrently, the largest tables first. As each table is read by
+ * its own transaction, the export is consistent only if the database is not
+ * modified meanwhile. Using {@link DataFormat#BINARY} the rows are written
+ * by {@link BinaryDump} to {@code name.data-0000.bin}, ... instead.
+ * <p>
+ * A manifest {@code name.manifest.csv} lists the files in restore order,
+ * their tables, row counts, sizes, and SHA-256 checksums. The restore level of
+ * a table is greater than the levels of the tables it references by foreign
+ * keys, thus tables of the same level can be restored concurrently.
+ *
+ * @author pi
+ */
+public class ParallelScriptExport {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelScriptExport.class);
+
+    /**
+     * Kind of an exported file.
+     */
+    public enum Kind {
+        SCHEMA, DATA,
+        /**
+         * Rows merged by primary key, written by {@link IncrementalExport}.
+         */
+        UPSERT,
+        /**
+         * Primary keys of deleted rows, written by {@link IncrementalExport}.
+         */
+        DELETE;
+    }
+
+    /**
+     * Format of the data files.
+     */
+    public enum DataFormat {
+        /**
+         * CSV by {@link Csv}, compressed as a stream.
+         */
+        CSV("csv"),
+        /**
+         * Typed rows by {@link BinaryDump}, compressed per block.
+         */
+        BINARY("bin");
+
+        final String suffix;
+
+        DataFormat(String suffix) {
+            this.suffix = suffix;
+        }
+
+        public String suffix() {
+            return suffix;
+        }
+
+        /**
+         * @param file a data file name
+         * @return the format by the suffix of the file name
+         */
+        public static DataFormat of(String file) {
+            return file.endsWith("." + BINARY.suffix) ? BINARY : CSV;
+        }
+    }
+
+    /**
+     * An exported file.
+     */
+    public static class Entry {
+
+        final String file;
+        final Kind kind;
+        final String tableSchema;
+        final String tableName;
+        final int restoreLevel;
+        final Compression compression;
+        final long rows;
+        final long bytes;
+        final String checksum;
+
+        public Entry(String file, Kind kind, String tableSchema, String tableName, int restoreLevel,
+                Compression compression, long rows, long bytes, String checksum) {
+            this.file = file;
+            this.kind = kind;
+            this.tableSchema = tableSchema;
+            this.tableName = tableName;
+            this.restoreLevel = restoreLevel;
+            this.compression = compression;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return file name, relative to the manifest
+         */
+        public String file() {
+            return file;
+        }
+
+        public Kind kind() {
+            return kind;
+        }
+
+        /**
+         * @return schema of the table of a data file, or null
+         */
+        public String tableSchema() {
+            return tableSchema;
+        }
+
+        /**
+         * @return table of a data file, or null
+         */
+        public String tableName() {
+            return tableName;
+        }
+
+        /**
+         * @return 0 for the schema script, or 1 + the level of the referenced
+         * tables
+         */
+        public int restoreLevel() {
+            return restoreLevel;
+        }
+
+        public Compression compression() {
+            return compression;
+        }
+
+        public long rows() {
+            return rows;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * @return hex encoded SHA-256 checksum of the file
+         */
+        public String checksum() {
+            return checksum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s %s.%s, level %d, rows %d, bytes %d, checksum %s",
+                    file, kind, tableSchema, tableName, restoreLevel, rows, bytes, checksum);
+        }
+    }
+
+    /**
+     * Result of an export.
+     */
+    public static class Result {
+
+        final List<Entry> entries;
+        final Path manifest;
+        final long elapsedMillis;
+
+        Result(List<Entry> entries, Path manifest, long elapsedMillis) {
+            this.entries = entries;
+            this.manifest = manifest;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return the files in restore order
+         */
+        public List<Entry> entries() {
+            return entries;
+        }
+
+        public Path manifest() {
+            return manifest;
+        }
+
+        /**
+         * @return number of written rows of all tables
+         */
+        public long rows() {
+            return this.entries.stream().mapToLong(Entry::rows).sum();
+        }
+
+        public long elapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rows %d, files %d, elapsed %d ms, manifest %s",
+                    rows(), entries.size(), elapsedMillis, manifest);
+        }
+    }
+
+    /**
+     * A table to export.
+     */
+    static class Table {
+
+        final String schema;
+        final String name;
+        final long rowCountEstimate;
+        int restoreLevel;
+
+        Table(String schema, String name, long rowCountEstimate) {
+            this.schema = schema;
+            this.name = name;
+            this.rowCountEstimate = rowCountEstimate;
+        }
+
+        String qualifiedName() {
+            return quoteIdentifier(this.schema) + "." + quoteIdentifier(this.name);
+        }
+    }
+
+    final IConnectionFactory connectionFactory;
+    final Path target;
+    int parallel = 4;
+    String schema;
+    Set<String> tables;
+    String scriptOptions = "";
+    Compression compression = Compression.NONE;
+    DataFormat dataFormat = DataFormat.CSV;
+
+    /**
+     * Create an export.
+     *
+     * @param connectionFactory creates a connection per exported table
+     * @param target the file name, eg. name.sql, the files are named after
+     */
+    public ParallelScriptExport(IConnectionFactory connectionFactory, Path target) {
+        this.connectionFactory = connectionFactory;
+        this.target = target;
+    }
+
+    /**
+     * @param parallel number of concurrently exported tables, and connections
+     */
+    public void setParallel(int parallel) {
+        this.parallel = Math.max(1, parallel);
+    }
+
+    /**
+     * @param schema export only the tables of this schema, or null for all
+     * schemas
+     */
+    public void setSchema(String schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * @param tables export the data of these tables only, given by upper case
+     * names, or null for all tables
+     */
+    public void setTables(Set<String> tables) {
+        this.tables = tables;
+    }
+
+    /**
+     * @param scriptOptions options of the {@code SCRIPT} of the schema, eg.
+     * {@code NOPASSWORDS DROP}
+     */
+    public void setScriptOptions(String scriptOptions) {
+        this.scriptOptions = scriptOptions != null ? scriptOptions : "";
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression != null ? compression : Compression.NONE;
+    }
+
+    /**
+     * @param dataFormat format of the data files, the blocks of
+     * {@link DataFormat#BINARY} support compression NONE, LZF, DEFLATE only
+     */
+    public void setDataFormat(DataFormat dataFormat) {
+        this.dataFormat = dataFormat != null ? dataFormat : DataFormat.CSV;
+    }
+
+    //---
+    /**
+     * @param target the file name, eg. name.sql
+     * @return the file name of the schema script, eg. name.schema.sql
+     */
+    public static Path schemaFile(Path target) {
+        return target.resolveSibling(baseName(target) + ".schema.sql");
+    }
+
+    /**
+     * @param target the file name, eg. name.sql
+     * @param index index of a data file
+     * @return the file name of a data file, eg. name.data-0000.csv
+     */
+    public static Path dataFile(Path target, int index) {
+        return dataFile(target, index, DataFormat.CSV);
+    }
+
+    /**
+     * @param target the file name, eg. name.sql
+     * @param index index of a data file
+     * @param dataFormat format of the data file
+     * @return the file name of a data file, eg. name.data-0000.bin
+     */
+    public static Path dataFile(Path target, int index, DataFormat dataFormat) {
+        return target.resolveSibling(baseName(target) + String.format(".data-%04d.%s", index, dataFormat.suffix));
+    }
+
+    static String baseName(Path target) {
+        final String fileName = target.getFileName().toString();
+        final int dot = fileName.indexOf('.', 1);
+        return dot >= 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+    /**
+     * Export the schema, and all tables.
+     *
+     * @return the result
+     * @throws SQLException
+     * @throws IOException
+     */
+    public Result execute() throws SQLException, IOException {
+        final long startMillis = System.currentTimeMillis();
+        if (this.dataFormat == DataFormat.BINARY) {
+            // fail before writing any file
+            BinaryDump.compressAlgorithm(this.compression);
+        }
+        final List<Table> exportedTables = queryTables();
+        final List<Entry> entries = new ArrayList<>();
+        entries.add(exportSchema());
+        logger.info("Export {} tables by {} connections", exportedTables.size(), this.parallel);
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(this.parallel, (r) -> {
+            final Thread t = new Thread(r, "ParallelScriptExport");
+            t.setDaemon(true);
+            return t;
+        });
+        final List<Entry> dataEntries = new ArrayList<>(Collections.nCopies(exportedTables.size(), null));
+        try {
+            // submit the largest tables first, keeping the restore order of the files
+            final List<Integer> submitOrder = new ArrayList<>();
+            for (int i = 0; i < exportedTables.size(); i++) {
+                submitOrder.add(i);
+            }
+            submitOrder.sort(Comparator.comparingLong((Integer i) -> exportedTables.get(i).rowCountEstimate).reversed());
+            final Map<Integer, Future<Entry>> futures = new HashMap<>();
+            for (Integer i : submitOrder) {
+                futures.put(i, executorService.submit(() -> exportTable(exportedTables.get(i), dataFile(this.target, i, this.dataFormat))));
+            }
+            Exception failure = null;
+            for (int i = 0; i < exportedTables.size(); i++) {
+                try {
+                    dataEntries.set(i, get(futures.get(i)));
+                } catch (SQLException | IOException ex) {
+                    failure = failure != null ? failure : ex;
+                }
+            }
+            if (failure != null) {
+                Files.deleteIfExists(schemaFile(this.target));
+                for (int i = 0; i < exportedTables.size(); i++) {
+                    Files.deleteIfExists(dataFile(this.target, i, this.dataFormat));
+                }
+                if (failure instanceof SQLException) {
+                    throw (SQLException) failure;
+                }
+                throw (IOException) failure;
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        entries.addAll(dataEntries);
+        final Path manifest = PartitionedCsvExport.manifestFile(this.target);
+        writeManifest(manifest, entries);
+        return new Result(Collections.unmodifiableList(entries), manifest, System.currentTimeMillis() - startMillis);
+    }
+
+    /**
+     * @return the exported tables in restore order
+     */
+    List<Table> queryTables() throws SQLException {
+        final List<Table> result = new ArrayList<>();
+        final Map<String, Table> byName = new HashMap<>();
+        final Map<String, List<String>> referencedTables = new HashMap<>();
+        try (final Connection connection = this.connectionFactory.createConnection()) {
+            final String sql = "SELECT TABLE_SCHEMA, TABLE_NAME, ROW_COUNT_ESTIMATE FROM INFORMATION_SCHEMA.TABLES "
+                    + "WHERE TABLE_TYPE = 'TABLE' AND TABLE_SCHEMA <> 'INFORMATION_SCHEMA' "
+                    + "AND (CAST(? AS VARCHAR) IS NULL OR TABLE_SCHEMA = ?) "
+                    + "ORDER BY TABLE_SCHEMA, TABLE_NAME";
+            try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+                ps.setString(1, this.schema);
+                ps.setString(2, this.schema);
+                try (final ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        final Table table = new Table(rs.getString(1), rs.getString(2), rs.getLong(3));
+                        if (this.tables == null || this.tables.contains(table.name.toUpperCase())) {
+                            result.add(table);
+                            byName.put(table.qualifiedName(), table);
+                        }
+                    }
+                }
+            }
+            try (final Statement statement = connection.createStatement();
+                    final ResultSet rs = statement.executeQuery("SELECT DISTINCT PKTABLE_SCHEMA, PKTABLE_NAME, FKTABLE_SCHEMA, FKTABLE_NAME "
+                            + "FROM INFORMATION_SCHEMA.CROSS_REFERENCES")) {
+                while (rs.next()) {
+                    final String referenced = quoteIdentifier(rs.getString(1)) + "." + quoteIdentifier(rs.getString(2));
+                    final String referencing = quoteIdentifier(rs.getString(3)) + "." + quoteIdentifier(rs.getString(4));
+                    if (!referenced.equals(referencing)) {
+                        referencedTables.computeIfAbsent(referencing, (k) -> new ArrayList<>()).add(referenced);
+                    }
+                }
+            }
+        }
+        final Map<String, Integer> levels = new HashMap<>();
+        for (Table table : result) {
+            table.restoreLevel = restoreLevel(table.qualifiedName(), referencedTables, levels, new HashSet<>());
+        }
+        result.sort(Comparator.comparingInt((Table t) -> t.restoreLevel));
+        return result;
+    }
+
+    /**
+     * @return 1 for a table referencing no table, else 1 + the maximum level
+     * of the referenced tables, ignoring cyclic references
+     */
+    static int restoreLevel(String table, Map<String, List<String>> referencedTables, Map<String, Integer> levels, Set<String> visiting) {
+        final Integer known = levels.get(table);
+        if (known != null) {
+            return known;
+        }
+        visiting.add(table);
+        int level = 1;
+        for (String referenced : referencedTables.getOrDefault(table, Collections.emptyList())) {
+            if (visiting.contains(referenced)) {
+                logger.warn("Cyclic foreign key reference of {} to {}", table, referenced);
+                continue;
+            }
+            level = Math.max(level, 1 + restoreLevel(referenced, referencedTables, levels, visiting));
+        }
+        visiting.remove(table);
+        levels.put(table, level);
+        return level;
+    }
+
+    Entry exportSchema() throws SQLException, IOException {
+        final Path file = schemaFile(this.target);
+        final StringBuilder sql = new StringBuilder("SCRIPT NODATA");
+        if (!this.scriptOptions.isEmpty()) {
+            sql.append(' ').append(this.scriptOptions);
+        }
+        sql.append(" TO '").append(file.toAbsolutePath().toString().replace("'", "''")).append('\'');
+        if (this.compression != Compression.NONE) {
+            sql.append(" COMPRESSION ").append(this.compression.name());
+        }
+        sql.append(" CHARSET 'UTF-8'");
+        if (this.schema != null) {
+            sql.append(" SCHEMA ").append(this.schema);
+        }
+        logger.info("Execute sql {}", sql);
+        try (final Connection connection = this.connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute(sql.toString());
+        }
+        final MessageDigest messageDigest = PartitionedCsvExport.createMessageDigest();
+        try (final InputStream in = Files.newInputStream(file)) {
+            final byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                messageDigest.update(buffer, 0, n);
+            }
+        }
+        return new Entry(file.getFileName().toString(), Kind.SCHEMA, null, null, 0, this.compression,
+                0L, Files.size(file), PartitionedCsvExport.toHex(messageDigest.digest()));
+    }
+
+    Entry exportTable(Table table, Path file) throws SQLException, IOException {
+        final String sql = String.format("SELECT * FROM %s", table.qualifiedName());
+        final MessageDigest messageDigest = PartitionedCsvExport.createMessageDigest();
+        final long rows;
+        try (final Connection connection = this.connectionFactory.createConnection()) {
+            connection.setAutoCommit(false);
+            try (final Statement statement = connection.createStatement()) {
+                statement.setFetchSize(1000);
+                if (this.dataFormat == DataFormat.BINARY) {
+                    try (final ResultSet rs = statement.executeQuery(sql);
+                            final BinaryDump.Writer writer = new BinaryDump.Writer(
+                                    CsvStreams.wrapOutputStream(new DigestOutputStream(new FileOutputStream(file.toFile()), messageDigest), Compression.NONE),
+                                    this.compression)) {
+                        rows = writer.write(rs);
+                    }
+                    connection.rollback();
+                    return createDataEntry(table, file, Compression.NONE, rows, messageDigest);
+                }
+                final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                        CsvStreams.wrapOutputStream(new DigestOutputStream(new FileOutputStream(file.toFile()), messageDigest), this.compression),
+                        StandardCharsets.UTF_8), CsvStreams.BUFFER_SIZE);
+                // closes writer, and result set
+                rows = new Csv().write(writer, statement.executeQuery(sql));
+            }
+            connection.rollback();
+        }
+        return createDataEntry(table, file, this.compression, rows, messageDigest);
+    }
+
+    Entry createDataEntry(Table table, Path file, Compression compression, long rows, MessageDigest messageDigest) throws IOException {
+        final Entry entry = new Entry(file.getFileName().toString(), Kind.DATA, table.schema, table.name, table.restoreLevel,
+                compression, rows, Files.size(file), PartitionedCsvExport.toHex(messageDigest.digest()));
+        logger.info("Written {}", entry);
+        return entry;
+    }
+
+    static Entry get(Future<Entry> future) throws SQLException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("get", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            } else if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("get", ex.getCause());
+        }
+    }
+
+    static String quoteIdentifier(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    //---
+    /**
+     * Write a manifest.
+     *
+     * @param manifest the manifest file
+     * @param entries the files in restore order
+     * @throws IOException
+     */
+    public static void writeManifest(Path manifest, List<Entry> entries) throws IOException {
+        final SimpleResultSet simpleResultSet = new SimpleResultSet();
+        simpleResultSet.addColumn("FILE", Types.VARCHAR, Integer.MAX_VALUE, 0);
+        simpleResultSet.addColumn("KIND", Types.VARCHAR, 10, 0);
+        simpleResultSet.addColumn("TABLE_SCHEMA", Types.VARCHAR, Integer.MAX_VALUE, 0);
+        simpleResultSet.addColumn("TABLE_NAME", Types.VARCHAR, Integer.MAX_VALUE, 0);
+        simpleResultSet.addColumn("RESTORE_LEVEL", Types.INTEGER, 10, 0);
+        simpleResultSet.addColumn("COMPRESSION", Types.VARCHAR, 10, 0);
+        simpleResultSet.addColumn("ROW_COUNT", Types.BIGINT, 19, 0);
+        simpleResultSet.addColumn("BYTES", Types.BIGINT, 19, 0);
+        simpleResultSet.addColumn("CHECKSUM", Types.VARCHAR, 64, 0);
+        for (Entry entry : entries) {
+            simpleResultSet.addRow(entry.file, entry.kind.name(), entry.tableSchema, entry.tableName, entry.restoreLevel,
+                    entry.compression.name(), entry.rows, entry.bytes, entry.checksum);
+        }
+        try {
+            new Csv().write(manifest.toString(), simpleResultSet, "UTF-8");
+        } catch (SQLException sqlex) {
+            throw new IOException("writeManifest " + manifest, sqlex);
+        }
+    }
+
+    /**
+     * Read a manifest.
+     *
+     * @param manifest the manifest file
+     * @return the files in restore order
+     * @throws IOException
+     */
+    public static List<Entry> readManifest(Path manifest) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        try (final ResultSet rs = new Csv().read(manifest.toString(), null, "UTF-8")) {
+            while (rs.next()) {
+                entries.add(new Entry(rs.getString("FILE"), Kind.valueOf(rs.getString("KIND")),
+                        rs.getString("TABLE_SCHEMA"), rs.getString("TABLE_NAME"), rs.getInt("RESTORE_LEVEL"),
+                        Compression.valueOf(rs.getString("COMPRESSION")),
+                        rs.getLong("ROW_COUNT"), rs.getLong("BYTES"), rs.getString("CHECKSUM")));
+            }
+        } catch (SQLException sqlex) {
+            throw new IOException("readManifest " + manifest, sqlex);
+        }
+        return entries;
+    }
+}
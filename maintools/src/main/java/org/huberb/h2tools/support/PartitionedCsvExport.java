@@ -0,0 +1,566 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.h2.tools.Csv;
+import org.h2.tools.SimpleResultSet;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.jdbc.KeyRanges;
+import org.huberb.h2tools.jdbc.KeyRanges.KeyRange;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Export a query into several CSV files in parallel.
+ * <p>
+ * The query is split into ranges of a numeric partition key. Each range is
+ * queried by its own connection and thread, and written to its own files.
+ * Rows having a null key belong to the first range. The files of a range are
+ * optionally rolled when exceeding a maximum size. The files are named
+ * {@code name.part-0000.csv}, {@code name.part-0001.csv}, ... in key order.
+ * <p>
+ * A manifest {@code name.manifest.csv} lists the files, their key ranges, row
+ * counts, sizes, and SHA-256 checksums.
+ *
+ * @author pi
+ */
+public class PartitionedCsvExport {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionedCsvExport.class);
+
+    static final String CHECKSUM_ALGORITHM = "SHA-256";
+    static final Set<String> COMPRESSION_EXTENSIONS = Set.of(".gz", ".zip", ".lzf", ".deflate");
+
+    /**
+     * A written file.
+     */
+    public static class Part {
+
+        final String file;
+        final int partition;
+        final long keyLow;
+        final long keyHigh;
+        final long rows;
+        final long bytes;
+        final String checksum;
+
+        public Part(String file, int partition, long keyLow, long keyHigh, long rows, long bytes, String checksum) {
+            this.file = file;
+            this.partition = partition;
+            this.keyLow = keyLow;
+            this.keyHigh = keyHigh;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return file name, relative to the manifest
+         */
+        public String file() {
+            return file;
+        }
+
+        public int partition() {
+            return partition;
+        }
+
+        public long keyLow() {
+            return keyLow;
+        }
+
+        public long keyHigh() {
+            return keyHigh;
+        }
+
+        public long rows() {
+            return rows;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * @return hex encoded SHA-256 checksum of the file
+         */
+        public String checksum() {
+            return checksum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s partition %d, keys [%d, %d), rows %d, bytes %d, checksum %s",
+                    file, partition, keyLow, keyHigh, rows, bytes, checksum);
+        }
+    }
+
+    /**
+     * Result of an export.
+     */
+    public static class Result {
+
+        final List<Part> parts;
+        final Path manifest;
+        final long elapsedMillis;
+
+        Result(List<Part> parts, Path manifest, long elapsedMillis) {
+            this.parts = parts;
+            this.manifest = manifest;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public List<Part> parts() {
+            return parts;
+        }
+
+        public Path manifest() {
+            return manifest;
+        }
+
+        /**
+         * @return number of written rows of all files
+         */
+        public long rows() {
+            return this.parts.stream().mapToLong(Part::rows).sum();
+        }
+
+        public long elapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rows %d, files %d, elapsed %d ms, manifest %s",
+                    rows(), parts.size(), elapsedMillis, manifest);
+        }
+    }
+
+    final IConnectionFactory connectionFactory;
+    final String query;
+    final String partitionKey;
+    final Path target;
+    final Map<String, String> options;
+    int partitions = 4;
+    long maxFileSize;
+    Compression compression = Compression.NONE;
+
+    /**
+     * Create an export.
+     *
+     * @param connectionFactory creates a connection per partition
+     * @param query the exported query
+     * @param partitionKey numeric column of the query
+     * @param target the file name, eg. name.csv, the files are named after
+     * @param options CSV options
+     */
+    public PartitionedCsvExport(IConnectionFactory connectionFactory, String query, String partitionKey, Path target, Map<String, String> options) {
+        this.connectionFactory = connectionFactory;
+        this.query = query;
+        this.partitionKey = partitionKey;
+        this.target = target;
+        this.options = options;
+    }
+
+    /**
+     * @param partitions number of key ranges, and threads
+     */
+    public void setPartitions(int partitions) {
+        this.partitions = Math.max(1, partitions);
+    }
+
+    /**
+     * @param maxFileSize number of characters after which a file is rolled,
+     * or 0 for not rolling
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = Math.max(0L, maxFileSize);
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    //---
+    /**
+     * @param target the file name, eg. name.csv
+     * @param index index of a part
+     * @return the file name of a part, eg. name.part-0000.csv
+     */
+    public static Path partFile(Path target, int index) {
+        return target.resolveSibling(insertBeforeExtension(target, String.format(".part-%04d", index)));
+    }
+
+    /**
+     * @param target the file name, eg. name.csv
+     * @return the file name of the manifest, eg. name.manifest.csv
+     */
+    public static Path manifestFile(Path target) {
+        final String fileName = target.getFileName().toString();
+        final int dot = extensionStart(fileName);
+        return target.resolveSibling((dot >= 0 ? fileName.substring(0, dot) : fileName) + ".manifest.csv");
+    }
+
+    static String insertBeforeExtension(Path target, String s) {
+        final String fileName = target.getFileName().toString();
+        final int dot = extensionStart(fileName);
+        return dot >= 0 ? fileName.substring(0, dot) + s + fileName.substring(dot) : fileName + s;
+    }
+
+    /**
+     * @return index of the last dot, or of the dot before a compression
+     * extension, eg. of {@code .csv} in {@code export.2023.csv.gz}; -1 if
+     * none
+     */
+    static int extensionStart(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot > 0 && COMPRESSION_EXTENSIONS.contains(fileName.substring(dot).toLowerCase(Locale.ROOT))) {
+            final int previousDot = fileName.lastIndexOf('.', dot - 1);
+            dot = previousDot > 0 ? previousDot : dot;
+        }
+        return dot > 0 ? dot : -1;
+    }
+
+    /**
+     * Export all rows.
+     *
+     * @return the result
+     * @throws SQLException
+     * @throws IOException
+     */
+    public Result execute() throws SQLException, IOException {
+        final long startMillis = System.currentTimeMillis();
+        final List<KeyRange> keyRanges = queryKeyRanges();
+        logger.info("Export {} partitions, key ranges {}", keyRanges.size(), keyRanges);
+        final ExecutorService executorService = Executors.newFixedThreadPool(keyRanges.size(), (r) -> {
+            final Thread t = new Thread(r, "PartitionedCsvExport");
+            t.setDaemon(true);
+            return t;
+        });
+        final List<Part> writtenParts = new ArrayList<>();
+        try {
+            final List<Future<List<Part>>> futures = new ArrayList<>();
+            for (int i = 0; i < keyRanges.size(); i++) {
+                final int partition = i;
+                futures.add(executorService.submit(() -> exportPartition(partition, keyRanges.get(partition))));
+            }
+            Exception failure = null;
+            for (Future<List<Part>> future : futures) {
+                try {
+                    writtenParts.addAll(get(future));
+                } catch (SQLException | IOException ex) {
+                    failure = failure != null ? failure : ex;
+                }
+            }
+            if (failure != null) {
+                for (Part part : writtenParts) {
+                    Files.deleteIfExists(this.target.resolveSibling(part.file));
+                }
+                if (failure instanceof SQLException) {
+                    throw (SQLException) failure;
+                }
+                throw (IOException) failure;
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        // name the files in key order
+        final List<Part> parts = new ArrayList<>();
+        for (Part part : writtenParts) {
+            final Path partFile = partFile(this.target, parts.size());
+            Files.move(this.target.resolveSibling(part.file), partFile, StandardCopyOption.REPLACE_EXISTING);
+            parts.add(new Part(partFile.getFileName().toString(), part.partition, part.keyLow, part.keyHigh,
+                    part.rows, part.bytes, part.checksum));
+        }
+        final Path manifest = manifestFile(this.target);
+        writeManifest(manifest, parts);
+        return new Result(Collections.unmodifiableList(parts), manifest, System.currentTimeMillis() - startMillis);
+    }
+
+    List<KeyRange> queryKeyRanges() throws SQLException {
+        final String sql = String.format("SELECT MIN(Q.%s), MAX(Q.%s) FROM (%s) Q", this.partitionKey, this.partitionKey, this.query);
+        try (final Connection connection = this.connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            final long min = rs.getLong(1);
+            if (rs.wasNull()) {
+                // empty, or null keys only
+                return List.of(new KeyRange(0L, 0L));
+            }
+            final long max = rs.getLong(2);
+            return KeyRanges.splitByCount(new KeyRange(min, max + 1), this.partitions);
+        }
+    }
+
+    /**
+     * Export the rows of a key range, rolling files by size.
+     *
+     * @return the parts, named by temporary file names
+     */
+    List<Part> exportPartition(int partition, KeyRange keyRange) throws SQLException, IOException {
+        final String sql = String.format("SELECT * FROM (%s) Q WHERE (%s)%s", this.query,
+                KeyRanges.rangePredicate("Q." + this.partitionKey),
+                partition == 0 ? String.format(" OR Q.%s IS NULL", this.partitionKey) : "");
+        final List<Part> parts = new ArrayList<>();
+        Path file = null;
+        try (final Connection connection = this.connectionFactory.createConnection()) {
+            connection.setAutoCommit(false);
+            try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+                ps.setFetchSize(1000);
+                ps.setLong(1, keyRange.low());
+                ps.setLong(2, keyRange.high());
+                try (final ResultSet rs = ps.executeQuery()) {
+                    final RollingResultSet rollingResultSet = new RollingResultSet(rs);
+                    do {
+                        file = this.target.resolveSibling(insertBeforeExtension(this.target,
+                                String.format(".part-%04d-%04d", partition, parts.size())) + ".tmp");
+                        final MessageDigest messageDigest = createMessageDigest();
+                        final int rows;
+                        try (final CountingWriter writer = new CountingWriter(new BufferedWriter(new OutputStreamWriter(
+                                CsvStreams.wrapOutputStream(new DigestOutputStream(new FileOutputStream(file.toFile()), messageDigest), this.compression),
+                                CsvStreams.charset(this.options)), CsvStreams.BUFFER_SIZE))) {
+                            rollingResultSet.roll(writer, this.maxFileSize);
+                            // closes writer
+                            rows = createCsv().write(writer, rollingResultSet.proxy);
+                        }
+                        final Part part = new Part(file.getFileName().toString(), partition, keyRange.low(), keyRange.high(),
+                                rows, Files.size(file), toHex(messageDigest.digest()));
+                        logger.info("Written {}", part);
+                        parts.add(part);
+                    } while (!rollingResultSet.exhausted);
+                }
+            }
+            connection.rollback();
+        } catch (SQLException | IOException | RuntimeException ex) {
+            // the parts, and a part being written
+            for (Part part : parts) {
+                Files.deleteIfExists(this.target.resolveSibling(part.file));
+            }
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+            throw ex;
+        }
+        return parts;
+    }
+
+    Csv createCsv() {
+        return CsvStreams.createCsv(this.options);
+    }
+
+    static MessageDigest createMessageDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(CHECKSUM_ALGORITHM, ex);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    static List<Part> get(Future<List<Part>> future) throws SQLException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("get", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            } else if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("get", ex.getCause());
+        }
+    }
+
+    //---
+    /**
+     * Write a manifest.
+     *
+     * @param manifest the manifest file
+     * @param parts the parts
+     * @throws IOException
+     */
+    public static void writeManifest(Path manifest, List<Part> parts) throws IOException {
+        final SimpleResultSet simpleResultSet = new SimpleResultSet();
+        simpleResultSet.addColumn("FILE", Types.VARCHAR, Integer.MAX_VALUE, 0);
+        simpleResultSet.addColumn("PARTITION", Types.INTEGER, 10, 0);
+        simpleResultSet.addColumn("KEY_LOW", Types.BIGINT, 19, 0);
+        simpleResultSet.addColumn("KEY_HIGH", Types.BIGINT, 19, 0);
+        simpleResultSet.addColumn("ROW_COUNT", Types.BIGINT, 19, 0);
+        simpleResultSet.addColumn("BYTES", Types.BIGINT, 19, 0);
+        simpleResultSet.addColumn("CHECKSUM", Types.VARCHAR, 64, 0);
+        for (Part part : parts) {
+            simpleResultSet.addRow(part.file, part.partition, part.keyLow, part.keyHigh, part.rows, part.bytes, part.checksum);
+        }
+        try {
+            new Csv().write(manifest.toString(), simpleResultSet, "UTF-8");
+        } catch (SQLException sqlex) {
+            throw new IOException("writeManifest " + manifest, sqlex);
+        }
+    }
+
+    /**
+     * Read a manifest.
+     *
+     * @param manifest the manifest file
+     * @return the parts
+     * @throws IOException
+     */
+    public static List<Part> readManifest(Path manifest) throws IOException {
+        final List<Part> parts = new ArrayList<>();
+        try (final ResultSet rs = new Csv().read(manifest.toString(), null, "UTF-8")) {
+            while (rs.next()) {
+                parts.add(new Part(rs.getString("FILE"), rs.getInt("PARTITION"), rs.getLong("KEY_LOW"), rs.getLong("KEY_HIGH"),
+                        rs.getLong("ROW_COUNT"), rs.getLong("BYTES"), rs.getString("CHECKSUM")));
+            }
+        } catch (SQLException sqlex) {
+            throw new IOException("readManifest " + manifest, sqlex);
+        }
+        return parts;
+    }
+
+    //---
+    /**
+     * Writer counting the written characters.
+     */
+    static class CountingWriter extends FilterWriter {
+
+        long count;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            this.out.write(c);
+            this.count += 1;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            this.out.write(cbuf, off, len);
+            this.count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            this.out.write(str, off, len);
+            this.count += len;
+        }
+    }
+
+    /**
+     * A result set ending a file when its writer exceeds the maximum size.
+     * <p>
+     * The proxy does not close the underlying result set, and continues with
+     * the next row after rolling.
+     */
+    static class RollingResultSet {
+
+        final ResultSet rs;
+        final ResultSet proxy;
+        CountingWriter writer;
+        long maxFileSize;
+        long rowsInFile;
+        boolean pending;
+        boolean exhausted;
+
+        RollingResultSet(ResultSet rs) {
+            this.rs = rs;
+            this.proxy = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                    (Object o, Method method, Object[] args) -> {
+                        if ("next".equals(method.getName())) {
+                            return next();
+                        } else if ("close".equals(method.getName())) {
+                            return null;
+                        }
+                        try {
+                            return method.invoke(this.rs, args);
+                        } catch (InvocationTargetException ex) {
+                            throw ex.getCause();
+                        }
+                    });
+        }
+
+        void roll(CountingWriter writer, long maxFileSize) {
+            this.writer = writer;
+            this.maxFileSize = maxFileSize;
+            this.rowsInFile = 0L;
+        }
+
+        boolean next() throws SQLException {
+            if (this.pending) {
+                // row read when rolling
+                this.pending = false;
+                this.rowsInFile += 1;
+                return true;
+            }
+            final boolean hasNext = this.rs.next();
+            if (!hasNext) {
+                this.exhausted = true;
+                return false;
+            }
+            if (this.maxFileSize > 0 && this.rowsInFile > 0 && this.writer.count >= this.maxFileSize) {
+                this.pending = true;
+                return false;
+            }
+            this.rowsInFile += 1;
+            return true;
+        }
+    }
+}
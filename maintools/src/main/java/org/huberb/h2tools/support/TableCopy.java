@@ -0,0 +1,546 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.support.ParallelRestore.StatementKind;
+import org.huberb.h2tools.support.ParallelScriptExport.Table;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copy tables of a source database into a target database, without
+ * intermediate files.
+ * <p>
+ * The rows of a table are read from the source, and passed in batches by a
+ * bounded queue to a batched {@code INSERT} into the target, using the typed
+ * values of the source. Tables of the same restore level, see
+ * {@link ParallelScriptExport}, are copied concurrently. A table having more
+ * rows than the partition rows, and an integer leading primary key column, is
+ * copied by key ranges concurrently, each range using a connection of each
+ * database.
+ * <p>
+ * Tables missing in the target are created by the schema script of the
+ * source, without users, and rights. The indexes, and constraints other than
+ * primary keys of the created tables are created after copying the rows. The
+ * rows of each table, or key range are read in its own transaction, thus a
+ * copy of a changing source is not consistent.
+ *
+ * @author pi
+ */
+public class TableCopy {
+
+    private static final Logger logger = LoggerFactory.getLogger(TableCopy.class);
+
+    static final List<Object[]> END_OF_ROWS = Collections.emptyList();
+    static final Pattern SKIPPED_DDL_PATTERN = Pattern.compile(
+            "^(CREATE\\s+USER|CREATE\\s+ROLE|ALTER\\s+USER|GRANT)\\s",
+            Pattern.CASE_INSENSITIVE);
+    static final Pattern CREATE_SCHEMA_PATTERN = Pattern.compile(
+            "^(CREATE\\s+SCHEMA\\s+IF\\s+NOT\\s+EXISTS\\s+(?:\"(?:[^\"]|\"\")*\"|[^\\s\"]+))\\s+AUTHORIZATION\\s.*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    static final Pattern CREATE_SEQUENCE_PATTERN = Pattern.compile(
+            "^CREATE\\s+SEQUENCE\\s+(?!IF\\s+NOT\\s+EXISTS\\s)",
+            Pattern.CASE_INSENSITIVE);
+    static final List<String> INTEGER_TYPES = List.of("TINYINT", "SMALLINT", "INTEGER", "INT", "BIGINT");
+
+    /**
+     * Result of a copy.
+     */
+    public static class Result {
+
+        final int tables;
+        final int createdTables;
+        final int partitions;
+        final long rows;
+        final long elapsedMillis;
+
+        Result(int tables, int createdTables, int partitions, long rows, long elapsedMillis) {
+            this.tables = tables;
+            this.createdTables = createdTables;
+            this.partitions = partitions;
+            this.rows = rows;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public int tables() {
+            return tables;
+        }
+
+        /**
+         * @return number of tables created in the target
+         */
+        public int createdTables() {
+            return createdTables;
+        }
+
+        /**
+         * @return number of tables, and key ranges copied
+         */
+        public int partitions() {
+            return partitions;
+        }
+
+        public long rows() {
+            return rows;
+        }
+
+        public long elapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("tables %d, created tables %d, partitions %d, rows %d, elapsed %d ms",
+                    tables, createdTables, partitions, rows, elapsedMillis);
+        }
+    }
+
+    /**
+     * A copied table, or key range of a table.
+     */
+    static class Partition {
+
+        final Table table;
+        final List<String> columns;
+        final String keyColumn;
+        final long from;
+        final long to;
+
+        /**
+         * @param keyColumn the quoted leading primary key column, or null for
+         * all rows
+         */
+        Partition(Table table, List<String> columns, String keyColumn, long from, long to) {
+            this.table = table;
+            this.columns = columns;
+            this.keyColumn = keyColumn;
+            this.from = from;
+            this.to = to;
+        }
+
+        String selectSql() {
+            final String sql = String.format("SELECT %s FROM %s", String.join(", ", this.columns), this.table.qualifiedName());
+            return this.keyColumn != null ? sql + String.format(" WHERE %s BETWEEN ? AND ?", this.keyColumn) : sql;
+        }
+
+        String insertSql() {
+            return String.format("INSERT INTO %s(%s) VALUES(%s)", this.table.qualifiedName(), String.join(", ", this.columns),
+                    this.columns.stream().map((c) -> "?").collect(Collectors.joining(", ")));
+        }
+
+        @Override
+        public String toString() {
+            return this.keyColumn != null
+                    ? String.format("%s %s [%d, %d]", this.table.qualifiedName(), this.keyColumn, this.from, this.to)
+                    : this.table.qualifiedName();
+        }
+    }
+
+    final IConnectionFactory sourceConnectionFactory;
+    final IConnectionFactory targetConnectionFactory;
+    int parallel = 4;
+    String schema;
+    Set<String> tables;
+    int batchSize = 1000;
+    int queueSize = 4;
+    long partitionRows = 100000L;
+    boolean createTables = true;
+    //---
+    int createdTables;
+    final AtomicLong rows = new AtomicLong();
+
+    /**
+     * Create a copy.
+     *
+     * @param sourceConnectionFactory connections of the source database
+     * @param targetConnectionFactory connections of the target database
+     */
+    public TableCopy(IConnectionFactory sourceConnectionFactory, IConnectionFactory targetConnectionFactory) {
+        this.sourceConnectionFactory = sourceConnectionFactory;
+        this.targetConnectionFactory = targetConnectionFactory;
+    }
+
+    /**
+     * @param parallel number of concurrently copied tables, or key ranges, and
+     * connections of each database
+     */
+    public void setParallel(int parallel) {
+        this.parallel = Math.max(1, parallel);
+    }
+
+    /**
+     * @param schema copy only the tables of this schema, or null for all
+     * schemas
+     */
+    public void setSchema(String schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * @param tables copy these tables only, given by upper case names, or null
+     * for all tables
+     */
+    public void setTables(Set<String> tables) {
+        this.tables = tables;
+    }
+
+    /**
+     * @param batchSize number of rows of a batch, and of a transaction of the
+     * target
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @param queueSize number of batches read ahead of the target
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * @param partitionRows estimated number of rows of a key range of a table
+     */
+    public void setPartitionRows(long partitionRows) {
+        this.partitionRows = Math.max(1L, partitionRows);
+    }
+
+    /**
+     * @param createTables create the tables missing in the target, else fail
+     * on a missing table
+     */
+    public void setCreateTables(boolean createTables) {
+        this.createTables = createTables;
+    }
+
+    //---
+    /**
+     * Copy the tables.
+     *
+     * @return the result
+     * @throws SQLException
+     * @throws IOException
+     */
+    public Result execute() throws SQLException, IOException {
+        final long startMillis = System.currentTimeMillis();
+        final ParallelScriptExport parallelScriptExport = new ParallelScriptExport(this.sourceConnectionFactory, null);
+        parallelScriptExport.setSchema(this.schema);
+        parallelScriptExport.setTables(this.tables);
+        final List<Table> copiedTables = parallelScriptExport.queryTables();
+        final List<String> deferred = this.createTables ? createMissingTables(copiedTables) : Collections.emptyList();
+
+        final Map<Integer, List<Partition>> partitionsByLevel = new TreeMap<>();
+        int partitions = 0;
+        try (final Connection connection = this.sourceConnectionFactory.createConnection()) {
+            for (Table table : copiedTables) {
+                final List<Partition> tablePartitions = partition(connection, table);
+                partitionsByLevel.computeIfAbsent(table.restoreLevel, (k) -> new ArrayList<>()).addAll(tablePartitions);
+                partitions += tablePartitions.size();
+            }
+        }
+        logger.info("Copy {} tables in {} partitions by {} connections", copiedTables.size(), partitions, this.parallel);
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(this.parallel, (r) -> {
+            final Thread t = new Thread(r, "TableCopy");
+            t.setDaemon(true);
+            return t;
+        });
+        // a reader per writer, thus a reader never waits for a thread
+        final ExecutorService readerExecutorService = Executors.newFixedThreadPool(this.parallel, (r) -> {
+            final Thread t = new Thread(r, "TableCopyReader");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            // the referenced tables first
+            for (List<Partition> levelPartitions : partitionsByLevel.values()) {
+                final List<Future<Long>> futures = new ArrayList<>();
+                for (Partition partition : levelPartitions) {
+                    futures.add(executorService.submit(() -> copy(partition, readerExecutorService)));
+                }
+                Exception failure = null;
+                for (Future<Long> future : futures) {
+                    try {
+                        TableDiff.get(future);
+                    } catch (SQLException | IOException ex) {
+                        failure = failure != null ? failure : ex;
+                    }
+                }
+                if (failure instanceof SQLException) {
+                    throw (SQLException) failure;
+                } else if (failure != null) {
+                    throw (IOException) failure;
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+            readerExecutorService.shutdownNow();
+        }
+        executeDeferred(deferred);
+        return new Result(copiedTables.size(), this.createdTables, partitions, this.rows.get(),
+                System.currentTimeMillis() - startMillis);
+    }
+
+    /**
+     * Create the tables missing in the target by the schema script of the
+     * source.
+     *
+     * @return the deferred statements, executed after copying
+     */
+    List<String> createMissingTables(List<Table> copiedTables) throws SQLException {
+        final List<Table> missingTables = new ArrayList<>();
+        try (final Connection connection = this.targetConnectionFactory.createConnection()) {
+            for (Table table : copiedTables) {
+                if (TableDiff.columns(connection, table).isEmpty()) {
+                    missingTables.add(table);
+                }
+            }
+        }
+        if (missingTables.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final String sql = "SCRIPT NODATA NOPASSWORDS TABLE "
+                + missingTables.stream().map(Table::qualifiedName).collect(Collectors.joining(", "));
+        logger.info("Create {} tables by sql {}", missingTables.size(), sql);
+        final List<String> deferred = new ArrayList<>();
+        try (final Connection sourceConnection = this.sourceConnectionFactory.createConnection();
+                final Statement sourceStatement = sourceConnection.createStatement();
+                final ResultSet rs = sourceStatement.executeQuery(sql);
+                final Connection targetConnection = this.targetConnectionFactory.createConnection();
+                final Statement targetStatement = targetConnection.createStatement()) {
+            while (rs.next()) {
+                final String ddl = targetDdl(rs.getString(1));
+                if (ddl == null) {
+                    continue;
+                }
+                final StatementKind kind = ParallelRestore.classify(ddl);
+                if (kind == StatementKind.DEFERRED || kind == StatementKind.DEFERRED_AFTER_DATA) {
+                    deferred.add(ddl);
+                } else {
+                    logger.debug("Execute sql {}", ddl);
+                    targetStatement.execute(ddl);
+                }
+            }
+        }
+        this.createdTables = missingTables.size();
+        return deferred;
+    }
+
+    /**
+     * @return a statement of the schema script, executable in a target having
+     * other users, and sequences, or null if skipped
+     */
+    static String targetDdl(String sql) {
+        final String ddl = sql.trim();
+        if (ddl.isEmpty() || ddl.startsWith("--") || SKIPPED_DDL_PATTERN.matcher(ddl).find()) {
+            return null;
+        }
+        final String withoutAuthorization = CREATE_SCHEMA_PATTERN.matcher(ddl).replaceFirst("$1");
+        return CREATE_SEQUENCE_PATTERN.matcher(withoutAuthorization).replaceFirst("CREATE SEQUENCE IF NOT EXISTS ");
+    }
+
+    void executeDeferred(List<String> deferred) throws SQLException {
+        logger.info("Execute {} deferred statements", deferred.size());
+        try (final Connection connection = this.targetConnectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            for (String sql : deferred) {
+                logger.debug("Execute deferred sql {}", sql);
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * @return the key ranges of a table, or the table if not partitioned
+     */
+    List<Partition> partition(Connection connection, Table table) throws SQLException {
+        final List<String> columns = TableDiff.columns(connection, table).stream()
+                .map(ParallelScriptExport::quoteIdentifier)
+                .collect(Collectors.toList());
+        final long count = (table.rowCountEstimate + this.partitionRows - 1) / this.partitionRows;
+        final List<String> keyColumns = IncrementalExport.primaryKeyColumns(connection, table);
+        if (count <= 1L || keyColumns.isEmpty()
+                || !INTEGER_TYPES.contains(TableDiff.columnType(connection, table, keyColumns.get(0)))) {
+            return List.of(new Partition(table, columns, null, 0L, 0L));
+        }
+        final String keyColumn = ParallelScriptExport.quoteIdentifier(keyColumns.get(0));
+        final long min;
+        final long max;
+        try (final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery(String.format("SELECT MIN(%s), MAX(%s) FROM %s",
+                        keyColumn, keyColumn, table.qualifiedName()))) {
+            rs.next();
+            min = rs.getLong(1);
+            max = rs.getLong(2);
+            if (rs.wasNull()) {
+                return List.of(new Partition(table, columns, null, 0L, 0L));
+            }
+        }
+        // dividing first, thus not overflowing for extreme keys
+        final long step = Math.max(1L, (max / count - min / count) + 1L);
+        final List<Partition> partitions = new ArrayList<>();
+        for (long from = min; from <= max; from += step) {
+            final long to = max - from < step ? max : from + step - 1L;
+            partitions.add(new Partition(table, columns, keyColumn, from, to));
+            if (to == max) {
+                break;
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Insert the rows of a partition, read by a reader, committing each
+     * batch.
+     *
+     * @return number of copied rows
+     */
+    long copy(Partition partition, ExecutorService readerExecutorService) throws SQLException, IOException {
+        final BlockingQueue<List<Object[]>> queue = new ArrayBlockingQueue<>(this.queueSize);
+        final Future<Void> reader = readerExecutorService.submit(() -> {
+            read(partition, queue);
+            return null;
+        });
+        long count = 0L;
+        try (final Connection connection = this.targetConnectionFactory.createConnection()) {
+            connection.setAutoCommit(false);
+            try (final PreparedStatement ps = connection.prepareStatement(partition.insertSql())) {
+                List<Object[]> batch;
+                while ((batch = take(queue, reader)) != END_OF_ROWS) {
+                    for (Object[] row : batch) {
+                        for (int i = 0; i < row.length; i++) {
+                            ps.setObject(i + 1, row[i]);
+                        }
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                    connection.commit();
+                    count += batch.size();
+                    this.rows.addAndGet(batch.size());
+                }
+            }
+        } finally {
+            // stops a reader blocked by a full queue, if failed
+            reader.cancel(true);
+        }
+        logger.info("Copied {} rows of {}", count, partition);
+        return count;
+    }
+
+    /**
+     * Read the rows of a partition in batches into the queue, followed by the
+     * end of rows.
+     */
+    void read(Partition partition, BlockingQueue<List<Object[]>> queue) throws SQLException, InterruptedException {
+        try (final Connection connection = this.sourceConnectionFactory.createConnection()) {
+            connection.setAutoCommit(false);
+            try (final PreparedStatement ps = connection.prepareStatement(partition.selectSql())) {
+                ps.setFetchSize(this.batchSize);
+                if (partition.keyColumn != null) {
+                    ps.setLong(1, partition.from);
+                    ps.setLong(2, partition.to);
+                }
+                try (final ResultSet rs = ps.executeQuery()) {
+                    final ResultSetMetaData meta = rs.getMetaData();
+                    final int[] sqlTypes = new int[meta.getColumnCount()];
+                    for (int i = 0; i < sqlTypes.length; i++) {
+                        sqlTypes[i] = meta.getColumnType(i + 1);
+                    }
+                    List<Object[]> batch = new ArrayList<>(this.batchSize);
+                    while (rs.next()) {
+                        final Object[] row = new Object[sqlTypes.length];
+                        for (int i = 0; i < row.length; i++) {
+                            row[i] = value(rs, i + 1, sqlTypes[i]);
+                        }
+                        batch.add(row);
+                        if (batch.size() >= this.batchSize) {
+                            queue.put(batch);
+                            batch = new ArrayList<>(this.batchSize);
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        queue.put(batch);
+                    }
+                }
+            }
+            connection.rollback();
+        }
+        queue.put(END_OF_ROWS);
+    }
+
+    /**
+     * @return the value of a column, large objects read, as these are valid
+     * while the source row is current only
+     */
+    static Object value(ResultSet rs, int column, int sqlType) throws SQLException {
+        switch (sqlType) {
+            case Types.CLOB:
+            case Types.NCLOB:
+                return rs.getString(column);
+            case Types.BLOB:
+                return rs.getBytes(column);
+            default:
+                return rs.getObject(column);
+        }
+    }
+
+    /**
+     * @return the next batch, or the end of rows, failing if the reader failed
+     */
+    static List<Object[]> take(BlockingQueue<List<Object[]>> queue, Future<Void> reader) throws SQLException, IOException {
+        try {
+            while (true) {
+                final boolean readerDone = reader.isDone();
+                final List<Object[]> batch = queue.poll(100L, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    return batch;
+                } else if (readerDone) {
+                    // a reader done, and no end of rows queued, has failed
+                    TableDiff.get(reader);
+                    throw new IOException("Reader ended without end of rows");
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("take", ex);
+        }
+    }
+}
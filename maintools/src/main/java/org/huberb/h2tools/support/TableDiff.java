@@ -0,0 +1,596 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.support.ParallelScriptExport.Table;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compare a table of a source, and a target database by hashes of key
+ * ranges, like a Merkle tree.
+ * <p>
+ * The row count, and the sum of the row hashes of the sub ranges, the
+ * buckets, of a key range are computed by a {@code GROUP BY} query in each
+ * database, executed concurrently. Only buckets differing by row count, or
+ * hash are compared further, until a bucket holds at most the leaf rows.
+ * The rows of such a bucket are read from both databases, and compared by
+ * primary key. The leading primary key column must be an integer.
+ * <p>
+ * A row is hashed by {@code ORA_HASH} of its values cast to {@code VARCHAR},
+ * each prefixed by its length, or a null marker, using two seeds. The buckets
+ * of a level are compared concurrently, each database using a connection per
+ * concurrent bucket.
+ * <p>
+ * The differences are reported as the {@code INSERT}, {@code UPDATE}, and
+ * {@code DELETE} statements, making the target table equal to the source
+ * table. An {@code UPDATE} sets the changed columns only.
+ *
+ * @author pi
+ */
+public class TableDiff {
+
+    private static final Logger logger = LoggerFactory.getLogger(TableDiff.class);
+
+    /**
+     * Result of a diff.
+     */
+    public static class Result {
+
+        final long insertedRows;
+        final long updatedRows;
+        final long deletedRows;
+        final long hashedRanges;
+        final long comparedRows;
+        final long elapsedMillis;
+
+        Result(long insertedRows, long updatedRows, long deletedRows, long hashedRanges, long comparedRows, long elapsedMillis) {
+            this.insertedRows = insertedRows;
+            this.updatedRows = updatedRows;
+            this.deletedRows = deletedRows;
+            this.hashedRanges = hashedRanges;
+            this.comparedRows = comparedRows;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return number of rows of the source missing in the target
+         */
+        public long insertedRows() {
+            return insertedRows;
+        }
+
+        /**
+         * @return number of rows differing in the target
+         */
+        public long updatedRows() {
+            return updatedRows;
+        }
+
+        /**
+         * @return number of rows of the target missing in the source
+         */
+        public long deletedRows() {
+            return deletedRows;
+        }
+
+        /**
+         * @return number of key ranges hashed by each database
+         */
+        public long hashedRanges() {
+            return hashedRanges;
+        }
+
+        /**
+         * @return number of rows read from both databases for comparing
+         */
+        public long comparedRows() {
+            return comparedRows;
+        }
+
+        /**
+         * @return true if the tables are equal
+         */
+        public boolean equal() {
+            return insertedRows == 0L && updatedRows == 0L && deletedRows == 0L;
+        }
+
+        public long elapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("insert %d, update %d, delete %d, hashed ranges %d, compared rows %d, elapsed %d ms",
+                    insertedRows, updatedRows, deletedRows, hashedRanges, comparedRows, elapsedMillis);
+        }
+    }
+
+    /**
+     * A key range, and its row counts.
+     */
+    static class Range {
+
+        final long from;
+        final long to;
+        final long sourceRows;
+        final long targetRows;
+
+        Range(long from, long to, long sourceRows, long targetRows) {
+            this.from = from;
+            this.to = to;
+            this.sourceRows = sourceRows;
+            this.targetRows = targetRows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%d, %d] rows %d, %d", from, to, sourceRows, targetRows);
+        }
+    }
+
+    /**
+     * Connections of a database, created on demand, reused by the compared
+     * ranges.
+     */
+    static class Connections implements AutoCloseable {
+
+        final IConnectionFactory connectionFactory;
+        final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+        final List<Connection> all = new ArrayList<>();
+
+        Connections(IConnectionFactory connectionFactory) {
+            this.connectionFactory = connectionFactory;
+        }
+
+        Connection borrow() throws SQLException {
+            final Connection connection = this.idle.poll();
+            if (connection != null) {
+                return connection;
+            }
+            final Connection created = this.connectionFactory.createConnection();
+            synchronized (this.all) {
+                this.all.add(created);
+            }
+            return created;
+        }
+
+        void giveBack(Connection connection) {
+            this.idle.add(connection);
+        }
+
+        @Override
+        public void close() {
+            synchronized (this.all) {
+                for (Connection connection : this.all) {
+                    try {
+                        connection.close();
+                    } catch (SQLException sqlex) {
+                        logger.warn("Cannot close connection", sqlex);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A query of a database.
+     */
+    @FunctionalInterface
+    interface Query<T> {
+
+        T query(Connection connection) throws SQLException;
+    }
+
+    final IConnectionFactory sourceConnectionFactory;
+    final IConnectionFactory targetConnectionFactory;
+    final String schema;
+    final String tableName;
+    int parallel = 4;
+    int fanout = 16;
+    int leafRows = 1000;
+    Consumer<String> statementConsumer = (sql) -> {
+    };
+
+    String table;
+    List<String> columns;
+    List<String> keyColumns;
+    int[] keyIndexes;
+    String rowHashes;
+    final AtomicLong insertedRows = new AtomicLong();
+    final AtomicLong updatedRows = new AtomicLong();
+    final AtomicLong deletedRows = new AtomicLong();
+    final AtomicLong hashedRanges = new AtomicLong();
+    final AtomicLong comparedRows = new AtomicLong();
+
+    /**
+     * Create a diff.
+     *
+     * @param sourceConnectionFactory connections of the source database
+     * @param targetConnectionFactory connections of the target database
+     * @param schema schema of the table, eg. PUBLIC
+     * @param tableName the compared table
+     */
+    public TableDiff(IConnectionFactory sourceConnectionFactory, IConnectionFactory targetConnectionFactory,
+            String schema, String tableName) {
+        this.sourceConnectionFactory = sourceConnectionFactory;
+        this.targetConnectionFactory = targetConnectionFactory;
+        this.schema = schema;
+        this.tableName = tableName;
+    }
+
+    /**
+     * @param parallel number of concurrently compared ranges, and connections
+     * of each database
+     */
+    public void setParallel(int parallel) {
+        this.parallel = Math.max(1, parallel);
+    }
+
+    /**
+     * @param fanout number of buckets of a differing key range
+     */
+    public void setFanout(int fanout) {
+        this.fanout = Math.max(2, fanout);
+    }
+
+    /**
+     * @param leafRows maximum number of rows of a key range compared by rows
+     */
+    public void setLeafRows(int leafRows) {
+        this.leafRows = Math.max(1, leafRows);
+    }
+
+    /**
+     * @param statementConsumer consumer of the statements making the target
+     * table equal to the source table, called by one thread at a time
+     */
+    public void setStatementConsumer(Consumer<String> statementConsumer) {
+        this.statementConsumer = statementConsumer;
+    }
+
+    //---
+    /**
+     * Compare the table.
+     *
+     * @return the result
+     * @throws SQLException
+     * @throws IOException
+     */
+    public Result execute() throws SQLException, IOException {
+        final long startMillis = System.currentTimeMillis();
+        final ExecutorService executorService = Executors.newFixedThreadPool(this.parallel, (r) -> {
+            final Thread t = new Thread(r, "TableDiff");
+            t.setDaemon(true);
+            return t;
+        });
+        // separate threads of the target queries, as a compared range waits for its target query
+        final ExecutorService targetExecutorService = Executors.newFixedThreadPool(this.parallel, (r) -> {
+            final Thread t = new Thread(r, "TableDiff-target");
+            t.setDaemon(true);
+            return t;
+        });
+        try (final Connections source = new Connections(this.sourceConnectionFactory);
+                final Connections target = new Connections(this.targetConnectionFactory)) {
+            prepare(source, target);
+            final String keyColumn = this.keyColumns.get(0);
+            final String boundsSql = String.format("SELECT MIN(%1$s), MAX(%1$s), COUNT(*) FROM %2$s", keyColumn, this.table);
+            final List<long[]> bounds = queryBoth(targetExecutorService, source, target, (connection) -> {
+                try (final PreparedStatement ps = connection.prepareStatement(boundsSql);
+                        final ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    return rs.getLong(3) == 0L ? null : new long[]{rs.getLong(1), rs.getLong(2), rs.getLong(3)};
+                }
+            });
+            final long[] sourceBounds = bounds.get(0);
+            final long[] targetBounds = bounds.get(1);
+            if (sourceBounds != null || targetBounds != null) {
+                final long from = Math.min(sourceBounds != null ? sourceBounds[0] : Long.MAX_VALUE, targetBounds != null ? targetBounds[0] : Long.MAX_VALUE);
+                final long to = Math.max(sourceBounds != null ? sourceBounds[1] : Long.MIN_VALUE, targetBounds != null ? targetBounds[1] : Long.MIN_VALUE);
+                List<Range> level = List.of(new Range(from, to, sourceBounds != null ? sourceBounds[2] : 0L, targetBounds != null ? targetBounds[2] : 0L));
+                while (!level.isEmpty()) {
+                    logger.info("Compare {} ranges of {}", level.size(), this.table);
+                    final List<Future<List<Range>>> futures = new ArrayList<>();
+                    for (Range range : level) {
+                        futures.add(executorService.submit(() -> compare(targetExecutorService, source, target, range)));
+                    }
+                    final List<Range> nextLevel = new ArrayList<>();
+                    for (Future<List<Range>> future : futures) {
+                        nextLevel.addAll(get(future));
+                    }
+                    level = nextLevel;
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+            targetExecutorService.shutdownNow();
+        }
+        return new Result(this.insertedRows.get(), this.updatedRows.get(), this.deletedRows.get(),
+                this.hashedRanges.get(), this.comparedRows.get(), System.currentTimeMillis() - startMillis);
+    }
+
+    /**
+     * Query the columns, and primary key of the table in both databases.
+     */
+    void prepare(Connections source, Connections target) throws SQLException {
+        final Table theTable = new Table(this.schema, this.tableName, 0L);
+        this.table = theTable.qualifiedName();
+        final Connection sourceConnection = source.borrow();
+        final Connection targetConnection = target.borrow();
+        try {
+            this.columns = columns(sourceConnection, theTable);
+            final List<String> targetColumns = columns(targetConnection, theTable);
+            if (this.columns.isEmpty() || !this.columns.equals(targetColumns)) {
+                throw new SQLException(String.format("Table %s differs by columns, source %s, target %s",
+                        this.table, this.columns, targetColumns));
+            }
+            this.keyColumns = IncrementalExport.primaryKeyColumns(sourceConnection, theTable);
+            if (this.keyColumns.isEmpty()) {
+                throw new SQLException(String.format("Table %s has no primary key, required by a diff", this.table));
+            }
+            final String leadingKeyType = columnType(sourceConnection, theTable, this.keyColumns.get(0));
+            if (!List.of("TINYINT", "SMALLINT", "INTEGER", "INT", "BIGINT").contains(leadingKeyType)) {
+                throw new SQLException(String.format("Leading primary key column %s of %s is not an integer, "
+                        + "required for key ranges", this.keyColumns.get(0), this.table));
+            }
+        } finally {
+            source.giveBack(sourceConnection);
+            target.giveBack(targetConnection);
+        }
+        this.keyIndexes = this.keyColumns.stream().mapToInt(this.columns::indexOf).toArray();
+        this.keyColumns = this.keyColumns.stream().map(ParallelScriptExport::quoteIdentifier).collect(Collectors.toList());
+        // values prefixed by length, or null marker, thus null, and '' hash differently
+        final String rowString = "CONCAT(" + this.columns.stream()
+                .map(ParallelScriptExport::quoteIdentifier)
+                .map((c) -> String.format("CASE WHEN %1$s IS NULL THEN 'N' ELSE LENGTH(CAST(%1$s AS VARCHAR)) || ':' || CAST(%1$s AS VARCHAR) END", c))
+                .collect(Collectors.joining(", ")) + ")";
+        this.rowHashes = String.format("SUM(ORA_HASH(%1$s, 4294967295, 0)), SUM(ORA_HASH(%1$s, 4294967295, 1))", rowString);
+    }
+
+    /**
+     * Compare a key range by the hashes of its buckets, or by its rows.
+     *
+     * @return the buckets to compare next
+     */
+    List<Range> compare(ExecutorService targetExecutorService, Connections source, Connections target, Range range) throws SQLException, IOException {
+        if (Math.max(range.sourceRows, range.targetRows) <= this.leafRows || range.from == range.to) {
+            compareRows(targetExecutorService, source, target, range);
+            return List.of();
+        }
+        final long width = range.to - range.from + 1;
+        final long step = Math.max(1L, width / this.fanout + (width % this.fanout != 0 ? 1 : 0));
+        final String keyColumn = this.keyColumns.get(0);
+        final String sql = String.format("SELECT FLOOR((%1$s - ?) / ?) B, COUNT(*), %2$s FROM %3$s WHERE %1$s BETWEEN ? AND ? GROUP BY B",
+                keyColumn, this.rowHashes, this.table);
+        final List<Map<Long, String>> buckets = queryBoth(targetExecutorService, source, target, (connection) -> {
+            final Map<Long, String> hashes = new HashMap<>();
+            try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+                ps.setLong(1, range.from);
+                ps.setLong(2, step);
+                ps.setLong(3, range.from);
+                ps.setLong(4, range.to);
+                try (final ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        hashes.put(rs.getLong(1), rs.getLong(2) + " " + rs.getString(3) + " " + rs.getString(4));
+                    }
+                }
+            }
+            return hashes;
+        });
+        this.hashedRanges.incrementAndGet();
+        final List<Range> differing = new ArrayList<>();
+        for (long b = 0; b * step < width; b++) {
+            final String sourceHash = buckets.get(0).get(b);
+            final String targetHash = buckets.get(1).get(b);
+            if (!Objects.equals(sourceHash, targetHash)) {
+                final long from = range.from + b * step;
+                differing.add(new Range(from, Math.min(range.to, from + step - 1), rows(sourceHash), rows(targetHash)));
+            }
+        }
+        return differing;
+    }
+
+    static long rows(String bucketHash) {
+        return bucketHash == null ? 0L : Long.parseLong(bucketHash.substring(0, bucketHash.indexOf(' ')));
+    }
+
+    /**
+     * Compare the rows of a key range by primary key.
+     */
+    void compareRows(ExecutorService targetExecutorService, Connections source, Connections target, Range range) throws SQLException, IOException {
+        final String sql = String.format("SELECT %s FROM %s WHERE %s BETWEEN ? AND ? ORDER BY %s",
+                this.columns.stream().map(ParallelScriptExport::quoteIdentifier).collect(Collectors.joining(", ")),
+                this.table, this.keyColumns.get(0), String.join(", ", this.keyColumns));
+        final List<Map<String, String[]>> rows = queryBoth(targetExecutorService, source, target, (connection) -> {
+            final Map<String, String[]> byKey = new LinkedHashMap<>();
+            try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+                ps.setLong(1, range.from);
+                ps.setLong(2, range.to);
+                try (final ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        final String[] row = new String[this.columns.size()];
+                        for (int i = 0; i < row.length; i++) {
+                            row[i] = rs.getString(i + 1);
+                        }
+                        byKey.put(KeyFilter.keyOf((Object[]) keyOf(row)), row);
+                    }
+                }
+            }
+            return byKey;
+        });
+        final Map<String, String[]> sourceRows = rows.get(0);
+        final Map<String, String[]> targetRows = rows.get(1);
+        this.comparedRows.addAndGet(sourceRows.size() + targetRows.size());
+        final List<String> statements = new ArrayList<>();
+        for (Map.Entry<String, String[]> e : sourceRows.entrySet()) {
+            final String[] targetRow = targetRows.remove(e.getKey());
+            if (targetRow == null) {
+                statements.add(insertSql(e.getValue()));
+                this.insertedRows.incrementAndGet();
+            } else if (!Arrays.equals(e.getValue(), targetRow)) {
+                statements.add(updateSql(e.getValue(), targetRow));
+                this.updatedRows.incrementAndGet();
+            }
+        }
+        for (String[] targetRow : targetRows.values()) {
+            statements.add(deleteSql(targetRow));
+            this.deletedRows.incrementAndGet();
+        }
+        synchronized (this) {
+            statements.forEach(this.statementConsumer);
+        }
+    }
+
+    String[] keyOf(String[] row) {
+        final String[] key = new String[this.keyIndexes.length];
+        for (int k = 0; k < this.keyIndexes.length; k++) {
+            key[k] = row[this.keyIndexes[k]];
+        }
+        return key;
+    }
+
+    String insertSql(String[] row) {
+        return String.format("INSERT INTO %s(%s) VALUES(%s);", this.table,
+                this.columns.stream().map(ParallelScriptExport::quoteIdentifier).collect(Collectors.joining(", ")),
+                Arrays.stream(row).map(TableDiff::literal).collect(Collectors.joining(", ")));
+    }
+
+    String updateSql(String[] row, String[] targetRow) {
+        final List<String> assignments = new ArrayList<>();
+        for (int i = 0; i < row.length; i++) {
+            if (!Objects.equals(row[i], targetRow[i])) {
+                assignments.add(ParallelScriptExport.quoteIdentifier(this.columns.get(i)) + " = " + literal(row[i]));
+            }
+        }
+        return String.format("UPDATE %s SET %s WHERE %s;", this.table, String.join(", ", assignments), keyCondition(row));
+    }
+
+    String deleteSql(String[] targetRow) {
+        return String.format("DELETE FROM %s WHERE %s;", this.table, keyCondition(targetRow));
+    }
+
+    String keyCondition(String[] row) {
+        final List<String> conditions = new ArrayList<>();
+        for (int k = 0; k < this.keyIndexes.length; k++) {
+            conditions.add(this.keyColumns.get(k) + " = " + literal(row[this.keyIndexes[k]]));
+        }
+        return String.join(" AND ", conditions);
+    }
+
+    /**
+     * @return NULL, or the value as string literal, converted to the column
+     * type by the database
+     */
+    static String literal(String value) {
+        return value == null ? "NULL" : "'" + value.replace("'", "''") + "'";
+    }
+
+    /**
+     * Execute a query in the source, and the target database concurrently.
+     *
+     * @return the source, and the target result
+     */
+    <T> List<T> queryBoth(ExecutorService targetExecutorService, Connections source, Connections target, Query<T> query) throws SQLException, IOException {
+        final Callable<T> targetQuery = () -> {
+            final Connection connection = target.borrow();
+            try {
+                return query.query(connection);
+            } finally {
+                target.giveBack(connection);
+            }
+        };
+        final Future<T> targetFuture = targetExecutorService.submit(targetQuery);
+        final T sourceResult;
+        final Connection connection = source.borrow();
+        try {
+            sourceResult = query.query(connection);
+        } finally {
+            source.giveBack(connection);
+        }
+        final List<T> results = new ArrayList<>();
+        results.add(sourceResult);
+        results.add(get(targetFuture));
+        return results;
+    }
+
+    static List<String> columns(Connection connection, Table table) throws SQLException {
+        final List<String> columns = new ArrayList<>();
+        final String sql = "SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS "
+                + "WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? ORDER BY ORDINAL_POSITION";
+        try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, table.schema);
+            ps.setString(2, table.name);
+            try (final ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    columns.add(rs.getString(1));
+                }
+            }
+        }
+        return columns;
+    }
+
+    static String columnType(Connection connection, Table table, String column) throws SQLException {
+        final String sql = "SELECT TYPE_NAME FROM INFORMATION_SCHEMA.COLUMNS "
+                + "WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND COLUMN_NAME = ?";
+        try (final PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, table.schema);
+            ps.setString(2, table.name);
+            ps.setString(3, column);
+            try (final ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    static <T> T get(Future<T> future) throws SQLException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("get", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            } else if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("compare", ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.util.Arrays;
+import org.huberb.h2tools.support.MappedCsvReader.ColumnBatch;
+
+/**
+ * Columns of consecutive CSV records, converted to primitive arrays by a
+ * known schema.
+ * <p>
+ * Integer, and boolean columns are converted to {@code long[]}, boolean as 0,
+ * or 1. Floating point columns are converted to {@code double[]}, decimal
+ * columns to {@code BigDecimal[]}, keeping their precision. Other columns are
+ * kept as {@code String[]}. A null, or blank value of a converted column is
+ * flagged by {@link #isNull(int, int)}.
+ * <p>
+ * The arrays are reused by {@link #fill(ColumnBatch)}, and only grow.
+ *
+ * @author pi
+ */
+public class TypedColumnBatch {
+
+    /**
+     * Storage of a column.
+     */
+    public enum Kind {
+        LONG, DOUBLE, DECIMAL, STRING;
+
+        static Kind of(int sqlType) {
+            switch (sqlType) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    return LONG;
+                case Types.REAL:
+                case Types.FLOAT:
+                case Types.DOUBLE:
+                    return DOUBLE;
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                    return DECIMAL;
+                default:
+                    return STRING;
+            }
+        }
+    }
+
+    final String[] columnNames;
+    final int[] sqlTypes;
+    final Kind[] kinds;
+    final long[][] longColumns;
+    final double[][] doubleColumns;
+    final BigDecimal[][] decimalColumns;
+    final String[][] stringColumns;
+    final boolean[][] nulls;
+    long[] lineNumbers = new long[0];
+    int rowCount;
+
+    /**
+     * @param columnNames column names
+     * @param sqlTypes types of {@link Types} per column
+     */
+    public TypedColumnBatch(String[] columnNames, int[] sqlTypes) {
+        this.columnNames = columnNames;
+        this.sqlTypes = sqlTypes.clone();
+        this.kinds = new Kind[sqlTypes.length];
+        this.longColumns = new long[sqlTypes.length][];
+        this.doubleColumns = new double[sqlTypes.length][];
+        this.decimalColumns = new BigDecimal[sqlTypes.length][];
+        this.stringColumns = new String[sqlTypes.length][];
+        this.nulls = new boolean[sqlTypes.length][];
+        for (int i = 0; i < sqlTypes.length; i++) {
+            this.kinds[i] = Kind.of(sqlTypes[i]);
+            this.nulls[i] = new boolean[0];
+            switch (this.kinds[i]) {
+                case LONG:
+                    this.longColumns[i] = new long[0];
+                    break;
+                case DOUBLE:
+                    this.doubleColumns[i] = new double[0];
+                    break;
+                case DECIMAL:
+                    this.decimalColumns[i] = new BigDecimal[0];
+                    break;
+                default:
+                    this.stringColumns[i] = new String[0];
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Convert the values of a batch into this batch, replacing its rows.
+     *
+     * @param batch a batch of CSV values
+     * @throws IllegalArgumentException if a value is not convertible
+     */
+    public void fill(ColumnBatch batch) {
+        final int rows = batch.getRowCount();
+        ensureCapacity(rows);
+        for (int column = 0; column < this.kinds.length; column++) {
+            final String[] values = column < batch.getColumnNames().length ? batch.getColumn(column) : null;
+            final boolean[] columnNulls = this.nulls[column];
+            for (int row = 0; row < rows; row++) {
+                final String value = values != null ? values[row] : null;
+                try {
+                    columnNulls[row] = convert(column, row, value);
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException(String.format("line %d, column %s: %s",
+                            batch.getLineNumber(row), this.columnNames[column], ex.getMessage()), ex);
+                }
+            }
+        }
+        for (int row = 0; row < rows; row++) {
+            this.lineNumbers[row] = batch.getLineNumber(row);
+        }
+        this.rowCount = rows;
+    }
+
+    /**
+     * @return true if the value is null
+     */
+    boolean convert(int column, int row, String value) {
+        switch (this.kinds[column]) {
+            case LONG: {
+                final String v = value != null ? value.trim() : "";
+                if (v.isEmpty()) {
+                    this.longColumns[column][row] = 0L;
+                    return true;
+                }
+                final int sqlType = this.sqlTypes[column];
+                this.longColumns[column][row] = sqlType == Types.BOOLEAN || sqlType == Types.BIT
+                        ? (ParallelCsvImport.toBoolean(v) ? 1L : 0L)
+                        : Long.parseLong(v);
+                return false;
+            }
+            case DOUBLE: {
+                final String v = value != null ? value.trim() : "";
+                if (v.isEmpty()) {
+                    this.doubleColumns[column][row] = 0.0d;
+                    return true;
+                }
+                this.doubleColumns[column][row] = Double.parseDouble(v);
+                return false;
+            }
+            case DECIMAL: {
+                final String v = value != null ? value.trim() : "";
+                if (v.isEmpty()) {
+                    this.decimalColumns[column][row] = null;
+                    return true;
+                }
+                this.decimalColumns[column][row] = new BigDecimal(v);
+                return false;
+            }
+            default:
+                this.stringColumns[column][row] = value;
+                return value == null;
+        }
+    }
+
+    void ensureCapacity(int rows) {
+        if (this.lineNumbers.length >= rows) {
+            return;
+        }
+        final int capacity = Math.max(rows, this.lineNumbers.length * 2);
+        this.lineNumbers = Arrays.copyOf(this.lineNumbers, capacity);
+        for (int i = 0; i < this.kinds.length; i++) {
+            this.nulls[i] = Arrays.copyOf(this.nulls[i], capacity);
+            switch (this.kinds[i]) {
+                case LONG:
+                    this.longColumns[i] = Arrays.copyOf(this.longColumns[i], capacity);
+                    break;
+                case DOUBLE:
+                    this.doubleColumns[i] = Arrays.copyOf(this.doubleColumns[i], capacity);
+                    break;
+                case DECIMAL:
+                    this.decimalColumns[i] = Arrays.copyOf(this.decimalColumns[i], capacity);
+                    break;
+                default:
+                    this.stringColumns[i] = Arrays.copyOf(this.stringColumns[i], capacity);
+                    break;
+            }
+        }
+    }
+
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    public Kind getKind(int column) {
+        return this.kinds[column];
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @param column 0-based column index of a {@link Kind#LONG} column
+     * @return values of a column, valid up to {@link #getRowCount()}
+     */
+    public long[] getLongColumn(int column) {
+        return this.longColumns[column];
+    }
+
+    /**
+     * @param column 0-based column index of a {@link Kind#DOUBLE} column
+     * @return values of a column, valid up to {@link #getRowCount()}
+     */
+    public double[] getDoubleColumn(int column) {
+        return this.doubleColumns[column];
+    }
+
+    /**
+     * @param column 0-based column index of a {@link Kind#DECIMAL} column
+     * @return values of a column, valid up to {@link #getRowCount()}
+     */
+    public BigDecimal[] getDecimalColumn(int column) {
+        return this.decimalColumns[column];
+    }
+
+    /**
+     * @param column 0-based column index of a {@link Kind#STRING} column
+     * @return values of a column, valid up to {@link #getRowCount()}
+     */
+    public String[] getStringColumn(int column) {
+        return this.stringColumns[column];
+    }
+
+    /**
+     * @param column 0-based column index
+     * @return null flags of a column, valid up to {@link #getRowCount()}
+     */
+    public boolean[] getNulls(int column) {
+        return this.nulls[column];
+    }
+
+    public boolean isNull(int row, int column) {
+        return this.nulls[column][row];
+    }
+
+    public long getLineNumber(int row) {
+        return this.lineNumbers[row];
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author berni3
+ */
+public class BatchLoaderTest {
+
+    ScheduledExecutorService scheduledExecutorService;
+
+    @BeforeEach
+    public void setUp() {
+        this.scheduledExecutorService = Executors.newScheduledThreadPool(2);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.scheduledExecutorService.shutdownNow();
+    }
+
+    static IConnectionFactory createConnectionFactory(String dbName, AtomicInteger connectionCount) throws SQLException {
+        final IConnectionFactory connectionFactoryWithMap = createMemConnectionFactory(dbName);
+        JdbcSql.withInstance(connectionFactoryWithMap, (jdbcSql) -> {
+            jdbcSql.executeUpdate("DROP TABLE IF EXISTS PERSON", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+            jdbcSql.executeUpdate("CREATE TABLE PERSON(ID BIGINT PRIMARY KEY, NAME VARCHAR(50))", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+            jdbcSql.executeUpdate("INSERT INTO PERSON SELECT X, 'name' || X FROM SYSTEM_RANGE(1, 100)", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+        });
+        return () -> {
+            final Connection connection = connectionFactoryWithMap.createConnection();
+            connectionCount.incrementAndGet();
+            return connection;
+        };
+    }
+
+    @Test
+    public void testExpandInList() {
+        assertAll(
+                () -> assertEquals("SELECT * FROM T WHERE ID IN (?, ?, ?)",
+                        BatchLoader.expandInList("SELECT * FROM T WHERE ID IN (?)", 3)),
+                () -> assertThrows(IllegalArgumentException.class,
+                        () -> BatchLoader.expandInList("SELECT * FROM T WHERE ID IN (?) AND A = ?", 3))
+        );
+    }
+
+    @Test
+    public void given_in_list_then_load_keys_in_one_query() throws SQLException {
+        final AtomicInteger connectionCount = new AtomicInteger();
+        final IConnectionFactory connectionFactory = createConnectionFactory("batchLoader1", connectionCount);
+        try (final BatchLoader<Long, String> batchLoader = new BatchLoader<>(connectionFactory, scheduledExecutorService,
+                "SELECT ID, NAME FROM PERSON WHERE ID IN (?)",
+                (rs) -> rs.getLong("ID"),
+                (rs) -> rs.getString("NAME"))) {
+            batchLoader.setWindowMillis(50L);
+            final List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (long id = 1; id <= 10; id++) {
+                futures.add(batchLoader.load(id));
+            }
+            final CompletableFuture<String> missing = batchLoader.load(1000L);
+
+            assertAll(
+                    () -> assertEquals("name1", futures.get(0).join()),
+                    () -> assertEquals("name10", futures.get(9).join()),
+                    () -> assertNull(missing.join()),
+                    () -> assertEquals(1, connectionCount.get()),
+                    () -> assertSame(futures.get(0), batchLoader.load(1L))
+            );
+        }
+        // the shared executor is left running
+        assertTrue(!this.scheduledExecutorService.isShutdown());
+    }
+
+    @Test
+    public void given_max_batch_size_then_split_into_batches() throws SQLException {
+        final AtomicInteger connectionCount = new AtomicInteger();
+        final IConnectionFactory connectionFactory = createConnectionFactory("batchLoader2", connectionCount);
+        try (final BatchLoader<Long, String> batchLoader = new BatchLoader<>(connectionFactory, scheduledExecutorService,
+                "SELECT ID, NAME FROM PERSON WHERE ID = ANY(?)",
+                (rs) -> rs.getLong("ID"),
+                (rs) -> rs.getString("NAME"))) {
+            batchLoader.setArrayTypeName("BIGINT");
+            batchLoader.setMaxBatchSize(5);
+            batchLoader.setWindowMillis(10000L);
+            final Map<Long, String> m = batchLoader.loadMany(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L)).join();
+            final String plan;
+            try (final Connection connection = connectionFactory.createConnection();
+                    final PreparedStatement ps = connection.prepareStatement("EXPLAIN SELECT ID, NAME FROM PERSON WHERE ID = ANY(?)")) {
+                ps.setArray(1, connection.createArrayOf("BIGINT", new Object[]{1L, 2L}));
+                try (final ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    plan = rs.getString(1);
+                }
+            }
+
+            assertAll(
+                    () -> assertEquals(10, m.size()),
+                    () -> assertTrue(plan.contains("PRIMARY_KEY") && !plan.contains("tableScan"), plan),
+                    () -> assertEquals("name7", m.get(7L)),
+                    () -> assertEquals(3, connectionCount.get())
+            );
+        }
+    }
+
+    @Test
+    public void given_failing_query_then_complete_exceptionally() throws SQLException {
+        final AtomicInteger connectionCount = new AtomicInteger();
+        final IConnectionFactory connectionFactory = createConnectionFactory("batchLoader3", connectionCount);
+        try (final BatchLoader<Long, String> batchLoader = new BatchLoader<>(connectionFactory, scheduledExecutorService,
+                "SELECT ID, NAME FROM NO_SUCH_TABLE WHERE ID IN (?)",
+                (rs) -> rs.getLong("ID"),
+                (rs) -> rs.getString("NAME"))) {
+            final CompletableFuture<String> future = batchLoader.load(1L);
+            final CompletionException ex = assertThrows(CompletionException.class, () -> future.join());
+            assertTrue(ex.getCause() instanceof SQLException);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.execute;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author berni3
+ */
+public class BulkLoadTest {
+
+    @TempDir
+    Path tempDir;
+
+    static IConnectionFactory createConnectionFactory(String dbName) throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory(dbName);
+        execute(connectionFactory,
+                "CREATE TABLE PARENT(ID INT PRIMARY KEY)",
+                "INSERT INTO PARENT VALUES(1), (2)",
+                "CREATE TABLE LOADED(ID INT PRIMARY KEY, PARENT_ID INT, CODE VARCHAR(10), NAME VARCHAR(20), AMOUNT INT, "
+                + "CONSTRAINT FK_PARENT FOREIGN KEY(PARENT_ID) REFERENCES PARENT(ID), "
+                + "CONSTRAINT UQ_NAME UNIQUE(NAME), CONSTRAINT UQ_CODE UNIQUE(CODE), CONSTRAINT CK_AMOUNT CHECK (AMOUNT >= 0))",
+                "CREATE INDEX IDX_AMOUNT ON LOADED(AMOUNT, NAME)",
+                "CREATE TABLE CHILD(ID INT PRIMARY KEY, CODE VARCHAR(10), CONSTRAINT FK_CODE FOREIGN KEY(CODE) REFERENCES LOADED(CODE))"
+        );
+        return connectionFactory;
+    }
+
+    static List<String> definitions(IConnectionFactory connectionFactory) throws SQLException {
+        final List<String> definitions = new ArrayList<>();
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            try (final ResultSet rs = statement.executeQuery("SELECT CONSTRAINT_NAME FROM INFORMATION_SCHEMA.CONSTRAINTS "
+                    + "WHERE TABLE_NAME = 'LOADED' AND CONSTRAINT_TYPE <> 'PRIMARY KEY' ORDER BY CONSTRAINT_NAME")) {
+                while (rs.next()) {
+                    definitions.add(rs.getString(1));
+                }
+            }
+            try (final ResultSet rs = statement.executeQuery("SELECT DISTINCT INDEX_NAME FROM INFORMATION_SCHEMA.INDEXES "
+                    + "WHERE TABLE_NAME = 'LOADED' AND CONSTRAINT_NAME IS NULL ORDER BY INDEX_NAME")) {
+                while (rs.next()) {
+                    definitions.add(rs.getString(1));
+                }
+            }
+        }
+        return definitions;
+    }
+
+    @Test
+    public void given_bulk_load_then_definitions_dropped_while_loading_and_rebuilt() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("bulkLoad1");
+        final List<String> before = definitions(connectionFactory);
+        final BulkLoad bulkLoad = new BulkLoad(connectionFactory, "public.loaded");
+        final List<String> whileLoading = bulkLoad.execute(() -> {
+            execute(connectionFactory, "INSERT INTO LOADED SELECT X, MOD(X, 2) + 1, 'c' || X, 'n' || X, X FROM SYSTEM_RANGE(1, 1000)");
+            return definitions(connectionFactory);
+        });
+        final List<String> after = definitions(connectionFactory);
+        assertAll(
+                () -> assertEquals(List.of("CK_AMOUNT", "FK_PARENT", "UQ_CODE", "UQ_NAME", "IDX_AMOUNT"), before),
+                // check, and unique constraints are kept
+                () -> assertEquals(List.of("CK_AMOUNT", "UQ_CODE", "UQ_NAME"), whileLoading),
+                () -> assertEquals(before, after),
+                () -> assertThrows(SQLException.class, () -> execute(connectionFactory,
+                        "INSERT INTO LOADED VALUES(2000, 3, 'c2000', 'n2000', 1)"))
+        );
+    }
+
+    @Test
+    public void given_failing_load_then_definitions_rebuilt() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("bulkLoad2");
+        final List<String> before = definitions(connectionFactory);
+        final BulkLoad bulkLoad = new BulkLoad(connectionFactory, "LOADED");
+        final IOException ex = assertThrows(IOException.class, () -> bulkLoad.execute(() -> {
+            throw new IOException("load failed");
+        }));
+        assertAll(
+                () -> assertEquals("load failed", ex.getMessage()),
+                () -> assertEquals(before, definitions(connectionFactory))
+        );
+    }
+
+    @Test
+    public void given_check_violating_data_then_load_fails_and_check_constraint_kept() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("bulkLoad3");
+        final List<String> before = definitions(connectionFactory);
+        final BulkLoad bulkLoad = new BulkLoad(connectionFactory, "LOADED");
+        final SQLException ex = assertThrows(SQLException.class, () -> bulkLoad.execute(() -> {
+            execute(connectionFactory, "INSERT INTO LOADED VALUES(1, 1, 'c1', 'n1', -1)");
+            return null;
+        }));
+        assertAll(
+                () -> assertTrue(ex.getMessage().contains("CK_AMOUNT"), ex.getMessage()),
+                () -> assertEquals(before, definitions(connectionFactory)),
+                () -> assertEquals(0, count(connectionFactory))
+        );
+    }
+
+    @Test
+    public void given_foreign_key_violating_data_then_violating_rows_deleted_and_reported() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("bulkLoad6");
+        final List<String> before = definitions(connectionFactory);
+        final BulkLoad bulkLoad = new BulkLoad(connectionFactory, "LOADED");
+        final SQLException ex = assertThrows(SQLException.class, () -> bulkLoad.execute(() -> {
+            execute(connectionFactory, "INSERT INTO LOADED VALUES(1, 1, 'c1', 'n1', 1), (2, 3, 'c2', 'n2', 2), "
+                    + "(3, NULL, 'c3', 'n3', 3), (4, 4, 'c4', 'n4', 4)");
+            return null;
+        }));
+        assertAll(
+                () -> assertTrue(ex.getMessage().contains("FK_PARENT: violated by 2 loaded rows"), ex.getMessage()),
+                () -> assertEquals(before, definitions(connectionFactory)),
+                () -> assertEquals(2, count(connectionFactory)),
+                () -> assertThrows(SQLException.class, () -> execute(connectionFactory,
+                        "INSERT INTO LOADED VALUES(5, 3, 'c5', 'n5', 5)"))
+        );
+    }
+
+    @Test
+    public void given_duplicates_then_load_fails_and_unique_constraint_kept() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("bulkLoad4");
+        final List<String> before = definitions(connectionFactory);
+        final BulkLoad bulkLoad = new BulkLoad(connectionFactory, "LOADED");
+        final SQLException ex = assertThrows(SQLException.class, () -> bulkLoad.execute(() -> {
+            execute(connectionFactory, "INSERT INTO LOADED VALUES(1, 1, 'c1', 'n1', 1), (2, 1, 'c2', 'n1', 2)");
+            return null;
+        }));
+        assertAll(
+                () -> assertTrue(ex.getMessage().contains("UQ_NAME"), ex.getMessage()),
+                () -> assertEquals(before, definitions(connectionFactory)),
+                () -> assertEquals(0, count(connectionFactory))
+        );
+    }
+
+    @Test
+    public void given_disable_log_then_log_disabled_while_loading_and_restored() throws Exception {
+        // SET LOG is not reflected by an in-memory database
+        final Map<String, Object> m = new HashMap<>();
+        m.put("url", "jdbc:h2:" + tempDir.resolve("bulkLoad5").toAbsolutePath());
+        final IConnectionFactory connectionFactory = new ConnectionFactoryWithMap(m);
+        // keep the database open
+        try (final Connection connection = connectionFactory.createConnection()) {
+            execute(connectionFactory, "CREATE TABLE LOADED(ID INT PRIMARY KEY, AMOUNT INT, CONSTRAINT CK_AMOUNT CHECK (AMOUNT >= 0))");
+            final String before = BulkLoad.readSetting(connection, "LOG");
+            final BulkLoad bulkLoad = new BulkLoad(connectionFactory, "LOADED");
+            final String whileLoadingByDefault = bulkLoad.execute(() -> BulkLoad.readSetting(connection, "LOG"));
+            bulkLoad.setDisableLog(true);
+            final String whileLoading = bulkLoad.execute(() -> BulkLoad.readSetting(connection, "LOG"));
+            final String after = BulkLoad.readSetting(connection, "LOG");
+            assertAll(
+                    () -> assertEquals(before, whileLoadingByDefault),
+                    () -> assertEquals("0", whileLoading),
+                    () -> assertEquals(before, after)
+            );
+        }
+    }
+
+    static int count(IConnectionFactory connectionFactory) throws SQLException {
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM LOADED")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import org.huberb.h2tools.jdbc.ChunkedUpdate.Progress;
+import org.huberb.h2tools.jdbc.Supports.Holder;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author berni3
+ */
+public class ChunkedUpdateTest {
+
+    static IConnectionFactory createConnectionFactory(String dbName, int rows) throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory(dbName);
+        JdbcSql.withInstance(connectionFactory, (jdbcSql) -> {
+            jdbcSql.executeUpdate("DROP TABLE IF EXISTS EVENT_ENTITY", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+            jdbcSql.executeUpdate("CREATE TABLE EVENT_ENTITY(ID BIGINT PRIMARY KEY, CREATED INT)", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+            jdbcSql.executeUpdate("INSERT INTO EVENT_ENTITY SELECT X, MOD(X, 10) FROM SYSTEM_RANGE(1, ?)", Arrays.asList(rows), JdbcSql.EMPTY_INTEGER_CONSUMER);
+        });
+        return connectionFactory;
+    }
+
+    static long count(IConnectionFactory connectionFactory) throws SQLException {
+        final Holder<Long> count = new Holder<>();
+        JdbcSql.withInstance(connectionFactory, (jdbcSql) -> {
+            jdbcSql.executeQuery("SELECT COUNT(*) FROM EVENT_ENTITY", JdbcSql.EMPTY_PARAMS, (ResultSet rs) -> {
+                rs.next();
+                count.set(rs.getLong(1));
+            });
+        });
+        return count.get();
+    }
+
+    @Test
+    public void testCreateChunkSql() {
+        assertAll(
+                () -> assertEquals("DELETE FROM T WHERE ID >= ? AND ID < ?",
+                        ChunkedUpdate.createChunkSql("DELETE FROM T", "ID")),
+                () -> assertEquals("DELETE FROM T WHERE (A < ? OR B = 'where') AND ID >= ? AND ID < ?",
+                        ChunkedUpdate.createChunkSql("DELETE FROM T where A < ? OR B = 'where'", "ID")),
+                () -> assertEquals("UPDATE T SET A = (SELECT MAX(X) FROM U WHERE U.ID = T.ID) WHERE (A IS NULL) AND ID >= ? AND ID < ?",
+                        ChunkedUpdate.createChunkSql("UPDATE T SET A = (SELECT MAX(X) FROM U WHERE U.ID = T.ID) WHERE A IS NULL", "ID"))
+        );
+    }
+
+    @Test
+    public void given_trailing_clause_or_comment_then_reject_chunk_sql() {
+        assertAll(
+                () -> assertEquals("DELETE FROM T WHERE (A < ?) AND ID >= ? AND ID < ?",
+                        ChunkedUpdate.createChunkSql("DELETE FROM T WHERE A < ?;", "ID")),
+                () -> assertEquals("DELETE FROM T WHERE (A = '-- x ORDER BY') AND ID >= ? AND ID < ?",
+                        ChunkedUpdate.createChunkSql("DELETE FROM T WHERE A = '-- x ORDER BY'", "ID")),
+                () -> assertThrows(IllegalArgumentException.class,
+                        () -> ChunkedUpdate.createChunkSql("DELETE FROM T WHERE A < ? ORDER BY ID", "ID")),
+                () -> assertThrows(IllegalArgumentException.class,
+                        () -> ChunkedUpdate.createChunkSql("DELETE FROM T WHERE A < ? LIMIT 10", "ID")),
+                () -> assertThrows(IllegalArgumentException.class,
+                        () -> ChunkedUpdate.createChunkSql("DELETE FROM T LIMIT 10", "ID")),
+                () -> assertThrows(IllegalArgumentException.class,
+                        () -> ChunkedUpdate.createChunkSql("DELETE FROM T WHERE A < ? -- old rows", "ID")),
+                () -> assertThrows(IllegalArgumentException.class,
+                        () -> ChunkedUpdate.createChunkSql("DELETE FROM T /* all */", "ID"))
+        );
+    }
+
+    @Test
+    public void given_delete_then_delete_in_chunks() throws SQLException {
+        final IConnectionFactory connectionFactory = createConnectionFactory("chunkedUpdate1", 1000);
+        final ChunkedUpdate chunkedUpdate = new ChunkedUpdate(connectionFactory,
+                "EVENT_ENTITY", "ID",
+                "DELETE FROM EVENT_ENTITY WHERE CREATED < ?", Arrays.asList(5),
+                100);
+        final List<Progress> progressList = new ArrayList<>();
+        chunkedUpdate.setProgressConsumer(progressList::add);
+        final long updateCount = chunkedUpdate.execute();
+
+        assertAll(
+                () -> assertEquals(500, updateCount),
+                () -> assertEquals(500, count(connectionFactory)),
+                () -> assertEquals(10, progressList.size()),
+                () -> assertEquals(1001L, progressList.get(9).resumeKey()),
+                () -> assertEquals(500L, progressList.get(9).totalUpdateCount())
+        );
+    }
+
+    @Test
+    public void given_sparse_keys_then_gaps_skipped() throws SQLException {
+        final IConnectionFactory connectionFactory = createConnectionFactory("chunkedUpdate3", 10);
+        JdbcSql.withInstance(connectionFactory, (jdbcSql) -> {
+            jdbcSql.executeUpdate("INSERT INTO EVENT_ENTITY VALUES(1000000000000, 0), (" + (Long.MAX_VALUE - 1) + ", 0)",
+                    JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+        });
+        final ChunkedUpdate chunkedUpdate = new ChunkedUpdate(connectionFactory,
+                "EVENT_ENTITY", "ID",
+                "DELETE FROM EVENT_ENTITY", JdbcSql.EMPTY_PARAMS,
+                10000);
+        final List<Progress> progressList = new ArrayList<>();
+        chunkedUpdate.setProgressConsumer(progressList::add);
+        final long updateCount = chunkedUpdate.execute();
+
+        assertAll(
+                () -> assertEquals(12, updateCount),
+                () -> assertEquals(0, count(connectionFactory)),
+                () -> assertEquals(3, progressList.size()),
+                () -> assertEquals(1000000000000L, progressList.get(1).keyRange().low()),
+                () -> assertEquals(Long.MAX_VALUE, progressList.get(2).resumeKey())
+        );
+    }
+
+    @Test
+    public void given_maximum_key_then_exception() throws SQLException {
+        final IConnectionFactory connectionFactory = createConnectionFactory("chunkedUpdate4", 10);
+        JdbcSql.withInstance(connectionFactory, (jdbcSql) -> {
+            jdbcSql.executeUpdate("INSERT INTO EVENT_ENTITY VALUES(" + Long.MAX_VALUE + ", 0)",
+                    JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+        });
+        final ChunkedUpdate chunkedUpdate = new ChunkedUpdate(connectionFactory,
+                "EVENT_ENTITY", "ID",
+                "DELETE FROM EVENT_ENTITY", JdbcSql.EMPTY_PARAMS,
+                10000);
+        assertThrows(SQLException.class, chunkedUpdate::execute);
+        assertEquals(11, count(connectionFactory));
+    }
+
+    @Test
+    public void given_resume_key_then_skip_completed_chunks() throws SQLException {
+        final IConnectionFactory connectionFactory = createConnectionFactory("chunkedUpdate2", 1000);
+        final ChunkedUpdate chunkedUpdate = new ChunkedUpdate(connectionFactory,
+                "EVENT_ENTITY", "ID",
+                "DELETE FROM EVENT_ENTITY", JdbcSql.EMPTY_PARAMS,
+                300);
+        final long updateCount = chunkedUpdate.execute(Optional.of(601L));
+
+        assertAll(
+                () -> assertEquals(400, updateCount),
+                () -> assertEquals(600, count(connectionFactory))
+        );
+    }
+}
@@ -15,6 +15,9 @@
  */
 package org.huberb.h2tools.jdbc;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.HashMap;
 import java.util.Map;
 import javax.sql.DataSource;
@@ -25,7 +28,7 @@ import org.h2.jdbcx.JdbcDataSource;
  *
  * @author berni3
  */
-class DefaultDataSourceOrConnectionCreator {
+public class DefaultDataSourceOrConnectionCreator {
 
     /**
      * create a {@link DataSource} backed by {@link JdbcConnectionPool }.
@@ -73,4 +76,29 @@ class DefaultDataSourceOrConnectionCreator {
         return connectionFactoryWithMap;
     }
 
+    /**
+     * Create {@link ConnectionFactoryWithMap} of a named in-memory database,
+     * kept open until the JVM exits.
+     *
+     * @param dbName name of the in-memory database
+     * @return {@link ConnectionFactoryWithMap}
+     */
+    public static ConnectionFactoryWithMap createMemConnectionFactory(String dbName) {
+        final Map<String, Object> m = new HashMap<>();
+        m.put("url", "jdbc:h2:mem:" + dbName + ";DB_CLOSE_DELAY=-1");
+        return new ConnectionFactoryWithMap(m);
+    }
+
+    /**
+     * Execute sql statements using a single connection.
+     */
+    public static void execute(IConnectionFactory connectionFactory, String... sqls) throws SQLException {
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            for (String sql : sqls) {
+                statement.execute(sql);
+            }
+        }
+    }
+
 }
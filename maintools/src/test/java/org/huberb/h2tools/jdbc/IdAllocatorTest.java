@@ -0,0 +1,124 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author berni3
+ */
+public class IdAllocatorTest {
+
+    @Test
+    public void given_single_thread_then_ids_are_ascending_and_unique() throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory("idAllocator1");
+        try (final IdAllocator idAllocator = new IdAllocator(connectionFactory, "SEQ_ID_1", 10)) {
+            idAllocator.createSequenceIfNotExists();
+            final long[] ids = idAllocator.nextIds(35);
+            for (int i = 1; i < ids.length; i++) {
+                assertEquals(ids[i - 1] + 1, ids[i], "ids " + ids[i - 1] + ", " + ids[i]);
+            }
+        }
+    }
+
+    @Test
+    public void given_many_threads_then_ids_are_unique() throws Exception {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory("idAllocator2");
+        final Set<Long> allIds = ConcurrentHashMap.newKeySet();
+        final int threads = 8;
+        final int idsPerThread = 1000;
+        try (final IdAllocator idAllocator = new IdAllocator(connectionFactory, "SEQ_ID_2", 50)) {
+            idAllocator.createSequenceIfNotExists();
+            final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+            try {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    futures.add(executorService.submit(() -> {
+                        for (int i = 0; i < idsPerThread; i++) {
+                            allIds.add(idAllocator.nextId());
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+            } finally {
+                executorService.shutdownNow();
+            }
+        }
+        assertEquals(threads * idsPerThread, allIds.size());
+    }
+
+    @Test
+    public void given_sequence_with_other_increment_then_fail() throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory("idAllocator3");
+        JdbcSql.withInstance(connectionFactory, (jdbcSql) -> {
+            jdbcSql.executeUpdate("CREATE SEQUENCE SEQ_ID_3 INCREMENT BY 1", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+        });
+        try (final IdAllocator idAllocator = new IdAllocator(connectionFactory, "SEQ_ID_3", 100)) {
+            final SQLException sqlex = assertThrows(SQLException.class, () -> idAllocator.createSequenceIfNotExists());
+            assertTrue(sqlex.getMessage().contains("SEQ_ID_3"), sqlex.getMessage());
+        }
+    }
+
+    @Test
+    public void given_close_while_fetching_then_waiting_next_id_fails() throws Exception {
+        final IConnectionFactory memConnectionFactory = createMemConnectionFactory("idAllocator4");
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // a fetch ignoring the interrupt of close
+        final IConnectionFactory connectionFactory = () -> {
+            fetching.countDown();
+            while (true) {
+                try {
+                    release.await();
+                    return memConnectionFactory.createConnection();
+                } catch (InterruptedException ex) {
+                    // continue waiting
+                }
+            }
+        };
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            final IdAllocator idAllocator = new IdAllocator(connectionFactory, "SEQ_ID_4", 10);
+            final Future<Long> nextId = executorService.submit(idAllocator::nextId);
+            assertTrue(fetching.await(5, TimeUnit.SECONDS));
+            idAllocator.close();
+            final ExecutionException ex = assertThrows(ExecutionException.class, () -> nextId.get(5, TimeUnit.SECONDS));
+            assertTrue(ex.getCause() instanceof SQLException, String.valueOf(ex.getCause()));
+        } finally {
+            release.countDown();
+            executorService.shutdown();
+        }
+    }
+}
@@ -16,10 +16,12 @@
 package org.huberb.h2tools.jdbc;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -353,4 +355,60 @@ public class JdbcSqlFTest {
 
     }
 
+    @Test
+    public void test_insert_batch_returning_generated_keys() throws SQLException {
+
+        JdbcSqlF.Connections.withDataSource(jdbcConnectionPool, (Connection connection1) -> {
+            JdbcSqlF.UpdateCommands.executeUpdate(connection1, "DROP TABLE IF EXISTS TEST_IDENTITY");
+            JdbcSqlF.UpdateCommands.executeUpdate(connection1, "CREATE TABLE TEST_IDENTITY(ID IDENTITY PRIMARY KEY, NAME VARCHAR(255))");
+
+            JdbcSqlF.Connections.withTransaction(connection1, (Connection connectionInTransaction) -> {
+                final List<List<Object>> paramsList = Arrays.asList(
+                        Arrays.asList("Hello"),
+                        Arrays.asList("World"),
+                        Arrays.asList("H2"));
+                final long[] batchKeys = JdbcSqlF.BatchCommands.executeBatchReturningGeneratedKeys(connectionInTransaction,
+                        "INSERT INTO TEST_IDENTITY(NAME) VALUES(?)", paramsList);
+                final long[] bulkKeys = JdbcSqlF.UpdateCommands.executeUpdateReturningGeneratedKeys(connectionInTransaction,
+                        "INSERT INTO TEST_IDENTITY(NAME) VALUES(?), (?)", Arrays.asList("Hi", "There"));
+                assertAll(
+                        () -> assertEquals(3, batchKeys.length),
+                        () -> assertEquals(2, bulkKeys.length),
+                        () -> assertTrue(batchKeys[2] < bulkKeys[0])
+                );
+            });
+
+            JdbcSqlF.UpdateCommands.executeUpdate(connection1, "DROP TABLE TEST_IDENTITY");
+        });
+    }
+
+    @Test
+    public void test_forward_only_offset_limit() throws SQLException {
+
+        JdbcSqlF.Connections.withDataSource(jdbcConnectionPool, (Connection connection1) -> {
+            JdbcSqlF.UpdateCommands.executeUpdate(connection1, "DROP TABLE IF EXISTS TEST_RANGE");
+            JdbcSqlF.UpdateCommands.executeUpdate(connection1, "CREATE TABLE TEST_RANGE AS SELECT X AS ID FROM SYSTEM_RANGE(1, 10)");
+
+            final String sql = "SELECT ID FROM TEST_RANGE ORDER BY ID";
+            final List<Long> all = JdbcSqlF.ResultSets.convertResultSets(connection1, sql, null, 0, -1, 2, (rs) -> rs.getLong(1));
+            final List<Long> page = JdbcSqlF.ResultSets.convertResultSets(connection1, sql, null, 3, 4, 2, (rs) -> rs.getLong(1));
+            final List<Long> beyond = JdbcSqlF.ResultSets.convertResultSets(connection1, sql, null, 20, 4, 2, (rs) -> rs.getLong(1));
+            final Holder<Boolean> repeatedHasNext = new Holder<>();
+            JdbcSqlF.ResultSetCommands.processResultSet(connection1, sql, (rs) -> {
+                final Iterator<ResultSet> it = JdbcSqlF.ResultSets.resultSetIterator(rs, 0, 2);
+                repeatedHasNext.set(it.hasNext() && it.hasNext() && it.next().getLong(1) == 1L
+                        && it.hasNext() && it.next().getLong(1) == 2L
+                        && !it.hasNext());
+            });
+
+            assertAll(
+                    () -> assertEquals(10, all.size()),
+                    () -> assertEquals(Arrays.asList(4L, 5L, 6L, 7L), page),
+                    () -> assertEquals(0, beyond.size()),
+                    () -> assertTrue(repeatedHasNext.get())
+            );
+            JdbcSqlF.UpdateCommands.executeUpdate(connection1, "DROP TABLE TEST_RANGE");
+        });
+    }
+
 }
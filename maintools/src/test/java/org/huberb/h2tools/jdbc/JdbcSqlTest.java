@@ -45,6 +45,8 @@ public class JdbcSqlTest {
         //---
         createTable("CREATE TABLE TEST(ID INT PRIMARY KEY, NAME VARCHAR(255))"),
         dropTable("DROP TABLE IF EXISTS TEST"),
+        createIdentityTable("CREATE TABLE TEST_IDENTITY(ID IDENTITY PRIMARY KEY, NAME VARCHAR(255))"),
+        dropIdentityTable("DROP TABLE IF EXISTS TEST_IDENTITY"),
         //---
         insertID_1("INSERT INTO TEST VALUES(1, 'Hello')"),
         insertID_2("INSERT INTO TEST VALUES(2, 'World')"),
@@ -427,4 +429,55 @@ public class JdbcSqlTest {
         });
     }
 
+    @ParameterizedTest
+    @MethodSource(value = "streamOfIConnectionFactory")
+    public void testExecuteBatchReturningGeneratedKeys(IConnectionFactory iconnectionFactory) throws SQLException {
+        //---
+        final JdbcSql jdbcSql = JdbcSql.newInstance(iconnectionFactory);
+        jdbcSql.withTransaction((final Connection connection) -> {
+            for (final String sql : Arrays.asList(
+                    SqlStatements.dropIdentityTable.sql(),
+                    SqlStatements.createIdentityTable.sql())) {
+                jdbcSql.executeUpdate(sql, JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+            }
+            {
+                final String sql = "INSERT INTO TEST_IDENTITY(NAME) VALUES(?)";
+                final List<List<Object>> paramsList = new ArrayList<>();
+                paramsList.add(Arrays.asList("hello"));
+                paramsList.add(Arrays.asList("world"));
+                paramsList.add(Arrays.asList("h2"));
+
+                final long[] generatedKeys = jdbcSql.executeBatchReturningGeneratedKeys(sql, paramsList, null);
+                assertEquals(3, generatedKeys.length);
+                assertTrue(generatedKeys[0] < generatedKeys[1] && generatedKeys[1] < generatedKeys[2]);
+
+                final List<Object> params = Arrays.asList(generatedKeys[1]);
+                jdbcSql.executeQuery("SELECT NAME FROM TEST_IDENTITY WHERE ID = ?", params, (ResultSet resultSet) -> {
+                    assertTrue(resultSet.next());
+                    assertEquals("world", resultSet.getString(1));
+                });
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @MethodSource(value = "streamOfIConnectionFactory")
+    public void testExecuteUpdateReturningGeneratedKeys(IConnectionFactory iconnectionFactory) throws SQLException {
+        //---
+        final JdbcSql jdbcSql = JdbcSql.newInstance(iconnectionFactory);
+        jdbcSql.withTransaction((final Connection connection) -> {
+            for (final String sql : Arrays.asList(
+                    SqlStatements.dropIdentityTable.sql(),
+                    SqlStatements.createIdentityTable.sql())) {
+                jdbcSql.executeUpdate(sql, JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+            }
+            {
+                final String sql = "INSERT INTO TEST_IDENTITY(NAME) VALUES(?), (?)";
+                final long[] generatedKeys = jdbcSql.executeUpdateReturningGeneratedKeys(sql, Arrays.asList("hello", "world"), null);
+                assertEquals(2, generatedKeys.length);
+                assertEquals(generatedKeys[0] + 1, generatedKeys[1]);
+            }
+        });
+    }
+
 }
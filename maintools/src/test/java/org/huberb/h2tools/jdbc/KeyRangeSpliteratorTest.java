@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.huberb.h2tools.jdbc.KeyRanges.KeyRange;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author berni3
+ */
+public class KeyRangeSpliteratorTest {
+
+    static IConnectionFactory createConnectionFactory(String dbName, int rows, AtomicInteger openConnections) throws SQLException {
+        final IConnectionFactory connectionFactoryWithMap = createMemConnectionFactory(dbName);
+        JdbcSql.withInstance(connectionFactoryWithMap, (jdbcSql) -> {
+            jdbcSql.executeUpdate("DROP TABLE IF EXISTS EVENT_ENTITY", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+            jdbcSql.executeUpdate("CREATE TABLE EVENT_ENTITY(ID BIGINT PRIMARY KEY, CREATED INT)", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+            jdbcSql.executeUpdate("INSERT INTO EVENT_ENTITY SELECT X, MOD(X, 10) FROM SYSTEM_RANGE(1, ?)", Arrays.asList(rows), JdbcSql.EMPTY_INTEGER_CONSUMER);
+        });
+        return () -> {
+            final Connection connection = connectionFactoryWithMap.createConnection();
+            openConnections.incrementAndGet();
+            return (Connection) Proxy.newProxyInstance(KeyRangeSpliteratorTest.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        if ("close".equals(method.getName()) && !connection.isClosed()) {
+                            openConnections.decrementAndGet();
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException ex) {
+                            throw ex.getCause();
+                        }
+                    });
+        };
+    }
+
+    @Test
+    public void given_sequential_stream_then_rows_in_key_order() throws SQLException {
+        final AtomicInteger openConnections = new AtomicInteger();
+        final IConnectionFactory connectionFactory = createConnectionFactory("keyRangeSpliterator1", 1000, openConnections);
+        final List<Long> ids;
+        try (final Stream<Long> stream = KeyRangeSpliterator.stream(connectionFactory,
+                "EVENT_ENTITY", "ID", 100, 50, (rs) -> rs.getLong("ID"), false)) {
+            ids = stream.collect(Collectors.toList());
+        }
+        assertAll(
+                () -> assertEquals(1000, ids.size()),
+                () -> assertEquals(1L, ids.get(0)),
+                () -> assertEquals(1000L, ids.get(999)),
+                () -> assertEquals(0, openConnections.get())
+        );
+    }
+
+    @Test
+    public void given_parallel_stream_then_split_by_key_ranges() throws SQLException {
+        final AtomicInteger openConnections = new AtomicInteger();
+        final IConnectionFactory connectionFactory = createConnectionFactory("keyRangeSpliterator2", 10000, openConnections);
+        final long sum;
+        final List<Long> firstIds;
+        try (final Stream<Long> stream = KeyRangeSpliterator.stream(connectionFactory,
+                "EVENT_ENTITY", "ID", 100, 50, (rs) -> rs.getLong("ID"), true)) {
+            sum = stream.mapToLong(Long::longValue).sum();
+        }
+        try (final Stream<Long> stream = KeyRangeSpliterator.stream(connectionFactory,
+                "EVENT_ENTITY", "ID", 100, 50, (rs) -> rs.getLong("ID"), true)) {
+            firstIds = stream.limit(3).collect(Collectors.toList());
+        }
+        assertAll(
+                () -> assertEquals(10000L * 10001L / 2, sum),
+                () -> assertEquals(Arrays.asList(1L, 2L, 3L), firstIds),
+                () -> assertEquals(0, openConnections.get())
+        );
+    }
+
+    @Test
+    public void given_spliterator_then_split_halves_key_range() {
+        final KeyRangeSpliterator<Long> spliterator = new KeyRangeSpliterator<>(null,
+                "SELECT ID FROM EVENT_ENTITY WHERE ID >= ? AND ID < ?", JdbcSql.EMPTY_PARAMS,
+                new KeyRange(0, 100), 30, 0, (rs) -> rs.getLong(1));
+        final Spliterator<Long> prefix = spliterator.trySplit();
+        assertNotNull(prefix);
+        assertAll(
+                () -> assertEquals(50, prefix.estimateSize()),
+                () -> assertEquals(50, spliterator.estimateSize()),
+                () -> assertEquals(null, spliterator.trySplit())
+        );
+    }
+}
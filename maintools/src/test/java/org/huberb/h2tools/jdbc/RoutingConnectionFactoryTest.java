@@ -0,0 +1,163 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.h2.tools.Server;
+import org.huberb.h2tools.jdbc.RoutingConnectionFactory.Strategy;
+import org.huberb.h2tools.jdbc.Supports.Holder;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author berni3
+ */
+public class RoutingConnectionFactoryTest {
+
+    final List<Server> servers = new ArrayList<>();
+    final List<IConnectionFactory> connectionFactories = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        for (int i = 0; i < 3; i++) {
+            final Server server = Server.createTcpServer("-tcpPort", "0", "-ifNotExists").start();
+            servers.add(server);
+            final String node = "routing" + i;
+            final Map<String, Object> m = new HashMap<>();
+            m.put("url", String.format("jdbc:h2:tcp://localhost:%d/mem:%s;DB_CLOSE_DELAY=-1", server.getPort(), node));
+            final IConnectionFactory connectionFactory = new ConnectionFactoryWithMap(m);
+            connectionFactories.add(connectionFactory);
+            JdbcSql.withInstance(connectionFactory, (jdbcSql) -> {
+                jdbcSql.executeUpdate("CREATE TABLE IF NOT EXISTS NODE(NAME VARCHAR(20))", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+                jdbcSql.executeUpdate("DELETE FROM NODE", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+                jdbcSql.executeUpdate("INSERT INTO NODE VALUES(?)", Arrays.asList(node), JdbcSql.EMPTY_INTEGER_CONSUMER);
+            });
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        servers.forEach(Server::stop);
+    }
+
+    static String queryNode(JdbcSql jdbcSql) throws SQLException {
+        final Holder<String> holder = new Holder<>();
+        jdbcSql.executeQuery("SELECT NAME FROM NODE", JdbcSql.EMPTY_PARAMS, (ResultSet rs) -> {
+            rs.next();
+            holder.set(rs.getString(1));
+        });
+        return holder.get();
+    }
+
+    static String queryNode(Connection connection) throws SQLException {
+        final Holder<String> holder = new Holder<>();
+        JdbcSqlF.ResultSetCommands.processResultSet(connection, "SELECT NAME FROM NODE", (ResultSet rs) -> {
+            rs.next();
+            holder.set(rs.getString(1));
+        });
+        return holder.get();
+    }
+
+    static void awaitHealthyReplicaCount(RoutingConnectionFactory routingConnectionFactory, int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (routingConnectionFactory.healthyReplicaCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20L);
+        }
+    }
+
+    @Test
+    public void given_round_robin_then_spread_reads_and_write_to_primary() throws SQLException {
+        try (final RoutingConnectionFactory routingConnectionFactory = new RoutingConnectionFactory(
+                connectionFactories.get(0), connectionFactories.subList(1, 3), Strategy.ROUND_ROBIN)) {
+            final List<String> readNodes = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                try (final JdbcSql jdbcSql = JdbcSql.newReadOnlyInstance(routingConnectionFactory)) {
+                    readNodes.add(queryNode(jdbcSql));
+                }
+            }
+            final Holder<String> writeNode = new Holder<>();
+            JdbcSql.withInstance(routingConnectionFactory, (jdbcSql) -> writeNode.set(queryNode(jdbcSql)));
+            final Holder<String> markedReadOnlyNode = new Holder<>();
+            try (final Connection connection = routingConnectionFactory.createConnection()) {
+                connection.setReadOnly(true);
+                markedReadOnlyNode.set(queryNode(connection));
+            }
+
+            assertAll(
+                    () -> assertEquals(Arrays.asList("routing1", "routing2", "routing1", "routing2"), readNodes),
+                    () -> assertEquals("routing0", writeNode.get()),
+                    () -> assertEquals("routing1", markedReadOnlyNode.get())
+            );
+        }
+    }
+
+    @Test
+    public void given_least_loaded_then_avoid_busy_replica() throws SQLException {
+        try (final RoutingConnectionFactory routingConnectionFactory = new RoutingConnectionFactory(
+                connectionFactories.get(0), connectionFactories.subList(1, 3), Strategy.LEAST_LOADED)) {
+            try (final Connection busy = routingConnectionFactory.createReadOnlyConnection()) {
+                final String busyNode = queryNode(busy);
+                final Holder<String> otherNode = new Holder<>();
+                JdbcSql.newReadOnlyInstance(routingConnectionFactory).withReadOnlyConnection((connection) -> {
+                    otherNode.set(queryNode(connection));
+                });
+                assertAll(
+                        () -> assertEquals("routing1", busyNode),
+                        () -> assertEquals("routing2", otherNode.get())
+                );
+            }
+        }
+    }
+
+    @Test
+    public void given_replica_down_then_fall_back() throws SQLException, InterruptedException {
+        try (final RoutingConnectionFactory routingConnectionFactory = new RoutingConnectionFactory(
+                connectionFactories.get(0), connectionFactories.subList(1, 3), Strategy.ROUND_ROBIN, 50L)) {
+            servers.get(1).stop();
+            awaitHealthyReplicaCount(routingConnectionFactory, 1);
+            final int healthyReplicaCount = routingConnectionFactory.healthyReplicaCount();
+            final List<String> readNodes = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                try (final JdbcSql jdbcSql = JdbcSql.newReadOnlyInstance(routingConnectionFactory)) {
+                    readNodes.add(queryNode(jdbcSql));
+                }
+            }
+            servers.get(2).stop();
+            awaitHealthyReplicaCount(routingConnectionFactory, 0);
+            final String fallbackNode;
+            try (final JdbcSql jdbcSql = JdbcSql.newReadOnlyInstance(routingConnectionFactory)) {
+                fallbackNode = queryNode(jdbcSql);
+            }
+
+            assertAll(
+                    () -> assertEquals(1, healthyReplicaCount),
+                    () -> assertEquals(Arrays.asList("routing2", "routing2"), readNodes),
+                    () -> assertEquals("routing0", fallbackNode)
+            );
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.huberb.h2tools.jdbc.ShardedJdbcSql.Aggregate;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author berni3
+ */
+public class ShardedJdbcSqlTest {
+
+    static List<IConnectionFactory> createShards(String dbName, int shardCount) {
+        final List<IConnectionFactory> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(createMemConnectionFactory(dbName + i));
+        }
+        return shards;
+    }
+
+    static int[] insertRows(ShardedJdbcSql shardedJdbcSql, int rows) throws SQLException {
+        shardedJdbcSql.executeUpdateOnAllShards("DROP TABLE IF EXISTS EVENT_ENTITY", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+        shardedJdbcSql.executeUpdateOnAllShards("CREATE TABLE EVENT_ENTITY(ID BIGINT PRIMARY KEY, CREATED INT)", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+        final List<List<Object>> paramsList = new ArrayList<>();
+        for (long id = 1; id <= rows; id++) {
+            paramsList.add(Arrays.asList(id, (int) (id % 100)));
+        }
+        return shardedJdbcSql.executeBatch("INSERT INTO EVENT_ENTITY VALUES(?, ?)", paramsList, (params) -> params.get(0), null);
+    }
+
+    static int countShard(IConnectionFactory connectionFactory) throws SQLException {
+        return ShardedJdbcSql.queryShard(connectionFactory, "SELECT COUNT(*) FROM EVENT_ENTITY", JdbcSql.EMPTY_PARAMS, -1,
+                (rs) -> rs.getInt(1)).get(0);
+    }
+
+    @Test
+    public void given_hash_sharded_then_rows_spread_and_aggregates_merged() throws SQLException {
+        final ShardedConnectionFactory shardedConnectionFactory = ShardedConnectionFactory.hashSharded(createShards("shardedHash", 3));
+        try (final ShardedJdbcSql shardedJdbcSql = new ShardedJdbcSql(shardedConnectionFactory)) {
+            final int[] insertCounts = insertRows(shardedJdbcSql, 1000);
+            final int shard0Count = countShard(shardedConnectionFactory.shard(0));
+            final BigDecimal count = shardedJdbcSql.queryAggregate("SELECT COUNT(*) FROM EVENT_ENTITY", JdbcSql.EMPTY_PARAMS, Aggregate.COUNT);
+            final BigDecimal sum = shardedJdbcSql.queryAggregate("SELECT SUM(ID) FROM EVENT_ENTITY", JdbcSql.EMPTY_PARAMS, Aggregate.SUM);
+            final BigDecimal min = shardedJdbcSql.queryAggregate("SELECT MIN(ID) FROM EVENT_ENTITY", JdbcSql.EMPTY_PARAMS, Aggregate.MIN);
+            final BigDecimal max = shardedJdbcSql.queryAggregate("SELECT MAX(ID) FROM EVENT_ENTITY", JdbcSql.EMPTY_PARAMS, Aggregate.MAX);
+            final int updateCount = shardedJdbcSql.executeUpdate(500L, "UPDATE EVENT_ENTITY SET CREATED = -1 WHERE ID = ?", Arrays.asList(500L),
+                    JdbcSql.EMPTY_INTEGER_CONSUMER);
+            final List<Long> updated = ShardedJdbcSql.queryShard(shardedConnectionFactory.forKey(500),
+                    "SELECT ID FROM EVENT_ENTITY WHERE CREATED = -1", JdbcSql.EMPTY_PARAMS, -1, (rs) -> rs.getLong(1));
+            final List<Integer> routedCreated = new ArrayList<>();
+            shardedConnectionFactory.withShardKey(500L, (connectionFactory) -> {
+                JdbcSql.withInstance(connectionFactory, (jdbcSql) -> {
+                    jdbcSql.executeQuery("SELECT CREATED FROM EVENT_ENTITY WHERE ID = ?", Arrays.asList(500L), (rs) -> {
+                        while (rs.next()) {
+                            routedCreated.add(rs.getInt(1));
+                        }
+                    });
+                });
+            });
+
+            assertAll(
+                    () -> assertEquals(1000, insertCounts.length),
+                    () -> assertTrue(Arrays.stream(insertCounts).allMatch((u) -> u == 1)),
+                    () -> assertThrows(SQLException.class, shardedConnectionFactory::createConnection),
+                    () -> assertTrue(shard0Count > 250 && shard0Count < 420, "shard0Count " + shard0Count),
+                    () -> assertEquals(1000, count.intValue()),
+                    () -> assertEquals(1000L * 1001L / 2, sum.longValue()),
+                    () -> assertEquals(1L, min.longValue()),
+                    () -> assertEquals(1000L, max.longValue()),
+                    () -> assertEquals(1, updateCount),
+                    () -> assertEquals(Arrays.asList(500L), updated),
+                    () -> assertEquals(Arrays.asList(-1), routedCreated)
+            );
+        }
+    }
+
+    @Test
+    public void given_range_sharded_then_ordered_limit_merged() throws SQLException {
+        final ShardedConnectionFactory shardedConnectionFactory = ShardedConnectionFactory.rangeSharded(createShards("shardedRange", 3), 100L, 200L);
+        try (final ShardedJdbcSql shardedJdbcSql = new ShardedJdbcSql(shardedConnectionFactory)) {
+            insertRows(shardedJdbcSql, 300);
+            final List<Integer> shardCounts = new ArrayList<>();
+            for (IConnectionFactory shard : shardedConnectionFactory.shards()) {
+                shardCounts.add(countShard(shard));
+            }
+            final List<Long> top = shardedJdbcSql.queryOrderedLimit(
+                    "SELECT ID FROM EVENT_ENTITY ORDER BY CREATED DESC, ID DESC", JdbcSql.EMPTY_PARAMS,
+                    (rs) -> rs.getLong(1),
+                    Comparator.comparing((Long id) -> id % 100).thenComparing(Comparator.naturalOrder()).reversed(), 5);
+            final List<Long> all = shardedJdbcSql.queryList("SELECT ID FROM EVENT_ENTITY ORDER BY ID", JdbcSql.EMPTY_PARAMS, (rs) -> rs.getLong(1));
+
+            assertAll(
+                    () -> assertEquals(Arrays.asList(99, 100, 101), shardCounts),
+                    () -> assertEquals(Arrays.asList(299L, 199L, 99L, 298L, 198L), top),
+                    () -> assertEquals(300, all.size()),
+                    () -> assertEquals(1L, all.get(0)),
+                    () -> assertEquals(300L, all.get(299))
+            );
+        }
+    }
+
+    @Test
+    public void given_query_stream_then_rows_of_all_shards() throws SQLException {
+        final ShardedConnectionFactory shardedConnectionFactory = ShardedConnectionFactory.hashSharded(createShards("shardedStream", 3));
+        try (final ShardedJdbcSql shardedJdbcSql = new ShardedJdbcSql(shardedConnectionFactory)) {
+            shardedJdbcSql.setQueueCapacity(10);
+            insertRows(shardedJdbcSql, 1000);
+            final List<Long> ids;
+            try (final Stream<Long> stream = shardedJdbcSql.queryStream("SELECT ID FROM EVENT_ENTITY WHERE CREATED < ?",
+                    Arrays.asList(50), (rs) -> rs.getLong(1))) {
+                ids = stream.sorted().collect(Collectors.toList());
+            }
+            final List<Long> firstIds;
+            try (final Stream<Long> stream = shardedJdbcSql.queryStream("SELECT ID FROM EVENT_ENTITY",
+                    JdbcSql.EMPTY_PARAMS, (rs) -> rs.getLong(1))) {
+                firstIds = stream.limit(3).collect(Collectors.toList());
+            }
+
+            assertAll(
+                    () -> assertEquals(500, ids.size()),
+                    () -> assertEquals(200L, ids.get(99)),
+                    () -> assertEquals(3, firstIds.size())
+            );
+        }
+    }
+}
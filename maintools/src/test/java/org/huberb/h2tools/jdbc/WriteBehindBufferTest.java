@@ -0,0 +1,166 @@
+/*
+ * Copyright 2023 berni3.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.huberb.h2tools.jdbc.Supports.Holder;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author berni3
+ */
+public class WriteBehindBufferTest {
+
+    static IConnectionFactory createConnectionFactory(String dbName) throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory(dbName);
+        JdbcSql.withInstance(connectionFactory, (jdbcSql) -> {
+            jdbcSql.executeUpdate("DROP TABLE IF EXISTS COUNTER", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+            jdbcSql.executeUpdate("CREATE TABLE COUNTER(ID BIGINT PRIMARY KEY, VALUE BIGINT)", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+            jdbcSql.executeUpdate("INSERT INTO COUNTER SELECT X, 0 FROM SYSTEM_RANGE(1, 10)", JdbcSql.EMPTY_PARAMS, JdbcSql.EMPTY_INTEGER_CONSUMER);
+        });
+        return connectionFactory;
+    }
+
+    static long sumOfValues(IConnectionFactory connectionFactory) throws SQLException {
+        final Holder<Long> sum = new Holder<>();
+        JdbcSql.withInstance(connectionFactory, (jdbcSql) -> {
+            jdbcSql.executeQuery("SELECT SUM(VALUE) FROM COUNTER", JdbcSql.EMPTY_PARAMS, (ResultSet rs) -> {
+                rs.next();
+                sum.set(rs.getLong(1));
+            });
+        });
+        return sum.get();
+    }
+
+    @Test
+    public void given_increments_then_coalesce_and_flush_on_close() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("writeBehindBuffer1");
+        final WriteBehindBuffer<Long> buffer = new WriteBehindBuffer<>(connectionFactory,
+                "UPDATE COUNTER SET VALUE = VALUE + ? WHERE ID = ?",
+                100, 10L, 50,
+                (l1, l2) -> Arrays.asList((Long) l1.get(0) + (Long) l2.get(0), l1.get(1)));
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            executorService.execute(() -> {
+                for (long i = 0; i < 1000; i++) {
+                    final long id = 1 + i % 10;
+                    try {
+                        buffer.submit(id, Arrays.asList(1L, id));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        buffer.close();
+
+        assertAll(
+                () -> assertEquals(4000L, sumOfValues(connectionFactory)),
+                () -> assertEquals(0, buffer.pendingCount()),
+                () -> assertThrows(IllegalStateException.class, () -> buffer.submit(1L, Arrays.asList(1L, 1L)))
+        );
+    }
+
+    @Test
+    public void given_full_buffer_then_offer_times_out() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("writeBehindBuffer2");
+        try (final WriteBehindBuffer<Long> buffer = new WriteBehindBuffer<>(connectionFactory,
+                "UPDATE COUNTER SET VALUE = ? WHERE ID = ?",
+                100, 60000L, 2)) {
+            assertTrue(buffer.offer(1L, Arrays.asList(1L, 1L), 10, TimeUnit.MILLISECONDS));
+            assertTrue(buffer.offer(2L, Arrays.asList(2L, 2L), 10, TimeUnit.MILLISECONDS));
+            // same key is coalesced, and does not need capacity
+            assertTrue(buffer.offer(2L, Arrays.asList(3L, 2L), 10, TimeUnit.MILLISECONDS));
+            assertEquals(false, buffer.offer(3L, Arrays.asList(3L, 3L), 10, TimeUnit.MILLISECONDS));
+
+            buffer.flush();
+            assertEquals(4L, sumOfValues(connectionFactory));
+            assertTrue(buffer.offer(3L, Arrays.asList(3L, 3L), 10, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(7L, sumOfValues(connectionFactory));
+    }
+
+    @Test
+    public void given_failing_update_then_pass_to_failure_consumer() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("writeBehindBuffer3");
+        final List<List<Object>> failed = new ArrayList<>();
+        try (final WriteBehindBuffer<Long> buffer = new WriteBehindBuffer<>(connectionFactory,
+                "UPDATE NO_SUCH_TABLE SET VALUE = ? WHERE ID = ?",
+                100, 60000L, 10)) {
+            buffer.setFailureConsumer((paramsList, sqlex) -> failed.addAll(paramsList));
+            buffer.submit(1L, Arrays.asList(1L, 1L));
+            assertThrows(SQLException.class, () -> buffer.flush());
+            assertEquals(1, failed.size());
+        }
+    }
+
+    @Test
+    public void given_submits_racing_close_then_accepted_updates_flushed() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("writeBehindBuffer4");
+        final WriteBehindBuffer<Long> buffer = new WriteBehindBuffer<>(connectionFactory,
+                "UPDATE COUNTER SET VALUE = VALUE + ? WHERE ID = ?",
+                5, 60000L, 5,
+                (l1, l2) -> Arrays.asList((Long) l1.get(0) + (Long) l2.get(0), l1.get(1)));
+        final AtomicLong accepted = new AtomicLong();
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            executorService.execute(() -> {
+                try {
+                    for (long i = 0; i < 100000; i++) {
+                        final long id = 1 + i % 10;
+                        buffer.submit(id, Arrays.asList(1L, id));
+                        accepted.incrementAndGet();
+                    }
+                } catch (IllegalStateException | InterruptedException ex) {
+                    // closed
+                }
+            });
+        }
+        Thread.sleep(50L);
+        buffer.close();
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertAll(
+                () -> assertEquals(accepted.get(), sumOfValues(connectionFactory)),
+                () -> assertEquals(0, buffer.pendingCount())
+        );
+    }
+
+    @Test
+    public void given_zero_batch_size_then_exception() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("writeBehindBuffer5");
+        assertThrows(IllegalArgumentException.class, () -> new WriteBehindBuffer<Long>(connectionFactory,
+                "UPDATE COUNTER SET VALUE = ? WHERE ID = ?",
+                0, 100L, 10));
+    }
+}
@@ -77,6 +77,12 @@ public class MainH2Test {
                     () -> assertTrue(swOutAsString.contains("csvRead"), m),
                     () -> assertTrue(swOutAsString.contains("csvWrite"), m),
                     () -> assertTrue(swOutAsString.contains("show"), m),
+                    () -> assertTrue(swOutAsString.contains("chunkedUpdate"), m),
+                    () -> assertTrue(swOutAsString.contains("restore"), m),
+                    () -> assertTrue(swOutAsString.contains("dump"), m),
+                    () -> assertTrue(swOutAsString.contains("load"), m),
+                    () -> assertTrue(swOutAsString.contains("diff"), m),
+                    () -> assertTrue(swOutAsString.contains("copy"), m),
                     () -> assertTrue(swOutAsString.contains("-h"), m),
                     () -> assertTrue(swOutAsString.contains("--help"), m),
                     () -> assertTrue(swOutAsString.contains("-V"), m),
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.support.BinaryDump.ValueKind;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ *
+ * @author pi
+ */
+public class BinaryDumpTest {
+
+    static final String COLUMNS = "ID BIGINT PRIMARY KEY, B BOOLEAN, I INT, D DOUBLE, N DECIMAL(20, 4), "
+            + "DT DATE, T TIME, TS TIMESTAMP(9), TZ TIMESTAMP WITH TIME ZONE, BIN VARBINARY, BL BLOB, S VARCHAR, CL CLOB, U UUID";
+
+    static Connection createConnection(String dbName) throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory(dbName);
+        return connectionFactory.createConnection();
+    }
+
+    static void createTables(Connection connection) throws SQLException {
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE A(" + COLUMNS + ")");
+            statement.execute("CREATE TABLE B(" + COLUMNS + ")");
+            statement.execute("INSERT INTO A SELECT X, MOD(X, 2) = 0, -X * 1000, X / 3.0, X * 1234.5678, "
+                    + "DATEADD('DAY', X, DATE '1900-01-01'), TIME '12:34:56.789', "
+                    + "DATEADD('NANOSECOND', X, TIMESTAMP '2001-02-03 04:05:06.123456789'), "
+                    + "TIMESTAMP WITH TIME ZONE '2001-02-03 04:05:06.5+05:30', "
+                    + "CAST(X AS VARBINARY), SECURE_RAND(MOD(X, 7) * 100), "
+                    + "'sä' || X, REPEAT('c', MOD(X, 5) * 1000), RANDOM_UUID() FROM SYSTEM_RANGE(1, 1000)");
+            statement.execute("INSERT INTO A(ID) VALUES(0)");
+        }
+    }
+
+    static byte[] dump(Connection connection, Compression compression) throws SQLException, IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery("SELECT * FROM A ORDER BY ID");
+                final BinaryDump.Writer writer = new BinaryDump.Writer(out, compression)) {
+            writer.setBlockSize(16 * 1024);
+            writer.write(rs);
+        }
+        return out.toByteArray();
+    }
+
+    static long load(Connection connection, byte[] bytes) throws SQLException, IOException {
+        long rows = 0L;
+        try (final BinaryDump.Reader reader = new BinaryDump.Reader(new ByteArrayInputStream(bytes));
+                final PreparedStatement ps = connection.prepareStatement("INSERT INTO B VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            while (reader.next(ps)) {
+                ps.addBatch();
+                rows += 1;
+            }
+            ps.executeBatch();
+        }
+        return rows;
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = Compression.class, names = {"NONE", "LZF", "DEFLATE"})
+    public void given_typed_rows_then_loaded_equal(Compression compression) throws Exception {
+        try (final Connection connection = createConnection("binaryDump" + compression)) {
+            createTables(connection);
+            final byte[] bytes = dump(connection, compression);
+            final long rows = load(connection, bytes);
+            try (final Statement statement = connection.createStatement();
+                    final ResultSet rs = statement.executeQuery("SELECT "
+                            + "(SELECT COUNT(*) FROM B), "
+                            + "(SELECT COUNT(*) FROM (SELECT * FROM A EXCEPT SELECT * FROM B)), "
+                            + "(SELECT COUNT(*) FROM B WHERE S IS NULL AND BL IS NULL)")) {
+                rs.next();
+                assertAll(
+                        () -> assertEquals(1001L, rows),
+                        () -> assertEquals(1001L, rs.getLong(1)),
+                        () -> assertEquals(0L, rs.getLong(2)),
+                        () -> assertEquals(1L, rs.getLong(3))
+                );
+            }
+        }
+    }
+
+    @Test
+    public void given_corrupt_block_then_checksum_mismatch() throws Exception {
+        try (final Connection connection = createConnection("binaryDumpCorrupt")) {
+            createTables(connection);
+            final byte[] bytes = dump(connection, Compression.LZF);
+            bytes[bytes.length / 2] ^= 0x55;
+            final IOException ex = assertThrows(IOException.class, () -> load(connection, bytes));
+            assertTrue(ex.getMessage().startsWith("Checksum mismatch of block"), ex.getMessage());
+        }
+    }
+
+    @Test
+    public void given_header_then_column_names_and_types() throws Exception {
+        try (final Connection connection = createConnection("binaryDumpHeader")) {
+            createTables(connection);
+            final byte[] bytes = dump(connection, Compression.NONE);
+            try (final BinaryDump.Reader reader = new BinaryDump.Reader(new ByteArrayInputStream(bytes))) {
+                assertAll(
+                        () -> assertEquals("ID", reader.columnNames()[0]),
+                        () -> assertEquals(Types.BIGINT, reader.sqlTypes()[0]),
+                        () -> assertArrayEquals(new ValueKind[]{ValueKind.LONG, ValueKind.BOOLEAN, ValueKind.LONG, ValueKind.DOUBLE,
+                    ValueKind.DECIMAL, ValueKind.DATE, ValueKind.TIME, ValueKind.TIMESTAMP, ValueKind.TIMESTAMP_WITH_TIME_ZONE,
+                    ValueKind.BYTES, ValueKind.BYTES, ValueKind.STRING, ValueKind.STRING, ValueKind.BYTES},
+                                BinaryDump.kinds(reader.sqlTypes()))
+                );
+            }
+            assertThrows(IOException.class, () -> new BinaryDump.Reader(new ByteArrayInputStream(new byte[]{'H', '2'})));
+        }
+    }
+}
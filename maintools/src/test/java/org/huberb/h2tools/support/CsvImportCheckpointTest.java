@@ -0,0 +1,151 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import org.huberb.h2tools.support.MappedCsvReader.ColumnBatch;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author pi
+ */
+public class CsvImportCheckpointTest {
+
+    @TempDir
+    Path tempDir;
+
+    static Connection createConnection(String dbName) throws SQLException {
+        return createMemConnectionFactory(dbName).createConnection();
+    }
+
+    Path createCsv() throws IOException {
+        final StringBuilder sb = new StringBuilder("ID,NAME\n");
+        for (int i = 1; i <= 1000; i++) {
+            sb.append(i).append(",\"name\n").append(i).append("\"\n");
+        }
+        final Path path = tempDir.resolve("checkpoint.csv");
+        Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    /**
+     * Insert batches, committing each together with its checkpoint.
+     *
+     * @return line numbers of the inserted rows
+     */
+    static List<Long> insert(Connection connection, MappedCsvReader mappedCsvReader, CsvImportCheckpoint checkpoint, int maxBatches) throws IOException, SQLException {
+        final List<Long> lineNumbers = new ArrayList<>();
+        try (final PreparedStatement ps = connection.prepareStatement("INSERT INTO IMPORTED VALUES(?, ?)")) {
+            final Iterator<ColumnBatch> it = mappedCsvReader.batches();
+            for (int i = 0; i < maxBatches && it.hasNext(); i++) {
+                final ColumnBatch batch = it.next();
+                for (int row = 0; row < batch.getRowCount(); row++) {
+                    ps.setString(1, batch.getValue(row, 0));
+                    ps.setString(2, batch.getValue(row, 1));
+                    ps.addBatch();
+                    lineNumbers.add(batch.getLineNumber(row));
+                }
+                ps.executeBatch();
+                checkpoint.save(connection, batch);
+                connection.commit();
+            }
+        }
+        return lineNumbers;
+    }
+
+    @Test
+    public void given_interrupted_import_then_resumed_at_checkpoint() throws IOException, SQLException {
+        final Path path = createCsv();
+        try (final Connection connection = createConnection("csvImportCheckpoint1");
+                final Statement statement = connection.createStatement()) {
+            connection.setAutoCommit(false);
+            statement.execute("CREATE TABLE IMPORTED(ID INT PRIMARY KEY, NAME VARCHAR)");
+            final CsvImportCheckpoint checkpoint = new CsvImportCheckpoint(CsvImportCheckpoint.DEFAULT_TABLE, path, "IMPORTED");
+            checkpoint.createTableIfNotExists(connection);
+            final List<Long> lineNumbers = new ArrayList<>();
+            try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+                mappedCsvReader.setChunkSize(1000L);
+                lineNumbers.addAll(insert(connection, mappedCsvReader, checkpoint, 3));
+            }
+            final CsvImportCheckpoint resumed = new CsvImportCheckpoint(CsvImportCheckpoint.DEFAULT_TABLE, path, "IMPORTED");
+            final boolean loaded = resumed.load(connection);
+            final long rowCountAtCheckpoint = resumed.rowCount();
+            try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+                mappedCsvReader.setChunkSize(1000L);
+                mappedCsvReader.setStartOffset(resumed.byteOffset(), resumed.lineNumber());
+                lineNumbers.addAll(insert(connection, mappedCsvReader, resumed, Integer.MAX_VALUE));
+            }
+            resumed.delete(connection);
+            connection.commit();
+            final long count;
+            try (final ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM IMPORTED")) {
+                rs.next();
+                count = rs.getLong(1);
+            }
+            final List<Long> expectedLineNumbers = new ArrayList<>();
+            for (long i = 0; i < 1000; i++) {
+                expectedLineNumbers.add(2 + i * 2);
+            }
+            assertAll(
+                    () -> assertTrue(loaded),
+                    () -> assertTrue(rowCountAtCheckpoint > 0 && rowCountAtCheckpoint < 1000, "rowCount " + rowCountAtCheckpoint),
+                    () -> assertEquals(1000L, count),
+                    () -> assertEquals(1000L, resumed.rowCount()),
+                    () -> assertEquals(expectedLineNumbers, lineNumbers),
+                    () -> assertFalse(new CsvImportCheckpoint(CsvImportCheckpoint.DEFAULT_TABLE, path, "IMPORTED").load(connection))
+            );
+        }
+    }
+
+    @Test
+    public void given_changed_file_then_checkpoint_rejected() throws IOException, SQLException {
+        final Path path = createCsv();
+        try (final Connection connection = createConnection("csvImportCheckpoint2");
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IMPORTED(ID INT PRIMARY KEY, NAME VARCHAR)");
+            final CsvImportCheckpoint checkpoint = new CsvImportCheckpoint(CsvImportCheckpoint.DEFAULT_TABLE, path, "IMPORTED");
+            checkpoint.createTableIfNotExists(connection);
+            try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+                mappedCsvReader.setChunkSize(1000L);
+                insert(connection, mappedCsvReader, checkpoint, 1);
+            }
+            Files.write(path, "1001,appended\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            final CsvImportCheckpoint resumed = new CsvImportCheckpoint(CsvImportCheckpoint.DEFAULT_TABLE, path, "IMPORTED");
+            assertThrows(IOException.class, () -> resumed.load(connection));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.huberb.h2tools.support.CsvReadWriteWrappers.CsvReader;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author pi
+ */
+public class CsvReaderBatchTest {
+
+    @TempDir
+    Path tempDir;
+
+    static String createCsv(int rows) {
+        final StringBuilder sb = new StringBuilder("ID,AMOUNT,NAME\n");
+        for (int i = 0; i < rows; i++) {
+            sb.append(i).append(',').append(i % 3 == 0 ? "" : i + ".5").append(",name").append(i).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void given_file_then_batches_of_batch_size_are_reused() throws IOException {
+        final Path path = tempDir.resolve("batch.csv");
+        Files.write(path, createCsv(25).getBytes(StandardCharsets.UTF_8));
+
+        final List<Integer> rowCounts = new ArrayList<>();
+        final List<String> ids = new ArrayList<>();
+        final List<Object> batches = new ArrayList<>();
+        final CsvReader csvReader = new CsvReader(path, Collections.emptyMap(), null);
+        csvReader.readBatches(10, batch -> {
+            rowCounts.add(batch.getRowCount());
+            batches.add(batch);
+            for (int row = 0; row < batch.getRowCount(); row++) {
+                ids.add(batch.getColumn(0)[row]);
+            }
+        });
+        assertAll(
+                () -> assertEquals(List.of(10, 10, 5), rowCounts),
+                () -> assertEquals(25, ids.size()),
+                () -> assertEquals("0", ids.get(0)),
+                () -> assertEquals("24", ids.get(24)),
+                () -> assertSame(batches.get(0), batches.get(2))
+        );
+    }
+
+    @Test
+    public void given_reader_then_batches_contain_all_rows() {
+        final List<String> names = new ArrayList<>();
+        final List<Long> lineNumbers = new ArrayList<>();
+        final CsvReader csvReader = new CsvReader(new StringReader(createCsv(7)), Collections.emptyMap(), null);
+        csvReader.readBatches(3, batch -> {
+            assertArrayEquals(new String[]{"ID", "AMOUNT", "NAME"}, batch.getColumnNames());
+            for (int row = 0; row < batch.getRowCount(); row++) {
+                names.add(batch.getValue(row, 2));
+                lineNumbers.add(batch.getLineNumber(row));
+            }
+        });
+        assertAll(
+                () -> assertEquals(7, names.size()),
+                () -> assertEquals("name6", names.get(6)),
+                () -> assertEquals(2L, lineNumbers.get(0)),
+                () -> assertEquals(8L, lineNumbers.get(6))
+        );
+    }
+
+    @Test
+    public void given_sql_types_then_typed_batches_are_converted() throws IOException {
+        final Path path = tempDir.resolve("typed.csv");
+        Files.write(path, createCsv(20).getBytes(StandardCharsets.UTF_8));
+
+        final long[] idSum = new long[1];
+        final double[] amountSum = new double[1];
+        final int[] nullCount = new int[1];
+        final List<String> names = new ArrayList<>();
+        final CsvReader csvReader = new CsvReader(path, Collections.emptyMap(), null);
+        csvReader.readBatches(8, new int[]{Types.INTEGER, Types.DOUBLE, Types.VARCHAR}, batch -> {
+            assertAll(
+                    () -> assertEquals(TypedColumnBatch.Kind.LONG, batch.getKind(0)),
+                    () -> assertEquals(TypedColumnBatch.Kind.DOUBLE, batch.getKind(1)),
+                    () -> assertEquals(TypedColumnBatch.Kind.STRING, batch.getKind(2))
+            );
+            final long[] ids = batch.getLongColumn(0);
+            final double[] amounts = batch.getDoubleColumn(1);
+            for (int row = 0; row < batch.getRowCount(); row++) {
+                idSum[0] += ids[row];
+                if (batch.isNull(row, 1)) {
+                    nullCount[0] += 1;
+                } else {
+                    amountSum[0] += amounts[row];
+                }
+                names.add(batch.getStringColumn(2)[row]);
+            }
+        });
+        double expectedAmountSum = 0.0d;
+        for (int i = 0; i < 20; i++) {
+            expectedAmountSum += i % 3 == 0 ? 0.0d : i + 0.5d;
+        }
+        final double expected = expectedAmountSum;
+        assertAll(
+                () -> assertEquals(190L, idSum[0]),
+                () -> assertEquals(expected, amountSum[0], 0.0001d),
+                () -> assertEquals(7, nullCount[0]),
+                () -> assertEquals(20, names.size()),
+                () -> assertFalse(names.contains(null))
+        );
+    }
+
+    @Test
+    public void given_decimal_type_then_precision_is_kept() {
+        final String csv = "ID,AMOUNT\n1,12345678901234567890.123456789\n2,\n3,0.1\n";
+        final List<BigDecimal> amounts = new ArrayList<>();
+        final CsvReader csvReader = new CsvReader(new StringReader(csv), Collections.emptyMap(), null);
+        csvReader.readBatches(10, new int[]{Types.BIGINT, Types.DECIMAL}, batch -> {
+            assertEquals(TypedColumnBatch.Kind.DECIMAL, batch.getKind(1));
+            for (int row = 0; row < batch.getRowCount(); row++) {
+                amounts.add(batch.isNull(row, 1) ? null : batch.getDecimalColumn(1)[row]);
+            }
+        });
+        assertEquals(Arrays.asList(new BigDecimal("12345678901234567890.123456789"), null, new BigDecimal("0.1")), amounts);
+    }
+
+    @Test
+    public void given_invalid_value_then_line_and_column_are_reported() {
+        final String csv = "ID,NAME\n1,a\nx,b\n";
+        final CsvReader csvReader = new CsvReader(new StringReader(csv), Collections.emptyMap(), null);
+        final IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+                () -> csvReader.readBatches(10, new int[]{Types.BIGINT, Types.VARCHAR}, batch -> {
+                }));
+        assertTrue(ex.getMessage().contains("line 3, column ID"), ex.getMessage());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.huberb.h2tools.support.CsvSchemaInference.ColumnType;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author pi
+ */
+public class CsvSchemaInferenceTest {
+
+    @TempDir
+    Path tempDir;
+
+    List<ColumnType> infer(String content, int headRows, int sampleRows) throws IOException {
+        final Path path = tempDir.resolve("infer.csv");
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+            mappedCsvReader.setChunkSize(1024L);
+            final CsvSchemaInference csvSchemaInference = new CsvSchemaInference();
+            csvSchemaInference.setHeadRows(headRows);
+            csvSchemaInference.setSampleRows(sampleRows);
+            csvSchemaInference.setRandom(new Random(1L));
+            return csvSchemaInference.infer(mappedCsvReader);
+        }
+    }
+
+    @Test
+    public void given_typed_values_then_types_inferred() throws IOException {
+        final String content = "ID,ZIP,AMOUNT,PRICE,RATIO,ACTIVE,BORN,CREATED,KEY,NAME,EMPTY\n"
+                + "1,01234,3000000000,1.25,1e3,true,2020-01-02,2020-01-02 10:11:12,123e4567-e89b-12d3-a456-426614174000,Alice,\n"
+                + "2,99999,4,-12.5,0.5,no,2021-12-31,2021-12-31T23:59:59.5,123e4567-e89b-12d3-a456-426614174001,Bob,\n"
+                + "3,12345,,,,,,,,Carol Long Name,\n";
+        final List<ColumnType> columnTypes = infer(content, 1000, 1000);
+        assertEquals("CREATE TABLE T(\"ID\" INT, \"ZIP\" VARCHAR(5), \"AMOUNT\" BIGINT, \"PRICE\" DECIMAL(4,2), "
+                + "\"RATIO\" DOUBLE, \"ACTIVE\" BOOLEAN, \"BORN\" DATE, \"CREATED\" TIMESTAMP, \"KEY\" UUID, "
+                + "\"NAME\" VARCHAR(15), \"EMPTY\" VARCHAR(1))",
+                CsvSchemaInference.createTableSql("T", columnTypes));
+    }
+
+    @Test
+    public void given_outlier_after_head_then_sampled_by_reservoir() throws IOException {
+        final StringBuilder sb = new StringBuilder("ID,VALUE\n");
+        for (int i = 0; i < 5000; i++) {
+            sb.append(i).append(',').append(i == 4000 ? "n/a" : String.valueOf(i)).append('\n');
+        }
+        final List<String> headOnly = infer(sb.toString(), 100, 0).stream()
+                .map(ColumnType::typeName).collect(Collectors.toList());
+        final List<String> allSampled = infer(sb.toString(), 100, 10000).stream()
+                .map(ColumnType::typeName).collect(Collectors.toList());
+        final List<ColumnType> sampled = infer(sb.toString(), 100, 500);
+        assertAll(
+                () -> assertEquals(List.of("INT", "INT"), headOnly),
+                () -> assertEquals(List.of("INT", "VARCHAR(4)"), allSampled),
+                () -> assertEquals(600L, sampled.get(0).nonNullValues()),
+                () -> assertEquals(4, sampled.get(1).maxLength())
+        );
+    }
+}
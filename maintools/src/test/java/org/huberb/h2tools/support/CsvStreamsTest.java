@@ -0,0 +1,124 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.h2.tools.SimpleResultSet;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ *
+ * @author pi
+ */
+public class CsvStreamsTest {
+
+    @TempDir
+    Path tempDir;
+
+    static SimpleResultSet createResultSet() {
+        final SimpleResultSet simpleResultSet = new SimpleResultSet();
+        simpleResultSet.addColumn("ID", Types.INTEGER, 10, 0);
+        simpleResultSet.addColumn("NAME", Types.VARCHAR, 255, 0);
+        for (int i = 0; i < 1000; i++) {
+            simpleResultSet.addRow(i, "name; " + i);
+        }
+        return simpleResultSet;
+    }
+
+    static Map<String, String> options() {
+        final Map<String, String> options = new HashMap<>();
+        options.put("charset", "UTF-8");
+        options.put("fieldSeparator", ";");
+        options.put("fieldDelimiter", "'");
+        options.put("lineSeparator", "\n");
+        return options;
+    }
+
+    static List<String> readNames(Reader reader, Map<String, String> options) throws SQLException, IOException {
+        final List<String> names = new ArrayList<>();
+        try (final ResultSet rs = CsvStreams.createCsv(options).read(reader, null)) {
+            while (rs.next()) {
+                names.add(rs.getString("NAME"));
+            }
+        }
+        return names;
+    }
+
+    @ParameterizedTest
+    @EnumSource(Compression.class)
+    public void given_compression_then_read_written_rows(Compression compression) throws IOException, SQLException {
+        final Path path = tempDir.resolve("streams.csv");
+        final Map<String, String> options = options();
+        final int rows;
+        try (final Writer writer = CsvStreams.openWriter(path.toString(), compression, options)) {
+            rows = CsvStreams.createCsv(options).write(writer, createResultSet());
+        }
+        final List<String> names;
+        try (final Reader reader = CsvStreams.openReader(path.toString(), compression, options)) {
+            names = readNames(reader, options);
+        }
+        final String head = new String(Files.readAllBytes(path), StandardCharsets.ISO_8859_1);
+        assertAll(
+                () -> assertEquals(1000, rows),
+                () -> assertEquals(1000, names.size()),
+                () -> assertEquals("name; 999", names.get(999)),
+                () -> {
+                    if (compression == Compression.NONE) {
+                        assertTrue(head.startsWith("'ID';'NAME'\n'0';'name; 0'\n"), head.substring(0, 30));
+                    } else {
+                        assertNotEquals('\'', head.charAt(0));
+                    }
+                }
+        );
+    }
+
+    @Test
+    public void given_standard_stream_then_read_from_stdin() throws IOException, SQLException {
+        final InputStream stdin = System.in;
+        try {
+            System.setIn(new ByteArrayInputStream("'ID';'NAME'\n1;'a;b'\n2;c\n".getBytes(StandardCharsets.UTF_8)));
+            final List<String> names;
+            try (final Reader reader = CsvStreams.openReader(CsvStreams.STANDARD_STREAM, Compression.NONE, options())) {
+                names = readNames(reader, options());
+            }
+            assertEquals(List.of("a;b", "c"), names);
+        } finally {
+            System.setIn(stdin);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.support.ParallelScriptExport.Entry;
+import org.huberb.h2tools.support.ParallelScriptExport.Kind;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.execute;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author pi
+ */
+public class IncrementalExportTest {
+
+    @TempDir
+    Path tempDir;
+
+    static IConnectionFactory createConnectionFactory(String dbName) throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory(dbName);
+        execute(connectionFactory,
+                "CREATE TABLE PARENT(ID INT PRIMARY KEY, NAME VARCHAR)",
+                "CREATE TABLE CHILD(ID BIGINT PRIMARY KEY, PARENT_ID INT REFERENCES PARENT(ID), NAME VARCHAR)",
+                "CREATE TABLE EVENT(ID INT PRIMARY KEY, NAME VARCHAR, UPDATED_AT TIMESTAMP)");
+        return connectionFactory;
+    }
+
+    static long count(IConnectionFactory connectionFactory, String sql) throws SQLException {
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * @return the rows of the tables of the source missing in the copy, and
+     * vice versa
+     */
+    long differences(IConnectionFactory source, IConnectionFactory copy) throws Exception {
+        long differences = 0L;
+        for (String table : List.of("PARENT", "CHILD", "EVENT")) {
+            final Path csv = tempDir.resolve(table + ".csv");
+            execute(source, String.format("CALL CSVWRITE('%s', 'SELECT * FROM %s')", csv, table));
+            execute(copy, "CREATE TEMPORARY TABLE T AS SELECT * FROM " + table + " WITH NO DATA",
+                    String.format("INSERT INTO T SELECT * FROM CSVREAD('%s')", csv));
+            differences += count(copy, String.format("SELECT COUNT(*) FROM (SELECT * FROM T EXCEPT SELECT * FROM %s)", table));
+            differences += count(copy, String.format("SELECT COUNT(*) FROM (SELECT * FROM %s EXCEPT SELECT * FROM T)", table));
+            execute(copy, "DROP TABLE T");
+            Files.delete(csv);
+        }
+        return differences;
+    }
+
+    IncrementalExport.Result exportAndApply(IConnectionFactory source, IConnectionFactory copy, String name) throws Exception {
+        final IncrementalExport incrementalExport = new IncrementalExport(source, tempDir.resolve(name + ".sql"), tempDir.resolve("state"));
+        incrementalExport.setWatermarkColumn("UPDATED_AT");
+        incrementalExport.setChunkSize(100);
+        incrementalExport.setParallel(2);
+        final IncrementalExport.Result result = incrementalExport.execute();
+        new ParallelRestore(copy).restoreManifest(result.manifest());
+        return result;
+    }
+
+    @Test
+    public void given_changed_rows_then_only_changes_and_deleted_keys_exported() throws Exception {
+        final IConnectionFactory source = createConnectionFactory("incrementalExportSource");
+        final IConnectionFactory copy = createConnectionFactory("incrementalExportCopy");
+        execute(source,
+                "INSERT INTO PARENT SELECT X, 'parent ' || X FROM SYSTEM_RANGE(1, 100)",
+                "INSERT INTO CHILD SELECT X, MOD(X, 100) + 1, CASE WHEN MOD(X, 3) = 0 THEN NULL ELSE 'child ' || X END FROM SYSTEM_RANGE(1, 5000)",
+                "INSERT INTO EVENT SELECT X, 'event ' || X, DATEADD('SECOND', X, TIMESTAMP '2023-01-01 00:00:00') FROM SYSTEM_RANGE(1, 1000)");
+        final IncrementalExport.Result full = exportAndApply(source, copy, "full");
+
+        execute(source,
+                "UPDATE CHILD SET NAME = 'changed' WHERE ID IN (7, 1234, 4999)",
+                "UPDATE CHILD SET NAME = '' WHERE ID = 9",
+                "DELETE FROM CHILD WHERE PARENT_ID = 50 OR ID BETWEEN 200 AND 299",
+                "DELETE FROM PARENT WHERE ID = 50",
+                "INSERT INTO CHILD VALUES(100000, 1, 'new')",
+                "UPDATE EVENT SET NAME = 'changed', UPDATED_AT = TIMESTAMP '2024-01-01 00:00:00' WHERE ID IN (3, 4)");
+        final long deletedChildren = 5000 - count(source, "SELECT COUNT(*) FROM CHILD") + 1;
+        final IncrementalExport.Result delta = exportAndApply(source, copy, "delta");
+        final List<Kind> kinds = delta.entries().stream().map(Entry::kind).collect(Collectors.toList());
+        final List<String> tableNames = delta.entries().stream().map(Entry::tableName).collect(Collectors.toList());
+
+        final IncrementalExport.Result unchanged = exportAndApply(source, copy, "unchanged");
+        assertAll(
+                () -> assertEquals(6100L, full.upsertedRows()),
+                () -> assertEquals(0L, full.deletedKeys()),
+                () -> assertEquals(3L + 1L + 1L + 2L, delta.upsertedRows()),
+                () -> assertEquals(deletedChildren + 1L, delta.deletedKeys()),
+                () -> assertEquals(List.of(Kind.DELETE, Kind.DELETE, Kind.UPSERT, Kind.UPSERT), kinds),
+                () -> assertEquals(List.of("CHILD", "PARENT", "EVENT", "CHILD"), tableNames),
+                () -> assertEquals(0L, differences(source, copy)),
+                () -> assertEquals(0, unchanged.entries().size()),
+                () -> assertTrue(Files.readString(tempDir.resolve("state").resolve(IncrementalExport.WATERMARKS_FILE))
+                        .contains("2024-01-01 00\\:00\\:00"))
+        );
+    }
+
+    @Test
+    public void given_values_then_row_hash_distinguishes_null_and_empty() {
+        assertAll(
+                () -> assertTrue(IncrementalExport.rowHash(new String[]{null, "a"}) != IncrementalExport.rowHash(new String[]{"", "a"})),
+                () -> assertTrue(IncrementalExport.rowHash(new String[]{"ab", ""}) != IncrementalExport.rowHash(new String[]{"a", "b"})),
+                () -> assertEquals(IncrementalExport.rowHash(new String[]{"a", null}), IncrementalExport.rowHash(new String[]{"a", null}))
+        );
+    }
+}
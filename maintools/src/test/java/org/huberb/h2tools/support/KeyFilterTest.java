@@ -0,0 +1,81 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.math.BigDecimal;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author pi
+ */
+public class KeyFilterTest {
+
+    @Test
+    public void given_added_keys_then_they_might_be_contained() {
+        final KeyFilter keyFilter = new KeyFilter(10000, 0.01d);
+        for (int i = 0; i < 10000; i++) {
+            keyFilter.add(KeyFilter.keyOf(i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(keyFilter.mightContain(KeyFilter.keyOf(i)), "key " + i);
+        }
+    }
+
+    @Test
+    public void given_absent_keys_then_few_false_positives() {
+        final KeyFilter keyFilter = new KeyFilter(10000, 0.01d);
+        for (int i = 0; i < 10000; i++) {
+            keyFilter.add(KeyFilter.keyOf(i));
+        }
+        int falsePositives = 0;
+        for (int i = 10000; i < 20000; i++) {
+            if (keyFilter.mightContain(KeyFilter.keyOf(i))) {
+                falsePositives += 1;
+            }
+        }
+        assertTrue(falsePositives < 300, "falsePositives " + falsePositives);
+    }
+
+    @Test
+    public void given_composite_keys_then_values_are_separated() {
+        final KeyFilter keyFilter = new KeyFilter(100, 0.01d);
+        keyFilter.add(KeyFilter.keyOf("a", "bc"));
+        assertAll(
+                () -> assertEquals("7", KeyFilter.keyOf(7)),
+                () -> assertNotEquals(KeyFilter.keyOf("a", "bc"), KeyFilter.keyOf("ab", "c")),
+                () -> assertTrue(keyFilter.mightContain(KeyFilter.keyOf("a", "bc"))),
+                () -> assertFalse(keyFilter.mightContain(KeyFilter.keyOf("x", "y")))
+        );
+    }
+
+    @Test
+    public void given_equal_numbers_of_different_scale_then_same_key() {
+        assertAll(
+                () -> assertEquals(KeyFilter.keyOf(new BigDecimal("1.5")), KeyFilter.keyOf(new BigDecimal("1.50"))),
+                () -> assertEquals(KeyFilter.keyOf(new BigDecimal("100")), KeyFilter.keyOf(new BigDecimal("1E+2"))),
+                () -> assertEquals(KeyFilter.keyOf(new BigDecimal("0.00")), KeyFilter.keyOf(BigDecimal.ZERO)),
+                () -> assertEquals(KeyFilter.keyOf(new BigDecimal("1.5")), KeyFilter.keyOf(1.5d)),
+                () -> assertEquals(KeyFilter.keyOf(1, new BigDecimal("2.0")), KeyFilter.keyOf(1, new BigDecimal("2"))),
+                () -> assertNotEquals(KeyFilter.keyOf(new BigDecimal("1.5")), KeyFilter.keyOf(new BigDecimal("15")))
+        );
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.h2.tools.Csv;
+import org.huberb.h2tools.support.CsvReadWriteWrappers.CsvReader;
+import org.huberb.h2tools.support.MappedCsvReader.ColumnBatch;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ *
+ * @author pi
+ */
+public class MappedCsvReaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    static Map<String, String> options(String... keyValues) {
+        final Map<String, String> m = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            m.put(keyValues[i], keyValues[i + 1]);
+        }
+        return m;
+    }
+
+    static Stream<Arguments> createCsvAndOptions() {
+        final StringBuilder quoted = new StringBuilder("ID,NAME,Remark\n");
+        for (int i = 0; i < 200; i++) {
+            quoted.append(i).append(",\"name, ").append(i).append("\",\"multi\nline \"\"")
+                    .append(i % 7 == 0 ? "" : "quoted").append("\"\" ü\"\r\n");
+            if (i % 13 == 0) {
+                quoted.append("\n").append(i).append(",  spaced  ,\n");
+            }
+        }
+        final StringBuilder escaped = new StringBuilder("id;name;remark\n");
+        for (int i = 0; i < 200; i++) {
+            escaped.append(i).append(";'it\\'s; ").append(i).append("';\\N\n");
+            escaped.append("# comment 'not quoted\n");
+        }
+        return Stream.of(
+                Arguments.of(quoted.toString(), options("charset", "UTF-8")),
+                Arguments.of(quoted.toString(), options("charset", "UTF-8", "preserveWhitespace", "true")),
+                Arguments.of(quoted.toString(), options("charset", "UTF-16")),
+                Arguments.of(quoted.toString(), options("charset", "ISO-8859-1", "caseSensitiveColumnNames", "true")),
+                Arguments.of(escaped.toString(), options("charset", "UTF-8", "fieldSeparator", ";", "fieldDelimiter", "'",
+                        "escape", "\\", "null", "\\N", "lineComment", "#")),
+                Arguments.of(escaped.toString(), options("charset", "UTF-16LE", "fieldSeparator", ";", "fieldDelimiter", "'",
+                        "escape", "\\", "null", "\\N", "lineComment", "#"))
+        );
+    }
+
+    static List<List<String>> readByCsv(String content, Map<String, String> options) throws IOException, SQLException {
+        final Csv csv = new Csv();
+        options.forEach((k, v) -> {
+            switch (k) {
+                case "fieldSeparator":
+                    csv.setFieldSeparatorRead(v.charAt(0));
+                    break;
+                case "fieldDelimiter":
+                    csv.setFieldDelimiter(v.charAt(0));
+                    break;
+                case "escape":
+                    csv.setEscapeCharacter(v.charAt(0));
+                    break;
+                case "null":
+                    csv.setNullString(v);
+                    break;
+                case "lineComment":
+                    csv.setLineCommentCharacter(v.charAt(0));
+                    break;
+                case "preserveWhitespace":
+                    csv.setPreserveWhitespace(Boolean.parseBoolean(v));
+                    break;
+                case "caseSensitiveColumnNames":
+                    csv.setCaseSensitiveColumnNames(Boolean.parseBoolean(v));
+                    break;
+                default:
+                    break;
+            }
+        });
+        try (final ResultSet rs = csv.read(new StringReader(content), null)) {
+            return toRows(rs);
+        }
+    }
+
+    static List<List<String>> toRows(ResultSet rs) throws SQLException {
+        final ResultSetMetaData meta = rs.getMetaData();
+        final List<List<String>> rows = new ArrayList<>();
+        final List<String> header = new ArrayList<>();
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            header.add(meta.getColumnLabel(i));
+        }
+        rows.add(header);
+        while (rs.next()) {
+            final List<String> row = new ArrayList<>();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                row.add(rs.getString(i));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    @ParameterizedTest
+    @MethodSource(value = "createCsvAndOptions")
+    public void given_small_chunks_then_same_records_as_h2_csv(String content, Map<String, String> options) throws IOException, SQLException {
+        final Path path = tempDir.resolve("test.csv");
+        Files.write(path, content.getBytes(Charset.forName(options.get("charset"))));
+        final List<List<String>> expected = readByCsv(content, options);
+        for (long chunkSize : new long[]{1L, 7L, 64L, 1024L * 1024}) {
+            try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, options, null)) {
+                mappedCsvReader.setChunkSize(chunkSize);
+                mappedCsvReader.setParallelism(4);
+                final List<List<String>> rows;
+                try (final ResultSet rs = mappedCsvReader.readAsResultSet()) {
+                    rows = toRows(rs);
+                }
+                assertEquals(expected, rows, "chunkSize " + chunkSize);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"UTF-8", "UTF-16"})
+    public void given_column_names_then_first_line_is_data(String charset) throws IOException {
+        final Path path = tempDir.resolve("test.csv");
+        Files.write(path, "a,b\n1,2\n\n3,\"4\n5\"\n6".getBytes(Charset.forName(charset)));
+        final List<String> values = new ArrayList<>();
+        final List<Long> lineNumbers = new ArrayList<>();
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, options("charset", charset), new String[]{"X", "Y"})) {
+            mappedCsvReader.setChunkSize(3L);
+            mappedCsvReader.read((ColumnBatch batch) -> {
+                for (int row = 0; row < batch.getRowCount(); row++) {
+                    values.addAll(Arrays.asList(batch.getRow(row)));
+                    lineNumbers.add(batch.getLineNumber(row));
+                }
+            });
+        }
+        assertAll(
+                () -> assertEquals(Arrays.asList("a", "b", "1", "2", "3", "4\n5", "6", null), values),
+                () -> assertEquals(Arrays.asList(1L, 2L, 4L, 6L), lineNumbers)
+        );
+    }
+
+    @Test
+    public void given_file_read_partially_by_csv_reader_then_reader_threads_stopped() throws Exception {
+        final Path path = tempDir.resolve("partial.csv");
+        final StringBuilder sb = new StringBuilder("ID,NAME\n");
+        for (int i = 0; i < 100000; i++) {
+            sb.append(i).append(",name").append(i).append('\n');
+        }
+        Files.write(path, sb.toString().getBytes(Charset.forName("UTF-8")));
+
+        final List<String> ids = new ArrayList<>();
+        final CsvReader csvReader = new CsvReader(path, new HashMap<>(), null);
+        csvReader.readFrom(rs -> {
+            try {
+                rs.next();
+                ids.add(rs.getString(1));
+            } catch (SQLException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        long alive = -1L;
+        for (int i = 0; i < 100 && alive != 0L; i++) {
+            alive = Thread.getAllStackTraces().keySet().stream()
+                    .filter((t) -> t.getName().equals("MappedCsvReader") && t.isAlive())
+                    .count();
+            Thread.sleep(10L);
+        }
+        final long theAlive = alive;
+        assertAll(
+                () -> assertEquals(List.of("0"), ids),
+                () -> assertEquals(0L, theAlive)
+        );
+    }
+}
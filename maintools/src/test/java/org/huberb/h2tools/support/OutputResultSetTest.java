@@ -15,13 +15,21 @@
  */
 package org.huberb.h2tools.support;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Types;
 import java.util.Arrays;
+import java.util.Base64;
 import org.h2.tools.SimpleResultSet;
 import org.huberb.h2tools.support.OutputResultSet.OutputByArrayOfArraysJson;
 import org.huberb.h2tools.support.OutputResultSet.OutputByCsv;
@@ -29,11 +37,13 @@ import org.huberb.h2tools.support.OutputResultSet.OutputByJson;
 import org.huberb.h2tools.support.OutputResultSet.OutputByRaw;
 import org.huberb.h2tools.support.OutputResultSet.OutputByTabular;
 import org.huberb.h2tools.support.OutputResultSet.OutputByYaml;
+import org.huberb.h2tools.support.OutputResultSet.OutputBy;
 import org.huberb.h2tools.support.OutputResultSet.OutputMode;
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  *
@@ -238,6 +248,115 @@ public class OutputResultSetTest {
         }
     }
 
+    @Test
+    public void test_OutputByJson_output_lob() throws SQLException, IOException {
+        final OutputByJson instance = new OutputByJson();
+        try (final Connection connection = createLobConnection("outputLob1");
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery("SELECT * FROM LOB_ENTITY")) {
+            String result = "";
+            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    PrintStream ps = new PrintStream(baos)) {
+
+                instance.output(rs, ps);
+                ps.flush();
+
+                result = baos.toString("UTF-8");
+            }
+            {
+                final String resultFinal = result;
+                final String expectedText = "\\\"a\\nb\\\"".repeat(5000);
+                assertAll(
+                        () -> assertTrue(resultFinal.contains("\"TEXT\": \"" + expectedText + "\""), resultFinal.substring(0, 100)),
+                        () -> assertTrue(resultFinal.contains("\"DATA\": \"00010203ff\""), resultFinal.substring(0, 100))
+                );
+            }
+        }
+    }
+
+    @Test
+    public void test_OutputByRaw_output_lob_side_files(@TempDir File tempDir) throws SQLException, IOException {
+        final OutputByRaw instance = new OutputByRaw(new LobOutput(LobOutput.BinaryEncoding.BASE64, tempDir));
+        try (final Connection connection = createLobConnection("outputLob2");
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery("SELECT * FROM LOB_ENTITY")) {
+            String result = "";
+            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    PrintStream ps = new PrintStream(baos)) {
+
+                instance.output(rs, ps);
+                ps.flush();
+
+                result = baos.toString("UTF-8");
+            }
+            {
+                final String resultFinal = result;
+                final File textFile = new File(tempDir, "lob-000002-TEXT.txt");
+                assertAll(
+                        () -> assertTrue(resultFinal.contains("DATA: lob-000001-DATA.bin"), resultFinal),
+                        () -> assertTrue(resultFinal.contains("TEXT: lob-000002-TEXT.txt"), resultFinal),
+                        () -> assertEquals(5, new File(tempDir, "lob-000001-DATA.bin").length()),
+                        () -> assertEquals("\"a\nb\"".repeat(5000),
+                                Files.readString(textFile.toPath(), StandardCharsets.UTF_8))
+                );
+            }
+        }
+    }
+
+    @Test
+    public void test_OutputByCsv_output_lob() throws Exception {
+        final OutputBy instance = OutputMode.createOutputBy(OutputMode.CSV, new LobOutput(LobOutput.BinaryEncoding.BASE64, null));
+        try (final Connection connection = createLobConnection("outputLob3");
+                final Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO LOB_ENTITY VALUES (NULL, NULL)");
+            String result = "";
+            try (final ResultSet rs = statement.executeQuery("SELECT * FROM LOB_ENTITY");
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    PrintStream ps = new PrintStream(baos)) {
+
+                instance.output(rs, ps);
+                ps.flush();
+
+                result = baos.toString("UTF-8");
+            }
+            {
+                final String resultFinal = result;
+                final String expectedText = "\"\"a\nb\"\"".repeat(5000);
+                final String lineSeparator = System.lineSeparator();
+                assertAll(
+                        () -> assertTrue(resultFinal.startsWith("\"DATA\",\"TEXT\"" + lineSeparator), resultFinal.substring(0, 100)),
+                        () -> assertTrue(resultFinal.contains("\"AAECA/8=\",\"" + expectedText + "\"" + lineSeparator), resultFinal.substring(0, 100)),
+                        () -> assertTrue(resultFinal.endsWith(lineSeparator + "," + lineSeparator + lineSeparator), resultFinal)
+                );
+            }
+        }
+    }
+
+    @Test
+    public void test_LobOutput_base64() throws IOException {
+        final LobOutput lobOutput = new LobOutput(LobOutput.BinaryEncoding.BASE64, null);
+        final byte[] bytes = new byte[3 * LobOutput.CHUNK_SIZE + 2];
+        Arrays.fill(bytes, (byte) 7);
+        String result = "";
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                PrintStream ps = new PrintStream(baos)) {
+            lobOutput.writeBinary(new ByteArrayInputStream(bytes), ps);
+            ps.flush();
+            result = baos.toString("UTF-8");
+        }
+        assertEquals(Base64.getEncoder().encodeToString(bytes), result);
+    }
+
+    //---
+    Connection createLobConnection(String dbName) throws SQLException {
+        final Connection connection = DriverManager.getConnection("jdbc:h2:mem:" + dbName);
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE LOB_ENTITY(DATA BLOB, TEXT CLOB)");
+            statement.execute("INSERT INTO LOB_ENTITY VALUES (X'00010203ff', REPEAT('\"a' || CHAR(10) || 'b\"', 5000))");
+        }
+        return connection;
+    }
+
     //---
     ResultSet createSimpleResultSet() {
         SimpleResultSet rs = new SimpleResultSet();
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.huberb.h2tools.jdbc.ConnectionFactoryWithMap;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author pi
+ */
+public class ParallelCsvImportTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void given_bad_rows_then_good_rows_inserted_and_bad_rows_rejected() throws IOException, SQLException {
+        final ConnectionFactoryWithMap connectionFactory = createMemConnectionFactory("parallelCsvImport");
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IMPORTED(ID INT PRIMARY KEY, AMOUNT BIGINT, PRICE DECIMAL(10,2), "
+                    + "CREATED DATE, ACTIVE BOOLEAN, NAME VARCHAR(50))");
+        }
+        final StringBuilder sb = new StringBuilder("ID,AMOUNT,PRICE,CREATED,ACTIVE,NAME\n");
+        for (int i = 1; i <= 2000; i++) {
+            sb.append(i).append(',').append(i * 10L).append(',').append(i).append(".25,2023-01-")
+                    .append(String.format("%02d", i % 28 + 1)).append(',').append(i % 2 == 0).append(",name").append(i).append('\n');
+        }
+        // not a number, duplicate key, invalid date
+        sb.append("x,1,1.0,2023-01-01,true,bad\n");
+        sb.append("5,1,1.0,2023-01-01,true,duplicate\n");
+        sb.append("2001,1,1.0,2023-13-45,true,bad date\n");
+        final Path path = tempDir.resolve("imported.csv");
+        Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        final List<Long> rejectedLineNumbers = Collections.synchronizedList(new ArrayList<>());
+        final ParallelCsvImport.Result result;
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+            mappedCsvReader.setChunkSize(4096L);
+            final ParallelCsvImport parallelCsvImport = new ParallelCsvImport(connectionFactory, "IMPORTED", mappedCsvReader);
+            parallelCsvImport.setParallel(3);
+            parallelCsvImport.setBatchSize(100);
+            parallelCsvImport.setCommitEvery(500);
+            parallelCsvImport.setMaxErrors(-1L);
+            parallelCsvImport.setRejectConsumer((lineNumber, values, reason) -> rejectedLineNumbers.add(lineNumber));
+            result = parallelCsvImport.execute();
+        }
+        final long count;
+        final long sumAmount;
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery("SELECT COUNT(*), SUM(AMOUNT) FROM IMPORTED")) {
+            rs.next();
+            count = rs.getLong(1);
+            sumAmount = rs.getLong(2);
+        }
+        Collections.sort(rejectedLineNumbers);
+        assertAll(
+                () -> assertEquals(2000L, result.rows()),
+                () -> assertEquals(3L, result.rejectedRows()),
+                () -> assertEquals(2000L, count),
+                () -> assertEquals(10L * 2000L * 2001L / 2, sumAmount),
+                () -> assertEquals(List.of(2002L, 2003L, 2004L), rejectedLineNumbers)
+        );
+    }
+
+    @Test
+    public void given_bad_row_and_default_max_errors_then_import_fails() throws IOException, SQLException {
+        final ConnectionFactoryWithMap connectionFactory = createMemConnectionFactory("parallelCsvImportDefault");
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IMPORTED(ID INT PRIMARY KEY, NAME VARCHAR(50))");
+        }
+        final StringBuilder sb = new StringBuilder("ID,NAME\n");
+        for (int i = 1; i <= 100; i++) {
+            sb.append(i == 50 ? "3000000000" : String.valueOf(i)).append(",name").append(i).append('\n');
+        }
+        final Path path = tempDir.resolve("imported.csv");
+        Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        final List<Long> rejectedLineNumbers = Collections.synchronizedList(new ArrayList<>());
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+            final ParallelCsvImport parallelCsvImport = new ParallelCsvImport(connectionFactory, "IMPORTED", mappedCsvReader);
+            parallelCsvImport.setParallel(2);
+            parallelCsvImport.setRejectConsumer((lineNumber, values, reason) -> rejectedLineNumbers.add(lineNumber));
+            final SQLException sqlex = assertThrows(SQLException.class, parallelCsvImport::execute);
+            assertAll(
+                    () -> assertTrue(sqlex.getMessage().contains("line 51"), sqlex.getMessage()),
+                    () -> assertEquals(List.of(51L), rejectedLineNumbers)
+            );
+        }
+    }
+
+    @Test
+    public void given_timestamps_not_in_jdbc_format_then_converted_by_database() throws IOException, SQLException {
+        final ConnectionFactoryWithMap connectionFactory = createMemConnectionFactory("parallelCsvImportTimestamp");
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IMPORTED(ID INT PRIMARY KEY, CREATED TIMESTAMP)");
+        }
+        final Path path = tempDir.resolve("imported.csv");
+        Files.write(path, ("ID,CREATED\n1,2023-01-02\n2,2023-01-02T10:11:12\n3,2023-01-02 10:11:12.5\n4,2023-13-45\n")
+                .getBytes(StandardCharsets.UTF_8));
+
+        final List<Long> rejectedLineNumbers = Collections.synchronizedList(new ArrayList<>());
+        final ParallelCsvImport.Result result;
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+            final ParallelCsvImport parallelCsvImport = new ParallelCsvImport(connectionFactory, "IMPORTED", mappedCsvReader);
+            parallelCsvImport.setParallel(1);
+            parallelCsvImport.setMaxErrors(-1L);
+            parallelCsvImport.setRejectConsumer((lineNumber, values, reason) -> rejectedLineNumbers.add(lineNumber));
+            result = parallelCsvImport.execute();
+        }
+        final List<String> created = new ArrayList<>();
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery("SELECT CREATED FROM IMPORTED ORDER BY ID")) {
+            while (rs.next()) {
+                created.add(rs.getString(1));
+            }
+        }
+        assertAll(
+                () -> assertEquals(3L, result.rows()),
+                () -> assertEquals(List.of("2023-01-02 00:00:00", "2023-01-02 10:11:12", "2023-01-02 10:11:12.5"), created),
+                () -> assertEquals(List.of(5L), rejectedLineNumbers)
+        );
+    }
+
+    @Test
+    public void given_rare_bad_rows_then_batches_are_bisected_and_rejects_written_to_reject_file() throws IOException, SQLException {
+        final ConnectionFactoryWithMap connectionFactory = createMemConnectionFactory("parallelCsvImportReject");
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IMPORTED(ID INT PRIMARY KEY, NAME VARCHAR(10) NOT NULL)");
+        }
+        final StringBuilder sb = new StringBuilder("ID,NAME\n");
+        for (int i = 1; i <= 5000; i++) {
+            // too long, null, and duplicate key
+            final String name = i == 1234 ? "much too long" : i == 2345 ? "" : "name" + i;
+            sb.append(i == 3456 ? 1 : i).append(',').append(name).append('\n');
+        }
+        final Path path = tempDir.resolve("imported.csv");
+        Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+        final Path rejectPath = tempDir.resolve("rejected.csv");
+
+        final ParallelCsvImport.Result result;
+        final Map<String, String> options = new HashMap<>();
+        options.put("null", "");
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, options, null);
+                final CsvRejectFile csvRejectFile = new CsvRejectFile(rejectPath.toString(), options, mappedCsvReader.getColumnNames())) {
+            final ParallelCsvImport parallelCsvImport = new ParallelCsvImport(connectionFactory, "IMPORTED", mappedCsvReader);
+            parallelCsvImport.setParallel(1);
+            parallelCsvImport.setBatchSize(1000);
+            parallelCsvImport.setMaxErrors(3);
+            parallelCsvImport.setRejectConsumer(csvRejectFile);
+            result = parallelCsvImport.execute();
+        }
+        final long count;
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM IMPORTED")) {
+            rs.next();
+            count = rs.getLong(1);
+        }
+        final List<String> rejectLines = Files.readAllLines(rejectPath, StandardCharsets.UTF_8);
+        assertAll(
+                () -> assertEquals(4997L, result.rows()),
+                () -> assertEquals(3L, result.rejectedRows()),
+                () -> assertEquals(4997L, count),
+                () -> assertEquals(4, rejectLines.size()),
+                () -> assertEquals("\"LINE_NUMBER\",\"SQL_STATE\",\"ERROR_MESSAGE\",\"ID\",\"NAME\"", rejectLines.get(0)),
+                () -> assertTrue(rejectLines.get(1).startsWith("\"1235\",\"22001\","), rejectLines.get(1)),
+                () -> assertTrue(rejectLines.get(1).endsWith(",\"1234\",\"much too long\""), rejectLines.get(1)),
+                () -> assertTrue(rejectLines.get(2).startsWith("\"2346\",\"23502\","), rejectLines.get(2)),
+                () -> assertTrue(rejectLines.get(3).startsWith("\"3457\",\"23505\","), rejectLines.get(3))
+        );
+    }
+
+    @Test
+    public void given_more_rejects_than_max_errors_then_import_fails() throws IOException, SQLException {
+        final ConnectionFactoryWithMap connectionFactory = createMemConnectionFactory("parallelCsvImportMaxErrors");
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IMPORTED(ID INT PRIMARY KEY)");
+        }
+        final StringBuilder sb = new StringBuilder("ID\n");
+        for (int i = 1; i <= 100; i++) {
+            sb.append(i % 10 == 0 ? "x" : String.valueOf(i)).append('\n');
+        }
+        final Path path = tempDir.resolve("imported.csv");
+        Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+            final ParallelCsvImport parallelCsvImport = new ParallelCsvImport(connectionFactory, "IMPORTED", mappedCsvReader);
+            parallelCsvImport.setParallel(2);
+            parallelCsvImport.setMaxErrors(5);
+            parallelCsvImport.setRejectConsumer((lineNumber, values, reason) -> {
+            });
+            final SQLException sqlex = assertThrows(SQLException.class, () -> parallelCsvImport.execute());
+            assertTrue(sqlex.getMessage().startsWith("Too many rejected rows"), sqlex.getMessage());
+        }
+    }
+
+    @Test
+    public void given_merge_keys_then_existing_rows_are_updated_and_new_rows_inserted() throws IOException, SQLException {
+        final ConnectionFactoryWithMap connectionFactory = createMemConnectionFactory("parallelCsvImportMerge");
+        final StringBuilder sb = new StringBuilder("ID,NAME\n");
+        for (int i = 501; i <= 1500; i++) {
+            sb.append(i).append(",delta").append(i).append('\n');
+        }
+        // a new key twice, the later row wins
+        sb.append("1501,first\n");
+        sb.append("1501,second\n");
+        final Path path = tempDir.resolve("delta.csv");
+        Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        for (boolean useKeyFilter : new boolean[]{false, true}) {
+            try (final Connection connection = connectionFactory.createConnection();
+                    final Statement statement = connection.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS MERGED");
+                statement.execute("CREATE TABLE MERGED(ID INT PRIMARY KEY, NAME VARCHAR) "
+                        + "AS SELECT X, 'base' || X FROM SYSTEM_RANGE(1, 1000)");
+            }
+            final ParallelCsvImport.Result result;
+            try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+                final ParallelCsvImport parallelCsvImport = new ParallelCsvImport(connectionFactory, "MERGED", mappedCsvReader);
+                parallelCsvImport.setParallel(1);
+                parallelCsvImport.setBatchSize(100);
+                parallelCsvImport.setMergeKeys("ID");
+                parallelCsvImport.setUseKeyFilter(useKeyFilter);
+                result = parallelCsvImport.execute();
+            }
+            final long count;
+            final long deltaCount;
+            final String name1501;
+            try (final Connection connection = connectionFactory.createConnection();
+                    final Statement statement = connection.createStatement();
+                    final ResultSet rs = statement.executeQuery("SELECT COUNT(*), "
+                            + "SUM(CASE WHEN NAME LIKE 'delta%' THEN 1 ELSE 0 END), "
+                            + "MAX(CASE WHEN ID = 1501 THEN NAME END) FROM MERGED")) {
+                rs.next();
+                count = rs.getLong(1);
+                deltaCount = rs.getLong(2);
+                name1501 = rs.getString(3);
+            }
+            final String message = "useKeyFilter " + useKeyFilter + ", " + result;
+            assertAll(
+                    () -> assertEquals(1002L, result.rows(), message),
+                    () -> assertEquals(1501L, count, message),
+                    () -> assertEquals(1000L, deltaCount, message),
+                    () -> assertEquals("second", name1501, message),
+                    () -> assertTrue(useKeyFilter ? result.mergedRows() < 1002L : result.mergedRows() == 1002L, message)
+            );
+        }
+    }
+
+    @Test
+    public void given_key_filter_and_new_key_twice_across_batches_then_later_row_wins() throws IOException, SQLException {
+        final ConnectionFactoryWithMap connectionFactory = createMemConnectionFactory("parallelCsvImportMergeOrder");
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE MERGED(ID INT PRIMARY KEY, NAME VARCHAR) "
+                    + "AS SELECT X, 'base' || X FROM SYSTEM_RANGE(1, 1000)");
+        }
+        // 2001 is inserted, and later merged, the merge batch is full before the insert batch
+        final Path path = tempDir.resolve("order.csv");
+        Files.write(path, "ID,NAME\n2001,first\n1,upd\n2001,second\n2002,x\n".getBytes(StandardCharsets.UTF_8));
+
+        final ParallelCsvImport.Result result;
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+            final ParallelCsvImport parallelCsvImport = new ParallelCsvImport(connectionFactory, "MERGED", mappedCsvReader);
+            parallelCsvImport.setParallel(1);
+            parallelCsvImport.setBatchSize(2);
+            parallelCsvImport.setMergeKeys("ID");
+            parallelCsvImport.setUseKeyFilter(true);
+            result = parallelCsvImport.execute();
+        }
+        final List<String> names = new ArrayList<>();
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery("SELECT NAME FROM MERGED WHERE ID IN (1, 2001, 2002) ORDER BY ID")) {
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+        }
+        assertAll(
+                () -> assertEquals(4L, result.rows(), result.toString()),
+                () -> assertEquals(2L, result.mergedRows(), result.toString()),
+                () -> assertEquals(List.of("upd", "second", "x"), names)
+        );
+    }
+
+    @Test
+    public void given_key_filter_and_decimal_key_of_other_scale_then_row_merged() throws IOException, SQLException {
+        final ConnectionFactoryWithMap connectionFactory = createMemConnectionFactory("parallelCsvImportMergeDecimal");
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE MERGED(ID DECIMAL(10, 2) PRIMARY KEY, NAME VARCHAR)");
+            statement.execute("INSERT INTO MERGED VALUES(1.5, 'base')");
+        }
+        final Path path = tempDir.resolve("decimal.csv");
+        Files.write(path, "ID,NAME\n1.5,upd\n2.25,new\n".getBytes(StandardCharsets.UTF_8));
+
+        final ParallelCsvImport.Result result;
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+            final ParallelCsvImport parallelCsvImport = new ParallelCsvImport(connectionFactory, "MERGED", mappedCsvReader);
+            parallelCsvImport.setParallel(1);
+            parallelCsvImport.setMergeKeys("ID");
+            parallelCsvImport.setUseKeyFilter(true);
+            result = parallelCsvImport.execute();
+        }
+        final List<String> names = new ArrayList<>();
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery("SELECT NAME FROM MERGED ORDER BY ID")) {
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+        }
+        assertAll(
+                () -> assertEquals(2L, result.rows(), result.toString()),
+                () -> assertEquals(1L, result.mergedRows(), result.toString()),
+                () -> assertEquals(List.of("upd", "new"), names)
+        );
+    }
+
+    @Test
+    public void given_key_filter_and_no_unique_key_index_then_import_fails() throws IOException, SQLException {
+        final ConnectionFactoryWithMap connectionFactory = createMemConnectionFactory("parallelCsvImportMergeNoUnique");
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE MERGED(ID INT, CODE INT, NAME VARCHAR, PRIMARY KEY(ID, CODE))");
+        }
+        final Path path = tempDir.resolve("nounique.csv");
+        Files.write(path, "ID,CODE,NAME\n1,1,a\n".getBytes(StandardCharsets.UTF_8));
+
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+            final ParallelCsvImport parallelCsvImport = new ParallelCsvImport(connectionFactory, "MERGED", mappedCsvReader);
+            parallelCsvImport.setMergeKeys("ID");
+            parallelCsvImport.setUseKeyFilter(true);
+            final SQLException sqlex = assertThrows(SQLException.class, parallelCsvImport::execute);
+            assertTrue(sqlex.getMessage().contains("unique index"), sqlex.getMessage());
+        }
+        try (final MappedCsvReader mappedCsvReader = new MappedCsvReader(path, new HashMap<>(), null)) {
+            final ParallelCsvImport parallelCsvImport = new ParallelCsvImport(connectionFactory, "MERGED", mappedCsvReader);
+            parallelCsvImport.setMergeKeys("ID", "\"CODE\"");
+            parallelCsvImport.setUseKeyFilter(true);
+            assertEquals(1L, parallelCsvImport.execute().rows());
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import org.huberb.h2tools.support.ParallelRestore.StatementKind;
+import org.huberb.h2tools.support.ParallelScriptExport.Entry;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ *
+ * @author pi
+ */
+public class ParallelRestoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    static IConnectionFactory createSourceConnectionFactory(String dbName) throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory(dbName);
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE PARENT(ID INT PRIMARY KEY, NAME VARCHAR)");
+            statement.execute("CREATE TABLE CHILD(ID INT PRIMARY KEY, PARENT_ID INT, NAME VARCHAR, DATA BLOB)");
+            statement.execute("ALTER TABLE CHILD ADD FOREIGN KEY(PARENT_ID) REFERENCES PARENT(ID)");
+            statement.execute("CREATE INDEX CHILD_NAME_IDX ON CHILD(NAME)");
+            statement.execute("CREATE VIEW CHILD_VIEW AS SELECT * FROM CHILD");
+            statement.execute("INSERT INTO PARENT SELECT X, 'parent ' || X FROM SYSTEM_RANGE(1, 100)");
+            statement.execute("INSERT INTO CHILD SELECT X, MOD(X, 100) + 1, "
+                    + "CASE WHEN MOD(X, 3) = 0 THEN NULL WHEN MOD(X, 3) = 1 THEN '' ELSE 'child' END, "
+                    + "CASE WHEN MOD(X, 100) = 0 THEN SECURE_RAND(20000) END FROM SYSTEM_RANGE(1, 1000)");
+        }
+        return connectionFactory;
+    }
+
+    static String summary(IConnectionFactory connectionFactory) throws SQLException {
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery("SELECT "
+                        + "(SELECT COUNT(*) FROM PARENT), "
+                        + "(SELECT COUNT(*) FROM CHILD), "
+                        + "(SELECT COUNT(*) FROM CHILD WHERE NAME IS NULL), "
+                        + "(SELECT SUM(LENGTH(DATA)) FROM CHILD), "
+                        + "(SELECT COUNT(*) FROM CHILD_VIEW), "
+                        + "(SELECT COUNT(*) FROM INFORMATION_SCHEMA.CROSS_REFERENCES), "
+                        + "(SELECT COUNT(*) FROM INFORMATION_SCHEMA.INDEXES WHERE INDEX_NAME = 'CHILD_NAME_IDX')")) {
+            rs.next();
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 1; i <= 7; i++) {
+                sb.append(rs.getString(i)).append(' ');
+            }
+            return sb.toString().trim();
+        }
+    }
+
+    @Test
+    public void given_statements_then_classified() {
+        assertAll(
+                () -> assertEquals(StatementKind.DATA, ParallelRestore.classify("INSERT INTO \"PUBLIC\".\"A\" VALUES(1)")),
+                () -> assertEquals("\"PUBLIC\".\"A\"", ParallelRestore.insertTable("INSERT INTO \"PUBLIC\".\"A\" VALUES(1)")),
+                () -> assertEquals("B", ParallelRestore.insertTable("insert into B(ID) values(1)")),
+                () -> assertEquals(StatementKind.DDL, ParallelRestore.classify("INSERT INTO SYSTEM_LOB_STREAM VALUES(0, 0, NULL, X'00')")),
+                () -> assertEquals(StatementKind.DDL, ParallelRestore.classify("CREATE MEMORY TABLE \"PUBLIC\".\"A\"(\"ID\" INT)")),
+                () -> assertEquals(StatementKind.DEFERRED, ParallelRestore.classify(
+                        "ALTER TABLE \"PUBLIC\".\"A\" ADD CONSTRAINT \"PUBLIC\".\"FK\" FOREIGN KEY(\"B\") REFERENCES \"PUBLIC\".\"B\"(\"ID\") NOCHECK")),
+                () -> assertEquals(StatementKind.DDL, ParallelRestore.classify(
+                        "ALTER TABLE \"PUBLIC\".\"A\" ADD CONSTRAINT \"PUBLIC\".\"CONSTRAINT_4\" PRIMARY KEY(\"ID\")")),
+                () -> assertEquals(StatementKind.DEFERRED, ParallelRestore.classify("CREATE UNIQUE INDEX \"PUBLIC\".\"IDX\" ON \"PUBLIC\".\"A\"(\"ID\")")),
+                () -> assertEquals(StatementKind.DEFERRED_AFTER_DATA, ParallelRestore.classify("DROP TABLE IF EXISTS SYSTEM_LOB_STREAM")),
+                () -> assertEquals(StatementKind.DEFERRED_AFTER_DATA, ParallelRestore.classify("CALL SYSTEM_COMBINE_BLOB(-1)"))
+        );
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = Compression.class, names = {"NONE", "ZIP", "GZIP"})
+    public void given_script_then_restored(Compression compression) throws Exception {
+        final IConnectionFactory source = createSourceConnectionFactory("parallelRestoreSource" + compression);
+        final Path script = tempDir.resolve("backup.sql");
+        try (final Connection connection = source.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("SCRIPT DROP BLOCKSIZE 4096 TO '" + script + "'"
+                    + (compression != Compression.NONE ? " COMPRESSION " + compression : ""));
+        }
+        final IConnectionFactory target = createMemConnectionFactory("parallelRestoreTarget" + compression);
+        final ParallelRestore parallelRestore = new ParallelRestore(target);
+        parallelRestore.setParallel(3);
+        parallelRestore.setBatchSize(7);
+        final ParallelRestore.Result result;
+        try (final Reader reader = ParallelRestore.openScript(script.toString(), compression, StandardCharsets.UTF_8)) {
+            result = parallelRestore.restoreScript(reader);
+        }
+        assertAll(
+                () -> assertEquals(1100L, result.rows()),
+                () -> assertTrue(result.deferredStatements() >= 4, result.toString()),
+                () -> assertEquals(summary(source), summary(target))
+        );
+    }
+
+    @Test
+    public void given_split_per_table_script_then_restored() throws Exception {
+        final IConnectionFactory source = createSourceConnectionFactory("parallelRestoreManifestSource");
+        final Path target = tempDir.resolve("backup.sql");
+        final ParallelScriptExport parallelScriptExport = new ParallelScriptExport(source, target);
+        parallelScriptExport.setCompression(Compression.ZIP);
+        final ParallelScriptExport.Result exportResult = parallelScriptExport.execute();
+
+        final IConnectionFactory restored = createMemConnectionFactory("parallelRestoreManifestTarget");
+        final ParallelRestore parallelRestore = new ParallelRestore(restored);
+        parallelRestore.setParallel(2);
+        parallelRestore.setBatchSize(64);
+        final ParallelRestore.Result result = parallelRestore.restoreManifest(exportResult.manifest());
+        assertAll(
+                () -> assertEquals(1100L, result.rows()),
+                () -> assertEquals(summary(source), summary(restored))
+        );
+    }
+
+    @Test
+    public void given_binary_dump_then_restored() throws Exception {
+        final IConnectionFactory source = createSourceConnectionFactory("parallelRestoreBinarySource");
+        final Path target = tempDir.resolve("backup.sql");
+        final ParallelScriptExport parallelScriptExport = new ParallelScriptExport(source, target);
+        parallelScriptExport.setDataFormat(ParallelScriptExport.DataFormat.BINARY);
+        parallelScriptExport.setCompression(Compression.LZF);
+        final ParallelScriptExport.Result exportResult = parallelScriptExport.execute();
+
+        final IConnectionFactory restored = createMemConnectionFactory("parallelRestoreBinaryTarget");
+        final ParallelRestore parallelRestore = new ParallelRestore(restored);
+        parallelRestore.setBatchSize(1000);
+        final ParallelRestore.Result result = parallelRestore.restoreManifest(exportResult.manifest());
+        assertAll(
+                () -> assertEquals(ParallelScriptExport.dataFile(target, 1, ParallelScriptExport.DataFormat.BINARY).getFileName().toString(),
+                        exportResult.entries().get(2).file()),
+                () -> assertEquals(1100L, result.rows()),
+                () -> assertEquals(summary(source), summary(restored))
+        );
+    }
+
+    @Test
+    public void given_modified_data_file_then_checksum_mismatch() throws Exception {
+        final IConnectionFactory source = createSourceConnectionFactory("parallelRestoreChecksumSource");
+        final Path target = tempDir.resolve("backup.sql");
+        final ParallelScriptExport.Result exportResult = new ParallelScriptExport(source, target).execute();
+        final List<Entry> entries = ParallelScriptExport.readManifest(exportResult.manifest());
+        final Path dataFile = target.resolveSibling(entries.get(1).file());
+        Files.write(dataFile, Files.readString(dataFile).replace("parent 1\"", "parent X\"").getBytes(StandardCharsets.UTF_8));
+
+        final ParallelRestore parallelRestore = new ParallelRestore(createMemConnectionFactory("parallelRestoreChecksumTarget"));
+        final IOException ex = assertThrows(IOException.class, () -> parallelRestore.restoreManifest(exportResult.manifest()));
+        assertTrue(ex.getMessage().startsWith("Checksum mismatch of " + entries.get(1).file()), ex.getMessage());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.h2.tools.Csv;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.support.ParallelScriptExport.Entry;
+import org.huberb.h2tools.support.ParallelScriptExport.Kind;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author pi
+ */
+public class ParallelScriptExportTest {
+
+    @TempDir
+    Path tempDir;
+
+    static IConnectionFactory createConnectionFactory(String dbName) throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory(dbName);
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE GRANDCHILD(ID INT PRIMARY KEY, CHILD_ID INT)");
+            statement.execute("CREATE TABLE CHILD(ID INT PRIMARY KEY, PARENT_ID INT, NAME VARCHAR)");
+            statement.execute("CREATE TABLE PARENT(ID INT PRIMARY KEY, NAME VARCHAR)");
+            statement.execute("ALTER TABLE CHILD ADD FOREIGN KEY(PARENT_ID) REFERENCES PARENT(ID)");
+            statement.execute("ALTER TABLE GRANDCHILD ADD FOREIGN KEY(CHILD_ID) REFERENCES CHILD(ID)");
+            statement.execute("INSERT INTO PARENT SELECT X, 'parent ' || X FROM SYSTEM_RANGE(1, 100)");
+            statement.execute("INSERT INTO CHILD SELECT X, MOD(X, 100) + 1, "
+                    + "CASE WHEN MOD(X, 3) = 0 THEN NULL WHEN MOD(X, 3) = 1 THEN '' ELSE 'child' END FROM SYSTEM_RANGE(1, 1000)");
+            statement.execute("INSERT INTO GRANDCHILD SELECT X, X FROM SYSTEM_RANGE(1, 10)");
+        }
+        return connectionFactory;
+    }
+
+    @Test
+    public void given_tables_with_foreign_keys_then_schema_data_files_and_manifest_in_restore_order() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("parallelScriptExport");
+        final Path target = tempDir.resolve("backup.sql");
+        final ParallelScriptExport parallelScriptExport = new ParallelScriptExport(connectionFactory, target);
+        parallelScriptExport.setParallel(3);
+        parallelScriptExport.setScriptOptions("NOPASSWORDS");
+        final ParallelScriptExport.Result result = parallelScriptExport.execute();
+
+        final List<Entry> entries = ParallelScriptExport.readManifest(result.manifest());
+        final List<String> tableNames = entries.stream()
+                .filter((e) -> e.kind() == Kind.DATA)
+                .map(Entry::tableName)
+                .collect(Collectors.toList());
+        for (Entry entry : entries) {
+            final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            final byte[] bytes = Files.readAllBytes(target.resolveSibling(entry.file()));
+            assertEquals(entry.checksum(), PartitionedCsvExport.toHex(messageDigest.digest(bytes)), entry.file());
+            assertEquals(entry.bytes(), bytes.length, entry.file());
+        }
+        final String schemaScript = new String(Files.readAllBytes(ParallelScriptExport.schemaFile(target)), StandardCharsets.UTF_8);
+        int nulls = 0;
+        int empty = 0;
+        try (final ResultSet rs = new Csv().read(ParallelScriptExport.dataFile(target, 1).toString(), null, "UTF-8")) {
+            while (rs.next()) {
+                final String name = rs.getString("NAME");
+                nulls += name == null ? 1 : 0;
+                empty += "".equals(name) ? 1 : 0;
+            }
+        }
+        final int theNulls = nulls;
+        final int theEmpty = empty;
+        assertAll(
+                () -> assertEquals(1110L, result.rows()),
+                () -> assertEquals(4, entries.size()),
+                () -> assertEquals(Kind.SCHEMA, entries.get(0).kind()),
+                () -> assertNull(entries.get(0).tableName()),
+                () -> assertEquals(List.of("PARENT", "CHILD", "GRANDCHILD"), tableNames),
+                () -> assertEquals(List.of(0, 1, 2, 3), entries.stream().map(Entry::restoreLevel).collect(Collectors.toList())),
+                () -> assertEquals(List.of(0L, 100L, 1000L, 10L), entries.stream().map(Entry::rows).collect(Collectors.toList())),
+                () -> assertTrue(schemaScript.contains("CREATE MEMORY TABLE \"PUBLIC\".\"CHILD\""), schemaScript),
+                () -> assertTrue(!schemaScript.contains("INSERT INTO"), schemaScript),
+                () -> assertEquals(333, theNulls),
+                () -> assertEquals(334, theEmpty)
+        );
+    }
+
+    @Test
+    public void given_tables_then_only_these_tables_exported() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("parallelScriptExportTables");
+        final Path target = tempDir.resolve("backup.sql");
+        final ParallelScriptExport parallelScriptExport = new ParallelScriptExport(connectionFactory, target);
+        parallelScriptExport.setTables(Set.of("GRANDCHILD", "PARENT"));
+        parallelScriptExport.setCompression(CsvStreams.Compression.GZIP);
+        final ParallelScriptExport.Result result = parallelScriptExport.execute();
+
+        final List<Entry> entries = ParallelScriptExport.readManifest(result.manifest());
+        assertAll(
+                () -> assertEquals(110L, result.rows()),
+                () -> assertEquals(3, entries.size()),
+                () -> assertEquals("PARENT", entries.get(1).tableName()),
+                () -> assertEquals("GRANDCHILD", entries.get(2).tableName()),
+                () -> assertEquals(CsvStreams.Compression.GZIP, entries.get(2).compression())
+        );
+    }
+}
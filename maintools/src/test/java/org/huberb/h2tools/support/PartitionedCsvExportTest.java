@@ -0,0 +1,140 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import org.huberb.h2tools.support.CsvStreams.Compression;
+import org.huberb.h2tools.support.PartitionedCsvExport.Part;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ *
+ * @author pi
+ */
+public class PartitionedCsvExportTest {
+
+    @TempDir
+    Path tempDir;
+
+    static IConnectionFactory createConnectionFactory(String dbName) throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory(dbName);
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE EXPORTED(ID INT, NAME VARCHAR)");
+            statement.execute("INSERT INTO EXPORTED SELECT X, 'name ' || X FROM SYSTEM_RANGE(1, 1000)");
+            statement.execute("INSERT INTO EXPORTED VALUES(NULL, 'no key')");
+        }
+        return connectionFactory;
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = Compression.class, names = {"NONE", "GZIP"})
+    public void given_partitions_and_max_file_size_then_files_and_manifest(Compression compression) throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("partitionedCsvExport" + compression);
+        final Path target = tempDir.resolve("exported.csv");
+        final PartitionedCsvExport partitionedCsvExport = new PartitionedCsvExport(connectionFactory,
+                "SELECT ID, NAME FROM EXPORTED", "ID", target, new HashMap<>());
+        partitionedCsvExport.setPartitions(3);
+        partitionedCsvExport.setMaxFileSize(2000L);
+        partitionedCsvExport.setCompression(compression);
+        final PartitionedCsvExport.Result result = partitionedCsvExport.execute();
+
+        final List<Part> manifestParts = PartitionedCsvExport.readManifest(PartitionedCsvExport.manifestFile(target));
+        final List<String> ids = new ArrayList<>();
+        final List<String> checksums = new ArrayList<>();
+        for (Part part : manifestParts) {
+            final Path file = tempDir.resolve(part.file());
+            checksums.add(PartitionedCsvExport.toHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file))));
+            try (final Reader reader = CsvStreams.openReader(file.toString(), compression, new HashMap<>());
+                    final ResultSet rs = CsvStreams.createCsv(new HashMap<>()).read(reader, null)) {
+                while (rs.next()) {
+                    ids.add(rs.getString("ID"));
+                }
+            }
+        }
+        final List<String> expectedIds = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++) {
+            expectedIds.add(String.valueOf(i));
+        }
+        assertAll(
+                () -> assertEquals(1001L, result.rows()),
+                () -> assertTrue(result.parts().size() > 3, "parts " + result.parts().size()),
+                () -> assertEquals("exported.part-0000.csv", result.parts().get(0).file()),
+                () -> assertEquals(result.parts().toString(), manifestParts.toString()),
+                () -> assertEquals(manifestParts.stream().map(Part::checksum).collect(Collectors.toList()), checksums),
+                () -> assertEquals(1001, ids.size()),
+                () -> assertTrue(ids.contains(null)),
+                () -> {
+                    ids.remove(null);
+                    ids.sort((a, b) -> Integer.compare(Integer.parseInt(a), Integer.parseInt(b)));
+                    assertEquals(expectedIds, ids);
+                }
+        );
+    }
+
+    @Test
+    public void given_dotted_file_name_then_split_at_last_dot() {
+        assertAll(
+                () -> assertEquals("export.2023.part-0000.csv",
+                        PartitionedCsvExport.partFile(Paths.get("export.2023.csv"), 0).toString()),
+                () -> assertEquals("export.2023.manifest.csv",
+                        PartitionedCsvExport.manifestFile(Paths.get("export.2023.csv")).toString()),
+                () -> assertEquals("export.2023.part-0001.csv.gz",
+                        PartitionedCsvExport.partFile(Paths.get("export.2023.csv.gz"), 1).toString()),
+                () -> assertEquals("export.part-0000",
+                        PartitionedCsvExport.partFile(Paths.get("export"), 0).toString()),
+                () -> assertEquals(".export.manifest.csv",
+                        PartitionedCsvExport.manifestFile(Paths.get(".export")).toString())
+        );
+    }
+
+    @Test
+    public void given_failing_partition_then_sql_exception_and_no_files_left() throws Exception {
+        final IConnectionFactory connectionFactory = createConnectionFactory("partitionedCsvExportFailing");
+        final Path target = tempDir.resolve("failing.csv");
+        // division by zero in the partition of ID 900
+        final PartitionedCsvExport partitionedCsvExport = new PartitionedCsvExport(connectionFactory,
+                "SELECT ID, NAME, 1 / (ID - 900) AS R FROM EXPORTED", "ID", target, new HashMap<>());
+        partitionedCsvExport.setPartitions(3);
+        partitionedCsvExport.setMaxFileSize(2000L);
+        assertThrows(SQLException.class, partitionedCsvExport::execute);
+        try (final Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(List.of(), files.collect(Collectors.toList()));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.execute;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author pi
+ */
+public class TableCopyTest {
+
+    static IConnectionFactory createSource(String dbName) throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory(dbName);
+        execute(connectionFactory,
+                "CREATE SCHEMA SHOP",
+                "CREATE TABLE SHOP.CUSTOMER(ID IDENTITY, NAME VARCHAR NOT NULL, NOTE CLOB)",
+                "CREATE TABLE SHOP.ORDERS(ID INT PRIMARY KEY, CUSTOMER_ID BIGINT, CREATED TIMESTAMP, "
+                + "AMOUNT DECIMAL(10,2), DATA BLOB, FOREIGN KEY(CUSTOMER_ID) REFERENCES SHOP.CUSTOMER(ID))",
+                "CREATE INDEX ORDERS_CREATED ON SHOP.ORDERS(CREATED)",
+                "INSERT INTO SHOP.CUSTOMER(NAME, NOTE) SELECT 'customer ' || X, "
+                + "CASE WHEN MOD(X, 2) = 0 THEN NULL ELSE REPEAT('n', 100) END FROM SYSTEM_RANGE(1, 100)",
+                "INSERT INTO SHOP.ORDERS SELECT X, MOD(X, 100) + 1, DATEADD(SECOND, X, TIMESTAMP '2023-01-01 00:00:00'), "
+                + "X / 100.0, CASE WHEN MOD(X, 3) = 0 THEN NULL ELSE X'0102' END FROM SYSTEM_RANGE(1, 5000)",
+                "ANALYZE");
+        return connectionFactory;
+    }
+
+    static long queryLong(IConnectionFactory connectionFactory, String sql) throws SQLException {
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement();
+                final ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void given_missing_tables_then_created_and_copied_by_key_ranges() throws Exception {
+        final IConnectionFactory source = createSource("tableCopySource");
+        final IConnectionFactory target = createMemConnectionFactory("tableCopyTarget");
+        final TableCopy tableCopy = new TableCopy(source, target);
+        tableCopy.setSchema("SHOP");
+        tableCopy.setBatchSize(300);
+        tableCopy.setQueueSize(1);
+        tableCopy.setPartitionRows(1000);
+        final TableCopy.Result result = tableCopy.execute();
+
+        final TableDiff.Result customerDiff = new TableDiff(source, target, "SHOP", "CUSTOMER").execute();
+        final TableDiff.Result ordersDiff = new TableDiff(source, target, "SHOP", "ORDERS").execute();
+        execute(target, "INSERT INTO SHOP.CUSTOMER(NAME) VALUES('new customer')");
+        assertAll(
+                () -> assertEquals(2, result.tables()),
+                () -> assertEquals(2, result.createdTables()),
+                () -> assertEquals(6, result.partitions(), result.toString()),
+                () -> assertEquals(5100L, result.rows()),
+                () -> assertTrue(customerDiff.equal(), customerDiff.toString()),
+                () -> assertTrue(ordersDiff.equal(), ordersDiff.toString()),
+                () -> assertEquals(1L, queryLong(target, "SELECT COUNT(*) FROM INFORMATION_SCHEMA.INDEXES "
+                        + "WHERE INDEX_NAME = 'ORDERS_CREATED'")),
+                () -> assertEquals(1L, queryLong(target, "SELECT COUNT(*) FROM INFORMATION_SCHEMA.CROSS_REFERENCES "
+                        + "WHERE FKTABLE_NAME = 'ORDERS'")),
+                // the identity continues after the copied keys
+                () -> assertEquals(101L, queryLong(target, "SELECT ID FROM SHOP.CUSTOMER WHERE NAME = 'new customer'"))
+        );
+    }
+
+    @Test
+    public void given_existing_table_then_rows_appended() throws Exception {
+        final IConnectionFactory source = createSource("tableCopyExistingSource");
+        final IConnectionFactory target = createMemConnectionFactory("tableCopyExistingTarget");
+        execute(target,
+                "CREATE SCHEMA SHOP",
+                "CREATE TABLE SHOP.CUSTOMER(ID BIGINT PRIMARY KEY, NAME VARCHAR, NOTE CLOB, EXTRA INT)");
+        final TableCopy tableCopy = new TableCopy(source, target);
+        tableCopy.setTables(Set.of("CUSTOMER"));
+        final TableCopy.Result result = tableCopy.execute();
+        assertAll(
+                () -> assertEquals(1, result.tables()),
+                () -> assertEquals(0, result.createdTables()),
+                () -> assertEquals(100L, result.rows()),
+                () -> assertEquals(100L, queryLong(target, "SELECT COUNT(*) FROM SHOP.CUSTOMER WHERE EXTRA IS NULL")),
+                () -> assertEquals(50L, queryLong(target, "SELECT COUNT(*) FROM SHOP.CUSTOMER WHERE NOTE IS NULL"))
+        );
+    }
+
+    @Test
+    public void given_failing_insert_then_exception() throws Exception {
+        final IConnectionFactory source = createSource("tableCopyFailingSource");
+        final IConnectionFactory target = createMemConnectionFactory("tableCopyFailingTarget");
+        final TableCopy tableCopy = new TableCopy(source, target);
+        tableCopy.setTables(Set.of("ORDERS"));
+        tableCopy.setCreateTables(false);
+        assertThrows(SQLException.class, tableCopy::execute);
+    }
+
+    @Test
+    public void given_ddl_then_users_skipped_and_sequences_if_not_exists() {
+        assertAll(
+                () -> assertNull(TableCopy.targetDdl("CREATE USER IF NOT EXISTS \"SA\" PASSWORD '' ADMIN")),
+                () -> assertNull(TableCopy.targetDdl("-- 0 +/- SELECT COUNT(*) FROM S.P")),
+                () -> assertEquals("CREATE SCHEMA IF NOT EXISTS \"S\"",
+                        TableCopy.targetDdl("CREATE SCHEMA IF NOT EXISTS \"S\" AUTHORIZATION \"SA\"")),
+                () -> assertEquals("CREATE SEQUENCE IF NOT EXISTS \"S\".\"SQ\" START WITH 1",
+                        TableCopy.targetDdl("CREATE SEQUENCE \"S\".\"SQ\" START WITH 1"))
+        );
+    }
+}
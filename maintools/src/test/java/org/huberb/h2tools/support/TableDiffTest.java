@@ -0,0 +1,100 @@
+/*
+ * Copyright 2023 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.h2tools.support;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.huberb.h2tools.jdbc.IConnectionFactory;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.createMemConnectionFactory;
+import static org.huberb.h2tools.jdbc.DefaultDataSourceOrConnectionCreator.execute;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author pi
+ */
+public class TableDiffTest {
+
+    static IConnectionFactory createConnectionFactory(String dbName) throws SQLException {
+        final IConnectionFactory connectionFactory = createMemConnectionFactory(dbName);
+        try (final Connection connection = connectionFactory.createConnection();
+                final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE ITEM(ID INT PRIMARY KEY, NAME VARCHAR, AMOUNT DECIMAL(10,2))");
+            statement.execute("INSERT INTO ITEM SELECT X, "
+                    + "CASE WHEN MOD(X, 3) = 0 THEN NULL WHEN MOD(X, 3) = 1 THEN '' ELSE 'item ' || X END, "
+                    + "X / 100.0 FROM SYSTEM_RANGE(1, 5000)");
+        }
+        return connectionFactory;
+    }
+
+    @Test
+    public void given_equal_tables_then_only_root_range_hashed() throws Exception {
+        final IConnectionFactory source = createConnectionFactory("tableDiffEqualSource");
+        final IConnectionFactory target = createConnectionFactory("tableDiffEqualTarget");
+        final TableDiff.Result result = new TableDiff(source, target, "PUBLIC", "ITEM").execute();
+        assertAll(
+                () -> assertTrue(result.equal(), result.toString()),
+                () -> assertEquals(0L, result.comparedRows())
+        );
+    }
+
+    @Test
+    public void given_differing_tables_then_statements_make_target_equal() throws Exception {
+        final IConnectionFactory source = createConnectionFactory("tableDiffSource");
+        final IConnectionFactory target = createConnectionFactory("tableDiffTarget");
+        execute(source,
+                "INSERT INTO ITEM VALUES(6000, 'new', 1.5)",
+                "INSERT INTO ITEM VALUES(-1, NULL, NULL)",
+                "UPDATE ITEM SET NAME = NULL WHERE ID = 1",
+                "UPDATE ITEM SET NAME = '' WHERE ID = 3",
+                "UPDATE ITEM SET AMOUNT = 0 WHERE ID = 2500",
+                "DELETE FROM ITEM WHERE ID IN (10, 4000)");
+        final List<String> statements = new ArrayList<>();
+        final TableDiff tableDiff = new TableDiff(source, target, "PUBLIC", "ITEM");
+        tableDiff.setFanout(4);
+        tableDiff.setLeafRows(50);
+        tableDiff.setStatementConsumer(statements::add);
+        final TableDiff.Result result = tableDiff.execute();
+        execute(target, statements.toArray(new String[0]));
+        final TableDiff.Result again = new TableDiff(source, target, "PUBLIC", "ITEM").execute();
+        assertAll(
+                () -> assertFalse(result.equal()),
+                () -> assertEquals(2L, result.insertedRows(), result.toString()),
+                () -> assertEquals(3L, result.updatedRows(), result.toString()),
+                () -> assertEquals(2L, result.deletedRows(), result.toString()),
+                () -> assertEquals(7, statements.size()),
+                () -> assertTrue(result.comparedRows() < 5000L, result.toString()),
+                () -> assertTrue(again.equal(), again.toString())
+        );
+    }
+
+    @Test
+    public void given_differing_columns_then_exception() throws Exception {
+        final IConnectionFactory source = createConnectionFactory("tableDiffColumnsSource");
+        final IConnectionFactory target = createConnectionFactory("tableDiffColumnsTarget");
+        execute(target, "ALTER TABLE ITEM ADD COLUMN EXTRA INT");
+        final TableDiff tableDiff = new TableDiff(source, target, "PUBLIC", "ITEM");
+        assertThrows(SQLException.class, tableDiff::execute);
+    }
+}